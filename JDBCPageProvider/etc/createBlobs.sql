@@ -0,0 +1,14 @@
+-- Page texts stored by hash, used by jdbc.dedup=true, for a table named jspwiki.
+-- Use the text type of the jspwiki table: mediumtext on MySQL, nvarchar(max) on MSSQL, clob on Oracle.
+
+create table jspwiki_blobs (
+  hash varchar(64) NOT NULL PRIMARY KEY,
+  text text NULL,
+  -- set for a delta, the hash of the text it applies to
+  basehash varchar(64) NULL,
+  -- the number of deltas applied to read the text
+  depth int NOT NULL DEFAULT 0
+);
+
+-- Existing tables: fill the textsize and texthash columns (etc/migrateMetadataColumns.sql), then move the
+-- older versions into the blobs with JDBCPageMigrator.migrateBlobs().
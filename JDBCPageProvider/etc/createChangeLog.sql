@@ -0,0 +1,18 @@
+-- Change log used by jdbc.changelog=true, for a table named jspwiki.
+-- On MSSQL use datetime2 rather than timestamp for changetime.
+
+create table jspwiki_changes (
+  seq bigint NOT NULL PRIMARY KEY,
+  name varchar(255) NOT NULL,
+  version int NULL,
+  changetype varchar(2) NOT NULL,
+  oldname varchar(255) NULL,
+  author varchar(255) NULL,
+  changetime timestamp NOT NULL
+);
+
+-- single row counter numbering the changes in commit order
+create table jspwiki_changeseq (
+  seq bigint NOT NULL
+);
+insert into jspwiki_changeseq (seq) values (0);
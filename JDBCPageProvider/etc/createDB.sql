@@ -10,7 +10,40 @@ create table jspwiki (
   author varchar(255) NOT NULL,
   changenote varchar(255) NULL,
   lastmodified timestamp NOT NULL DEFAULT now(),
-  status varchar(10) NOT NULL
+  status varchar(10) NOT NULL,
+  textsize int NULL,
+  texthash varchar(64) NULL,
+  textdata bytea NULL
+);
+
+-- serves the page and version lookups, the latest page listings and the version history,
+-- and makes concurrent saves of a page conflict rather than write the same version twice
+create unique index jspwiki_name_version on jspwiki (name, version);
+
+-- serves getAllChangedSince
+create index jspwiki_lastmodified on jspwiki (lastmodified);
+
+-- the change log, only needed with jdbc.changelog=true
+create table jspwiki_changes (
+  seq bigint NOT NULL PRIMARY KEY,
+  name varchar(255) NOT NULL,
+  version int NULL,
+  changetype varchar(2) NOT NULL,
+  oldname varchar(255) NULL,
+  author varchar(255) NULL,
+  changetime timestamp NOT NULL
+);
+create table jspwiki_changeseq (
+  seq bigint NOT NULL
+);
+insert into jspwiki_changeseq (seq) values (0);
+
+-- the page texts, only needed with jdbc.dedup=true
+create table jspwiki_blobs (
+  hash varchar(64) NOT NULL PRIMARY KEY,
+  text text NULL,
+  basehash varchar(64) NULL,
+  depth int NOT NULL DEFAULT 0
 );
 
 insert into jspwiki(name,text,author,status) VALUES ('test','text','me','ACTIVE');
@@ -0,0 +1,10 @@
+-- Indexes for an existing jspwiki table, created by createDB.sql for new ones.
+
+-- serves the page and version lookups, the latest page listings and the version history,
+-- and makes concurrent saves of a page conflict rather than write the same version twice.
+-- Versions saved twice by earlier releases have to be removed first, these are listed by:
+--   select name, version, count(*) from jspwiki group by name, version having count(*) > 1;
+create unique index jspwiki_name_version on jspwiki (name, version);
+
+-- serves getAllChangedSince
+create index jspwiki_lastmodified on jspwiki (lastmodified);
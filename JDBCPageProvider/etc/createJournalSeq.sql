@@ -0,0 +1,7 @@
+-- Seq of the last write-behind journal entry written, used by jdbc.writebehind.journal, for a table named jspwiki.
+-- Updated in the transaction of every journal batch, so that saves replayed after a crash are written once.
+
+create table jspwiki_journalseq (
+  seq bigint NOT NULL
+);
+insert into jspwiki_journalseq (seq) values (0);
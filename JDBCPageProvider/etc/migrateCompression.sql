@@ -0,0 +1,22 @@
+-- Add the textdata column used by jdbc.compression=true, for a table named jspwiki.
+-- Compression needs the textsize and texthash columns too, see etc/migrateMetadataColumns.sql.
+-- Existing rows stay readable as they are, set jdbc.compression.recompress=true or run
+-- JDBCPageMigrator.compressTexts() to compress their texts.
+
+-- PostgreSQL
+alter table jspwiki add column textdata bytea null;
+
+-- MySQL
+-- alter table jspwiki add column textdata mediumblob null;
+
+-- H2
+-- alter table jspwiki add column textdata blob null;
+
+-- MSSQL, Sybase
+-- alter table jspwiki add textdata varbinary(max) null;
+
+-- Oracle
+-- alter table jspwiki add (textdata blob null);
+
+-- DB2
+-- alter table jspwiki add column textdata blob;
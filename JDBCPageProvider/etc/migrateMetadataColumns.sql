@@ -0,0 +1,15 @@
+-- Add the textsize and texthash columns used by jdbc.metadatacolumns=true,
+-- then run JDBCPageMigrator.migrateMetadataColumns() to fill in the existing rows.
+
+-- PostgreSQL, MySQL, H2
+alter table jspwiki add column textsize int null;
+alter table jspwiki add column texthash varchar(64) null;
+
+-- MSSQL, Sybase
+-- alter table jspwiki add textsize int null, texthash varchar(64) null;
+
+-- Oracle
+-- alter table jspwiki add (textsize number(10) null, texthash varchar2(64) null);
+
+-- DB2
+-- alter table jspwiki add column textsize int add column texthash varchar(64);
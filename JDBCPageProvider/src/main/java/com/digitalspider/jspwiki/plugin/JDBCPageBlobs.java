@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_ID;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_PAGENAME;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXT;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTDATA;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTHASH;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_VERSION;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content addressed storage of page texts for a versioned {@link JDBCPageProvider}. Every text is stored
+ * once in the blobs table, keyed by its SHA-256 hash, so a save which only changes the changenote, or
+ * reverts a page, adds no text at all.
+ * <p>
+ * The latest version of a page keeps its text inline as well, for searches and the full text index.
+ * When a new version is saved the text of the older versions is cleared, they are read from the blobs.
+ * <p>
+ * Texts of at least deltaMinSize characters are stored as a delta against the text of the previous
+ * version: the length of the common prefix and suffix, and the changed middle. A text is stored in full
+ * again after maxDeltas deltas in a row, so a read applies at most maxDeltas deltas.
+ */
+public class JDBCPageBlobs {
+
+    public static final String COLUMN_HASH = "hash";
+    public static final String COLUMN_BASEHASH = "basehash";
+    public static final String COLUMN_DEPTH = "depth";
+    public static final String COLUMN_LATESTVERSION = "latestversion";
+
+    private static final char DELTA_SEPARATOR = ':';
+    // guards against a corrupt chain, chains written with a larger maxDeltas can still be read
+    private static final int MAX_CHAIN = 1000;
+
+    private final String blobTable;
+    private final int deltaMinSize;
+    private final int maxDeltas;
+    final String selectBlob;
+    final String selectDepth;
+    final String insertBlob;
+    final String selectLatestHash;
+    final String clearOlderTexts;
+    final String selectInlineTexts;
+    final String clearText;
+
+    /**
+     * @param deltaMinSize texts at least this long are stored as deltas, 0 to always store texts in full
+     * @param maxDeltas the most deltas applied to read a text
+     */
+    public JDBCPageBlobs(String tableName, int deltaMinSize, int maxDeltas) {
+        this(tableName, deltaMinSize, maxDeltas, false);
+    }
+
+    /**
+     * @param textData the table also keeps compressed texts in the textdata column, cleared along with the text
+     */
+    public JDBCPageBlobs(String tableName, int deltaMinSize, int maxDeltas, boolean textData) {
+        this.blobTable = tableName + "_blobs";
+        this.deltaMinSize = deltaMinSize;
+        this.maxDeltas = Math.max(maxDeltas, 0);
+        selectBlob = "select " + COLUMN_TEXT + ", " + COLUMN_BASEHASH + " from " + blobTable + " where " + COLUMN_HASH + " = ?";
+        selectDepth = "select " + COLUMN_DEPTH + " from " + blobTable + " where " + COLUMN_HASH + " = ?";
+        insertBlob = "insert into " + blobTable + " (" + COLUMN_HASH + ", " + COLUMN_TEXT + ", " + COLUMN_BASEHASH + ", " + COLUMN_DEPTH
+                + ") values (?,?,?,?)";
+        selectLatestHash = "select " + COLUMN_TEXTHASH + " from " + tableName + " where " + COLUMN_PAGENAME + " = ? order by "
+                + COLUMN_VERSION + " desc";
+        clearOlderTexts = "update " + tableName + " set " + COLUMN_TEXT + " = null" + (textData ? ", " + COLUMN_TEXTDATA + " = null" : "")
+                + " where " + COLUMN_PAGENAME + " = ? and " + (textData ? "(" + COLUMN_TEXT + " is not null or " + COLUMN_TEXTDATA + " is not null)" : COLUMN_TEXT + " is not null")
+                + " and " + COLUMN_TEXTHASH + " in (select " + COLUMN_HASH + " from " + blobTable + ")";
+        selectInlineTexts = "select t." + COLUMN_ID + ", t." + COLUMN_TEXT + ", t." + COLUMN_TEXTHASH + ", t." + COLUMN_VERSION
+                + ", (select max(l." + COLUMN_VERSION + ") from " + tableName + " l where l." + COLUMN_PAGENAME + " = t." + COLUMN_PAGENAME
+                + ") as " + COLUMN_LATESTVERSION + " from " + tableName + " t where t." + COLUMN_ID + " > ? and t." + COLUMN_TEXT
+                + " is not null and t." + COLUMN_TEXTHASH + " is not null order by t." + COLUMN_ID;
+        clearText = "update " + tableName + " set " + COLUMN_TEXT + " = null where " + COLUMN_ID + " = ?";
+    }
+
+    /**
+     * Store the text about to be saved as the next version of the page, unless a blob with its hash
+     * exists already, and clear the inline text of the versions already stored as blobs. Run in the
+     * transaction of the save, before the new version is inserted.
+     */
+    void store(Connection conn, String page, String text, String hash) throws SQLException {
+        if (text == null) {
+            return;
+        }
+        if (depth(conn, hash) < 0) {
+            String baseHash = null;
+            int depth = 0;
+            String stored = text;
+            if (deltaMinSize > 0 && text.length() >= deltaMinSize && maxDeltas > 0) {
+                String previousHash = latestHash(conn, page);
+                int previousDepth = (previousHash != null) ? depth(conn, previousHash) : -1;
+                if (previousDepth >= 0 && previousDepth < maxDeltas) {
+                    String delta = delta(load(conn, previousHash), text);
+                    if (delta.length() < text.length() / 2) {
+                        stored = delta;
+                        baseHash = previousHash;
+                        depth = previousDepth + 1;
+                    }
+                }
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(insertBlob)) {
+                stmt.setString(1, hash);
+                stmt.setString(2, stored);
+                if (baseHash != null) {
+                    stmt.setString(3, baseHash);
+                } else {
+                    stmt.setNull(3, Types.VARCHAR);
+                }
+                stmt.setInt(4, depth);
+                stmt.executeUpdate();
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(clearOlderTexts)) {
+            stmt.setString(1, page);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Store a text in full, unless a blob with its hash exists already.
+     *
+     * @return true when the blob was added
+     */
+    boolean storeFull(Connection conn, String text, String hash) throws SQLException {
+        if (text == null || depth(conn, hash) >= 0) {
+            return false;
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(insertBlob)) {
+            stmt.setString(1, hash);
+            stmt.setString(2, text);
+            stmt.setNull(3, Types.VARCHAR);
+            stmt.setInt(4, 0);
+            stmt.executeUpdate();
+        }
+        return true;
+    }
+
+    /**
+     * Read a text, applying the deltas of its chain, oldest first.
+     *
+     * @return the text, or null when there is no blob with the hash
+     */
+    String load(Connection conn, String hash) throws SQLException {
+        List<String> deltas = new ArrayList<String>();
+        String text = null;
+        try (PreparedStatement stmt = conn.prepareStatement(selectBlob)) {
+            stmt.setMaxRows(1);
+            for (String current = hash; current != null; ) {
+                if (deltas.size() > MAX_CHAIN) {
+                    throw new SQLException("The blob " + hash + " has a delta chain longer than " + MAX_CHAIN);
+                }
+                stmt.setString(1, current);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    String stored = readText(rs);
+                    current = rs.getString(COLUMN_BASEHASH);
+                    if (current != null) {
+                        deltas.add(stored);
+                    } else {
+                        text = stored;
+                    }
+                }
+            }
+        }
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            text = apply(text, deltas.get(i));
+        }
+        return text;
+    }
+
+    private static String readText(ResultSet rs) throws SQLException {
+        try (Reader reader = rs.getCharacterStream(COLUMN_TEXT)) {
+            return (reader != null) ? IOUtils.toString(reader) : null;
+        } catch (IOException e) {
+            throw new SQLException("Could not read the blob text. " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of deltas applied to read the blob, or -1 when there is no blob with the hash
+     */
+    private int depth(Connection conn, String hash) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(selectDepth)) {
+            stmt.setString(1, hash);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        }
+    }
+
+    private String latestHash(Connection conn, String page) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(selectLatestHash)) {
+            stmt.setMaxRows(1);
+            stmt.setString(1, page);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * The delta turning base into text: the length of their common prefix and suffix, then the middle
+     * of text between them.
+     */
+    static String delta(String base, String text) {
+        int prefix = 0;
+        int max = Math.min(base.length(), text.length());
+        while (prefix < max && base.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        max -= prefix;
+        while (suffix < max && base.charAt(base.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        return prefix + String.valueOf(DELTA_SEPARATOR) + suffix + DELTA_SEPARATOR + text.substring(prefix, text.length() - suffix);
+    }
+
+    static String apply(String base, String delta) {
+        int first = delta.indexOf(DELTA_SEPARATOR);
+        int second = delta.indexOf(DELTA_SEPARATOR, first + 1);
+        int prefix = Integer.parseInt(delta.substring(0, first));
+        int suffix = Integer.parseInt(delta.substring(first + 1, second));
+        StringBuilder text = new StringBuilder(prefix + (delta.length() - second - 1) + suffix);
+        text.append(base, 0, prefix);
+        text.append(delta, second + 1, delta.length());
+        text.append(base, base.length() - suffix, base.length());
+        return text.toString();
+    }
+
+    /**
+     * The statements creating the blobs table.
+     */
+    public List<String> getCreateStatements() {
+        List<String> ddl = new ArrayList<String>();
+        ddl.add("create table " + blobTable + " (" + COLUMN_HASH + " varchar(64) not null primary key, "
+                + COLUMN_TEXT + " clob null, " + COLUMN_BASEHASH + " varchar(64) null, " + COLUMN_DEPTH + " int not null default 0)");
+        return ddl;
+    }
+
+    public String getBlobTable() {
+        return blobTable;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.WikiProvider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process cache of page metadata, page text and "page does not exist" answers for the
+ * {@link JDBCPageProvider}. Entries are grouped per page so that a write can invalidate everything
+ * known about a page in one step, and the least recently used pages are evicted once the estimated
+ * memory footprint goes over the configured number of bytes.
+ */
+public class JDBCPageCache {
+
+    private static final long PAGE_OVERHEAD = 128;
+    private static final long INFO_OVERHEAD = 256;
+    private static final long TEXT_OVERHEAD = 48;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedPage> pages = new LinkedHashMap<String, CachedPage>(256, 0.75f, true);
+    private long bytes = 0;
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class CachedPage {
+        boolean missing = false;
+        // saved by this provider, its metadata not read yet
+        boolean stored = false;
+        WikiPage latest = null;
+        Map<Integer, WikiPage> versions = new HashMap<Integer, WikiPage>();
+        Map<Integer, String> texts = new HashMap<Integer, String>();
+        long bytes = PAGE_OVERHEAD;
+    }
+
+    public JDBCPageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return TRUE or FALSE when the existence of the page is known, null when the database needs asking
+     */
+    public synchronized Boolean exists(String name) {
+        CachedPage cached = pages.get(name);
+        if (cached != null && (cached.missing || cached.stored || cached.latest != null)) {
+            hits.incrementAndGet();
+            return !cached.missing;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return a copy of the cached page, or null when it is not cached. Use {@link #exists(String)}
+     * to tell a cached miss apart from a page which does not exist.
+     */
+    public synchronized WikiPage getPageInfo(String name, int version) {
+        CachedPage cached = pages.get(name);
+        WikiPage page = null;
+        if (cached != null) {
+            page = (version == WikiProvider.LATEST_VERSION) ? cached.latest : cached.versions.get(version);
+        }
+        if (page == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return (WikiPage) page.clone();
+    }
+
+    /**
+     * Readers take the generation before going to the database and hand it back when caching the
+     * result, so that a value read before a concurrent write is never cached after its invalidation.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized void putPageInfo(String name, int version, WikiPage page, long readGeneration) {
+        if (readGeneration != generation) {
+            return;
+        }
+        CachedPage cached = getOrCreate(name);
+        if (page == null) {
+            if (version == WikiProvider.LATEST_VERSION && cached.latest == null && !cached.stored) {
+                cached.missing = true;
+            }
+        } else {
+            WikiPage copy = (WikiPage) page.clone();
+            long size = INFO_OVERHEAD + sizeOf(page.getName()) + sizeOf(page.getAuthor());
+            if (version == WikiProvider.LATEST_VERSION) {
+                if (cached.latest == null) {
+                    grow(cached, size);
+                }
+                cached.latest = copy;
+            } else if (cached.versions.put(version, copy) == null) {
+                grow(cached, size);
+            }
+            cached.missing = false;
+        }
+        evict(name);
+    }
+
+    /**
+     * Remember that the page exists, after it has been saved and invalidated.
+     */
+    public synchronized void putStored(String name) {
+        CachedPage cached = getOrCreate(name);
+        cached.stored = true;
+        cached.missing = false;
+        evict(name);
+    }
+
+    public synchronized String getPageText(String name, int version) {
+        CachedPage cached = pages.get(name);
+        String text = (cached != null) ? cached.texts.get(version) : null;
+        if (text == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return text;
+    }
+
+    public synchronized void putPageText(String name, int version, String text, long readGeneration) {
+        if (readGeneration != generation || text == null || TEXT_OVERHEAD + sizeOf(text) > maxBytes) {
+            return;
+        }
+        CachedPage cached = getOrCreate(name);
+        String previous = cached.texts.put(version, text);
+        if (previous != null) {
+            grow(cached, -(TEXT_OVERHEAD + sizeOf(previous)));
+        }
+        grow(cached, TEXT_OVERHEAD + sizeOf(text));
+        evict(name);
+    }
+
+    /**
+     * Forget everything known about the page, including that it did not exist.
+     */
+    public synchronized void invalidate(String name) {
+        generation++;
+        CachedPage cached = pages.remove(name);
+        if (cached != null) {
+            bytes -= cached.bytes;
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        pages.clear();
+        bytes = 0;
+    }
+
+    private CachedPage getOrCreate(String name) {
+        CachedPage cached = pages.get(name);
+        if (cached == null) {
+            cached = new CachedPage();
+            pages.put(name, cached);
+            bytes += cached.bytes;
+        }
+        return cached;
+    }
+
+    private void grow(CachedPage cached, long delta) {
+        cached.bytes += delta;
+        bytes += delta;
+    }
+
+    /**
+     * Evict the least recently used pages until the cache fits, keeping the page just written.
+     */
+    private void evict(String name) {
+        Iterator<Map.Entry<String, CachedPage>> iterator = pages.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, CachedPage> entry = iterator.next();
+            if (entry.getKey().equals(name)) {
+                continue;
+            }
+            bytes -= entry.getValue().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long sizeOf(String value) {
+        return (value == null) ? 0 : 2L * value.length();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getPageCount() {
+        return pages.size();
+    }
+
+    @Override
+    public String toString() {
+        return "JDBCPageCache[pages=" + getPageCount() + ", bytes=" + getBytes() + "/" + maxBytes
+                + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+}
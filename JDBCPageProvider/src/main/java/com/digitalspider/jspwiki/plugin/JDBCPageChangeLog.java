@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_PAGENAME;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_VERSION;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The change log of a {@link JDBCPageProvider}: one row for every save, delete and move, numbered by an
+ * increasing sequence, so that RecentChanges, feeds and search indexers can poll for the changes after
+ * the last one they have seen.
+ * <p>
+ * The change is written in the transaction of the page write. The sequence comes from a single row
+ * counter table updated last, so transactions take their numbers in commit order and a reader never
+ * sees a change numbered after one still to be committed.
+ */
+public class JDBCPageChangeLog {
+
+    public static final String COLUMN_SEQ = "seq";
+    public static final String COLUMN_CHANGETYPE = "changetype";
+    public static final String COLUMN_OLDNAME = "oldname";
+    public static final String COLUMN_AUTHOR = "author";
+    public static final String COLUMN_CHANGETIME = "changetime";
+
+    public enum ChangeType {
+        SAVE("SV"), DELETE_VERSION("DV"), DELETE_PAGE("DP"), MOVE("MV");
+
+        private final String dbValue;
+
+        ChangeType(String dbValue) {
+            this.dbValue = dbValue;
+        }
+
+        public String getDbValue() {
+            return dbValue;
+        }
+
+        public static ChangeType parse(String dbValue) {
+            for (ChangeType type : values()) {
+                if (type.dbValue.equals(dbValue)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown change type " + dbValue);
+        }
+    }
+
+    /**
+     * A change to a page. A save records the version it wrote, a move the old name of the page.
+     */
+    public static class Change {
+        private long seq;
+        private final String name;
+        private final Integer version;
+        private final ChangeType type;
+        private final String oldName;
+        private final String author;
+        private Date time;
+
+        public Change(ChangeType type, String name, Integer version, String oldName, String author) {
+            this.type = type;
+            this.name = name;
+            this.version = version;
+            this.oldName = oldName;
+            this.author = author;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the version, or null for the version just saved until the change is read back
+         */
+        public Integer getVersion() {
+            return version;
+        }
+
+        public ChangeType getType() {
+            return type;
+        }
+
+        public String getOldName() {
+            return oldName;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return seq + " " + type + " " + name + (version != null ? " v" + version : "") + (oldName != null ? " from " + oldName : "");
+        }
+    }
+
+    private final String changeTable;
+    private final String seqTable;
+    final String updateSeq;
+    final String insertChange;
+    final String insertSavedChange;
+    final String selectChanges;
+
+    public JDBCPageChangeLog(String tableName) {
+        changeTable = tableName + "_changes";
+        seqTable = tableName + "_changeseq";
+        String columns = COLUMN_SEQ + "," + COLUMN_PAGENAME + "," + COLUMN_VERSION + "," + COLUMN_CHANGETYPE + ","
+                + COLUMN_OLDNAME + "," + COLUMN_AUTHOR + "," + COLUMN_CHANGETIME;
+        updateSeq = "update " + seqTable + " set " + COLUMN_SEQ + " = " + COLUMN_SEQ + " + 1";
+        insertChange = "insert into " + changeTable + " (" + columns + ") select s." + COLUMN_SEQ + ", ?, ?, ?, ?, ?, ? from " + seqTable + " s";
+        insertSavedChange = "insert into " + changeTable + " (" + columns + ") select s." + COLUMN_SEQ + ", ?, "
+                + "(select max(" + COLUMN_VERSION + ") from " + tableName + " where " + COLUMN_PAGENAME + " = ?), ?, ?, ?, ? from " + seqTable + " s";
+        selectChanges = "select " + columns + " from " + changeTable + " where " + COLUMN_SEQ + " > ? order by " + COLUMN_SEQ;
+    }
+
+    /**
+     * Record the change, on the connection of the transaction writing the page.
+     */
+    void record(Connection conn, Change change) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement stmt = conn.prepareStatement(updateSeq)) {
+            stmt.executeUpdate();
+        }
+        boolean saved = change.version == null;
+        try (PreparedStatement stmt = conn.prepareStatement(saved ? insertSavedChange : insertChange)) {
+            stmt.setString(1, change.name);
+            if (saved) {
+                stmt.setString(2, change.name);
+            } else {
+                stmt.setInt(2, change.version);
+            }
+            stmt.setString(3, change.type.getDbValue());
+            if (change.oldName != null) {
+                stmt.setString(4, change.oldName);
+            } else {
+                stmt.setNull(4, Types.VARCHAR);
+            }
+            if (change.author != null) {
+                stmt.setString(5, change.author);
+            } else {
+                stmt.setNull(5, Types.VARCHAR);
+            }
+            stmt.setTimestamp(6, now);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * The changes numbered after seq, oldest first, read with one range scan of the primary key.
+     */
+    List<Change> getChangesSince(Connection conn, long seq, int limit) throws SQLException {
+        List<Change> changes = new ArrayList<Change>();
+        try (PreparedStatement stmt = conn.prepareStatement(selectChanges)) {
+            stmt.setMaxRows(Math.max(limit, 0));
+            stmt.setLong(1, seq);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Integer version = rs.getInt(COLUMN_VERSION);
+                    if (rs.wasNull()) {
+                        version = null;
+                    }
+                    Change change = new Change(ChangeType.parse(rs.getString(COLUMN_CHANGETYPE)), rs.getString(COLUMN_PAGENAME),
+                            version, rs.getString(COLUMN_OLDNAME), rs.getString(COLUMN_AUTHOR));
+                    change.seq = rs.getLong(COLUMN_SEQ);
+                    change.time = rs.getTimestamp(COLUMN_CHANGETIME);
+                    changes.add(change);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * The statements creating the change log tables.
+     */
+    public List<String> getCreateStatements() {
+        List<String> ddl = new ArrayList<String>();
+        ddl.add("create table " + changeTable + " (" + COLUMN_SEQ + " bigint not null primary key, "
+                + COLUMN_PAGENAME + " varchar(255) not null, " + COLUMN_VERSION + " int null, " + COLUMN_CHANGETYPE + " varchar(2) not null, "
+                + COLUMN_OLDNAME + " varchar(255) null, " + COLUMN_AUTHOR + " varchar(255) null, " + COLUMN_CHANGETIME + " timestamp not null)");
+        ddl.add("create table " + seqTable + " (" + COLUMN_SEQ + " bigint not null)");
+        ddl.add("insert into " + seqTable + " (" + COLUMN_SEQ + ") values (0)");
+        return ddl;
+    }
+
+    public String getChangeTable() {
+        return changeTable;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of page texts into the textdata column of a {@link JDBCPageProvider}.
+ * <p>
+ * A stored value starts with a format byte. {@link #FORMAT_DEFLATE} is followed by the length of the
+ * UTF-8 text as a 4 byte big endian int, then the deflated UTF-8 bytes. {@link #FORMAT_UTF8} is
+ * followed by the plain UTF-8 bytes. Rows written before compression was enabled, and texts shorter
+ * than minSize, keep their text in the text column and are read from there as before.
+ * <p>
+ * Each thread reuses its own Deflater, Inflater and buffers, so reading a text allocates little more
+ * than the String itself.
+ */
+public class JDBCPageCompression {
+
+    public static final byte FORMAT_UTF8 = 0;
+    public static final byte FORMAT_DEFLATE = 1;
+
+    private static final int HEADER_SIZE = 5;
+    private static final int CHUNK_SIZE = 8192;
+    // buffers grown beyond this for a very large text are not kept by the thread
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private final int minSize;
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static class Buffers {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final Inflater inflater = new Inflater();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        private byte[] bytes = new byte[CHUNK_SIZE];
+
+        byte[] bytes(int size) {
+            if (size <= bytes.length) {
+                return bytes;
+            }
+            byte[] larger = new byte[Math.max(size, bytes.length * 2)];
+            if (larger.length <= MAX_RETAINED_BUFFER) {
+                bytes = larger;
+            }
+            return larger;
+        }
+    }
+
+    /**
+     * @param minSize texts at least this many characters long are compressed
+     */
+    public JDBCPageCompression(int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * @return the stored value of the text, or null when the text is shorter than minSize or does not
+     * get any smaller, it is then stored in the text column
+     */
+    public byte[] compress(String text) {
+        if (text == null || text.length() < minSize) {
+            return null;
+        }
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        Buffers buffers = this.buffers.get();
+        Deflater deflater = buffers.deflater;
+        deflater.reset();
+        deflater.setInput(utf8);
+        deflater.finish();
+        byte[] out = buffers.bytes(utf8.length);
+        int length = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (length >= utf8.length) {
+                return null;
+            }
+            length += deflater.deflate(out, length, utf8.length - length);
+        }
+        if (length >= utf8.length) {
+            return null;
+        }
+        out[0] = FORMAT_DEFLATE;
+        out[1] = (byte) (utf8.length >>> 24);
+        out[2] = (byte) (utf8.length >>> 16);
+        out[3] = (byte) (utf8.length >>> 8);
+        out[4] = (byte) utf8.length;
+        return Arrays.copyOf(out, length);
+    }
+
+    public String decompress(byte[] data) throws IOException {
+        return (data != null) ? decompress(new ByteArrayInputStream(data)) : null;
+    }
+
+    /**
+     * Read a stored value, inflating straight from the stream into the buffer of the thread.
+     *
+     * @return the text, or null for an empty value
+     */
+    public String decompress(InputStream in) throws IOException {
+        int format = in.read();
+        if (format < 0) {
+            return null;
+        }
+        if (format == FORMAT_UTF8) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        if (format != FORMAT_DEFLATE) {
+            throw new IOException("Unknown page text format " + format);
+        }
+        int length = new DataInputStream(in).readInt();
+        Buffers buffers = this.buffers.get();
+        byte[] out = buffers.bytes(length);
+        Inflater inflater = buffers.inflater;
+        inflater.reset();
+        int offset = 0;
+        try {
+            while (offset < length) {
+                if (inflater.needsInput()) {
+                    int read = in.read(buffers.chunk);
+                    if (read < 0) {
+                        throw new EOFException("The compressed page text is truncated");
+                    }
+                    inflater.setInput(buffers.chunk, 0, read);
+                }
+                offset += inflater.inflate(out, offset, length - offset);
+                if (offset < length && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new EOFException("The compressed page text is shorter than its length " + length);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("The compressed page text is corrupt. " + e.getMessage(), e);
+        }
+        return new String(out, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+}
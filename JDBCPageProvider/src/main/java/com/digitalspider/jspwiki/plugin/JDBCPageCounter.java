@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The maintained page count of a {@link JDBCPageProvider}, so that getPageCount does not scan the table.
+ * The pages are counted once, then the provider adjusts the count as it creates and deletes pages.
+ * <p>
+ * Other wikis sharing the database, imports and concurrent creations of the same page make the count
+ * drift, so a background thread counts the pages again every reconcileMillis. Adjustments made while
+ * it counts are kept on top of the new count, a page counted both ways is put right by the next run.
+ */
+public class JDBCPageCounter {
+
+    private final Logger log = Logger.getLogger(JDBCPageCounter.class);
+
+    /**
+     * Counts the pages in the database.
+     */
+    interface Loader {
+        int count() throws SQLException;
+    }
+
+    private final Loader loader;
+    private final long reconcileMillis;
+    private final AtomicLong adjustments = new AtomicLong();
+    private final AtomicLong reconciliations = new AtomicLong();
+    private volatile long base = 0;
+    private volatile boolean counted = false;
+    private ScheduledExecutorService reconciler = null;
+
+    /**
+     * @param reconcileMillis milliseconds between two counts of the pages, 0 to never count them again
+     */
+    public JDBCPageCounter(Loader loader, long reconcileMillis) {
+        this.loader = loader;
+        this.reconcileMillis = reconcileMillis;
+    }
+
+    /**
+     * Count the pages again every reconcileMillis on a daemon thread.
+     */
+    public void start(final String name) {
+        if (reconcileMillis <= 0 || reconciler != null) {
+            return;
+        }
+        reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "JDBCPageCounter-" + name);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        reconciler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    reconcile();
+                } catch (SQLException e) {
+                    log.warn("Could not count the pages. " + e.getMessage());
+                } catch (RuntimeException e) {
+                    log.error(e, e);
+                }
+            }
+        }, reconcileMillis, reconcileMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+            reconciler = null;
+        }
+    }
+
+    /**
+     * @return the number of pages, counting them first when they have not been counted yet
+     */
+    public int get() throws SQLException {
+        if (!counted) {
+            reconcile();
+        }
+        return (int) (base + adjustments.get());
+    }
+
+    /**
+     * @param change the pages created, or deleted when negative
+     */
+    public void adjust(int change) {
+        adjustments.addAndGet(change);
+    }
+
+    /**
+     * Count the pages again on the next {@link #get()}, after a change the provider cannot adjust the
+     * count for.
+     */
+    public void invalidate() {
+        counted = false;
+    }
+
+    /**
+     * Count the pages in the database and correct the maintained count.
+     *
+     * @return the pages counted
+     */
+    public synchronized int reconcile() throws SQLException {
+        boolean wasCounted = counted;
+        // cleared again by an invalidate() while counting
+        counted = true;
+        long before = adjustments.get();
+        int count;
+        try {
+            count = loader.count();
+        } catch (SQLException e) {
+            counted = false;
+            throw e;
+        }
+        long maintained = base + before;
+        base = count - before;
+        reconciliations.incrementAndGet();
+        if (wasCounted && maintained != count) {
+            log.info("reconcile() corrected the page count from " + maintained + " to " + count);
+        }
+        return count;
+    }
+
+    public long getReconciliations() {
+        return reconciliations.get();
+    }
+
+    public long getReconcileMillis() {
+        return reconcileMillis;
+    }
+}
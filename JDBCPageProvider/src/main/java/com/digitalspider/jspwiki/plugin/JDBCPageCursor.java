@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the latest version of every page of a {@link JDBCPageProvider}, in name order, without
+ * holding more than one fetch of pages in memory. Pages saved to the write-behind journal replace their
+ * database row, and new pages still in the journal follow the pages of the database.
+ * <p>
+ * A cursor opened by {@link JDBCPageProvider#iterateAllPages()} streams a single query through a forward
+ * only, server side cursor and holds its connection until it is exhausted or closed. The cursor behind
+ * {@link JDBCPageProvider#getAllPages()} instead reads keyset batches, each on a connection of its own,
+ * so an iteration abandoned half way leaks nothing.
+ */
+public class JDBCPageCursor implements Iterator<WikiPage>, Closeable {
+
+    private final Logger log = Logger.getLogger(JDBCPageCursor.class);
+
+    private final JDBCPageProvider provider;
+    private final Map<String, WikiPage> pending;
+    private final int batchSize;
+    private Connection conn;
+    private PreparedStatement stmt;
+    private ResultSet rs;
+    private Iterator<WikiPage> batch = null;
+    private String lastName = null;
+    private boolean exhausted = false;
+    private Iterator<WikiPage> remaining = null;
+    private WikiPage next = null;
+
+    /**
+     * The lazy view of every page returned by {@link JDBCPageProvider#getAllPages()}. Every iteration
+     * runs its own keyset cursor, the size is counted by the database.
+     */
+    public static class Pages extends AbstractCollection<WikiPage> {
+        private final JDBCPageProvider provider;
+
+        Pages(JDBCPageProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public Iterator<WikiPage> iterator() {
+            try {
+                return new JDBCPageCursor(provider, provider.getPendingLatestPages(), provider.getFetchSize());
+            } catch (ProviderException e) {
+                throw new IllegalStateException("Could not read the pages. " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int size() {
+            try {
+                return provider.countAllPages();
+            } catch (ProviderException e) {
+                throw new IllegalStateException("Could not count the pages. " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * A cursor reading keyset batches of batchSize pages.
+     */
+    JDBCPageCursor(JDBCPageProvider provider, List<WikiPage> pending, int batchSize) {
+        this.provider = provider;
+        this.pending = toMap(pending);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * A cursor streaming the result set, closing it, its statement and connection when done.
+     */
+    JDBCPageCursor(JDBCPageProvider provider, List<WikiPage> pending, Connection conn, PreparedStatement stmt, ResultSet rs) {
+        this.provider = provider;
+        this.pending = toMap(pending);
+        this.batchSize = 0;
+        this.conn = conn;
+        this.stmt = stmt;
+        this.rs = rs;
+    }
+
+    private static Map<String, WikiPage> toMap(List<WikiPage> pages) {
+        Map<String, WikiPage> map = new LinkedHashMap<String, WikiPage>();
+        for (WikiPage page : pages) {
+            map.put(page.getName(), page);
+        }
+        return map;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public WikiPage next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        WikiPage page = next;
+        next = null;
+        return page;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private WikiPage advance() {
+        if (remaining == null) {
+            WikiPage page;
+            try {
+                page = fetch();
+            } catch (SQLException e) {
+                close();
+                throw new IllegalStateException("Could not read the pages. " + e.getMessage(), e);
+            }
+            if (page != null) {
+                WikiPage saved = pending.remove(page.getName());
+                return (saved != null) ? saved : page;
+            }
+            close();
+            remaining = pending.values().iterator();
+        }
+        return remaining.hasNext() ? remaining.next() : null;
+    }
+
+    /**
+     * @return the next page of the database, or null after the last one
+     */
+    private WikiPage fetch() throws SQLException {
+        if (rs != null) {
+            return rs.next() ? provider.toWikiPage(rs) : null;
+        }
+        if (batch == null || !batch.hasNext()) {
+            if (exhausted) {
+                return null;
+            }
+            List<WikiPage> pages = provider.loadPagesAfter(lastName, batchSize);
+            exhausted = pages.size() < batchSize;
+            if (pages.isEmpty()) {
+                return null;
+            }
+            batch = pages.iterator();
+        }
+        WikiPage page = batch.next();
+        lastName = page.getName();
+        return page;
+    }
+
+    /**
+     * Stop reading the database and release the connection of a streaming cursor. Called once the last
+     * page has been read.
+     */
+    @Override
+    public void close() {
+        exhausted = true;
+        batch = null;
+        if (conn == null) {
+            return;
+        }
+        try {
+            rs.close();
+            stmt.close();
+            // ends the read only transaction holding the PostgreSQL cursor open
+            conn.commit();
+            conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.warn("Could not close the page cursor. " + e.getMessage());
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                log.warn("Could not close the page cursor connection. " + e.getMessage());
+            }
+            conn = null;
+            rs = null;
+        }
+    }
+}
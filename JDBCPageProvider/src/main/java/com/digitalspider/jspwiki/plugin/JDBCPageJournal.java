@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind journal of page saves for the {@link JDBCPageProvider}. A save is appended to a local
+ * file and acknowledged once the file is synced to disk, concurrent saves sharing one fsync. A
+ * background thread then writes the pending saves to the database, in batches and in order, and
+ * marks them flushed in the journal. The file is emptied whenever nothing is pending.
+ * <p>
+ * The number of pending saves is bounded, a save waits for room when the database falls behind.
+ * On startup the saves not yet marked flushed are replayed, except those the database reports as
+ * written, see {@link Writer#getWrittenSeq()}. Records are checksummed, so a record torn by a crash
+ * is dropped, it was never acknowledged.
+ */
+public class JDBCPageJournal {
+
+    private final Logger log = Logger.getLogger(JDBCPageJournal.class);
+
+    private static final byte RECORD_SAVE = 1;
+    private static final byte RECORD_FLUSHED = 2;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 30000;
+
+    /**
+     * Writes a batch of saves, oldest first, to the database in one transaction.
+     */
+    public interface Writer {
+        void write(List<Entry> entries) throws SQLException;
+
+        /**
+         * The seq of the last save written to the database, committed with the save. New saves are
+         * numbered on from it and replayed saves up to it are dropped.
+         */
+        long getWrittenSeq() throws SQLException;
+    }
+
+    /**
+     * A pending page save.
+     */
+    public static class Entry {
+        private final long seq;
+        private final String name;
+        private final String author;
+        private final String changenote;
+        private final String text;
+        private final Date time;
+        private final boolean replayed;
+
+        Entry(long seq, String name, String author, String changenote, String text, Date time, boolean replayed) {
+            this.seq = seq;
+            this.name = name;
+            this.author = author;
+            this.changenote = changenote;
+            this.text = text;
+            this.time = time;
+            this.replayed = replayed;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getChangenote() {
+            return changenote;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+
+        /**
+         * @return true for a save read back from the journal on startup, which may already be in the database
+         */
+        public boolean isReplayed() {
+            return replayed;
+        }
+    }
+
+    private final File file;
+    private final int maxPending;
+    private final int batchSize;
+    private final Writer writer;
+
+    private final Object lock = new Object();
+    private final Object syncLock = new Object();
+    private final Object flushLock = new Object();
+    private final LinkedList<Entry> pending = new LinkedList<Entry>();
+    private final Map<String, List<Entry>> pendingByPage = new HashMap<String, List<Entry>>();
+    private final ReentrantReadWriteLock flushing = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private long lastSeq = 0;
+    private volatile long written = 0;
+    private long synced = 0;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    public JDBCPageJournal(File file, int maxPending, int batchSize, Writer writer) {
+        this.file = file;
+        this.maxPending = Math.max(maxPending, 1);
+        this.batchSize = Math.max(batchSize, 1);
+        this.writer = writer;
+    }
+
+    /**
+     * Open the journal, reading back the saves which were not flushed, and start the background writer.
+     */
+    public void open() throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        replay();
+        running = true;
+        thread = new Thread("JDBCPageJournal " + file.getName()) {
+            public void run() {
+                drain();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void replay() throws IOException {
+        Map<Long, Entry> saves = new LinkedHashMap<Long, Entry>();
+        long valid = 0;
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        try {
+            while (true) {
+                int length = in.readInt();
+                long checksum = in.readLong();
+                if (length <= 0 || length > channel.size()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                long seq = record.readLong();
+                if (type == RECORD_SAVE) {
+                    Date time = new Date(record.readLong());
+                    saves.put(seq, new Entry(seq, readString(record), readString(record), readString(record), readString(record), time, true));
+                } else if (type == RECORD_FLUSHED) {
+                    Iterator<Long> saved = saves.keySet().iterator();
+                    while (saved.hasNext()) {
+                        if (saved.next() <= seq) {
+                            saved.remove();
+                        }
+                    }
+                }
+                lastSeq = Math.max(lastSeq, seq);
+                valid += 4 + 8 + length;
+            }
+        } catch (EOFException e) {
+            // end of the journal, or a record torn by a crash
+        }
+        if (valid < channel.size()) {
+            log.warn("Dropping " + (channel.size() - valid) + " bytes of incomplete records from " + file);
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        written = synced = valid;
+        long writtenSeq;
+        try {
+            writtenSeq = writer.getWrittenSeq();
+        } catch (SQLException e) {
+            throw new IOException("Could not read the seq of the last save written. " + e.getMessage(), e);
+        }
+        Iterator<Long> saved = saves.keySet().iterator();
+        while (saved.hasNext()) {
+            if (saved.next() <= writtenSeq) {
+                saved.remove();
+            }
+        }
+        lastSeq = Math.max(lastSeq, writtenSeq);
+        for (Entry entry : saves.values()) {
+            addPending(entry);
+        }
+        if (!saves.isEmpty()) {
+            log.info("Replaying " + saves.size() + " saves from " + file);
+        }
+    }
+
+    /**
+     * Journal a save, waiting while the journal is full, and return once it is on disk.
+     */
+    public Entry append(String name, String author, String changenote, String text) throws IOException, InterruptedException {
+        long end;
+        Entry entry;
+        synchronized (lock) {
+            while (pending.size() >= maxPending) {
+                lock.wait();
+            }
+            entry = new Entry(++lastSeq, name, author, changenote, text, new Date(), false);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (text != null ? text.length() : 0));
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(RECORD_SAVE);
+            record.writeLong(entry.seq);
+            record.writeLong(entry.time.getTime());
+            writeString(record, name);
+            writeString(record, author);
+            writeString(record, changenote);
+            writeString(record, text);
+            end = writeRecord(bytes.toByteArray());
+            addPending(entry);
+            lock.notifyAll();
+        }
+        sync(end);
+        return entry;
+    }
+
+    /**
+     * Write a record at the end of the journal, holding the lock.
+     *
+     * @return the number of bytes ever written to the journal, including this record
+     */
+    private long writeRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + payload.length);
+        buffer.putInt(payload.length).putLong(crc.getValue()).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        written += 4 + 8 + payload.length;
+        return written;
+    }
+
+    /**
+     * Sync the journal up to the given point. The first caller syncs every record written so far,
+     * so that the callers waiting behind it find their records already synced.
+     */
+    private void sync(long end) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= end) {
+                return;
+            }
+            long target = written;
+            channel.force(false);
+            synced = Math.max(synced, target);
+        }
+    }
+
+    private void addPending(Entry entry) {
+        pending.add(entry);
+        List<Entry> entries = pendingByPage.get(entry.name);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            pendingByPage.put(entry.name, entries);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * @return the pending saves of the page, oldest first
+     */
+    public List<Entry> getPending(String name) {
+        synchronized (lock) {
+            List<Entry> entries = pendingByPage.get(name);
+            return (entries == null) ? Collections.<Entry>emptyList() : new ArrayList<Entry>(entries);
+        }
+    }
+
+    public Set<String> getPendingPages() {
+        synchronized (lock) {
+            return new TreeSet<String>(pendingByPage.keySet());
+        }
+    }
+
+    /**
+     * The lock to hold while reading pending saves together with the database, so that a batch being
+     * written is seen either still pending or already in the database, never both.
+     */
+    public Lock getReadLock() {
+        return flushing.readLock();
+    }
+
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Write every pending save to the database now, in the calling thread.
+     */
+    public void flush() throws SQLException, IOException {
+        while (flushBatch()) {
+            // until nothing is pending
+        }
+    }
+
+    /**
+     * Write the next batch of pending saves.
+     *
+     * @return false when nothing was pending
+     */
+    private boolean flushBatch() throws SQLException, IOException {
+        synchronized (flushLock) {
+            long end;
+            flushing.writeLock().lock();
+            try {
+                List<Entry> batch = new ArrayList<Entry>();
+                synchronized (lock) {
+                    for (Entry entry : pending) {
+                        if (batch.size() >= batchSize) {
+                            break;
+                        }
+                        batch.add(entry);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return false;
+                }
+                writer.write(batch);
+                synchronized (lock) {
+                    for (Entry entry : batch) {
+                        pending.removeFirst();
+                        List<Entry> entries = pendingByPage.get(entry.name);
+                        entries.remove(0);
+                        if (entries.isEmpty()) {
+                            pendingByPage.remove(entry.name);
+                        }
+                    }
+                    if (pending.isEmpty()) {
+                        // everything is in the database, start the journal afresh
+                        synchronized (syncLock) {
+                            channel.truncate(0);
+                            channel.position(0);
+                            channel.force(false);
+                            synced = written;
+                        }
+                        end = written;
+                    } else {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+                        DataOutputStream record = new DataOutputStream(bytes);
+                        record.writeByte(RECORD_FLUSHED);
+                        record.writeLong(batch.get(batch.size() - 1).seq);
+                        end = writeRecord(bytes.toByteArray());
+                    }
+                    lock.notifyAll();
+                }
+            } finally {
+                flushing.writeLock().unlock();
+            }
+            sync(end);
+            return true;
+        }
+    }
+
+    /**
+     * The background writer, flushing batches as long as saves are pending and backing off while the
+     * database fails.
+     */
+    private void drain() {
+        long retry = RETRY_MILLIS;
+        while (running) {
+            try {
+                synchronized (lock) {
+                    while (running && pending.isEmpty()) {
+                        lock.wait(1000);
+                    }
+                }
+                if (running) {
+                    flushBatch();
+                    retry = RETRY_MILLIS;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Could not write the journal to the database, retrying in " + retry + "ms. " + e.getMessage(), e);
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                retry = Math.min(retry * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Stop the background writer. Saves still pending stay in the journal for the next start.
+     */
+    public void close() throws IOException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (flushLock) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
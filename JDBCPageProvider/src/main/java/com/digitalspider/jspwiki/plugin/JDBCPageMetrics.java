@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The latencies of the operations of a {@link JDBCPageProvider}, one {@link JDBCPageHistogram} per
+ * public WikiPageProvider method, and the slow query log.
+ * <p>
+ * Every provider registers its metrics, by src and dialect, so they can be dumped as text by the
+ * JDBCPageMetricsPlugin and, when registered with JMX, read from the MBeans
+ * com.digitalspider.jspwiki:type=JDBCPageProvider,src=...,dialect=...[,operation=...].
+ * <p>
+ * Statements taking at least the slow query threshold are logged to the
+ * com.digitalspider.jspwiki.plugin.JDBCPageProvider.slowquery logger, with their SQL, the number of
+ * bound parameters, the rows read or written and the elapsed time. Timing a statement and checking the
+ * threshold allocates nothing, only a slow statement builds its log message.
+ */
+public class JDBCPageMetrics implements JDBCPageMetricsMBean {
+
+    private static final Logger slowQueryLog = Logger.getLogger(JDBCPageProvider.class.getName() + ".slowquery");
+
+    public static final String DOMAIN = "com.digitalspider.jspwiki";
+
+    public enum Operation {
+        PUT_PAGE_TEXT("putPageText"),
+        PAGE_EXISTS("pageExists"),
+        GET_PAGE_INFO("getPageInfo"),
+        FIND_PAGES("findPages"),
+        GET_ALL_PAGES("getAllPages"),
+        GET_ALL_CHANGED_SINCE("getAllChangedSince"),
+        GET_PAGE_COUNT("getPageCount"),
+        GET_VERSION_HISTORY("getVersionHistory"),
+        GET_PAGE_TEXT("getPageText"),
+        DELETE_VERSION("deleteVersion"),
+        DELETE_PAGE("deletePage"),
+        MOVE_PAGE("movePage");
+
+        private final String methodName;
+
+        Operation(String methodName) {
+            this.methodName = methodName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+    }
+
+    private static final Map<String, JDBCPageMetrics> registry = new ConcurrentHashMap<String, JDBCPageMetrics>();
+
+    private final String source;
+    private final String dialect;
+    private final Map<Operation, JDBCPageHistogram> histograms = new EnumMap<Operation, JDBCPageHistogram>(Operation.class);
+    private final AtomicLong slowQueries = new AtomicLong();
+    private volatile long slowQueryNanos;
+    private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+
+    /**
+     * @param source the src of the provider, or null
+     * @param dialect the dialect of the provider, or "shards" for a sharded provider
+     * @param slowQueryMillis log the statements taking at least this long, 0 to disable
+     */
+    public JDBCPageMetrics(String source, String dialect, long slowQueryMillis) {
+        this.source = (source != null) ? source : "default";
+        this.dialect = dialect;
+        setSlowQueryMillis(slowQueryMillis);
+        for (Operation operation : Operation.values()) {
+            histograms.put(operation, new JDBCPageHistogram());
+        }
+    }
+
+    /**
+     * @return the metrics of every provider, by src and dialect
+     */
+    public static Collection<JDBCPageMetrics> getAll() {
+        List<JDBCPageMetrics> all = new ArrayList<JDBCPageMetrics>(registry.values());
+        Collections.sort(all, new Comparator<JDBCPageMetrics>() {
+            public int compare(JDBCPageMetrics metrics1, JDBCPageMetrics metrics2) {
+                return metrics1.getName().compareTo(metrics2.getName());
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Make the metrics available to {@link #getAll()}, replacing those of a provider with the same src
+     * and dialect, and with jmx register the MBeans.
+     */
+    public void register(boolean jmx) {
+        JDBCPageMetrics previous = registry.put(getName(), this);
+        if (previous != null) {
+            previous.unregisterMBeans();
+        }
+        if (jmx) {
+            registerMBeans();
+        }
+    }
+
+    private void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String prefix = DOMAIN + ":type=JDBCPageProvider,src=" + source + ",dialect=" + dialect;
+            registerMBean(server, new ObjectName(prefix), this);
+            for (Operation operation : Operation.values()) {
+                registerMBean(server, new ObjectName(prefix + ",operation=" + operation.getMethodName()), histograms.get(operation));
+            }
+        } catch (JMException e) {
+            Logger.getLogger(JDBCPageMetrics.class).warn("Could not register the metrics MBeans. " + e.getMessage());
+        }
+    }
+
+    private void registerMBean(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        try {
+            server.registerMBean(mbean, name);
+        } catch (InstanceAlreadyExistsException e) {
+            // left by an earlier provider of the same src, e.g. after a reload of the wiki
+            server.unregisterMBean(name);
+            server.registerMBean(mbean, name);
+        }
+        objectNames.add(name);
+    }
+
+    void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : objectNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // already replaced by the MBean of a newer provider
+            }
+        }
+        objectNames.clear();
+    }
+
+    public String getName() {
+        return source + "/" + dialect;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public String getDialect() {
+        return dialect;
+    }
+
+    public JDBCPageHistogram getHistogram(Operation operation) {
+        return histograms.get(operation);
+    }
+
+    /**
+     * Record the latency of an operation started at startNanos, from {@link System#nanoTime()}.
+     */
+    public void record(Operation operation, long startNanos) {
+        histograms.get(operation).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Log the statement started at startNanos when it took at least the slow query threshold.
+     *
+     * @param parameters the number of bound parameters
+     * @param rows the rows read or updated
+     */
+    public void recordQuery(String sql, int parameters, int rows, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        long threshold = slowQueryNanos;
+        if (threshold > 0 && elapsed >= threshold) {
+            slowQueries.incrementAndGet();
+            slowQueryLog.warn("Slow query src=" + source + " dialect=" + dialect + " elapsed=" +
+                    TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms rows=" + rows + " parameters=" + parameters + " sql=" + sql);
+        }
+    }
+
+    @Override
+    public long getSlowQueryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowQueryNanos);
+    }
+
+    @Override
+    public void setSlowQueryMillis(long millis) {
+        slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
+    }
+
+    @Override
+    public long getSlowQueries() {
+        return slowQueries.get();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("src=").append(source).append(" dialect=").append(dialect)
+                .append(" slowqueries=").append(slowQueries.get()).append("\n");
+        buffer.append(String.format("%-20s %10s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "mean(us)", "p50(us)", "p95(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        for (Operation operation : Operation.values()) {
+            JDBCPageHistogram histogram = histograms.get(operation);
+            buffer.append(String.format("%-20s %10d %10d %10d %10d %10d %10d %10d%n", operation.getMethodName(),
+                    histogram.getCount(), histogram.getMeanMicros(), histogram.getP50Micros(), histogram.getP95Micros(),
+                    histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros()));
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (JDBCPageHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        slowQueries.set(0);
+    }
+}
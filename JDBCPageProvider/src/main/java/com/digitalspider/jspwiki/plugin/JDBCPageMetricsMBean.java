@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+/**
+ * The JMX view of the {@link JDBCPageMetrics} of a {@link JDBCPageProvider}.
+ */
+public interface JDBCPageMetricsMBean {
+
+    String getDialect();
+
+    long getSlowQueryMillis();
+
+    /**
+     * @param millis log the statements taking at least this long, 0 to disable the slow query log
+     */
+    void setSlowQueryMillis(long millis);
+
+    long getSlowQueries();
+
+    /**
+     * @return the latencies of every operation as a text table
+     */
+    String dump();
+
+    void reset();
+}
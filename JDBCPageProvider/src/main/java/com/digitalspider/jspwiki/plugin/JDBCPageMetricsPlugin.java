@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.api.engine.PluginManager;
+import org.apache.wiki.api.exceptions.PluginException;
+import org.apache.wiki.api.plugin.WikiPlugin;
+import org.apache.wiki.util.TextUtil;
+
+import java.util.Map;
+
+/**
+ * Dump the latencies recorded by every {@link JDBCPageProvider}, see {@link JDBCPageMetrics}, as text:
+ * <pre>
+ * [{JDBCPageMetrics src='shard1'}]
+ * </pre>
+ */
+public class JDBCPageMetricsPlugin implements WikiPlugin {
+
+    private final Logger log = Logger.getLogger(JDBCPageMetricsPlugin.class);
+
+    public static final String DEFAULT_CLASS = "jdbc-page-metrics";
+
+    private static final String PARAM_CLASS = "class";
+    private static final String PARAM_SOURCE = "src";
+
+    private String className = DEFAULT_CLASS;
+    private String source = null;
+
+    @Override
+    public String execute(WikiContext wikiContext, Map<String, String> params) throws PluginException {
+        setLogForDebug(params.get(PluginManager.PARAM_DEBUG));
+        log.info("STARTED");
+
+        // Validate all parameters
+        validateParams(params);
+
+        StringBuilder buffer = new StringBuilder();
+        for (JDBCPageMetrics metrics : JDBCPageMetrics.getAll()) {
+            if (source == null || source.equals(metrics.getSource())) {
+                buffer.append(metrics.dump()).append("\n");
+            }
+        }
+        if (buffer.length() == 0) {
+            buffer.append("No JDBCPageProvider metrics");
+        }
+        return "<pre class='" + className + "'>" + TextUtil.replaceEntities(buffer.toString()) + "</pre>";
+    }
+
+    protected void validateParams(Map<String, String> params) throws PluginException {
+        String paramName;
+        String param;
+
+        log.info("validateParams() START");
+        paramName = PARAM_CLASS;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isAlphanumeric(param.replace("-", ""))) {
+                throw new PluginException(paramName + " parameter is not a valid value");
+            }
+            className = param;
+        }
+        paramName = PARAM_SOURCE;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isAsciiPrintable(param)) {
+                throw new PluginException(paramName + " parameter is not a valid value");
+            }
+            source = param;
+        }
+    }
+
+    private void setLogForDebug(String value) {
+        if (StringUtils.isNotBlank(value) && (value.equalsIgnoreCase("true") || value.equals("1"))) {
+            log.setLevel(Level.INFO);
+        }
+    }
+}
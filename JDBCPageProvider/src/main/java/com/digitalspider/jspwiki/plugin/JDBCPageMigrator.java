@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.PageStatus;
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.SQLType;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.providers.WikiPageProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Bulk copy of a whole wiki into, or out of, the table of a {@link JDBCPageProvider}.
+ * <p>
+ * The import reads every version of every page from another {@link WikiPageProvider}, in page name
+ * order, and writes them with JDBC batches, committing once at least batchSize versions are pending.
+ * Batches always end on a page boundary, and the name of the last committed page is written to the
+ * checkpoint file, so that a failed import can be restarted where it stopped.
+ * <p>
+ * The export streams the table back out through a forward only cursor and saves every version
+ * into the target provider, oldest version first, so the page set is never held in memory.
+ * <p>
+ * The metadata migration fills the size and hash columns of rows written before they were added,
+ * see etc/migrateMetadataColumns.sql.
+ * <p>
+ * The compression migration moves the texts of rows written before jdbc.compression was enabled
+ * into the textdata column, see etc/migrateCompression.sql.
+ */
+public class JDBCPageMigrator {
+
+    private final Logger log = Logger.getLogger(JDBCPageMigrator.class);
+
+    public static final int DEFAULT_BATCHSIZE = 500;
+
+    private final JDBCPageProvider provider;
+    private int batchSize = DEFAULT_BATCHSIZE;
+    private File checkpointFile = null;
+
+    public static class Result {
+        private int pages = 0;
+        private int versions = 0;
+        private long elapsed = 0;
+
+        public int getPages() {
+            return pages;
+        }
+
+        public int getVersions() {
+            return versions;
+        }
+
+        public long getElapsedMillis() {
+            return elapsed;
+        }
+
+        public double getPagesPerSecond() {
+            return (elapsed > 0) ? pages * 1000.0 / elapsed : pages;
+        }
+
+        @Override
+        public String toString() {
+            return pages + " pages, " + versions + " versions in " + elapsed + "ms (" + Math.round(getPagesPerSecond()) + " pages/sec)";
+        }
+    }
+
+    public JDBCPageMigrator(JDBCPageProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Copy every version of every page of the source provider into the database.
+     */
+    public Result importPages(WikiPageProvider source) throws ProviderException {
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        String checkpoint = readCheckpoint();
+        List<WikiPage> pages = new ArrayList<WikiPage>();
+        for (Object page : source.getAllPages()) {
+            pages.add((WikiPage) page);
+        }
+        Collections.sort(pages, new Comparator<WikiPage>() {
+            public int compare(WikiPage page1, WikiPage page2) {
+                return page1.getName().compareTo(page2.getName());
+            }
+        });
+        log.info("importPages() " + pages.size() + " pages, resuming after " + checkpoint);
+
+        try (Connection conn = provider.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(provider.getStatements().importPage)) {
+                int pending = 0;
+                String lastPage = null;
+                for (WikiPage page : pages) {
+                    if (checkpoint != null && page.getName().compareTo(checkpoint) <= 0) {
+                        continue;
+                    }
+                    for (WikiPage version : getVersions(source, page)) {
+                        String text = source.getPageText(page.getName(), version.getVersion());
+                        addBatch(stmt, page.getName(), version, text);
+                        pending++;
+                        result.versions++;
+                    }
+                    result.pages++;
+                    lastPage = page.getName();
+                    if (pending >= batchSize) {
+                        commit(conn, stmt, lastPage, result, start);
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    commit(conn, stmt, lastPage, result, start);
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            log.error(e,e);
+            throw new ProviderException("Import failed after " + result + ". " + e.getMessage());
+        } finally {
+            if (provider.getCache() != null) {
+                provider.getCache().clear();
+            }
+            if (provider.getPageCounter() != null) {
+                provider.getPageCounter().invalidate();
+            }
+        }
+        result.elapsed = System.currentTimeMillis() - start;
+        log.info("importPages() imported " + result);
+        return result;
+    }
+
+    /**
+     * The versions to copy, oldest first. Without versioning only the latest text is kept.
+     */
+    private Collection<WikiPage> getVersions(WikiPageProvider source, WikiPage page) throws ProviderException {
+        TreeMap<Integer, WikiPage> versions = new TreeMap<Integer, WikiPage>();
+        if (provider.isVersioned()) {
+            List history = source.getVersionHistory(page.getName());
+            if (history != null) {
+                for (Object version : history) {
+                    if (version != null) {
+                        versions.put(((WikiPage) version).getVersion(), (WikiPage) version);
+                    }
+                }
+            }
+        }
+        if (versions.isEmpty()) {
+            versions.put(page.getVersion(), page);
+        }
+        return versions.values();
+    }
+
+    private void addBatch(PreparedStatement stmt, String name, WikiPage version, String text) throws SQLException {
+        int versionNumber = provider.isVersioned() ? Math.max(version.getVersion(), 1) : JDBCPageProvider.LATEST_VERSION;
+        Date lastModified = (version.getLastModified() != null) ? version.getLastModified() : new Date();
+        Object changenote = version.getAttribute(WikiPage.CHANGENOTE);
+        byte[] data = (provider.getCompression() != null) ? provider.getCompression().compress(text) : null;
+        int index = 0;
+        if (provider.getCompression() != null) {
+            if (data != null) {
+                stmt.setBytes(++index, data);
+            } else {
+                stmt.setNull(++index, Types.VARBINARY);
+            }
+        }
+        if (provider.isMetadataColumns()) {
+            stmt.setInt(++index, JDBCPageProvider.textSize(text));
+            stmt.setString(++index, JDBCPageProvider.textHash(text));
+        }
+        stmt.setString(++index, name);
+        stmt.setInt(++index, versionNumber);
+        stmt.setString(++index, (data != null) ? null : text);
+        stmt.setString(++index, StringUtils.defaultString(version.getAuthor(), "unknown"));
+        stmt.setString(++index, (changenote != null) ? changenote.toString() : null);
+        stmt.setTimestamp(++index, new Timestamp(lastModified.getTime()));
+        stmt.setString(++index, PageStatus.ACTIVE.getDbValue());
+        stmt.addBatch();
+    }
+
+    private void commit(Connection conn, PreparedStatement stmt, String lastPage, Result result, long start) throws SQLException {
+        stmt.executeBatch();
+        conn.commit();
+        writeCheckpoint(lastPage);
+        result.elapsed = System.currentTimeMillis() - start;
+        log.info("importPages() committed up to " + lastPage + ", " + result);
+    }
+
+    /**
+     * Save every version of every page in the database into the target provider.
+     */
+    public Result exportPages(WikiPageProvider target) throws ProviderException {
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        String checkpoint = readCheckpoint();
+        log.info("exportPages() resuming after " + checkpoint);
+
+        try (Connection conn = provider.getConnection()) {
+            // PostgreSQL only uses a server side cursor outside of auto commit
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(provider.getStatements().exportPages,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                // MySQL only streams rows with a fetch size of Integer.MIN_VALUE
+                stmt.setFetchSize(provider.getSqlType() == SQLType.MYSQL ? Integer.MIN_VALUE : batchSize);
+                stmt.setString(1, PageStatus.DELETED.getDbValue());
+                stmt.setString(2, StringUtils.defaultString(checkpoint));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    String currentPage = null;
+                    while (rs.next()) {
+                        String name = rs.getString(JDBCPageProvider.COLUMN_PAGENAME);
+                        if (!name.equals(currentPage)) {
+                            if (currentPage != null) {
+                                pageDone(currentPage, result, start);
+                            }
+                            currentPage = name;
+                        }
+                        WikiPage page = new WikiPage(provider.getWikiEngine(), name);
+                        page.setAuthor(rs.getString(JDBCPageProvider.COLUMN_AUTHOR));
+                        page.setLastModified(rs.getTimestamp(JDBCPageProvider.COLUMN_LASTMODIFIED));
+                        String changenote = rs.getString(JDBCPageProvider.COLUMN_CHANGENOTE);
+                        if (changenote != null) {
+                            page.setAttribute(WikiPage.CHANGENOTE, changenote);
+                        }
+                        String text = rs.getString(JDBCPageProvider.COLUMN_TEXT);
+                        if (text == null && provider.getCompression() != null) {
+                            text = decompress(rs.getBytes(JDBCPageProvider.COLUMN_TEXTDATA));
+                        }
+                        if (text == null && provider.getBlobs() != null) {
+                            // the streaming result set holds its connection, read the blob on another
+                            text = provider.loadBlob(rs.getString(JDBCPageProvider.COLUMN_TEXTHASH));
+                        }
+                        target.putPageText(page, text);
+                        result.versions++;
+                    }
+                    if (currentPage != null) {
+                        pageDone(currentPage, result, start);
+                    }
+                }
+            } finally {
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            log.error(e,e);
+            throw new ProviderException("Export failed after " + result + ". " + e.getMessage());
+        }
+        result.elapsed = System.currentTimeMillis() - start;
+        log.info("exportPages() exported " + result);
+        return result;
+    }
+
+    /**
+     * Compute the size and hash of every row which has none yet, committing every batchSize rows.
+     * Rows are visited in id order, so the migration can be stopped and run again at any time.
+     *
+     * @return the number of rows updated, as versions
+     */
+    public Result migrateMetadataColumns() throws ProviderException {
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        JDBCPageStatements statements = provider.getStatements();
+        try (Connection conn = provider.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(statements.selectMissingMetadata);
+                 PreparedStatement update = conn.prepareStatement(statements.updateMetadata)) {
+                long lastId = 0;
+                boolean more = true;
+                while (more) {
+                    select.setMaxRows(batchSize);
+                    select.setLong(1, lastId);
+                    int rows = 0;
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            String text = rs.getString(JDBCPageProvider.COLUMN_TEXT);
+                            lastId = rs.getLong(JDBCPageProvider.COLUMN_ID);
+                            update.setInt(1, JDBCPageProvider.textSize(text));
+                            // rows without text get an empty hash so they are not selected again
+                            update.setString(2, StringUtils.defaultString(JDBCPageProvider.textHash(text)));
+                            update.setLong(3, lastId);
+                            update.addBatch();
+                            rows++;
+                        }
+                    }
+                    if (rows > 0) {
+                        update.executeBatch();
+                        conn.commit();
+                        result.versions += rows;
+                        log.info("migrateMetadataColumns() updated up to id " + lastId + ", " + result.versions + " rows");
+                    }
+                    more = rows == batchSize;
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            log.error(e,e);
+            throw new ProviderException("Metadata migration failed after " + result.versions + " rows. " + e.getMessage());
+        } finally {
+            if (provider.getCache() != null) {
+                provider.getCache().clear();
+            }
+        }
+        result.elapsed = System.currentTimeMillis() - start;
+        log.info("migrateMetadataColumns() migrated " + result.versions + " rows in " + result.elapsed + "ms");
+        return result;
+    }
+
+    /**
+     * Store the text of every version in the blobs table and clear it from every version but the
+     * latest of each page, committing every batchSize rows. Identical texts are stored once. Run
+     * {@link #migrateMetadataColumns()} first, rows without a text hash are skipped. Rows are visited in
+     * id order, so the migration can be stopped and run again at any time.
+     *
+     * @return the number of rows whose text was cleared, as versions
+     * @throws ProviderException when jdbc.dedup is not enabled
+     */
+    public Result migrateBlobs() throws ProviderException {
+        JDBCPageBlobs blobs = provider.getBlobs();
+        if (blobs == null) {
+            throw new ProviderException("Deduplication is not enabled, set jdbc.dedup=true");
+        }
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        int stored = 0;
+        try (Connection conn = provider.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(blobs.selectInlineTexts);
+                 PreparedStatement clear = conn.prepareStatement(blobs.clearText)) {
+                long lastId = 0;
+                boolean more = true;
+                while (more) {
+                    select.setMaxRows(batchSize);
+                    select.setLong(1, lastId);
+                    int rows = 0;
+                    int cleared = 0;
+                    List<String[]> texts = new ArrayList<String[]>();
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            lastId = rs.getLong(JDBCPageProvider.COLUMN_ID);
+                            texts.add(new String[] { rs.getString(JDBCPageProvider.COLUMN_TEXT), rs.getString(JDBCPageProvider.COLUMN_TEXTHASH) });
+                            if (rs.getInt(JDBCPageProvider.COLUMN_VERSION) < rs.getInt(JDBCPageBlobs.COLUMN_LATESTVERSION)) {
+                                clear.setLong(1, lastId);
+                                clear.addBatch();
+                                cleared++;
+                            }
+                            rows++;
+                        }
+                    }
+                    for (String[] text : texts) {
+                        if (blobs.storeFull(conn, text[0], text[1])) {
+                            stored++;
+                        }
+                    }
+                    if (rows > 0) {
+                        clear.executeBatch();
+                        conn.commit();
+                        result.versions += cleared;
+                        log.info("migrateBlobs() migrated up to id " + lastId + ", " + result.versions + " texts cleared, " + stored + " blobs");
+                    }
+                    more = rows == batchSize;
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            log.error(e,e);
+            throw new ProviderException("Blob migration failed after " + result.versions + " rows. " + e.getMessage());
+        }
+        result.elapsed = System.currentTimeMillis() - start;
+        log.info("migrateBlobs() cleared " + result.versions + " texts into " + stored + " blobs in " + result.elapsed + "ms");
+        return result;
+    }
+
+    /**
+     * Compress the text of every row written before compression was enabled, and at least as long as
+     * jdbc.compression.minsize, committing every batchSize rows. Texts which do not get smaller are left
+     * as they are. Rows are visited in id order, so the migration can be stopped and run again at any
+     * time. It runs alongside saves, a row is only updated while its text hash is still the one read.
+     *
+     * @return the number of rows compressed, as versions
+     * @throws ProviderException when jdbc.compression is not enabled
+     */
+    public Result compressTexts() throws ProviderException {
+        JDBCPageCompression compression = provider.getCompression();
+        if (compression == null) {
+            throw new ProviderException("Compression is not enabled, set jdbc.compression=true");
+        }
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        JDBCPageStatements statements = provider.getStatements();
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        try (Connection conn = provider.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(statements.selectUncompressed);
+                 PreparedStatement update = conn.prepareStatement(statements.updateCompressed)) {
+                long lastId = 0;
+                boolean more = true;
+                while (more) {
+                    select.setMaxRows(batchSize);
+                    select.setLong(1, lastId);
+                    select.setInt(2, compression.getMinSize());
+                    int rows = 0;
+                    int compressed = 0;
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            lastId = rs.getLong(JDBCPageProvider.COLUMN_ID);
+                            String text = rs.getString(JDBCPageProvider.COLUMN_TEXT);
+                            byte[] data = compression.compress(text);
+                            if (data != null) {
+                                update.setBytes(1, data);
+                                update.setLong(2, lastId);
+                                update.setString(3, rs.getString(JDBCPageProvider.COLUMN_TEXTHASH));
+                                update.addBatch();
+                                bytesBefore += text.length();
+                                bytesAfter += data.length;
+                                compressed++;
+                            }
+                            rows++;
+                        }
+                    }
+                    if (compressed > 0) {
+                        update.executeBatch();
+                        conn.commit();
+                        result.versions += compressed;
+                        log.info("compressTexts() compressed up to id " + lastId + ", " + result.versions + " rows");
+                    }
+                    more = rows == batchSize;
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            log.error(e,e);
+            throw new ProviderException("Compression failed after " + result.versions + " rows. " + e.getMessage());
+        }
+        result.elapsed = System.currentTimeMillis() - start;
+        log.info("compressTexts() compressed " + result.versions + " rows from " + bytesBefore + " characters to " + bytesAfter
+                + " bytes in " + result.elapsed + "ms");
+        return result;
+    }
+
+    private String decompress(byte[] data) throws SQLException {
+        try {
+            return (data != null) ? provider.getCompression().decompress(data) : null;
+        } catch (IOException e) {
+            throw new SQLException("Could not read the compressed page text. " + e.getMessage(), e);
+        }
+    }
+
+    private void pageDone(String page, Result result, long start) {
+        result.pages++;
+        if (result.pages % batchSize == 0) {
+            writeCheckpoint(page);
+            result.elapsed = System.currentTimeMillis() - start;
+            log.info("exportPages() exported up to " + page + ", " + result);
+        }
+    }
+
+    private String readCheckpoint() throws ProviderException {
+        if (checkpointFile == null || !checkpointFile.exists()) {
+            return null;
+        }
+        try {
+            return StringUtils.trimToNull(FileUtils.readFileToString(checkpointFile, "UTF-8"));
+        } catch (IOException e) {
+            throw new ProviderException("Could not read checkpoint " + checkpointFile + ". " + e.getMessage());
+        }
+    }
+
+    private void writeCheckpoint(String page) {
+        if (checkpointFile == null) {
+            return;
+        }
+        try {
+            FileUtils.writeStringToFile(checkpointFile, page, "UTF-8");
+        } catch (IOException e) {
+            log.error("Could not write checkpoint " + checkpointFile, e);
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * @param checkpointFile file holding the name of the last page copied, or null to always start from the beginning
+     */
+    public void setCheckpointFile(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+}
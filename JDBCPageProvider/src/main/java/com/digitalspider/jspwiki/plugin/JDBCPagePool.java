@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * A lean connection pool, the built-in alternative to c3p0 for the {@link JDBCPageProvider}.
+ * <p>
+ * Borrowing takes no lock. A thread first looks at the connections it returned itself, then scans the
+ * shared list, claiming a connection with a compare and set of its state. When every connection is in
+ * use and the pool is full, the borrower waits on a fair hand-off queue, so a returned connection goes
+ * straight to the longest waiting thread.
+ * <p>
+ * A connection idle for more than {@link #VALIDATION_BYPASS_MILLIS} is validated before it is handed
+ * out, a connection older than maxLifetime is closed instead of being reused, and a connection held for
+ * longer than leakDetectionMillis is logged once with the stack trace of the borrower.
+ */
+public class JDBCPagePool implements DataSource {
+
+    private final Logger log = Logger.getLogger(JDBCPagePool.class);
+
+    public static final long VALIDATION_BYPASS_MILLIS = 500;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final long HOUSEKEEPING_MILLIS = 30000;
+    private static final long RESCAN_MILLIS = 10;
+    private static final int MAX_THREAD_LOCAL_ENTRIES = 16;
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_IN_USE = 1;
+    private static final int STATE_REMOVED = -1;
+
+    /**
+     * A physical connection and its bookkeeping.
+     */
+    private static class Entry {
+        final Connection connection;
+        final long createdAt;
+        final AtomicInteger state = new AtomicInteger(STATE_IDLE);
+        volatile long lastUsedAt;
+        volatile long borrowedAt;
+        volatile Exception borrower;
+        volatile boolean leakReported;
+
+        Entry(Connection connection) {
+            this.connection = connection;
+            this.createdAt = this.lastUsedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final String validationQuery;
+    private final int maxPoolSize;
+    private final int minIdle;
+    private final long maxLifetimeMillis;
+    private final long connectionTimeoutMillis;
+    private final long leakDetectionMillis;
+
+    private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+    private final ThreadLocal<List<WeakReference<Entry>>> returned = new ThreadLocal<List<WeakReference<Entry>>>() {
+        @Override
+        protected List<WeakReference<Entry>> initialValue() {
+            return new ArrayList<WeakReference<Entry>>(MAX_THREAD_LOCAL_ENTRIES);
+        }
+    };
+    private final SynchronousQueue<Entry> handoff = new SynchronousQueue<Entry>(true);
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong leaks = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
+
+    /**
+     * @param minIdle idle connections kept open, 0 to open connections only on demand
+     * @param maxLifetimeMillis connections older than this are closed when next returned or idle, 0 for no limit
+     * @param connectionTimeoutMillis how long a borrower waits for a connection before failing
+     * @param leakDetectionMillis connections held longer than this are reported as leaked, 0 to disable
+     */
+    public JDBCPagePool(String url, String user, String password, String validationQuery, int maxPoolSize, int minIdle,
+                        long maxLifetimeMillis, long connectionTimeoutMillis, long leakDetectionMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.validationQuery = validationQuery;
+        this.maxPoolSize = Math.max(maxPoolSize, 1);
+        this.minIdle = Math.min(Math.max(minIdle, 0), this.maxPoolSize);
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.leakDetectionMillis = leakDetectionMillis;
+        final String threadName = "JDBCPagePool-" + POOL_COUNTER.incrementAndGet();
+        housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = HOUSEKEEPING_MILLIS;
+        if (leakDetectionMillis > 0) {
+            period = Math.min(period, Math.max(leakDetectionMillis / 2, 100));
+        }
+        housekeeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                houseKeep();
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection, waiting up to connectionTimeoutMillis when every connection is in use.
+     * Closing the connection returns it to the pool.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool for " + url + " is closed");
+        }
+        long deadline = System.currentTimeMillis() + connectionTimeoutMillis;
+        while (true) {
+            Entry entry = claim();
+            if (entry == null) {
+                entry = create();
+            }
+            if (entry == null) {
+                entry = await(deadline);
+            }
+            if (isUsable(entry)) {
+                return lend(entry);
+            }
+            remove(entry);
+        }
+    }
+
+    /**
+     * Claim an idle connection, most recently returned by this thread first.
+     */
+    private Entry claim() {
+        List<WeakReference<Entry>> mine = returned.get();
+        for (int i = mine.size() - 1; i >= 0; i--) {
+            Entry entry = mine.remove(i).get();
+            if (entry != null && entry.state.compareAndSet(STATE_IDLE, STATE_IN_USE)) {
+                return entry;
+            }
+        }
+        for (Entry entry : entries) {
+            if (entry.state.compareAndSet(STATE_IDLE, STATE_IN_USE)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open a new connection, already in use, unless the pool is full.
+     */
+    private Entry create() throws SQLException {
+        while (true) {
+            int count = total.get();
+            if (count >= maxPoolSize) {
+                return null;
+            }
+            if (total.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        try {
+            Entry entry = new Entry(connect());
+            entry.state.set(STATE_IN_USE);
+            entries.add(entry);
+            return entry;
+        } catch (SQLException e) {
+            total.decrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Connection conn;
+        if (StringUtils.isBlank(user) && StringUtils.isBlank(password)) {
+            conn = DriverManager.getConnection(url);
+        } else {
+            conn = DriverManager.getConnection(url, user, password);
+        }
+        if (conn == null) {
+            throw new SQLException("Could not create connection for url=" + url + " user=" + user);
+        }
+        return conn;
+    }
+
+    /**
+     * Wait for a connection to be handed over, or for room to open a new one.
+     */
+    private Entry await(long deadline) throws SQLException {
+        waiting.incrementAndGet();
+        try {
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new SQLTimeoutException("No connection available for " + url + " within " + connectionTimeoutMillis
+                            + "ms, " + getActiveConnections() + " in use, " + waiting.get() + " waiting");
+                }
+                // a connection may have been returned, or removed, before this thread started waiting
+                Entry entry = claim();
+                if (entry == null) {
+                    entry = create();
+                }
+                if (entry != null) {
+                    return entry;
+                }
+                entry = handoff.poll(Math.min(remaining, RESCAN_MILLIS), TimeUnit.MILLISECONDS);
+                if (entry != null && entry.state.compareAndSet(STATE_IDLE, STATE_IN_USE)) {
+                    return entry;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection to " + url);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return false for a connection past its lifetime, or idle for a while and failing validation
+     */
+    private boolean isUsable(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (isExpired(entry, now)) {
+            return false;
+        }
+        if (now - entry.lastUsedAt < VALIDATION_BYPASS_MILLIS) {
+            return true;
+        }
+        try {
+            if (StringUtils.isBlank(validationQuery)) {
+                return entry.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            }
+            try (Statement stmt = entry.connection.createStatement()) {
+                stmt.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+                stmt.execute(validationQuery);
+            }
+            return true;
+        } catch (SQLException e) {
+            log.warn("Closing broken connection to " + url + ". " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return maxLifetimeMillis > 0 && now - entry.createdAt >= maxLifetimeMillis;
+    }
+
+    private Connection lend(final Entry entry) {
+        entry.borrowedAt = System.currentTimeMillis();
+        entry.leakReported = false;
+        entry.borrower = (leakDetectionMillis > 0) ? new Exception("Connection borrowed here") : null;
+        return (Connection) Proxy.newProxyInstance(JDBCPagePool.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new PooledConnection(entry));
+    }
+
+    /**
+     * The connection handed to the borrower. Closing it returns the physical connection to the pool,
+     * after which every other call fails.
+     */
+    private class PooledConnection implements InvocationHandler {
+        private final Entry entry;
+        private boolean returned = false;
+
+        PooledConnection(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!returned) {
+                    returned = true;
+                    release(entry);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return returned || entry.connection.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "JDBCPagePool connection to " + url + (returned ? " (returned)" : "");
+            }
+            if ("unwrap".equals(name) && Connection.class.equals(args[0])) {
+                return proxy;
+            }
+            if (returned) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+                return method.invoke(entry.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Return a connection, rolling back anything left uncommitted. A waiting borrower gets it directly,
+     * otherwise it is kept for the next borrow of this thread.
+     */
+    private void release(Entry entry) {
+        long now = System.currentTimeMillis();
+        try {
+            if (!entry.connection.getAutoCommit()) {
+                entry.connection.rollback();
+                entry.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.warn("Closing connection to " + url + " which could not be reset. " + e.getMessage());
+            remove(entry);
+            return;
+        }
+        if (closed || isExpired(entry, now)) {
+            remove(entry);
+            return;
+        }
+        entry.lastUsedAt = now;
+        entry.borrower = null;
+        entry.state.set(STATE_IDLE);
+        while (waiting.get() > 0) {
+            if (entry.state.get() != STATE_IDLE || handoff.offer(entry)) {
+                return;
+            }
+            Thread.yield();
+        }
+        List<WeakReference<Entry>> mine = returned.get();
+        if (mine.size() < MAX_THREAD_LOCAL_ENTRIES) {
+            mine.add(new WeakReference<Entry>(entry));
+        }
+    }
+
+    private void remove(Entry entry) {
+        entry.state.set(STATE_REMOVED);
+        if (entries.remove(entry)) {
+            total.decrementAndGet();
+        }
+        try {
+            entry.connection.close();
+        } catch (SQLException e) {
+            log.debug("Error closing connection to " + url + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Report leaked connections, close expired idle ones and open connections up to minIdle.
+     */
+    void houseKeep() {
+        if (closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries) {
+            int state = entry.state.get();
+            if (state == STATE_IN_USE && leakDetectionMillis > 0 && !entry.leakReported
+                    && now - entry.borrowedAt >= leakDetectionMillis) {
+                entry.leakReported = true;
+                leaks.incrementAndGet();
+                log.warn("Connection to " + url + " held for more than " + leakDetectionMillis + "ms, possible leak", entry.borrower);
+            } else if (state == STATE_IDLE && isExpired(entry, now) && entry.state.compareAndSet(STATE_IDLE, STATE_REMOVED)) {
+                remove(entry);
+            }
+        }
+        try {
+            while (getIdleConnections() < minIdle && !closed) {
+                Entry entry = create();
+                if (entry == null) {
+                    break;
+                }
+                entry.state.set(STATE_IDLE);
+            }
+        } catch (SQLException e) {
+            log.warn("Could not open idle connections to " + url + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the idle connections, and the connections in use as they are returned.
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        for (Entry entry : entries) {
+            if (entry.state.compareAndSet(STATE_IDLE, STATE_REMOVED)) {
+                remove(entry);
+            }
+        }
+    }
+
+    public int getActiveConnections() {
+        int active = 0;
+        for (Entry entry : entries) {
+            if (entry.state.get() == STATE_IN_USE) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public int getIdleConnections() {
+        int idle = 0;
+        for (Entry entry : entries) {
+            if (entry.state.get() == STATE_IDLE) {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    public int getTotalConnections() {
+        return total.get();
+    }
+
+    public int getThreadsAwaitingConnection() {
+        return waiting.get();
+    }
+
+    public long getLeaksDetected() {
+        return leaks.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool connects as " + user);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public String toString() {
+        return "JDBCPagePool[" + url + " active=" + getActiveConnections() + " idle=" + getIdleConnections()
+                + " waiting=" + getThreadsAwaitingConnection() + "]";
+    }
+}
@@ -17,6 +17,8 @@ package com.digitalspider.jspwiki.plugin;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -27,19 +29,32 @@ import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
 import org.apache.wiki.api.exceptions.ProviderException;
 import org.apache.wiki.providers.WikiPageProvider;
 import org.apache.wiki.search.QueryItem;
+import org.apache.wiki.search.SearchResult;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.locks.Lock;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -51,20 +66,27 @@ public class JDBCPageProvider implements WikiPageProvider {
 	private final Logger log = Logger.getLogger(JDBCPageProvider.class);
 
     public enum SQLType {
-        MYSQL("com.mysql.jdbc.Driver", "jdbc:mysql:", "jdbc:mysql://hostname:portNumber/databaseName"),
-        MSSQL("com.microsoft.sqlserver.jdbc.SQLServerDriver", "jdbc:sqlserver:", "jdbc:sqlserver://serverName\\instanceName:portNumber"),
-        POSTGRESQL("org.postgresql.Driver", "jdbc:postgresql:", "jdbc:postgresql://hostname:portNumber/databaseName"),
-        ORACLE("oracle.jdbc.driver.OracleDriver", "jdbc:oracle:", "jdbc:oracle:thin:@hostname:portNumber:databaseName"),
-        DB2("COM.ibm.db2.jdbc.net.DB2Driver", "jdbc:db2:", "jdbc:db2:hostname:portNumber/databaseName"),
-        SYBASE("com.sybase.jdbc.SybDriver", "jdbc:sybase:", "jdbc:sybase:Tds:hostname:portNumber/databaseName");
+        MYSQL("com.mysql.jdbc.Driver", "jdbc:mysql:", "jdbc:mysql://hostname:portNumber/databaseName", "char_length", false, "select 1"),
+        MSSQL("com.microsoft.sqlserver.jdbc.SQLServerDriver", "jdbc:sqlserver:", "jdbc:sqlserver://serverName\\instanceName:portNumber", "len", true, "select 1"),
+        POSTGRESQL("org.postgresql.Driver", "jdbc:postgresql:", "jdbc:postgresql://hostname:portNumber/databaseName", "length", true, "select 1"),
+        ORACLE("oracle.jdbc.driver.OracleDriver", "jdbc:oracle:", "jdbc:oracle:thin:@hostname:portNumber:databaseName", "length", true, "select 1 from dual"),
+        DB2("COM.ibm.db2.jdbc.net.DB2Driver", "jdbc:db2:", "jdbc:db2:hostname:portNumber/databaseName", "length", true, "select 1 from sysibm.sysdummy1"),
+        SYBASE("com.sybase.jdbc.SybDriver", "jdbc:sybase:", "jdbc:sybase:Tds:hostname:portNumber/databaseName", "char_length", false, "select 1"),
+        H2("org.h2.Driver", "jdbc:h2:", "jdbc:h2:mem:databaseName", "length", true, "select 1");
 
         private String driverClass;
         private String startsWith;
         private String urlDefaultPath;
-        SQLType(String driverClass, String startsWith, String urlDefaultPath) {
+        private String lengthFunction;
+        private boolean windowFunctions;
+        private String validationQuery;
+        SQLType(String driverClass, String startsWith, String urlDefaultPath, String lengthFunction, boolean windowFunctions, String validationQuery) {
             this.driverClass = driverClass;
             this.startsWith = startsWith;
             this.urlDefaultPath = urlDefaultPath;
+            this.lengthFunction = lengthFunction;
+            this.windowFunctions = windowFunctions;
+            this.validationQuery = validationQuery;
         }
         public static SQLType parse(String input) throws Exception {
             for (SQLType type : SQLType.values()) {
@@ -74,6 +96,22 @@ public class JDBCPageProvider implements WikiPageProvider {
             }
             throw new Exception("Could not find SQLType of value: "+input);
         }
+        public String getLengthFunction() {
+            return lengthFunction;
+        }
+        public boolean hasWindowFunctions() {
+            return windowFunctions;
+        }
+        public String getValidationQuery() {
+            return validationQuery;
+        }
+    }
+
+    /**
+     * The connection pool used outside a JNDI DataSource: none, c3p0, or the built-in {@link JDBCPagePool}.
+     */
+    public enum PoolType {
+        NONE, C3P0, LEAN
     }
 
     public enum PageStatus {
@@ -83,6 +121,9 @@ public class JDBCPageProvider implements WikiPageProvider {
         PageStatus(String dbValue) {
             this.dbValue = dbValue;
         }
+        public String getDbValue() {
+            return dbValue;
+        }
     }
 
     public static final SQLType DEFAULT_TYPE = SQLType.MYSQL;
@@ -90,25 +131,89 @@ public class JDBCPageProvider implements WikiPageProvider {
     public static final String DEFAULT_USER = "";
     public static final String DEFAULT_PASSWORD = "";
     public static final Integer DEFAULT_MAXRESULTS = 500;
+    public static final Integer DEFAULT_FETCHSIZE = 500;
     public static final String DEFAULT_TABLENAME = "jspwiki";
     public static final Boolean DEFAULT_VERSIONING = false;
     public static final Boolean DEFAULT_C3P0 = false;
+    public static final PoolType DEFAULT_POOL = PoolType.NONE;
+    public static final Integer DEFAULT_POOL_MAXPOOLSIZE = 10;
+    public static final Integer DEFAULT_POOL_MINIDLE = 2;
+    public static final Long DEFAULT_POOL_MAXLIFETIME = 30L * 60 * 1000;
+    public static final Long DEFAULT_POOL_CONNECTIONTIMEOUT = 30000L;
+    public static final Long DEFAULT_POOL_LEAKDETECTION = 0L;
     public static final Integer DEFAULT_C3P0_MINPOOLSIZE = 5;
     public static final Integer DEFAULT_C3P0_INCREMENT = 5;
     public static final Integer DEFAULT_C3P0_MAXPOOLSIZE = 40;
+    public static final Boolean DEFAULT_CACHE = true;
+    public static final Long DEFAULT_CACHE_SIZE = 16L * 1024 * 1024;
+    public static final Integer DEFAULT_STATEMENTCACHE = 50;
+    public static final JDBCPageSearch.Mode DEFAULT_SEARCH = JDBCPageSearch.Mode.LIKE;
+    public static final Boolean DEFAULT_SEARCH_CREATEINDEX = false;
+    public static final Boolean DEFAULT_METADATACOLUMNS = false;
+    public static final Integer DEFAULT_SAVERETRIES = 10;
+    public static final Long SAVE_BACKOFF_MILLIS = 5L;
+    public static final Long SAVE_BACKOFF_MAX_MILLIS = 500L;
+    public static final Long DEFAULT_REPLICA_STICKYWINDOW = 5000L;
+    public static final Long DEFAULT_REPLICA_HEALTHCHECK = 30000L;
+    public static final Long DEFAULT_PAGECOUNT_RECONCILE = 5L * 60 * 1000;
+    public static final Boolean DEFAULT_CHANGELOG = false;
+    public static final Boolean DEFAULT_DEDUP = false;
+    public static final Integer DEFAULT_DEDUP_DELTAMINSIZE = 0;
+    public static final Integer DEFAULT_DEDUP_MAXDELTAS = 10;
+    public static final Boolean DEFAULT_COMPRESSION = false;
+    public static final Integer DEFAULT_COMPRESSION_MINSIZE = 1024;
+    public static final Boolean DEFAULT_COMPRESSION_RECOMPRESS = false;
+    public static final String DEFAULT_JOURNAL = null;
+    public static final Integer DEFAULT_JOURNAL_MAXPENDING = 1000;
+    public static final Integer DEFAULT_JOURNAL_BATCHSIZE = 100;
+    public static final Long DEFAULT_SLOWQUERY = 1000L;
+    public static final Boolean DEFAULT_JMX = true;
+    public static final JDBCPageSchema.Mode DEFAULT_SCHEMA = JDBCPageSchema.Mode.VALIDATE;
     public static final String DEFAULT_SOURCE = null;
 
     private static final String PROP_DRIVER = "jdbc.driver";
+    private static final String PROP_SHARDS = "jdbc.shards";
     private static final String PROP_URL = "jdbc.url";
     private static final String PROP_USER = "jdbc.user";
     private static final String PROP_PASSWORD = "jdbc.password";
     private static final String PROP_TABLENAME = "jdbc.tablename";
     private static final String PROP_MAXRESULTS = "jdbc.maxresults";
+    private static final String PROP_FETCHSIZE = "jdbc.fetchsize";
     private static final String PROP_VERSIONING = "jdbc.versioning";
     private static final String PROP_C3P0 = "jdbc.c3p0";
     private static final String PROP_C3P0_MINPOOLSIZE = "jdbc.c3p0.minpoolsize";
     private static final String PROP_C3P0_INCREMENT = "jdbc.c3p0.increment";
     private static final String PROP_C3P0_MAXPOOLSIZE = "jdbc.c3p0.maxpoolsize";
+    private static final String PROP_POOL = "jdbc.pool";
+    private static final String PROP_POOL_MAXPOOLSIZE = "jdbc.pool.maxpoolsize";
+    private static final String PROP_POOL_MINIDLE = "jdbc.pool.minidle";
+    private static final String PROP_POOL_MAXLIFETIME = "jdbc.pool.maxlifetime";
+    private static final String PROP_POOL_CONNECTIONTIMEOUT = "jdbc.pool.connectiontimeout";
+    private static final String PROP_POOL_LEAKDETECTION = "jdbc.pool.leakdetection";
+    private static final String PROP_CACHE = "jdbc.cache";
+    private static final String PROP_CACHE_SIZE = "jdbc.cache.size";
+    private static final String PROP_STATEMENTCACHE = "jdbc.statementcache";
+    private static final String PROP_SEARCH = "jdbc.search";
+    private static final String PROP_SEARCH_CREATEINDEX = "jdbc.search.createindex";
+    private static final String PROP_METADATACOLUMNS = "jdbc.metadatacolumns";
+    private static final String PROP_SAVERETRIES = "jdbc.saveretries";
+    private static final String PROP_URL_REPLICA = "jdbc.url.replica";
+    private static final String PROP_REPLICA_STICKYWINDOW = "jdbc.replica.stickywindow";
+    private static final String PROP_REPLICA_HEALTHCHECK = "jdbc.replica.healthcheck";
+    private static final String PROP_PAGECOUNT_RECONCILE = "jdbc.pagecount.reconcile";
+    private static final String PROP_CHANGELOG = "jdbc.changelog";
+    private static final String PROP_DEDUP = "jdbc.dedup";
+    private static final String PROP_DEDUP_DELTAMINSIZE = "jdbc.dedup.deltaminsize";
+    private static final String PROP_DEDUP_MAXDELTAS = "jdbc.dedup.maxdeltas";
+    private static final String PROP_COMPRESSION = "jdbc.compression";
+    private static final String PROP_COMPRESSION_MINSIZE = "jdbc.compression.minsize";
+    private static final String PROP_COMPRESSION_RECOMPRESS = "jdbc.compression.recompress";
+    private static final String PROP_JOURNAL = "jdbc.writebehind.journal";
+    private static final String PROP_JOURNAL_MAXPENDING = "jdbc.writebehind.maxpending";
+    private static final String PROP_JOURNAL_BATCHSIZE = "jdbc.writebehind.batchsize";
+    private static final String PROP_SLOWQUERY = "jdbc.slowquery";
+    private static final String PROP_JMX = "jdbc.jmx";
+    private static final String PROP_SCHEMA = "jdbc.schema";
     private static final String PARAM_SOURCE = "src";
 
     public static final String COLUMN_ID="id";
@@ -119,20 +224,70 @@ public class JDBCPageProvider implements WikiPageProvider {
     public static final String COLUMN_CHANGENOTE="changenote";
     public static final String COLUMN_LASTMODIFIED="lastmodified";
     public static final String COLUMN_STATUS="status";
+    public static final String COLUMN_TEXTSIZE="textsize";
+    public static final String COLUMN_TEXTHASH="texthash";
+    public static final String COLUMN_TEXTDATA="textdata";
 
-    private ComboPooledDataSource cpds = null;
+    public static final String ATTR_TEXTHASH="texthash";
+
+    private static final Object NULL_BINARY = new Object();
+
+    private DataSource pool = null;
     private SQLType sqlType = DEFAULT_TYPE;
     private String dbUrl = DEFAULT_URL;
     private String dbUser = DEFAULT_USER;
     private String dbPassword = DEFAULT_PASSWORD;
     private Integer maxResults = DEFAULT_MAXRESULTS;
+    private Integer fetchSize = DEFAULT_FETCHSIZE;
     private String tableName = DEFAULT_TABLENAME;
     private Boolean isVersioned = DEFAULT_VERSIONING;
     private Boolean c3p0 = DEFAULT_C3P0;
     private Integer c3p0MinPoolSize = DEFAULT_C3P0_MINPOOLSIZE;
     private Integer c3p0Increment = DEFAULT_C3P0_INCREMENT;
     private Integer c3p0MaxPoolSize = DEFAULT_C3P0_MAXPOOLSIZE;
+    private PoolType poolType = DEFAULT_POOL;
+    private Integer poolMaxPoolSize = DEFAULT_POOL_MAXPOOLSIZE;
+    private Integer poolMinIdle = DEFAULT_POOL_MINIDLE;
+    private Long poolMaxLifetime = DEFAULT_POOL_MAXLIFETIME;
+    private Long poolConnectionTimeout = DEFAULT_POOL_CONNECTIONTIMEOUT;
+    private Long poolLeakDetection = DEFAULT_POOL_LEAKDETECTION;
+    private Boolean cacheEnabled = DEFAULT_CACHE;
+    private Long cacheSize = DEFAULT_CACHE_SIZE;
+    private JDBCPageCache cache = null;
+    private Integer statementCacheSize = DEFAULT_STATEMENTCACHE;
+    private JDBCPageStatements statements = null;
+    private JDBCPageSearch.Mode searchMode = DEFAULT_SEARCH;
+    private Boolean searchCreateIndex = DEFAULT_SEARCH_CREATEINDEX;
+    private JDBCPageSearch search = null;
+    private Boolean metadataColumns = DEFAULT_METADATACOLUMNS;
+    private Integer saveRetries = DEFAULT_SAVERETRIES;
+    private List<String> replicaUrls = new ArrayList<String>();
+    private Long replicaStickyWindow = DEFAULT_REPLICA_STICKYWINDOW;
+    private Long replicaHealthCheck = DEFAULT_REPLICA_HEALTHCHECK;
+    private JDBCPageReplicas replicas = null;
+    private Long pageCountReconcile = DEFAULT_PAGECOUNT_RECONCILE;
+    private JDBCPageCounter pageCounter = null;
+    private Boolean changeLogEnabled = DEFAULT_CHANGELOG;
+    private JDBCPageChangeLog changeLog = null;
+    private Boolean dedup = DEFAULT_DEDUP;
+    private Integer dedupDeltaMinSize = DEFAULT_DEDUP_DELTAMINSIZE;
+    private Integer dedupMaxDeltas = DEFAULT_DEDUP_MAXDELTAS;
+    private JDBCPageBlobs blobs = null;
+    private Boolean compressionEnabled = DEFAULT_COMPRESSION;
+    private Integer compressionMinSize = DEFAULT_COMPRESSION_MINSIZE;
+    private Boolean compressionRecompress = DEFAULT_COMPRESSION_RECOMPRESS;
+    private JDBCPageCompression compression = null;
+    private String journalFile = DEFAULT_JOURNAL;
+    private Integer journalMaxPending = DEFAULT_JOURNAL_MAXPENDING;
+    private Integer journalBatchSize = DEFAULT_JOURNAL_BATCHSIZE;
+    private JDBCPageJournal journal = null;
+    private Long slowQueryMillis = DEFAULT_SLOWQUERY;
+    private Boolean jmx = DEFAULT_JMX;
+    private JDBCPageMetrics metrics = null;
+    private JDBCPageSchema.Mode schemaMode = DEFAULT_SCHEMA;
     private String source = DEFAULT_SOURCE;
+    private List<String> shardNames = new ArrayList<String>();
+    private JDBCPageShards shards = null;
     private DataSource ds = null;
     private WikiEngine wikiEngine = null;
 
@@ -144,16 +299,59 @@ public class JDBCPageProvider implements WikiPageProvider {
 
         // Validate all parameters
         validateParams(properties);
+        metrics = new JDBCPageMetrics(source, shardNames.isEmpty() ? sqlType.name().toLowerCase() : "shards", slowQueryMillis);
+        metrics.register(jmx);
+        if (!shardNames.isEmpty()) {
+            initialiseShards(properties);
+            return;
+        }
 
-        String sql = "select 1";
+        statements = new JDBCPageStatements(sqlType, getTableName(), metadataColumns, compressionEnabled);
+        search = new JDBCPageSearch(sqlType, getTableName(), searchMode, metadataColumns);
+        if (changeLogEnabled) {
+            changeLog = new JDBCPageChangeLog(getTableName());
+        }
+        if (dedup) {
+            blobs = new JDBCPageBlobs(getTableName(), dedupDeltaMinSize, dedupMaxDeltas, compressionEnabled);
+        }
+        if (compressionEnabled) {
+            compression = new JDBCPageCompression(compressionMinSize);
+        }
+        pageCounter = new JDBCPageCounter(new JDBCPageCounter.Loader() {
+            @Override
+            public int count() throws SQLException {
+                return queryInt(null, statements.selectPageCount, PageStatus.DELETED.dbValue);
+            }
+        }, pageCountReconcile);
+        String sql = statements.validationQuery;
         try {
-            if (c3p0) {
+            if (poolType != PoolType.NONE) {
                 initialiseConnectionPool();
             }
-            ResultSet rs = executeQuery(sql,null);
-            if (rs.next()) {
-                log.info("Successfully initialised JDBCPageProvider");
+            if (!replicaUrls.isEmpty()) {
+                initialiseReplicas();
+            }
+            if (cacheEnabled) {
+                cache = new JDBCPageCache(cacheSize);
             }
+            try (Connection conn = getConnection(); Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+                if (rs.next() && rs.getInt(1) == 1) {
+                    log.info("Successfully initialised JDBCPageProvider");
+                }
+            }
+            if (schemaMode != JDBCPageSchema.Mode.NONE) {
+                manageSchema();
+            }
+            if (searchCreateIndex) {
+                createSearchIndex();
+            }
+            if (journalFile != null) {
+                initialiseJournal();
+            }
+            if (compressionEnabled && compressionRecompress) {
+                startRecompression();
+            }
+            pageCounter.start(getTableName());
         } catch (Exception e) {
             log.error("ERROR. "+e.getMessage()+". sql="+sql,e);
             throw new IOException(e.getMessage());
@@ -174,6 +372,17 @@ public class JDBCPageProvider implements WikiPageProvider {
             }
             source = param;
         }
+        paramName = getPropKey(PROP_SHARDS, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            for (String shard : StringUtils.split(param, ", ")) {
+                if (!StringUtils.isAlphanumeric(shard) || shardNames.contains(shard)) {
+                    throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_SHARDS);
+                }
+                shardNames.add(shard);
+            }
+        }
         paramName = getPropKey(PROP_DRIVER, source);
         param = props.getProperty(paramName);
         if (StringUtils.isNotBlank(param)) {
@@ -202,7 +411,7 @@ public class JDBCPageProvider implements WikiPageProvider {
                 log.error("Error: unable to load driver "+param+"!",e);
                 throw new NoRequiredPropertyException("Error: unable to load driver "+param+"! "+e.getMessage(),PROP_DRIVER);
             }
-        } else {
+        } else if (shardNames.isEmpty()) {
             try {
                 Context ctx = new InitialContext();
                 ds = (DataSource) ctx.lookup("java:/comp/env/jdbc/" + source);
@@ -262,6 +471,15 @@ public class JDBCPageProvider implements WikiPageProvider {
             }
             maxResults = Integer.parseInt(param);
         }
+        paramName = getPropKey(PROP_FETCHSIZE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param) || Integer.parseInt(param) == 0) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_FETCHSIZE);
+            }
+            fetchSize = Integer.parseInt(param);
+        }
         paramName = getPropKey(PROP_VERSIONING, source);
         param = props.getProperty(paramName);
         if (StringUtils.isNotBlank(param)) {
@@ -279,10 +497,25 @@ public class JDBCPageProvider implements WikiPageProvider {
             try {
                 Boolean paramValue = Boolean.parseBoolean(param);
                 c3p0 = paramValue;
+                if (c3p0) {
+                    poolType = PoolType.C3P0;
+                }
             } catch (Exception e) {
                 throw new NoRequiredPropertyException(paramName+" parameter is not true or false",PROP_C3P0);
             }
-
+        }
+        paramName = getPropKey(PROP_POOL, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            try {
+                poolType = PoolType.valueOf(param.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new NoRequiredPropertyException(paramName + " property is not none, c3p0 or lean",PROP_POOL);
+            }
+            c3p0 = poolType == PoolType.C3P0;
+        }
+        if (poolType == PoolType.C3P0) {
             paramName = getPropKey(PROP_C3P0_MINPOOLSIZE, source);
             param = props.getProperty(paramName);
             if (StringUtils.isNotBlank(param)) {
@@ -313,303 +546,1357 @@ public class JDBCPageProvider implements WikiPageProvider {
                 c3p0MaxPoolSize = Integer.parseInt(param);
             }
         }
-    }
-
-    protected void initialiseConnectionPool() throws SQLException {
-        cpds = new ComboPooledDataSource();
-        try {
-            cpds.setDriverClass(sqlType.driverClass);
-        } catch (Exception e) {
-            throw new SQLException(e);
-        }
-        cpds.setJdbcUrl( dbUrl );
-        cpds.setUser(dbUser);
-        cpds.setPassword(dbPassword);
-
-        cpds.setMinPoolSize(c3p0MinPoolSize);
-        cpds.setAcquireIncrement(c3p0Increment);
-        cpds.setMaxPoolSize(c3p0MaxPoolSize);
-    }
-
-    private String addLimits(SQLType sqlType, String sql, Integer maxResults) {
-        String result = sql;
-        if (StringUtils.isNotBlank(sql)) {
-            result = sql.trim();
-            if (result.endsWith(";")) {
-                result = result.substring(result.length()-1);
-            }
-            switch (sqlType) {
-                case MSSQL:
-                    if (!result.toLowerCase().contains(" top")) {
-                        result = sql.replace("select", "select top " + maxResults);
-                        result += ";";
-                    }
-                    break;
-                case MYSQL:
-                    if (!result.toLowerCase().contains(" limit ")) {
-                        result = result + " limit " + maxResults+";";
-                    }
-                    break;
-                case ORACLE:
-                    if (!result.toLowerCase().contains("rownum")) {
-                        result = "select * from ( "+result+" ) where ROWNUM <= " + maxResults+";";
-                    }
-                    break;
-                case POSTGRESQL:
-                    if (!result.toLowerCase().contains(" limit ")) {
-                        result = result + " limit " + maxResults+";";
-                    }
-                    break;
-                case DB2:
-                    if (!result.toLowerCase().contains(" fetch")) {
-                        result = result + " FETCH FIRST "+maxResults+" ROWS ONLY;";
-                    }
-                    break;
-                case SYBASE:
-                    if (!result.toLowerCase().contains(" top")) {
-                        result = result.replace("select", "select top " + maxResults);
-                        result += ";";
-                    }
-                    break;
+        paramName = getPropKey(PROP_POOL_MAXPOOLSIZE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param) || Integer.parseInt(param) == 0) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_POOL_MAXPOOLSIZE);
             }
+            poolMaxPoolSize = Integer.parseInt(param);
         }
-        return result;
-    }
-
-    private String getPropKey(String currentKey, String source) {
-        String result = currentKey;
-        if (StringUtils.isNotBlank(source)) {
-            result+="."+source;
+        paramName = getPropKey(PROP_POOL_MINIDLE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_POOL_MINIDLE);
+            }
+            poolMinIdle = Integer.parseInt(param);
         }
-        return result;
-    }
-
-    private void setLogForDebug(String value) {
-        if (StringUtils.isNotBlank(value) && (value.equalsIgnoreCase("true") || value.equals("1"))) {
-            log.setLevel(Level.INFO);
+        paramName = getPropKey(PROP_POOL_MAXLIFETIME, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_POOL_MAXLIFETIME);
+            }
+            poolMaxLifetime = Long.parseLong(param);
         }
-    }
-
-    private Connection getConnection() throws SQLException {
-        Connection conn = null;
-        if (ds != null) {
-            conn = ds.getConnection();
-        } else if (c3p0 && cpds != null) {
-            conn = cpds.getConnection();
-        } else {
-            if (StringUtils.isBlank(dbUser) && StringUtils.isBlank(dbPassword)) {
-                conn = DriverManager.getConnection(dbUrl);
-            } else {
-                conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+        paramName = getPropKey(PROP_POOL_CONNECTIONTIMEOUT, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_POOL_CONNECTIONTIMEOUT);
             }
-            if (conn == null) {
-                throw new SQLException("Could not create connection for url=" + dbUrl + " user=" + dbUser);
+            poolConnectionTimeout = Long.parseLong(param);
+        }
+        paramName = getPropKey(PROP_POOL_LEAKDETECTION, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_POOL_LEAKDETECTION);
             }
+            poolLeakDetection = Long.parseLong(param);
         }
-        return conn;
-    }
-
-    private ResultSet executeQuery(String sql, String[] args) throws SQLException {
-        Connection conn = null;
-        try {
-            conn = getConnection();
-            log.debug("executeQuery() sql=" + sql);
-            if (args != null) {
-                PreparedStatement stmt = conn.prepareStatement(sql, args);
-                return stmt.executeQuery();
-            } else {
-                Statement stmt = conn.createStatement();
-                return stmt.executeQuery(sql);
+        paramName = getPropKey(PROP_CACHE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            cacheEnabled = Boolean.parseBoolean(param);
+        }
+        paramName = getPropKey(PROP_CACHE_SIZE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_CACHE_SIZE);
             }
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    log.error(e,e);
-                }
+            cacheSize = Long.parseLong(param);
+        }
+        paramName = getPropKey(PROP_STATEMENTCACHE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_STATEMENTCACHE);
             }
+            statementCacheSize = Integer.parseInt(param);
         }
-    }
-
-    private int executeUpdate(String sql, String[] args) throws SQLException {
-        Connection conn = null;
-        try {
-            conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement(sql, args);
-            log.debug("executeUpdate() sql="+sql);
-            int result = stmt.executeUpdate();
-            log.debug("result="+result);
-            return result;
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    log.error(e,e);
-                }
+        paramName = getPropKey(PROP_SEARCH, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            try {
+                searchMode = JDBCPageSearch.Mode.valueOf(param.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new NoRequiredPropertyException(paramName + " property is not like or fulltext",PROP_SEARCH);
             }
         }
-    }
-
-    /**
-     *  {@inheritDoc}
-     */
-    @Override
-    public String getProviderInfo() {
-        return "JDBCPageProvider";
-    }
-
-    private int findLatestVersion( String page )
-    {
-        int version = -1;
-        if (!isVersioned) {
-            return version;
+        paramName = getPropKey(PROP_SEARCH_CREATEINDEX, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            searchCreateIndex = Boolean.parseBoolean(param);
         }
-        try {
-            String sql = "select * from "+getTableName()+" where "+COLUMN_PAGENAME+" = '?' and "+COLUMN_STATUS+" != '?' order by "+COLUMN_VERSION+" DESC";
-            String[] args = new String[] { page, String.valueOf(version), PageStatus.DELETED.dbValue };
-            ResultSet rs = executeQuery(sql,args);
-            if (rs.next()) {
-                version = rs.getInt(COLUMN_VERSION);
+        paramName = getPropKey(PROP_METADATACOLUMNS, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            metadataColumns = Boolean.parseBoolean(param);
+        }
+        paramName = getPropKey(PROP_SAVERETRIES, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_SAVERETRIES);
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            saveRetries = Integer.parseInt(param);
         }
-
-        return version;
-    }
-
-    /**
-     *  {@inheritDoc}
-     */
-    @Override
-    public void putPageText( WikiPage page, String text ) throws ProviderException {
-        try {
-            String changenote = "new page";
-            if (page.getAttribute(WikiPage.CHANGENOTE) != null) {
-                changenote = page.getAttribute(WikiPage.CHANGENOTE).toString();
-            }
-            if (isVersioned) {
-                int latest = findLatestVersion( page.getName() );
-                if (pageExists(page.getName(), latest)) {
-                    latest++;
-                }
-                String sql = "insert into " + getTableName() + " (" + COLUMN_PAGENAME + "," + COLUMN_VERSION + "," + COLUMN_TEXT + "," + COLUMN_AUTHOR + "," + COLUMN_CHANGENOTE + "," + COLUMN_STATUS + ") values ('?',','?','?','?','?')";
-                String[] args = new String[]{page.getName(), String.valueOf(latest), text, page.getAuthor(), changenote, PageStatus.ACTIVE.dbValue};
-                int result = executeUpdate(sql,args);
-            }
-            else {
-                int latest = -1;
-                if (pageExists(page.getName(), latest)) {
-                    String sql = "update " + getTableName() + " set " + COLUMN_TEXT + "='?', " + COLUMN_AUTHOR + "='?', " + COLUMN_CHANGENOTE + "='?', " + COLUMN_STATUS + "='?' where " + COLUMN_PAGENAME + "='?', " + COLUMN_VERSION + "=?";
-                    String[] args = new String[]{text, page.getAuthor(), changenote, PageStatus.ACTIVE.dbValue, page.getName(), "-1"};
-                    int result = executeUpdate(sql,args);
-                } else {
-                    String sql = "insert into " + getTableName() + " (" + COLUMN_PAGENAME + "," + COLUMN_VERSION + "," + COLUMN_TEXT + "," + COLUMN_AUTHOR + "," + COLUMN_CHANGENOTE + "," + COLUMN_STATUS + ") values ('?',?,'?','?','?','?')";
-                    String[] args = new String[]{page.getName(), String.valueOf(latest), text, page.getAuthor(), changenote, PageStatus.ACTIVE.dbValue};
-                    int result = executeUpdate(sql,args);
-                }
+        for (int i = 1; ; i++) {
+            paramName = getPropKey(PROP_URL_REPLICA + "." + i, source);
+            param = props.getProperty(paramName);
+            if (StringUtils.isBlank(param)) {
+                break;
             }
-        } catch (Exception e) {
-            throw new ProviderException(e.getMessage());
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isAsciiPrintable(param) || !param.trim().startsWith(sqlType.startsWith)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value. Expected: " + sqlType.urlDefaultPath,PROP_URL_REPLICA);
+            }
+            replicaUrls.add(param.trim());
         }
-    }
-
-    /**
-     *  {@inheritDoc}
-     */
-    @Override
-    public boolean pageExists( String page ) {
-        int version = findLatestVersion( page );
-        return pageExists( page, version );
-    }
-
-    /**
-     *  {@inheritDoc}
-     */
-    @Override
-    public boolean pageExists(String page, int version) {
-        try {
-            String sql = "select count(1) from "+getTableName()+" where "+COLUMN_PAGENAME+" = '?' and "+COLUMN_VERSION+" = '?' and "+COLUMN_STATUS+" != '?' ";
-            String[] args = new String[] { page, String.valueOf(version), PageStatus.DELETED.dbValue };
-            ResultSet rs = executeQuery(sql,args);
-            if (rs.next()) {
-                return true;
+        paramName = getPropKey(PROP_CHANGELOG, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            changeLogEnabled = Boolean.parseBoolean(param);
+        }
+        paramName = getPropKey(PROP_REPLICA_STICKYWINDOW, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_REPLICA_STICKYWINDOW);
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            replicaStickyWindow = Long.parseLong(param);
         }
-        return false;
-    }
-
-    /**
-     *  {@inheritDoc}
-     */
-    @Override
-    public WikiPage getPageInfo( String page, int version ) throws ProviderException {
-        try {
-            String sql = "select * from "+getTableName()+" where "+COLUMN_PAGENAME+" = '?' and "+COLUMN_VERSION+" = '?' and "+COLUMN_STATUS+" != '?' ";
-            String[] args = new String[] { page, String.valueOf(version), PageStatus.DELETED.dbValue };
-            ResultSet rs = executeQuery(sql,args);
-            if (rs.next()) {
-                WikiPage wikiPage = new WikiPage(wikiEngine,rs.getString(COLUMN_PAGENAME));
-                wikiPage.setAuthor(rs.getString(COLUMN_AUTHOR));
-                wikiPage.setVersion(version);
-                wikiPage.setSize(rs.getString(COLUMN_TEXT).length());
-                wikiPage.setAttribute( WikiPage.CHANGENOTE, rs.getString(COLUMN_CHANGENOTE) );
-                wikiPage.setLastModified(rs.getDate(COLUMN_LASTMODIFIED));
+        paramName = getPropKey(PROP_REPLICA_HEALTHCHECK, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_REPLICA_HEALTHCHECK);
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            replicaHealthCheck = Long.parseLong(param);
         }
-        return null;
-    }
-
-    /**
-     *  {@inheritDoc}
-     */
-    @Override
-    public Collection findPages( QueryItem[] query ) {
-        List<WikiPage> pages = new ArrayList<WikiPage>();
-        try {
-            if (query.length >0 && StringUtils.isNotBlank(query[0].word)) {
-                String sql = "select distinct " + COLUMN_PAGENAME + " from " + getTableName() + " where " + COLUMN_TEXT + " like '%" + query[0].word + "%' and " + COLUMN_STATUS + " != '?'";
-                sql = addLimits(sqlType,sql,maxResults);
-                String[] args = new String[]{PageStatus.DELETED.dbValue};
-                ResultSet rs = executeQuery(sql,args);
-                while (rs.next()) {
-                    String pageName = rs.getString(COLUMN_PAGENAME);
-                    WikiPage wikiPage = getPageInfo(pageName, findLatestVersion(pageName));
-                    pages.add(wikiPage);
-                }
+        paramName = getPropKey(PROP_PAGECOUNT_RECONCILE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_PAGECOUNT_RECONCILE);
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            pageCountReconcile = Long.parseLong(param);
+        }
+        paramName = getPropKey(PROP_DEDUP, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            dedup = Boolean.parseBoolean(param);
+        }
+        if (dedup && !isVersioned) {
+            log.warn(paramName + " only applies with versioning, every page has a single row without it");
+            dedup = false;
+        }
+        if (dedup && !metadataColumns) {
+            log.info(paramName + " stores the text hash, enabling " + getPropKey(PROP_METADATACOLUMNS, source));
+            metadataColumns = true;
+        }
+        paramName = getPropKey(PROP_DEDUP_DELTAMINSIZE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_DEDUP_DELTAMINSIZE);
+            }
+            dedupDeltaMinSize = Integer.parseInt(param);
+        }
+        paramName = getPropKey(PROP_DEDUP_MAXDELTAS, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_DEDUP_MAXDELTAS);
+            }
+            dedupMaxDeltas = Integer.parseInt(param);
+        }
+        paramName = getPropKey(PROP_COMPRESSION, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            compressionEnabled = Boolean.parseBoolean(param);
+        }
+        if (compressionEnabled && !metadataColumns) {
+            log.info(paramName + " reads the size of compressed texts from the metadata, enabling " + getPropKey(PROP_METADATACOLUMNS, source));
+            metadataColumns = true;
+        }
+        paramName = getPropKey(PROP_COMPRESSION_MINSIZE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_COMPRESSION_MINSIZE);
+            }
+            compressionMinSize = Integer.parseInt(param);
+        }
+        paramName = getPropKey(PROP_COMPRESSION_RECOMPRESS, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            compressionRecompress = Boolean.parseBoolean(param);
+        }
+        paramName = getPropKey(PROP_JOURNAL, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            journalFile = param.trim();
+        }
+        paramName = getPropKey(PROP_JOURNAL_MAXPENDING, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param) || Integer.parseInt(param) == 0) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_JOURNAL_MAXPENDING);
+            }
+            journalMaxPending = Integer.parseInt(param);
+        }
+        paramName = getPropKey(PROP_JOURNAL_BATCHSIZE, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param) || Integer.parseInt(param) == 0) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_JOURNAL_BATCHSIZE);
+            }
+            journalBatchSize = Integer.parseInt(param);
+        }
+        paramName = getPropKey(PROP_SLOWQUERY, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new NoRequiredPropertyException(paramName + " property is not a valid value",PROP_SLOWQUERY);
+            }
+            slowQueryMillis = Long.parseLong(param);
+        }
+        paramName = getPropKey(PROP_JMX, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            jmx = Boolean.parseBoolean(param);
+        }
+        paramName = getPropKey(PROP_SCHEMA, source);
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            try {
+                schemaMode = JDBCPageSchema.Mode.valueOf(param.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new NoRequiredPropertyException(paramName + " property is not none, validate, create or migrate",PROP_SCHEMA);
+            }
+        }
+    }
+
+    /**
+     * Compare the page table, and the change log, blobs and journal seq tables when enabled, with the {@link JDBCPageSchema}
+     * of the dialect. Missing tables and indexes are created in jdbc.schema create mode, missing columns
+     * are only added in migrate mode. Whatever is not created is logged with the statement creating it.
+     */
+    protected void manageSchema() throws SQLException {
+        JDBCPageSchema schema = new JDBCPageSchema(sqlType, getTableName(), metadataColumns, compressionEnabled);
+        boolean create = schemaMode == JDBCPageSchema.Mode.CREATE || schemaMode == JDBCPageSchema.Mode.MIGRATE;
+        try (Connection conn = getConnection()) {
+            if (!schema.tableExists(conn)) {
+                applySchema(conn, "the table " + getTableName(), schema.getCreateStatements(), create);
+            } else {
+                applySchema(conn, "columns of " + getTableName(), schema.getMissingColumnStatements(conn),
+                        schemaMode == JDBCPageSchema.Mode.MIGRATE);
+                applySchema(conn, "indexes of " + getTableName(), schema.getMissingIndexStatements(conn), create);
+            }
+            if (changeLog != null && JDBCPageSchema.findTable(conn.getMetaData(), changeLog.getChangeTable()) == null) {
+                applySchema(conn, "the change log table", changeLog.getCreateStatements(), create);
+            }
+            if (blobs != null && JDBCPageSchema.findTable(conn.getMetaData(), blobs.getBlobTable()) == null) {
+                applySchema(conn, "the blobs table", blobs.getCreateStatements(), create);
+            }
+            if (journalFile != null && JDBCPageSchema.findTable(conn.getMetaData(), JDBCPageStatements.journalSeqTable(getTableName())) == null) {
+                applySchema(conn, "the journal seq table", JDBCPageStatements.createJournalSeq(getTableName()), create);
+            }
+        }
+    }
+
+    /**
+     * Run the statements creating what is missing, or log them for the administrator to run.
+     */
+    private void applySchema(Connection conn, String missing, List<String> ddl, boolean create) {
+        if (ddl.isEmpty()) {
+            return;
+        }
+        if (!create) {
+            log.warn("The database is missing " + missing + ", set " + getPropKey(PROP_SCHEMA, source) +
+                    " to create it or run:\n" + StringUtils.join(ddl, ";\n") + ";");
+            return;
+        }
+        for (String sql : ddl) {
+            try (Statement stmt = conn.createStatement()) {
+                log.info("manageSchema() sql=" + sql);
+                stmt.execute(sql);
+            } catch (SQLException e) {
+                log.error("Could not create " + missing + ". " + e.getMessage() + ". sql=" + sql);
+            }
+        }
+    }
+
+    /**
+     * Create the full text index used by the "fulltext" search mode. Failures, typically because the
+     * index already exists, are logged and ignored.
+     */
+    protected void createSearchIndex() throws SQLException {
+        if (!search.isNative()) {
+            log.warn("No native full text search for "+sqlType+" in "+searchMode+" mode, searching with like");
+            return;
+        }
+        try (Connection conn = getConnection()) {
+            String primaryKeyIndex = null;
+            try (ResultSet rs = conn.getMetaData().getPrimaryKeys(null, null, getTableName())) {
+                if (rs.next()) {
+                    primaryKeyIndex = rs.getString("PK_NAME");
+                }
+            }
+            for (String ddl : search.getCreateIndexStatements(primaryKeyIndex)) {
+                try (Statement stmt = conn.createStatement()) {
+                    log.info("createSearchIndex() sql=" + ddl);
+                    stmt.execute(ddl);
+                } catch (SQLException e) {
+                    log.warn("Could not create full text index, it may already exist. "+e.getMessage()+". sql="+ddl);
+                }
+            }
+        }
+    }
+
+    /**
+     * Initialise a provider for every shard, each configured by the properties suffixed with its name,
+     * as if it were the src of the provider.
+     */
+    protected void initialiseShards(Properties properties) throws NoRequiredPropertyException, IOException {
+        Map<String, JDBCPageProvider> providers = new LinkedHashMap<String, JDBCPageProvider>();
+        for (String shard : shardNames) {
+            Properties shardProperties = new Properties(properties);
+            shardProperties.setProperty(PARAM_SOURCE, shard);
+            JDBCPageProvider provider = new JDBCPageProvider();
+            provider.initialize(wikiEngine, shardProperties);
+            providers.put(shard, provider);
+        }
+        shards = new JDBCPageShards(providers, maxResults);
+        log.info("Successfully initialised JDBCPageProvider with shards " + shardNames);
+    }
+
+    protected void initialiseConnectionPool() throws SQLException {
+        pool = createConnectionPool(dbUrl);
+    }
+
+    /**
+     * Open the write-behind journal, replaying the saves it still holds, and start writing them to
+     * the database.
+     */
+    protected void initialiseJournal() throws IOException {
+        journal = new JDBCPageJournal(new File(journalFile), journalMaxPending, journalBatchSize, new JDBCPageJournal.Writer() {
+            @Override
+            public void write(List<JDBCPageJournal.Entry> entries) throws SQLException {
+                writeJournal(entries);
+            }
+
+            @Override
+            public long getWrittenSeq() throws SQLException {
+                try (Connection conn = getConnection()) {
+                    return readJournalSeq(conn);
+                }
+            }
+        });
+        journal.open();
+    }
+
+    /**
+     * Compress the texts of the rows written before compression was enabled, on a background thread,
+     * see {@link JDBCPageMigrator#compressTexts()}.
+     */
+    protected void startRecompression() {
+        final JDBCPageMigrator migrator = new JDBCPageMigrator(this);
+        Thread thread = new Thread("JDBCPageProvider-recompress-" + getTableName()) {
+            @Override
+            public void run() {
+                try {
+                    migrator.compressTexts();
+                } catch (ProviderException e) {
+                    log.error("Recompression stopped. " + e.getMessage(), e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    protected void initialiseReplicas() throws SQLException {
+        replicas = new JDBCPageReplicas(dbUser, dbPassword, sqlType.validationQuery, replicaStickyWindow, replicaHealthCheck);
+        for (String url : replicaUrls) {
+            replicas.addReplica(url, (poolType != PoolType.NONE) ? createConnectionPool(url) : null);
+        }
+        log.info("Reading from " + replicas);
+    }
+
+    /**
+     * Create a pool of connections to the url, of the configured {@link PoolType}.
+     */
+    private DataSource createConnectionPool(String url) throws SQLException {
+        if (poolType == PoolType.LEAN) {
+            return new JDBCPagePool(url, dbUser, dbPassword, sqlType.validationQuery, poolMaxPoolSize, poolMinIdle,
+                    poolMaxLifetime, poolConnectionTimeout, poolLeakDetection);
+        }
+        ComboPooledDataSource cpds = new ComboPooledDataSource();
+        try {
+            cpds.setDriverClass(sqlType.driverClass);
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+        cpds.setJdbcUrl( url );
+        cpds.setUser(dbUser);
+        cpds.setPassword(dbPassword);
+
+        cpds.setMinPoolSize(c3p0MinPoolSize);
+        cpds.setAcquireIncrement(c3p0Increment);
+        cpds.setMaxPoolSize(c3p0MaxPoolSize);
+        cpds.setMaxStatementsPerConnection(statementCacheSize);
+        cpds.setPreferredTestQuery(sqlType.validationQuery);
+        return cpds;
+    }
+
+    /**
+     * Close a pool created by {@link #createConnectionPool(String)}.
+     */
+    static void closeConnectionPool(DataSource pool) {
+        if (pool instanceof JDBCPagePool) {
+            ((JDBCPagePool) pool).close();
+        } else if (pool instanceof ComboPooledDataSource) {
+            ((ComboPooledDataSource) pool).close();
+        }
+    }
+
+    private String getPropKey(String currentKey, String source) {
+        String result = currentKey;
+        if (StringUtils.isNotBlank(source)) {
+            result+="."+source;
+        }
+        return result;
+    }
+
+    private void setLogForDebug(String value) {
+        if (StringUtils.isNotBlank(value) && (value.equalsIgnoreCase("true") || value.equals("1"))) {
+            log.setLevel(Level.INFO);
+        }
+    }
+
+    Connection getConnection() throws SQLException {
+        Connection conn = null;
+        if (ds != null) {
+            conn = ds.getConnection();
+        } else if (pool != null) {
+            conn = pool.getConnection();
+        } else {
+            if (StringUtils.isBlank(dbUser) && StringUtils.isBlank(dbPassword)) {
+                conn = DriverManager.getConnection(dbUrl);
+            } else {
+                conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+            }
+            if (conn == null) {
+                throw new SQLException("Could not create connection for url=" + dbUrl + " user=" + dbUser);
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * A connection for a read, to a replica when there is a healthy one and the page, or for a listing
+     * any page, has not just been written. Otherwise a connection to the primary.
+     *
+     * @param page the page read, or null for a listing or search
+     */
+    Connection getReadConnection(String page) throws SQLException {
+        Connection conn = (replicas != null) ? replicas.getConnection(page) : null;
+        return (conn != null) ? conn : getConnection();
+    }
+
+    /**
+     * Bind the arguments to the placeholders of the statement, in order. Binary columns are bound to
+     * null with {@link #NULL_BINARY}, some databases refuse a varchar null for them.
+     */
+    private void bind(PreparedStatement stmt, Object... args) throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null) {
+                stmt.setNull(i + 1, Types.VARCHAR);
+            } else if (arg == NULL_BINARY) {
+                stmt.setNull(i + 1, Types.VARBINARY);
+            } else if (arg instanceof byte[]) {
+                stmt.setBytes(i + 1, (byte[]) arg);
+            } else if (arg instanceof String) {
+                stmt.setString(i + 1, (String) arg);
+            } else if (arg instanceof Integer) {
+                stmt.setInt(i + 1, (Integer) arg);
+            } else if (arg instanceof Long) {
+                stmt.setLong(i + 1, (Long) arg);
+            } else if (arg instanceof Timestamp) {
+                stmt.setTimestamp(i + 1, (Timestamp) arg);
+            } else {
+                stmt.setObject(i + 1, arg);
+            }
+        }
+    }
+
+    /**
+     * @param page the page read, or null for a listing, see {@link #getReadConnection(String)}
+     */
+    private List<WikiPage> queryPages(String page, String sql, int maxRows, Object... args) throws SQLException {
+        List<WikiPage> pages = new ArrayList<WikiPage>();
+        log.debug("queryPages() sql=" + sql);
+        try (Connection conn = getReadConnection(page); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setMaxRows(maxRows);
+            bind(stmt, args);
+            long start = System.nanoTime();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    pages.add(toWikiPage(rs));
+                }
+            }
+            recordQuery(sql, args.length, pages.size(), start);
+        }
+        return pages;
+    }
+
+    /**
+     * Read the text of the first row, streaming the LOB only once the row has been found.
+     */
+    private String queryText(String page, String sql, Object... args) throws SQLException {
+        log.debug("queryText() sql=" + sql);
+        try (Connection conn = getReadConnection(page); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setMaxRows(1);
+            bind(stmt, args);
+            long start = System.nanoTime();
+            try (ResultSet rs = stmt.executeQuery()) {
+                String text = rs.next() ? readText(rs) : null;
+                recordQuery(sql, args.length, (text != null) ? 1 : 0, start);
+                return text;
+            }
+        }
+    }
+
+    /**
+     * Read the text of the current row from the text column or, for a compressed text, from the
+     * textdata column.
+     */
+    private String readText(ResultSet rs) throws SQLException {
+        try {
+            try (Reader reader = rs.getCharacterStream(COLUMN_TEXT)) {
+                if (reader != null) {
+                    return IOUtils.toString(reader);
+                }
+            }
+            if (compression != null) {
+                try (InputStream in = rs.getBinaryStream(COLUMN_TEXTDATA)) {
+                    if (in != null) {
+                        return compression.decompress(in);
+                    }
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new SQLException("Could not read the page text. " + e.getMessage(), e);
+        }
+    }
+
+    private int queryInt(String page, String sql, Object... args) throws SQLException {
+        log.debug("queryInt() sql=" + sql);
+        try (Connection conn = getReadConnection(page); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setMaxRows(1);
+            bind(stmt, args);
+            long start = System.nanoTime();
+            try (ResultSet rs = stmt.executeQuery()) {
+                boolean found = rs.next();
+                int result = found ? rs.getInt(1) : 0;
+                recordQuery(sql, args.length, found ? 1 : 0, start);
+                return result;
+            }
+        }
+    }
+
+    private int executeUpdate(String sql, Object... args) throws SQLException {
+        log.debug("executeUpdate() sql=" + sql);
+        try (Connection conn = getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            bind(stmt, args);
+            long start = System.nanoTime();
+            int result = stmt.executeUpdate();
+            recordQuery(sql, args.length, result, start);
+            log.debug("result=" + result);
+            return result;
+        }
+    }
+
+    /**
+     * Run the update and, with the change log enabled and a row changed, record the change in the same
+     * transaction.
+     */
+    private int executeUpdate(JDBCPageChangeLog.Change change, String sql, Object... args) throws SQLException {
+        if (changeLog == null) {
+            return executeUpdate(sql, args);
+        }
+        log.debug("executeUpdate() sql=" + sql + " change=" + change);
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                int result = executeUpdate(conn, change, sql, args);
+                conn.commit();
+                log.debug("result=" + result);
+                return result;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Run the update on the connection of a transaction and, with the change log enabled, record the
+     * change in it. Without a connection run it in a transaction of its own.
+     */
+    private int executeUpdate(Connection conn, JDBCPageChangeLog.Change change, String sql, Object... args) throws SQLException {
+        if (conn == null) {
+            return executeUpdate(change, sql, args);
+        }
+        int result;
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            bind(stmt, args);
+            long start = System.nanoTime();
+            result = stmt.executeUpdate();
+            recordQuery(sql, args.length, result, start);
+        }
+        if (result > 0 && changeLog != null) {
+            changeLog.record(conn, change);
+        }
+        return result;
+    }
+
+    WikiPage toWikiPage(ResultSet rs) throws SQLException {
+        WikiPage wikiPage = new WikiPage(wikiEngine, rs.getString(COLUMN_PAGENAME));
+        wikiPage.setAuthor(rs.getString(COLUMN_AUTHOR));
+        wikiPage.setVersion(rs.getInt(COLUMN_VERSION));
+        wikiPage.setSize(rs.getLong(COLUMN_TEXTSIZE));
+        if (metadataColumns) {
+            wikiPage.setAttribute(ATTR_TEXTHASH, rs.getString(COLUMN_TEXTHASH));
+        }
+        wikiPage.setAttribute(WikiPage.CHANGENOTE, rs.getString(COLUMN_CHANGENOTE));
+        wikiPage.setLastModified(rs.getTimestamp(COLUMN_LASTMODIFIED));
+        return wikiPage;
+    }
+
+    protected WikiPage loadPageInfo(String page, int version) throws SQLException {
+        List<WikiPage> pages;
+        if (version == LATEST_VERSION) {
+            pages = queryPages(page, statements.selectLatestInfo, 1, PageStatus.DELETED.dbValue, page);
+        } else {
+            pages = queryPages(page, statements.selectVersionInfo, 1, PageStatus.DELETED.dbValue, page, version);
+        }
+        return pages.isEmpty() ? null : pages.get(0);
+    }
+
+    protected String loadPageText(String page, int version) throws SQLException {
+        if (blobs != null) {
+            return loadStoredText(page, version);
+        }
+        if (version == LATEST_VERSION) {
+            return queryText(page, statements.selectLatestText, PageStatus.DELETED.dbValue, page);
+        }
+        return queryText(page, statements.selectVersionText, PageStatus.DELETED.dbValue, page, version);
+    }
+
+    /**
+     * Read the text of a version, inline or, for an older version, from its blob.
+     */
+    private String loadStoredText(String page, int version) throws SQLException {
+        String sql = (version == LATEST_VERSION) ? statements.selectLatestStoredText : statements.selectVersionStoredText;
+        Object[] args = (version == LATEST_VERSION) ? new Object[] { PageStatus.DELETED.dbValue, page }
+                : new Object[] { PageStatus.DELETED.dbValue, page, version };
+        log.debug("loadStoredText() sql=" + sql);
+        try (Connection conn = getReadConnection(page); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setMaxRows(1);
+            bind(stmt, args);
+            String hash;
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                hash = rs.getString(COLUMN_TEXTHASH);
+                String text = readText(rs);
+                if (text != null) {
+                    return text;
+                }
+            }
+            return (hash != null) ? blobs.load(conn, hash) : null;
+        }
+    }
+
+    /**
+     * With deduplication only the latest version keeps its text inline. Write the text of the version
+     * now latest back from its blob, once the one after it is deleted.
+     */
+    private void restoreLatestText(Connection conn, String page) throws SQLException {
+        int version;
+        String hash;
+        try (PreparedStatement stmt = conn.prepareStatement(statements.selectLatestStoredVersion)) {
+            stmt.setMaxRows(1);
+            bind(stmt, PageStatus.DELETED.dbValue, page);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next() || readText(rs) != null) {
+                    return;
+                }
+                version = rs.getInt(COLUMN_VERSION);
+                hash = rs.getString(COLUMN_TEXTHASH);
+            }
+        }
+        String text = (hash != null) ? blobs.load(conn, hash) : null;
+        if (text == null) {
+            log.warn("restoreLatestText() no blob for version "+version+" of "+page);
+            return;
+        }
+        byte[] data = (compression != null) ? compression.compress(text) : null;
+        try (PreparedStatement stmt = conn.prepareStatement(statements.restoreText)) {
+            bind(stmt, withTextData(data, (data != null) ? null : text, page, version));
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Read a text from the blobs by its hash, for versions whose inline text has been cleared.
+     *
+     * @return the text, or null without deduplication or a blob with the hash
+     */
+    String loadBlob(String hash) throws SQLException {
+        if (blobs == null || hash == null) {
+            return null;
+        }
+        try (Connection conn = getConnection()) {
+            return blobs.load(conn, hash);
+        }
+    }
+
+    /**
+     * With metadata columns the size and hash of the text are written ahead of the other values of
+     * the insert and update statements, so that metadata queries never need to read the text.
+     */
+    Object[] withMetadata(String text, Object... args) {
+        if (!metadataColumns) {
+            return args;
+        }
+        Object[] result = new Object[args.length + 2];
+        result[0] = textSize(text);
+        result[1] = textHash(text);
+        System.arraycopy(args, 0, result, 2, args.length);
+        return result;
+    }
+
+    /**
+     * With compression the compressed text is written ahead of the metadata columns, and the text column
+     * is left empty for it.
+     *
+     * @param data the compressed text, or null when the text is stored in the text column
+     */
+    private Object[] withTextData(byte[] data, Object... args) {
+        if (compression == null) {
+            return args;
+        }
+        Object[] result = new Object[args.length + 1];
+        result[0] = (data != null) ? data : NULL_BINARY;
+        System.arraycopy(args, 0, result, 1, args.length);
+        return result;
+    }
+
+    static int textSize(String text) {
+        return (text == null) ? 0 : text.length();
+    }
+
+    /**
+     * @return the hex encoded SHA-256 of the UTF-8 text, or null for no text
+     */
+    static String textHash(String text) {
+        if (text == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new String(Hex.encodeHex(digest.digest(text.getBytes(StandardCharsets.UTF_8))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Record the latency of an operation, when the provider has been initialised.
+     */
+    private void record(JDBCPageMetrics.Operation operation, long startNanos) {
+        if (metrics != null) {
+            metrics.record(operation, startNanos);
+        }
+    }
+
+    private void recordQuery(String sql, int parameters, int rows, long startNanos) {
+        if (metrics != null) {
+            metrics.recordQuery(sql, parameters, rows, startNanos);
+        }
+    }
+
+    /**
+     * Without versioning there is a single row per page, so every version request is for the latest.
+     */
+    private int resolveVersion(int version) {
+        return isVersioned ? version : LATEST_VERSION;
+    }
+
+    private void invalidate(String page) {
+        if (cache != null) {
+            cache.invalidate(page);
+        }
+        if (replicas != null) {
+            replicas.written(page);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public String getProviderInfo() {
+        return "JDBCPageProvider";
+    }
+
+    /**
+     *  {@inheritDoc}
+     *  <p>
+     *  A versioned save is a single insert computing the next version number from the page's rows,
+     *  an unversioned save a single update of its row. Saving a new page takes a second statement, an
+     *  insert or upsert, which is how the save knows it created the page. When two saves of the same page collide on the
+     *  unique (name, version) index the loser is retried, with a growing random delay, up to
+     *  jdbc.saveretries times.
+     *  <p>
+     *  With a write-behind journal the save returns once it is in the journal, and is written to the
+     *  database in the background.
+     */
+    @Override
+    public void putPageText( WikiPage page, String text ) throws ProviderException {
+        long start = System.nanoTime();
+        try {
+            if (shards != null) {
+                shards.getShard(page.getName()).putPageText(page, text);
+                return;
+            }
+            boolean saved = false;
+            try {
+                String changenote = "new page";
+                if (page.getAttribute(WikiPage.CHANGENOTE) != null) {
+                    changenote = page.getAttribute(WikiPage.CHANGENOTE).toString();
+                }
+                if (journal != null) {
+                    journal.append(page.getName(), page.getAuthor(), changenote, text);
+                    return;
+                }
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        boolean created = savePage(null, page.getName(), page.getAuthor(), changenote, text);
+                        saved = true;
+                        if (created) {
+                            pageCounter.adjust(1);
+                        }
+                        return;
+                    } catch (SQLException e) {
+                        if (!isConflict(e) || attempt >= saveRetries) {
+                            throw e;
+                        }
+                        log.info("putPageText() conflict saving "+page.getName()+", attempt "+(attempt+1)+". "+e.getMessage());
+                        Thread.sleep(backoff(attempt));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProviderException("Interrupted saving "+page.getName());
+            } catch (Exception e) {
+                throw new ProviderException(e.getMessage());
+            } finally {
+                invalidate(page.getName());
+                if (saved && cache != null) {
+                    // so the next read of the page knows it exists without a query
+                    cache.putStored(page.getName());
+                }
+            }
+        } finally {
+            record(JDBCPageMetrics.Operation.PUT_PAGE_TEXT, start);
+        }
+    }
+
+    /**
+     * @param conn the connection of the transaction to save in, or null to save in a transaction of its own
+     * @return whether the save created the page, as it had no version that was not deleted
+     */
+    private boolean savePage( Connection conn, String name, String author, String changenote, String text ) throws SQLException {
+        if (blobs != null && isVersioned) {
+            if (conn == null) {
+                // the blob, the cleared texts of the older versions and the new version are one transaction
+                try (Connection txConn = getConnection()) {
+                    txConn.setAutoCommit(false);
+                    try {
+                        boolean created = savePage(txConn, name, author, changenote, text);
+                        txConn.commit();
+                        return created;
+                    } catch (SQLException e) {
+                        txConn.rollback();
+                        throw e;
+                    } finally {
+                        txConn.setAutoCommit(true);
+                    }
+                }
+            }
+            blobs.store(conn, name, text, textHash(text));
+        }
+        String status = PageStatus.ACTIVE.dbValue;
+        JDBCPageChangeLog.Change change = new JDBCPageChangeLog.Change(JDBCPageChangeLog.ChangeType.SAVE, name,
+                isVersioned ? null : LATEST_VERSION, null, author);
+        byte[] data = (compression != null) ? compression.compress(text) : null;
+        String inline = (data != null) ? null : text;
+        String deleted = PageStatus.DELETED.dbValue;
+        if (isVersioned) {
+            if (executeUpdate(conn, change, statements.insertActiveVersion, withTextData(data, withMetadata(text, name, inline, author, changenote, status, name, deleted))) > 0) {
+                return false;
+            }
+            // a new page, or one whose versions are all deleted
+            executeUpdate(conn, change, statements.insertVersion, withTextData(data, withMetadata(text, name, inline, author, changenote, status, name)));
+            return true;
+        }
+        int version = LATEST_VERSION;
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        if (executeUpdate(conn, change, statements.updateActivePage, withTextData(data, withMetadata(text, inline, author, changenote, status, now, name, version, deleted))) > 0) {
+            return false;
+        }
+        if (statements.upsertPage != null) {
+            executeUpdate(conn, change, statements.upsertPage, withTextData(data, withMetadata(text, name, version, inline, author, changenote, status, now)));
+        } else {
+            int result = executeUpdate(conn, change, statements.updatePage, withTextData(data, withMetadata(text, inline, author, changenote, status, now, name, version)));
+            if (result == 0) {
+                executeUpdate(conn, change, statements.insertPage, withTextData(data, withMetadata(text, name, version, inline, author, changenote, status)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a batch of journalled saves in one transaction, recording the seq of the last one in the
+     * journal seq table. A save replayed after a crash which was committed before being marked flushed
+     * has a seq up to the recorded one, and is skipped.
+     */
+    void writeJournal(List<JDBCPageJournal.Entry> entries) throws SQLException {
+        int created = 0;
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                long writtenSeq = readJournalSeq(conn);
+                for (JDBCPageJournal.Entry entry : entries) {
+                    if (entry.getSeq() <= writtenSeq) {
+                        log.info("writeJournal() skipping save "+entry.getSeq()+" of "+entry.getName()+", already written");
+                        continue;
+                    }
+                    if (savePage(conn, entry.getName(), entry.getAuthor(), entry.getChangenote(), entry.getText())) {
+                        created++;
+                    }
+                    writtenSeq = entry.getSeq();
+                }
+                try (PreparedStatement stmt = conn.prepareStatement(statements.updateJournalSeq)) {
+                    bind(stmt, writtenSeq);
+                    stmt.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        if (created > 0) {
+            pageCounter.adjust(created);
+        }
+        for (JDBCPageJournal.Entry entry : entries) {
+            invalidate(entry.getName());
+        }
+    }
+
+    private long readJournalSeq(Connection conn) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(statements.selectJournalSeq); ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * The saves of the page waiting in the journal, as the versions they will be once written, oldest
+     * first. Call holding the read lock of the journal.
+     */
+    private List<WikiPage> getPendingVersions( String page ) throws SQLException {
+        List<WikiPage> versions = new ArrayList<WikiPage>();
+        List<JDBCPageJournal.Entry> entries = journal.getPending(page);
+        if (entries.isEmpty()) {
+            return versions;
+        }
+        int version = 0;
+        if (isVersioned) {
+            WikiPage latest = loadPageInfo(page, LATEST_VERSION);
+            version = (latest != null) ? latest.getVersion() : 0;
+        }
+        for (JDBCPageJournal.Entry entry : entries) {
+            WikiPage wikiPage = new WikiPage(wikiEngine, page);
+            wikiPage.setAuthor(entry.getAuthor());
+            wikiPage.setVersion(isVersioned ? ++version : LATEST_VERSION);
+            wikiPage.setSize(textSize(entry.getText()));
+            if (metadataColumns) {
+                wikiPage.setAttribute(ATTR_TEXTHASH, textHash(entry.getText()));
+            }
+            wikiPage.setAttribute(WikiPage.CHANGENOTE, entry.getChangenote());
+            wikiPage.setLastModified(entry.getTime());
+            versions.add(wikiPage);
+        }
+        return versions;
+    }
+
+    /**
+     * @return the index of the version in the pending versions, or -1 when it is not pending
+     */
+    private static int indexOfVersion( List<WikiPage> pending, int version ) {
+        if (version == LATEST_VERSION) {
+            return pending.size() - 1;
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i).getVersion() == version) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The pages saved to the journal replace or add to the pages read from the database.
+     *
+     * @param since only add pages saved at or after this time, or null for all of them
+     */
+    private List<WikiPage> withPendingPages( List<WikiPage> pages, Date since ) throws ProviderException {
+        if (journal == null || journal.getPendingCount() == 0) {
+            return pages;
+        }
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        for (int i = 0; i < pages.size(); i++) {
+            indexes.put(pages.get(i).getName(), i);
+        }
+        for (String name : journal.getPendingPages()) {
+            WikiPage wikiPage = getPageInfo(name, LATEST_VERSION);
+            if (wikiPage == null || (since != null && wikiPage.getLastModified().before(since))) {
+                continue;
+            }
+            Integer index = indexes.get(name);
+            if (index != null) {
+                pages.set(index, wikiPage);
+            } else {
+                pages.add(wikiPage);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Write the saves waiting in the journal before a delete or move, which go straight to the database.
+     */
+    private void flushJournal() throws ProviderException {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (Exception e) {
+            log.error(e,e);
+            throw new ProviderException("Could not write the journal to the database. " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true for a unique constraint violation, SQLState class 23, or a deadlock or serialization
+     * failure, class 40, both of which succeed when the save is run again
+     */
+    static boolean isConflict(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            String state = cause.getSQLState();
+            if (state != null && (state.startsWith("23") || state.startsWith("40"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Full jitter exponential backoff, so that colliding writers spread out rather than collide again.
+     */
+    static long backoff(int attempt) {
+        long max = Math.min(SAVE_BACKOFF_MAX_MILLIS, SAVE_BACKOFF_MILLIS << Math.min(attempt, 20));
+        return 1 + (long) (Math.random() * max);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public boolean pageExists( String page ) {
+        long start = System.nanoTime();
+        try {
+            if (shards != null) {
+                return shards.getShard(page).pageExists(page);
+            }
+            if (journal != null && !journal.getPending(page).isEmpty()) {
+                return true;
+            }
+            if (cache != null) {
+                Boolean exists = cache.exists(page);
+                if (exists != null) {
+                    return exists;
+                }
+            }
+            try {
+                return getPageInfo( page, LATEST_VERSION ) != null;
+            } catch (ProviderException e) {
+                log.error(e,e);
+            }
+            return false;
+        } finally {
+            record(JDBCPageMetrics.Operation.PAGE_EXISTS, start);
         }
-        return pages;
     }
 
     /**
      *  {@inheritDoc}
      */
     @Override
-    public Collection getAllPages() throws ProviderException {
-        List<WikiPage> pages = new ArrayList<WikiPage>();
+    public boolean pageExists(String page, int version) {
+        long start = System.nanoTime();
         try {
-            String sql = "select distinct "+COLUMN_PAGENAME+" from "+getTableName()+" where "+COLUMN_STATUS+" != '?'";
-            sql = addLimits(sqlType,sql,maxResults);
-            String[] args = new String[] { PageStatus.DELETED.dbValue };
-            ResultSet rs = executeQuery(sql,args);
-            while (rs.next()) {
-                String pageName = rs.getString(COLUMN_PAGENAME);
-                WikiPage wikiPage = getPageInfo( pageName, findLatestVersion(pageName) );
-                pages.add(wikiPage);
+            if (shards != null) {
+                return shards.getShard(page).pageExists(page, version);
             }
-        } catch (Exception e) {
+            try {
+                return getPageInfo( page, version ) != null;
+            } catch (ProviderException e) {
+                log.error(e,e);
+            }
+            return false;
+        } finally {
+            record(JDBCPageMetrics.Operation.PAGE_EXISTS, start);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public WikiPage getPageInfo( String page, int version ) throws ProviderException {
+        long start = System.nanoTime();
+        try {
+            if (shards != null) {
+                return shards.getShard(page).getPageInfo(page, version);
+            }
+            version = resolveVersion(version);
+            if (journal != null) {
+                Lock lock = journal.getReadLock();
+                lock.lock();
+                try {
+                    List<WikiPage> pending = getPendingVersions(page);
+                    int index = indexOfVersion(pending, version);
+                    if (index >= 0) {
+                        return pending.get(index);
+                    }
+                } catch (SQLException e) {
+                    log.error(e,e);
+                    return null;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            long generation = 0;
+            if (cache != null) {
+                if (version == LATEST_VERSION && Boolean.FALSE.equals(cache.exists(page))) {
+                    return null;
+                }
+                WikiPage wikiPage = cache.getPageInfo(page, version);
+                if (wikiPage != null) {
+                    return wikiPage;
+                }
+                generation = cache.getGeneration();
+            }
+            try {
+                WikiPage wikiPage = loadPageInfo(page, version);
+                if (cache != null) {
+                    cache.putPageInfo(page, version, wikiPage, generation);
+                }
+                return wikiPage;
+            } catch (Exception e) {
+                log.error(e,e);
+            }
+            return null;
+        } finally {
+            record(JDBCPageMetrics.Operation.GET_PAGE_INFO, start);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public Collection findPages( QueryItem[] query ) {
+        long start = System.nanoTime();
+        try {
+            List<SearchResult> results = new ArrayList<SearchResult>();
+            if (shards != null) {
+                try {
+                    return shards.findPages(query);
+                } catch (ProviderException e) {
+                    log.error(e,e);
+                    return results;
+                }
+            }
+            JDBCPageSearch.Query searchQuery = search.buildQuery(query);
+            if (searchQuery == null) {
+                return results;
+            }
+            log.debug("findPages() sql=" + searchQuery.getSql());
+            try (Connection conn = getReadConnection(null); PreparedStatement stmt = conn.prepareStatement(searchQuery.getSql())) {
+                stmt.setMaxRows(maxResults);
+                bind(stmt, searchQuery.getArgs().toArray());
+                long queryStart = System.nanoTime();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        int score = search.toScore(rs.getDouble(JDBCPageSearch.COLUMN_SCORE));
+                        results.add(new JDBCPageSearch.Result(toWikiPage(rs), score));
+                    }
+                }
+                recordQuery(searchQuery.getSql(), searchQuery.getArgs().size(), results.size(), queryStart);
+            } catch (Exception e) {
+                log.error(e,e);
+            }
+            return results;
+        } finally {
+            record(JDBCPageMetrics.Operation.FIND_PAGES, start);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *  <p>
+     *  Every page, not limited by jdbc.maxresults, as a lazy view. Iterating it reads the pages in
+     *  batches of jdbc.fetchsize, its size is counted by the database. The getAllPages latency is
+     *  recorded for every batch read.
+     */
+    @Override
+    public Collection getAllPages() throws ProviderException {
+        if (shards != null) {
+            return shards.getAllPages();
+        }
+        return new JDBCPageCursor.Pages(this);
+    }
+
+    /**
+     * Stream the latest version of every page, in name order, through a single forward only cursor
+     * fetching jdbc.fetchsize rows at a time. The cursor holds a connection until the last page has
+     * been read, close it when stopping early:
+     * <pre>
+     * try (JDBCPageCursor cursor = provider.iterateAllPages()) {
+     *     while (cursor.hasNext()) { ... }
+     * }
+     * </pre>
+     */
+    public JDBCPageCursor iterateAllPages() throws ProviderException {
+        List<WikiPage> pending = getPendingLatestPages();
+        String sql = statements.selectLatestPages;
+        log.debug("iterateAllPages() sql=" + sql);
+        Connection conn = null;
+        try {
+            conn = getReadConnection(null);
+            // PostgreSQL only uses a server side cursor outside of auto commit
+            conn.setAutoCommit(false);
+            PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // MySQL only streams rows with a fetch size of Integer.MIN_VALUE
+            stmt.setFetchSize(sqlType == SQLType.MYSQL ? Integer.MIN_VALUE : fetchSize);
+            bind(stmt, PageStatus.DELETED.dbValue);
+            long start = System.nanoTime();
+            ResultSet rs = stmt.executeQuery();
+            record(JDBCPageMetrics.Operation.GET_ALL_PAGES, start);
+            return new JDBCPageCursor(this, pending, conn, stmt, rs);
+        } catch (SQLException e) {
             log.error(e,e);
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException closeFailure) {
+                    log.warn("Could not close the connection. " + closeFailure.getMessage());
+                }
+            }
+            throw new ProviderException("Could not read the pages. " + e.getMessage());
+        }
+    }
+
+    /**
+     * The next batch of pages for a keyset cursor.
+     *
+     * @param lastName the name of the last page read, or null for the first batch
+     */
+    List<WikiPage> loadPagesAfter(String lastName, int limit) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (lastName == null) {
+                return queryPages(null, statements.selectLatestPages, limit, PageStatus.DELETED.dbValue);
+            }
+            return queryPages(null, statements.selectLatestPagesAfter, limit, PageStatus.DELETED.dbValue, lastName);
+        } finally {
+            record(JDBCPageMetrics.Operation.GET_ALL_PAGES, start);
+        }
+    }
+
+    /**
+     * The latest version of every page with saves in the write-behind journal.
+     */
+    List<WikiPage> getPendingLatestPages() throws ProviderException {
+        return withPendingPages(new ArrayList<WikiPage>(), null);
+    }
+
+    /**
+     * The number of pages, counting the new pages still in the write-behind journal.
+     */
+    int countAllPages() throws ProviderException {
+        try {
+            // counted rather than maintained, the size has to match what iterating the view reads
+            int count = queryInt(null, statements.selectPageCount, PageStatus.DELETED.dbValue);
+            if (journal != null) {
+                for (String name : journal.getPendingPages()) {
+                    if (loadPageInfo(name, LATEST_VERSION) == null) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } catch (SQLException e) {
+            throw new ProviderException(e.getMessage());
         }
-        return pages;
     }
 
     /**
@@ -617,21 +1904,22 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public Collection getAllChangedSince( Date date ) {
-        List<WikiPage> pages = new ArrayList<WikiPage>();
+        long start = System.nanoTime();
         try {
-            String sql = "select distinct "+COLUMN_PAGENAME+" from "+getTableName()+" where "+COLUMN_LASTMODIFIED+" >= '"+date+"' and "+COLUMN_STATUS+" != '?'";
-            sql = addLimits(sqlType,sql,maxResults);
-            String[] args = new String[] { PageStatus.DELETED.dbValue };
-            ResultSet rs = executeQuery(sql,args);
-            while (rs.next()) {
-                String pageName = rs.getString(COLUMN_PAGENAME);
-                WikiPage wikiPage = getPageInfo( pageName, findLatestVersion(pageName) );
-                pages.add(wikiPage);
+            List<WikiPage> pages = new ArrayList<WikiPage>();
+            try {
+                if (shards != null) {
+                    return shards.getAllChangedSince(date);
+                }
+                pages = queryPages(null, statements.selectLatestPagesSince, maxResults, PageStatus.DELETED.dbValue, new Timestamp(date.getTime()));
+                pages = withPendingPages(pages, date);
+            } catch (Exception e) {
+                log.error(e,e);
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            return pages;
+        } finally {
+            record(JDBCPageMetrics.Operation.GET_ALL_CHANGED_SINCE, start);
         }
-        return pages;
     }
 
     /**
@@ -639,18 +1927,21 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public int getPageCount() throws ProviderException {
-        int result = 0;
+        long start = System.nanoTime();
         try {
-            String sql = "select count(distinct "+COLUMN_PAGENAME+") from "+getTableName()+" where "+COLUMN_STATUS+" != ?";
-            String[] args = new String[] { PageStatus.DELETED.dbValue };
-            ResultSet rs = executeQuery(sql,args);
-            while (rs.next()) {
-                result ++;
+            if (shards != null) {
+                return shards.getPageCount();
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            int result = 0;
+            try {
+                result = pageCounter.get();
+            } catch (Exception e) {
+                log.error(e,e);
+            }
+            return result;
+        } finally {
+            record(JDBCPageMetrics.Operation.GET_PAGE_COUNT, start);
         }
-        return result;
     }
 
     /**
@@ -658,22 +1949,69 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public List getVersionHistory( String page ) throws ProviderException {
-        List<WikiPage> versionHistory = new ArrayList<WikiPage>();
         try {
-            int version = findLatestVersion( page );
-            while (version >= 0) {
-                WikiPage wikiPage = getPageInfo( page, version );
-                versionHistory.add(wikiPage);
-                version--;
+            return getVersionHistory(page, LATEST_VERSION, 0);
+        } catch (ProviderException e) {
+            log.error(e,e);
+        }
+        return new ArrayList<WikiPage>();
+    }
+
+    /**
+     * The metadata of the versions of a page, newest first, read with a single query on (name, version).
+     * To read the next page of results pass the last version returned as beforeVersion. Saves still
+     * in the write-behind journal come first, numbered on from the latest version in the database.
+     *
+     * @param beforeVersion only return versions older than this one, or LATEST_VERSION to start with the latest
+     * @param limit the maximum number of versions returned, 0 for all of them
+     */
+    public List<WikiPage> getVersionHistory( String page, int beforeVersion, int limit ) throws ProviderException {
+        long start = System.nanoTime();
+        try {
+            if (shards != null) {
+                return shards.getShard(page).getVersionHistory(page, beforeVersion, limit);
             }
-            if (version == -1) {
-                WikiPage wikiPage = getPageInfo( page, version );
-                versionHistory.add(wikiPage);
+            int before = (beforeVersion == LATEST_VERSION) ? Integer.MAX_VALUE : beforeVersion;
+            long generation = (cache != null) ? cache.getGeneration() : 0;
+            List<WikiPage> versionHistory = new ArrayList<WikiPage>();
+            Lock lock = (journal != null) ? journal.getReadLock() : null;
+            try {
+                if (lock != null) {
+                    lock.lock();
+                    List<WikiPage> pending = getPendingVersions(page);
+                    if (!pending.isEmpty() && !isVersioned) {
+                        versionHistory.add(pending.get(pending.size() - 1));
+                        return versionHistory;
+                    }
+                    for (int i = pending.size() - 1; i >= 0 && (limit <= 0 || versionHistory.size() < limit); i--) {
+                        if (pending.get(i).getVersion() < before) {
+                            versionHistory.add(pending.get(i));
+                        }
+                    }
+                    if (limit > 0 && versionHistory.size() >= limit) {
+                        return versionHistory;
+                    }
+                }
+                int rows = (limit > 0) ? limit - versionHistory.size() : 0;
+                List<WikiPage> saved = queryPages(page, statements.selectVersionHistory, rows, PageStatus.DELETED.dbValue, page, before);
+                if (cache != null) {
+                    for (WikiPage wikiPage : saved) {
+                        cache.putPageInfo(page, wikiPage.getVersion(), wikiPage, generation);
+                    }
+                }
+                versionHistory.addAll(saved);
+            } catch (SQLException e) {
+                log.error(e,e);
+                throw new ProviderException(e.getMessage());
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
             }
-        } catch (Exception e) {
-            log.error(e,e);
+            return versionHistory;
+        } finally {
+            record(JDBCPageMetrics.Operation.GET_VERSION_HISTORY, start);
         }
-        return versionHistory;
     }
 
     /**
@@ -681,8 +2019,50 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public String getPageText( String page, int version ) throws ProviderException {
-        WikiPage wikiPage = getPageInfo( page, version );
-        return wikiPage.getWiki();
+        long start = System.nanoTime();
+        try {
+            if (shards != null) {
+                return shards.getShard(page).getPageText(page, version);
+            }
+            version = resolveVersion(version);
+            if (journal != null) {
+                Lock lock = journal.getReadLock();
+                lock.lock();
+                try {
+                    List<WikiPage> pending = getPendingVersions(page);
+                    int index = indexOfVersion(pending, version);
+                    if (index >= 0) {
+                        return journal.getPending(page).get(index).getText();
+                    }
+                } catch (SQLException e) {
+                    throw new ProviderException(e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            }
+            long generation = 0;
+            if (cache != null) {
+                if (version == LATEST_VERSION && Boolean.FALSE.equals(cache.exists(page))) {
+                    return null;
+                }
+                String text = cache.getPageText(page, version);
+                if (text != null) {
+                    return text;
+                }
+                generation = cache.getGeneration();
+            }
+            try {
+                String text = loadPageText(page, version);
+                if (cache != null) {
+                    cache.putPageText(page, version, text, generation);
+                }
+                return text;
+            } catch (Exception e) {
+                throw new ProviderException(e.getMessage());
+            }
+        } finally {
+            record(JDBCPageMetrics.Operation.GET_PAGE_TEXT, start);
+        }
     }
 
     /**
@@ -690,12 +2070,42 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public void deleteVersion( String pageName, int version ) throws ProviderException {
+        long start = System.nanoTime();
         try {
-            String sql = "update "+getTableName()+" set "+COLUMN_STATUS+" = '?' where "+COLUMN_PAGENAME+" = '?' and "+COLUMN_VERSION+" = '?'";
-            String[] args = new String[] { PageStatus.DELETED.dbValue, pageName, String.valueOf(version) };
-            int result = executeUpdate(sql,args);
-        } catch (Exception e) {
-            log.error(e,e);
+            if (shards != null) {
+                shards.getShard(pageName).deleteVersion(pageName, version);
+                return;
+            }
+            flushJournal();
+            JDBCPageChangeLog.Change change = new JDBCPageChangeLog.Change(JDBCPageChangeLog.ChangeType.DELETE_VERSION, pageName, version, null, null);
+            try {
+                if (blobs != null && isVersioned) {
+                    // the version left latest gets back the inline text the searches read, in the same transaction
+                    try (Connection conn = getConnection()) {
+                        conn.setAutoCommit(false);
+                        try {
+                            executeUpdate(conn, change, statements.deleteVersion, PageStatus.DELETED.dbValue, pageName, version);
+                            restoreLatestText(conn, pageName);
+                            conn.commit();
+                        } catch (SQLException e) {
+                            conn.rollback();
+                            throw e;
+                        } finally {
+                            conn.setAutoCommit(true);
+                        }
+                    }
+                } else {
+                    executeUpdate(change, statements.deleteVersion, PageStatus.DELETED.dbValue, pageName, version);
+                }
+            } catch (Exception e) {
+                log.error(e,e);
+            } finally {
+                // deleting the only version left deletes the page
+                pageCounter.invalidate();
+                invalidate(pageName);
+            }
+        } finally {
+            record(JDBCPageMetrics.Operation.DELETE_VERSION, start);
         }
     }
 
@@ -704,12 +2114,27 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public void deletePage( String pageName ) throws ProviderException {
+        long start = System.nanoTime();
         try {
-            String sql = "update "+getTableName()+" set "+COLUMN_STATUS+" = '?' where "+COLUMN_PAGENAME+" = '?'";
-            String[] args = new String[] { PageStatus.DELETED.dbValue, pageName };
-            int result = executeUpdate(sql,args);
-        } catch (Exception e) {
-            log.error(e,e);
+            if (shards != null) {
+                shards.getShard(pageName).deletePage(pageName);
+                return;
+            }
+            flushJournal();
+            try {
+                // only the rows not deleted yet are updated, so a page already deleted is not counted twice
+                int result = executeUpdate(new JDBCPageChangeLog.Change(JDBCPageChangeLog.ChangeType.DELETE_PAGE, pageName, LATEST_VERSION, null, null),
+                        statements.deletePage, PageStatus.DELETED.dbValue, pageName, PageStatus.DELETED.dbValue);
+                if (result > 0) {
+                    pageCounter.adjust(-1);
+                }
+            } catch (Exception e) {
+                log.error(e,e);
+            } finally {
+                invalidate(pageName);
+            }
+        } finally {
+            record(JDBCPageMetrics.Operation.DELETE_PAGE, start);
         }
     }
 
@@ -718,23 +2143,227 @@ public class JDBCPageProvider implements WikiPageProvider {
      */
     @Override
     public void movePage(String from, String to) throws ProviderException {
-        if (pageExists(to)) {
-            throw new ProviderException("The destination page "+to+" already exists");
-        }
+        long start = System.nanoTime();
         try {
-            String sql = "update "+getTableName()+" set "+COLUMN_PAGENAME+" = '?' where "+COLUMN_PAGENAME+" = '?'";
-            String[] args = new String[] { to, from };
-            int result = executeUpdate(sql,args);
-        } catch (Exception e) {
+            if (shards != null) {
+                shards.movePage(from, to);
+                return;
+            }
+            flushJournal();
+            if (pageExists(to)) {
+                throw new ProviderException("The destination page "+to+" already exists");
+            }
+            try (Connection conn = getConnection()) {
+                conn.setAutoCommit(false);
+                try {
+                    purgeDeletedPage(conn, to);
+                    executeUpdate(conn, new JDBCPageChangeLog.Change(JDBCPageChangeLog.ChangeType.MOVE, to, LATEST_VERSION, from, null),
+                            statements.movePage, to, from);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                log.error(e,e);
+                throw new ProviderException("Could not move "+from+" to "+to+". "+e.getMessage());
+            } finally {
+                invalidate(from);
+                invalidate(to);
+            }
+        } finally {
+            record(JDBCPageMetrics.Operation.MOVE_PAGE, start);
+        }
+    }
+
+    /**
+     * Remove the deleted versions of a page, which would collide on the unique (name, version) index
+     * with the versions of a page moved to its name.
+     */
+    private void purgeDeletedPage(Connection conn, String name) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(statements.purgeDeletedPage)) {
+            bind(stmt, name, PageStatus.DELETED.dbValue);
+            long start = System.nanoTime();
+            int result = stmt.executeUpdate();
+            recordQuery(statements.purgeDeletedPage, 2, result, start);
+            if (result > 0) {
+                log.info("Removed "+result+" deleted versions of "+name);
+            }
+        }
+    }
+
+    /**
+     * Insert every version of a page moved here from another shard, keeping their version numbers,
+     * authors, changenotes and dates, in one transaction recorded as a single move.
+     *
+     * @param versions the versions, oldest first
+     * @param texts the text of each version
+     */
+    void copyPage( String from, String to, List<WikiPage> versions, List<String> texts ) throws ProviderException {
+        flushJournal();
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                purgeDeletedPage(conn, to);
+                try (PreparedStatement stmt = conn.prepareStatement(statements.importPage)) {
+                    for (int i = 0; i < versions.size(); i++) {
+                        WikiPage version = versions.get(i);
+                        String text = texts.get(i);
+                        byte[] data = (compression != null) ? compression.compress(text) : null;
+                        Object changenote = version.getAttribute(WikiPage.CHANGENOTE);
+                        Date lastModified = (version.getLastModified() != null) ? version.getLastModified() : new Date();
+                        bind(stmt, withTextData(data, withMetadata(text, to, isVersioned ? Math.max(version.getVersion(), 1) : LATEST_VERSION,
+                                (data != null) ? null : text, StringUtils.defaultString(version.getAuthor(), "unknown"),
+                                (changenote != null) ? changenote.toString() : null, new Timestamp(lastModified.getTime()),
+                                PageStatus.ACTIVE.dbValue)));
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                if (changeLog != null) {
+                    changeLog.record(conn, new JDBCPageChangeLog.Change(JDBCPageChangeLog.ChangeType.MOVE, to, LATEST_VERSION, from, null));
+                }
+                conn.commit();
+                pageCounter.adjust(1);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.error(e,e);
+            throw new ProviderException("Could not copy "+from+" to "+to+". "+e.getMessage());
+        } finally {
+            invalidate(to);
+        }
+    }
+
+    /**
+     * The changes made after the change numbered seq, oldest first. Pass 0 to read from the start, and
+     * the seq of the last change read to read on from there.
+     *
+     * @param limit the maximum number of changes returned, 0 for all of them
+     * @throws ProviderException when the change log is not enabled with jdbc.changelog
+     */
+    public List<JDBCPageChangeLog.Change> getChangesSince( long seq, int limit ) throws ProviderException {
+        if (changeLog == null) {
+            throw new ProviderException("The change log is not enabled, set " + getPropKey(PROP_CHANGELOG, source) + "=true");
+        }
+        try (Connection conn = getReadConnection(null)) {
+            return changeLog.getChangesSince(conn, seq, limit);
+        } catch (SQLException e) {
             log.error(e,e);
+            throw new ProviderException(e.getMessage());
         }
     }
 
+    /**
+     * @return the content addressed text storage, or null without jdbc.dedup
+     */
+    public JDBCPageBlobs getBlobs() {
+        return blobs;
+    }
+
+    /**
+     * @return the latencies of the operations of this provider, null before it is initialised
+     */
+    public JDBCPageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the maintained page count, null for a sharded provider or before it is initialised
+     */
+    public JDBCPageCounter getPageCounter() {
+        return pageCounter;
+    }
+
+    /**
+     * @return the page text compression, or null without jdbc.compression
+     */
+    public JDBCPageCompression getCompression() {
+        return compression;
+    }
+
+    public JDBCPageChangeLog getChangeLog() {
+        return changeLog;
+    }
+
     public String getTableName() {
         return tableName;
     }
 
     public void setTableName(String tableName) {
         this.tableName = tableName;
+        if (statements != null) {
+            statements = new JDBCPageStatements(sqlType, tableName, metadataColumns, compressionEnabled);
+            search = new JDBCPageSearch(sqlType, tableName, searchMode, metadataColumns);
+            if (changeLog != null) {
+                changeLog = new JDBCPageChangeLog(tableName);
+            }
+            if (blobs != null) {
+                blobs = new JDBCPageBlobs(tableName, dedupDeltaMinSize, dedupMaxDeltas, compressionEnabled);
+            }
+        }
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public JDBCPageCache getCache() {
+        return cache;
+    }
+
+    public SQLType getSqlType() {
+        return sqlType;
+    }
+
+    public boolean isVersioned() {
+        return isVersioned;
+    }
+
+    public boolean isMetadataColumns() {
+        return metadataColumns;
+    }
+
+    JDBCPageStatements getStatements() {
+        return statements;
+    }
+
+    WikiEngine getWikiEngine() {
+        return wikiEngine;
+    }
+
+    /**
+     * @return the write-behind journal, or null when saves go straight to the database
+     */
+    public JDBCPageJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the connection pool, a {@link JDBCPagePool} or c3p0 pool, or null without one
+     */
+    public DataSource getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * @return the shards, or null without jdbc.shards
+     */
+    public JDBCPageShards getShards() {
+        return shards;
+    }
+
+    public JDBCPageReplicas getReplicas() {
+        return replicas;
+    }
+
+    public void setDataSource(DataSource ds) {
+        this.ds = ds;
     }
 }
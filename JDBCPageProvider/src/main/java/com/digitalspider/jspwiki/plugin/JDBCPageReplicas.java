@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * The read replicas of a {@link JDBCPageProvider}. Reads go round robin to the healthy replicas, except
+ * for a page written less than stickyMillis ago, which is read from the primary until the replicas have
+ * caught up. Likewise listings and searches go to the primary for stickyMillis after any write.
+ * <p>
+ * A replica failing to connect is skipped until its next health check, every healthCheckMillis the
+ * validation query is run on each replica before it is used again. With no healthy replica every read
+ * goes to the primary.
+ */
+public class JDBCPageReplicas {
+
+    private final Logger log = Logger.getLogger(JDBCPageReplicas.class);
+
+    private static final int MAX_STICKY_PAGES = 1000;
+
+    private final List<Replica> replicas = new ArrayList<Replica>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, Long> stickyPages = new ConcurrentHashMap<String, Long>();
+    private volatile long stickyUntil = 0;
+    private final String user;
+    private final String password;
+    private final String validationQuery;
+    private final long stickyMillis;
+    private final long healthCheckMillis;
+
+    public static class Replica {
+        private final String url;
+        private final DataSource pool;
+        private volatile boolean healthy = true;
+        private volatile long checkedAt;
+        private final AtomicLong reads = new AtomicLong();
+
+        Replica(String url, DataSource pool) {
+            this.url = url;
+            this.pool = pool;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getReads() {
+            return reads.get();
+        }
+
+        @Override
+        public String toString() {
+            return url + (healthy ? "" : " (down)") + " reads=" + reads.get();
+        }
+    }
+
+    public JDBCPageReplicas(String user, String password, String validationQuery, long stickyMillis, long healthCheckMillis) {
+        this.user = user;
+        this.password = password;
+        this.validationQuery = validationQuery;
+        this.stickyMillis = stickyMillis;
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * @param pool the connection pool of the replica, or null to connect through the DriverManager
+     */
+    public void addReplica(String url, DataSource pool) {
+        replicas.add(new Replica(url, pool));
+    }
+
+    /**
+     * @param page the page read, or null for a listing or search
+     * @return a connection to a replica, or null when the read has to go to the primary
+     */
+    public Connection getConnection(String page) {
+        long now = System.currentTimeMillis();
+        if (replicas.isEmpty() || isSticky(page, now)) {
+            return null;
+        }
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            boolean checkDue = now - replica.checkedAt >= healthCheckMillis;
+            if (!replica.healthy && !checkDue) {
+                continue;
+            }
+            Connection conn = null;
+            try {
+                conn = connect(replica);
+                if (checkDue) {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute(validationQuery);
+                    }
+                    replica.checkedAt = now;
+                    if (!replica.healthy) {
+                        log.info("Replica " + replica.url + " is back up");
+                    }
+                    replica.healthy = true;
+                }
+                replica.reads.incrementAndGet();
+                return conn;
+            } catch (SQLException e) {
+                log.warn("Replica " + replica.url + " is down, retrying in " + healthCheckMillis + "ms. " + e.getMessage());
+                replica.healthy = false;
+                replica.checkedAt = now;
+                close(conn);
+            }
+        }
+        return null;
+    }
+
+    private Connection connect(Replica replica) throws SQLException {
+        if (replica.pool != null) {
+            return replica.pool.getConnection();
+        }
+        if (StringUtils.isBlank(user) && StringUtils.isBlank(password)) {
+            return DriverManager.getConnection(replica.url);
+        }
+        return DriverManager.getConnection(replica.url, user, password);
+    }
+
+    private static void close(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                // already failed
+            }
+        }
+    }
+
+    private boolean isSticky(String page, long now) {
+        if (page == null) {
+            return now < stickyUntil;
+        }
+        Long until = stickyPages.get(page);
+        return until != null && now < until;
+    }
+
+    /**
+     * Send the reads of the page, and all listings, to the primary for the next stickyMillis.
+     */
+    public void written(String page) {
+        if (replicas.isEmpty() || stickyMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        stickyUntil = now + stickyMillis;
+        if (stickyPages.size() >= MAX_STICKY_PAGES) {
+            Iterator<Long> iterator = stickyPages.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() <= now) {
+                    iterator.remove();
+                }
+            }
+        }
+        stickyPages.put(page, now + stickyMillis);
+    }
+
+    public void close() {
+        for (Replica replica : replicas) {
+            JDBCPageProvider.closeConnectionPool(replica.pool);
+        }
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    @Override
+    public String toString() {
+        return "JDBCPageReplicas" + replicas;
+    }
+}
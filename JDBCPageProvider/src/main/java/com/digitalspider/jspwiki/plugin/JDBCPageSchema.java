@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_AUTHOR;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_CHANGENOTE;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_ID;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_LASTMODIFIED;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_PAGENAME;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_STATUS;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXT;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTDATA;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTHASH;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTSIZE;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_VERSION;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.PageStatus;
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.SQLType;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The page table of a {@link JDBCPageProvider} and the indexes its queries rely on, in the DDL of each
+ * dialect. At startup the provider compares them with the database: a missing table, column or index
+ * is logged with the statement adding it, or, depending on jdbc.schema, created.
+ * <p>
+ * An index is found when an existing index starts with its columns, in order, and is unique if it has
+ * to be. The unique (name, version) index serves every page and version lookup, filtered on status,
+ * as well as the version history and the latest page listings, and makes concurrent saves of the same
+ * version of a page conflict. The lastmodified index serves getAllChangedSince.
+ */
+public class JDBCPageSchema {
+
+    public enum Mode {
+        NONE, VALIDATE, CREATE, MIGRATE
+    }
+
+    /**
+     * An index needed by the queries of the provider.
+     */
+    public static class Index {
+        final String name;
+        final boolean unique;
+        final List<String> columns;
+
+        Index(String name, boolean unique, String... columns) {
+            this.name = name;
+            this.unique = unique;
+            this.columns = Arrays.asList(columns);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isUnique() {
+            return unique;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return whether an existing index, with these columns in order, serves this one
+         */
+        boolean isServedBy(boolean existingUnique, List<String> existingColumns) {
+            if (unique && (!existingUnique || existingColumns.size() != columns.size())) {
+                return false;
+            }
+            if (existingColumns.size() < columns.size()) {
+                return false;
+            }
+            for (int i = 0; i < columns.size(); i++) {
+                if (!columns.get(i).equalsIgnoreCase(existingColumns.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final SQLType sqlType;
+    private final String tableName;
+    private final boolean metadataColumns;
+    private final boolean textData;
+    private final List<Index> indexes = new ArrayList<Index>();
+
+    /**
+     * @param metadataColumns whether the table needs the textsize and texthash columns
+     * @param textData whether the table needs the textdata column of compressed texts
+     */
+    public JDBCPageSchema(SQLType sqlType, String tableName, boolean metadataColumns, boolean textData) {
+        this.sqlType = sqlType;
+        this.tableName = tableName;
+        this.metadataColumns = metadataColumns;
+        this.textData = textData;
+        indexes.add(new Index(tableName + "_name_version", true, COLUMN_PAGENAME, COLUMN_VERSION));
+        indexes.add(new Index(tableName + "_lastmodified", false, COLUMN_LASTMODIFIED));
+    }
+
+    /**
+     * The definition of every column of the table, by column name, in order.
+     */
+    Map<String, String> getColumnDefinitions() {
+        Map<String, String> columns = new LinkedHashMap<String, String>();
+        columns.put(COLUMN_ID, identity());
+        columns.put(COLUMN_PAGENAME, varchar(255) + " not null");
+        columns.put(COLUMN_VERSION, integer() + " default -1 not null");
+        columns.put(COLUMN_TEXT, text() + " null");
+        columns.put(COLUMN_AUTHOR, varchar(255) + " not null");
+        columns.put(COLUMN_CHANGENOTE, varchar(255) + " null");
+        columns.put(COLUMN_LASTMODIFIED, timestamp() + " default " + now() + " not null");
+        // existing rows of a table migrated to the status column are active pages
+        columns.put(COLUMN_STATUS, varchar(10) + " default '" + PageStatus.ACTIVE.getDbValue() + "' not null");
+        if (metadataColumns) {
+            columns.put(COLUMN_TEXTSIZE, integer() + " null");
+            columns.put(COLUMN_TEXTHASH, varchar(64) + " null");
+        }
+        if (textData) {
+            columns.put(COLUMN_TEXTDATA, binary() + " null");
+        }
+        return columns;
+    }
+
+    /**
+     * The statements creating the table and its indexes.
+     */
+    public List<String> getCreateStatements() {
+        StringBuilder ddl = new StringBuilder("create table " + tableName + " (");
+        String separator = "";
+        for (Map.Entry<String, String> column : getColumnDefinitions().entrySet()) {
+            ddl.append(separator).append(column.getKey()).append(" ").append(column.getValue());
+            separator = ", ";
+        }
+        ddl.append(")");
+        List<String> statements = new ArrayList<String>();
+        statements.add(ddl.toString());
+        for (Index index : indexes) {
+            statements.add(getCreateIndexStatement(index));
+        }
+        return statements;
+    }
+
+    public String getCreateIndexStatement(Index index) {
+        StringBuilder columns = new StringBuilder();
+        for (String column : index.columns) {
+            columns.append((columns.length() > 0) ? ", " : "").append(column);
+        }
+        return "create " + (index.unique ? "unique " : "") + "index " + index.name + " on " + tableName + " (" + columns + ")";
+    }
+
+    public String getAddColumnStatement(String column, String definition) {
+        switch (sqlType) {
+            case MSSQL:
+            case SYBASE:
+                return "alter table " + tableName + " add " + column + " " + definition;
+            case ORACLE:
+                return "alter table " + tableName + " add (" + column + " " + definition + ")";
+            default:
+                return "alter table " + tableName + " add column " + column + " " + definition;
+        }
+    }
+
+    public List<Index> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * @return whether the database has the table, of whatever case
+     */
+    public boolean tableExists(Connection conn) throws SQLException {
+        return findTable(conn.getMetaData(), tableName) != null;
+    }
+
+    /**
+     * The statements adding the columns missing from the table. Only the columns added by later
+     * releases, changenote, lastmodified, status, textsize, texthash and textdata, can be added.
+     *
+     * @throws SQLException when a column which cannot be added, such as name or version, is missing
+     */
+    public List<String> getMissingColumnStatements(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        String table = findTable(metaData, tableName);
+        Set<String> existing = new HashSet<String>();
+        try (ResultSet rs = metaData.getColumns(conn.getCatalog(), null, table, null)) {
+            while (rs.next()) {
+                existing.add(rs.getString("COLUMN_NAME").toLowerCase());
+            }
+        }
+        List<String> statements = new ArrayList<String>();
+        for (Map.Entry<String, String> column : getColumnDefinitions().entrySet()) {
+            if (existing.contains(column.getKey())) {
+                continue;
+            }
+            if (Arrays.asList(COLUMN_ID, COLUMN_PAGENAME, COLUMN_VERSION, COLUMN_TEXT, COLUMN_AUTHOR).contains(column.getKey())) {
+                throw new SQLException("The table " + tableName + " has no " + column.getKey() + " column, see etc/createDB.sql");
+            }
+            statements.add(getAddColumnStatement(column.getKey(), column.getValue()));
+        }
+        return statements;
+    }
+
+    /**
+     * The statements creating the indexes not served by an existing index of the table.
+     */
+    public List<String> getMissingIndexStatements(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        String table = findTable(metaData, tableName);
+        Map<String, List<String>> existingColumns = new LinkedHashMap<String, List<String>>();
+        Set<String> existingUnique = new HashSet<String>();
+        try (ResultSet rs = metaData.getIndexInfo(conn.getCatalog(), null, table, false, true)) {
+            while (rs.next()) {
+                String name = rs.getString("INDEX_NAME");
+                if (name == null || rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic) {
+                    continue;
+                }
+                if (!existingColumns.containsKey(name)) {
+                    existingColumns.put(name, new ArrayList<String>());
+                    if (!rs.getBoolean("NON_UNIQUE")) {
+                        existingUnique.add(name);
+                    }
+                }
+                List<String> columns = existingColumns.get(name);
+                int position = rs.getShort("ORDINAL_POSITION");
+                while (columns.size() < position) {
+                    columns.add(null);
+                }
+                columns.set(position - 1, rs.getString("COLUMN_NAME"));
+            }
+        }
+        List<String> statements = new ArrayList<String>();
+        for (Index index : indexes) {
+            boolean served = false;
+            for (Map.Entry<String, List<String>> existing : existingColumns.entrySet()) {
+                if (index.isServedBy(existingUnique.contains(existing.getKey()), existing.getValue())) {
+                    served = true;
+                    break;
+                }
+            }
+            if (!served) {
+                statements.add(getCreateIndexStatement(index));
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * @return the name of the table as stored by the database, which may have changed its case, or null
+     */
+    static String findTable(DatabaseMetaData metaData, String tableName) throws SQLException {
+        for (String name : new String[] { tableName, tableName.toUpperCase(), tableName.toLowerCase() }) {
+            try (ResultSet rs = metaData.getTables(null, null, name, null)) {
+                if (rs.next()) {
+                    return rs.getString("TABLE_NAME");
+                }
+            }
+        }
+        return null;
+    }
+
+    private String identity() {
+        switch (sqlType) {
+            case POSTGRESQL:
+                return "serial primary key";
+            case MSSQL:
+                return "int identity(1,1) primary key";
+            case SYBASE:
+                return "numeric(10,0) identity primary key";
+            case ORACLE:
+                return "number(10) generated by default as identity primary key";
+            case DB2:
+                return "int not null generated by default as identity primary key";
+            default:
+                return "int auto_increment primary key";
+        }
+    }
+
+    private String varchar(int length) {
+        return ((sqlType == SQLType.ORACLE) ? "varchar2(" : "varchar(") + length + ")";
+    }
+
+    private String integer() {
+        return (sqlType == SQLType.ORACLE) ? "number(10)" : "int";
+    }
+
+    private String text() {
+        switch (sqlType) {
+            case MYSQL:
+                return "mediumtext";
+            case POSTGRESQL:
+            case SYBASE:
+                return "text";
+            case MSSQL:
+                return "nvarchar(max)";
+            default:
+                return "clob";
+        }
+    }
+
+    private String binary() {
+        switch (sqlType) {
+            case MYSQL:
+                return "mediumblob";
+            case POSTGRESQL:
+                return "bytea";
+            case MSSQL:
+            case SYBASE:
+                return "varbinary(max)";
+            default:
+                return "blob";
+        }
+    }
+
+    private String timestamp() {
+        return (sqlType == SQLType.MSSQL || sqlType == SQLType.SYBASE) ? "datetime" : "timestamp";
+    }
+
+    private String now() {
+        return (sqlType == SQLType.SYBASE) ? "getdate()" : "current_timestamp";
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_ID;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_PAGENAME;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXT;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.PageStatus;
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.SQLType;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.search.QueryItem;
+import org.apache.wiki.search.SearchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the search query of {@link JDBCPageProvider#findPages(QueryItem[])}. In "fulltext" mode MySQL,
+ * PostgreSQL and MSSQL use their own full text index, every other dialect, and the default "like" mode,
+ * use like predicates. Either way only the latest version of each page is searched, every
+ * {@link QueryItem} is honoured and each page gets a relevance score.
+ */
+public class JDBCPageSearch {
+
+    public enum Mode {
+        LIKE, FULLTEXT
+    }
+
+    static final String COLUMN_SCORE = "score";
+    static final String POSTGRESQL_CONFIG = "simple";
+
+    private final SQLType sqlType;
+    private final String tableName;
+    private final Mode mode;
+    private final boolean metadataColumns;
+
+    /**
+     * A search statement and the values of its placeholders, in order.
+     */
+    public static class Query {
+        final String sql;
+        final List<Object> args;
+
+        Query(String sql, List<Object> args) {
+            this.sql = sql;
+            this.args = args;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public List<Object> getArgs() {
+            return args;
+        }
+    }
+
+    public static class Result implements SearchResult {
+        private final WikiPage page;
+        private final int score;
+
+        public Result(WikiPage page, int score) {
+            this.page = page;
+            this.score = score;
+        }
+
+        public WikiPage getPage() {
+            return page;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public String[] getContexts() {
+            return new String[0];
+        }
+    }
+
+    public JDBCPageSearch(SQLType sqlType, String tableName, Mode mode) {
+        this(sqlType, tableName, mode, false);
+    }
+
+    public JDBCPageSearch(SQLType sqlType, String tableName, Mode mode, boolean metadataColumns) {
+        this.sqlType = sqlType;
+        this.tableName = tableName;
+        this.mode = mode;
+        this.metadataColumns = metadataColumns;
+    }
+
+    /**
+     * @return true when the query is answered by a native full text index
+     */
+    public boolean isNative() {
+        return mode == Mode.FULLTEXT && (sqlType == SQLType.MYSQL || sqlType == SQLType.POSTGRESQL || sqlType == SQLType.MSSQL);
+    }
+
+    /**
+     * @return the query, or null if the items hold no word to search for
+     */
+    public Query buildQuery(QueryItem[] items) {
+        List<String> required = new ArrayList<String>();
+        List<String> forbidden = new ArrayList<String>();
+        List<String> requested = new ArrayList<String>();
+        for (QueryItem item : items) {
+            if (item == null || StringUtils.isBlank(item.word)) {
+                continue;
+            }
+            String word = item.word.trim();
+            if (item.type == QueryItem.REQUIRED) {
+                required.add(word);
+            } else if (item.type == QueryItem.FORBIDDEN) {
+                forbidden.add(word);
+            } else {
+                requested.add(word);
+            }
+        }
+        if (required.isEmpty() && requested.isEmpty()) {
+            return null;
+        }
+        if (isNative()) {
+            switch (sqlType) {
+                case MYSQL:
+                    return mysqlQuery(required, forbidden, requested);
+                case POSTGRESQL:
+                    return postgresqlQuery(required, forbidden, requested);
+                case MSSQL:
+                    return mssqlQuery(required, forbidden, requested);
+            }
+        }
+        return likeQuery(required, forbidden, requested);
+    }
+
+    private Query mysqlQuery(List<String> required, List<String> forbidden, List<String> requested) {
+        StringBuilder against = new StringBuilder();
+        for (String word : required) {
+            against.append(" +").append(quote(word));
+        }
+        for (String word : forbidden) {
+            against.append(" -").append(quote(word));
+        }
+        for (String word : requested) {
+            against.append(" ").append(quote(word));
+        }
+        String match = "match(t." + COLUMN_TEXT + ") against (? in boolean mode)";
+        List<Object> args = new ArrayList<Object>();
+        args.add(against.toString().trim());
+        return query(match, args, null, null, match, args);
+    }
+
+    private Query postgresqlQuery(List<String> required, List<String> forbidden, List<String> requested) {
+        String vector = "to_tsvector('" + POSTGRESQL_CONFIG + "', t." + COLUMN_TEXT + ")";
+        String word = "plainto_tsquery('" + POSTGRESQL_CONFIG + "', ?)";
+
+        // the score ranks on every positive word, the filter needs the required or any requested word
+        List<Object> scoreArgs = new ArrayList<Object>(required);
+        scoreArgs.addAll(requested);
+        String score = "ts_rank(" + vector + ", " + StringUtils.repeat(word, " || ", scoreArgs.size()) + ")";
+
+        List<Object> filterArgs = new ArrayList<Object>();
+        String match;
+        if (!required.isEmpty()) {
+            match = StringUtils.repeat(word, " && ", required.size());
+            filterArgs.addAll(required);
+        } else {
+            match = "(" + StringUtils.repeat(word, " || ", requested.size()) + ")";
+            filterArgs.addAll(requested);
+        }
+        for (String forbiddenWord : forbidden) {
+            match += " && !!" + word;
+            filterArgs.add(forbiddenWord);
+        }
+        return query(score, scoreArgs, null, null, vector + " @@ (" + match + ")", filterArgs);
+    }
+
+    private Query mssqlQuery(List<String> required, List<String> forbidden, List<String> requested) {
+        StringBuilder condition = new StringBuilder();
+        List<String> positive = required.isEmpty() ? requested : required;
+        String operator = required.isEmpty() ? " OR " : " AND ";
+        condition.append("(");
+        for (int i = 0; i < positive.size(); i++) {
+            condition.append(i > 0 ? operator : "").append(quote(positive.get(i)));
+        }
+        condition.append(")");
+        for (String word : forbidden) {
+            condition.append(" AND NOT ").append(quote(word));
+        }
+        // the join on containstable both filters the pages and ranks them
+        String join = " join containstable(" + tableName + ", " + COLUMN_TEXT + ", ?) ft on ft.[KEY] = t." + COLUMN_ID;
+        List<Object> joinArgs = new ArrayList<Object>();
+        joinArgs.add(condition.toString());
+        return query("ft.RANK", null, join, joinArgs, null, null);
+    }
+
+    private Query likeQuery(List<String> required, List<String> forbidden, List<String> requested) {
+        boolean caseInsensitive = sqlType != SQLType.MSSQL && sqlType != SQLType.SYBASE;
+        String column = caseInsensitive ? "lower(t." + COLUMN_TEXT + ")" : "t." + COLUMN_TEXT;
+
+        // one point for every positive word found
+        List<String> positive = new ArrayList<String>(required);
+        positive.addAll(requested);
+        List<String> scores = new ArrayList<String>();
+        List<Object> scoreArgs = new ArrayList<Object>();
+        for (String word : positive) {
+            scores.add("case when " + column + " like ? then 1 else 0 end");
+            scoreArgs.add(pattern(word, caseInsensitive));
+        }
+
+        List<String> filters = new ArrayList<String>();
+        List<Object> filterArgs = new ArrayList<Object>();
+        for (String word : required) {
+            filters.add(column + " like ?");
+            filterArgs.add(pattern(word, caseInsensitive));
+        }
+        if (required.isEmpty()) {
+            List<String> any = new ArrayList<String>();
+            for (String word : requested) {
+                any.add(column + " like ?");
+                filterArgs.add(pattern(word, caseInsensitive));
+            }
+            filters.add("(" + StringUtils.join(any, " or ") + ")");
+        }
+        for (String word : forbidden) {
+            filters.add(column + " not like ?");
+            filterArgs.add(pattern(word, caseInsensitive));
+        }
+        return query("(" + StringUtils.join(scores, " + ") + ")", scoreArgs, null, null,
+                StringUtils.join(filters, " and "), filterArgs);
+    }
+
+    /**
+     * Assemble the query on the latest versions, with the arguments in the order of their placeholders:
+     * score, page status, join and filter.
+     */
+    private Query query(String score, List<Object> scoreArgs, String join, List<Object> joinArgs, String filter, List<Object> filterArgs) {
+        List<Object> args = new ArrayList<Object>();
+        if (scoreArgs != null) {
+            args.addAll(scoreArgs);
+        }
+        args.add(PageStatus.DELETED.getDbValue());
+        if (joinArgs != null) {
+            args.addAll(joinArgs);
+        }
+        if (filterArgs != null) {
+            args.addAll(filterArgs);
+        }
+        String sql = JDBCPageStatements.latestPages(sqlType, tableName, metadataColumns, score + " as " + COLUMN_SCORE, join, filter,
+                COLUMN_SCORE + " desc, t." + COLUMN_PAGENAME);
+        return new Query(sql, args);
+    }
+
+    private static String pattern(String word, boolean lowerCase) {
+        String escaped = word.replace("%", "").replace("_", "");
+        return "%" + (lowerCase ? escaped.toLowerCase() : escaped) + "%";
+    }
+
+    private static String quote(String word) {
+        return "\"" + word.replace("\"", "") + "\"";
+    }
+
+    /**
+     * The statements creating the full text index for the dialect, nothing if it has none.
+     *
+     * @param primaryKeyIndex name of the primary key index of the table, needed by MSSQL
+     */
+    public List<String> getCreateIndexStatements(String primaryKeyIndex) {
+        List<String> ddl = new ArrayList<String>();
+        switch (sqlType) {
+            case MYSQL:
+                ddl.add("alter table " + tableName + " add fulltext index " + tableName + "_text_ft (" + COLUMN_TEXT + ")");
+                break;
+            case POSTGRESQL:
+                ddl.add("create index " + tableName + "_text_ft on " + tableName + " using gin (to_tsvector('" + POSTGRESQL_CONFIG + "', " + COLUMN_TEXT + "))");
+                break;
+            case MSSQL:
+                ddl.add("create fulltext catalog " + tableName + "_catalog");
+                ddl.add("create fulltext index on " + tableName + " (" + COLUMN_TEXT + ") key index " + primaryKeyIndex + " on " + tableName + "_catalog");
+                break;
+        }
+        return ddl;
+    }
+
+    /**
+     * MySQL and PostgreSQL rank with a small floating point relevance, scale it to a usable integer score.
+     */
+    public int toScore(double relevance) {
+        boolean fractional = isNative() && sqlType != SQLType.MSSQL;
+        return (int) Math.round(fractional ? relevance * 1000 : relevance);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.search.QueryItem;
+import org.apache.wiki.search.SearchResult;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shards of a sharded {@link JDBCPageProvider}. Every shard is a provider of its own, configured
+ * with the jdbc.* properties suffixed by its name, as for the src parameter. A page lives on one shard,
+ * chosen by a consistent hash of its name: each shard owns VIRTUAL_NODES points on a ring of 64 bit MD5
+ * hashes, and a page belongs to the shard owning the first point at or after the hash of its name. Adding
+ * a shard only moves the pages falling between its points and their predecessors.
+ * <p>
+ * Listings, searches and the page count query every shard in parallel and merge the results, except
+ * for the lazy view of every page, which reads one shard after the other. A move
+ * between shards copies every version to the new shard in one transaction, then deletes the page from
+ * the old one. A failure in between leaves the page on both shards, never on neither.
+ */
+public class JDBCPageShards {
+
+    private final Logger log = Logger.getLogger(JDBCPageShards.class);
+
+    public static final int VIRTUAL_NODES = 128;
+
+    private static final Comparator<WikiPage> BY_NAME = new Comparator<WikiPage>() {
+        public int compare(WikiPage page1, WikiPage page2) {
+            return page1.getName().compareTo(page2.getName());
+        }
+    };
+
+    private static final Comparator<SearchResult> BY_SCORE = new Comparator<SearchResult>() {
+        public int compare(SearchResult result1, SearchResult result2) {
+            int compare = Integer.compare(result2.getScore(), result1.getScore());
+            return (compare != 0) ? compare : BY_NAME.compare(result1.getPage(), result2.getPage());
+        }
+    };
+
+    /**
+     * A call made on every shard.
+     */
+    interface Task<T> {
+        T run(JDBCPageProvider shard) throws ProviderException;
+    }
+
+    private final Map<String, JDBCPageProvider> shards;
+    private final TreeMap<Long, JDBCPageProvider> ring = new TreeMap<Long, JDBCPageProvider>();
+    private final int maxResults;
+    private final ExecutorService executor;
+
+    /**
+     * @param shards the initialised provider of every shard, by shard name
+     * @param maxResults the most pages returned by a merged listing or search
+     */
+    public JDBCPageShards(Map<String, JDBCPageProvider> shards, int maxResults) {
+        this.shards = shards;
+        this.maxResults = maxResults;
+        for (Map.Entry<String, JDBCPageProvider> shard : shards.entrySet()) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(shard.getKey() + "#" + i), shard.getValue());
+            }
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "JDBCPageShards-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the provider of the shard holding the page
+     */
+    public JDBCPageProvider getShard(String page) {
+        Map.Entry<Long, JDBCPageProvider> entry = ring.ceilingEntry(hash(page));
+        return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public Map<String, JDBCPageProvider> getShards() {
+        return Collections.unmodifiableMap(shards);
+    }
+
+    /**
+     * Run the task on every shard in parallel.
+     *
+     * @return the result of every shard, in shard order
+     * @throws ProviderException the first failure of a shard
+     */
+    <T> List<T> scatter(final Task<T> task) throws ProviderException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (final JDBCPageProvider shard : shards.values()) {
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() throws ProviderException {
+                    return task.run(shard);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProviderException("Interrupted waiting for the shards");
+        } catch (ExecutionException e) {
+            log.error(e.getCause(), e.getCause());
+            throw new ProviderException("A shard failed. " + e.getCause().getMessage());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Every page as a lazy view, the pages of each shard in turn, each in name order.
+     */
+    public Collection<WikiPage> getAllPages() throws ProviderException {
+        final List<Collection<WikiPage>> pages = new ArrayList<Collection<WikiPage>>();
+        for (JDBCPageProvider shard : shards.values()) {
+            pages.add(new JDBCPageCursor.Pages(shard));
+        }
+        return new AbstractCollection<WikiPage>() {
+            @Override
+            public Iterator<WikiPage> iterator() {
+                return new Iterator<WikiPage>() {
+                    private int shard = 0;
+                    private Iterator<WikiPage> current = Collections.<WikiPage>emptyList().iterator();
+
+                    public boolean hasNext() {
+                        while (!current.hasNext() && shard < pages.size()) {
+                            current = pages.get(shard++).iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    public WikiPage next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                try {
+                    int size = 0;
+                    for (Integer shardSize : scatter(new Task<Integer>() {
+                        public Integer run(JDBCPageProvider shard) throws ProviderException {
+                            return shard.countAllPages();
+                        }
+                    })) {
+                        size += shardSize;
+                    }
+                    return size;
+                } catch (ProviderException e) {
+                    throw new IllegalStateException("Could not count the pages. " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    public List<WikiPage> getAllChangedSince(final Date date) throws ProviderException {
+        return mergePages(scatter(new Task<Collection<WikiPage>>() {
+            @SuppressWarnings("unchecked")
+            public Collection<WikiPage> run(JDBCPageProvider shard) {
+                return shard.getAllChangedSince(date);
+            }
+        }));
+    }
+
+    /**
+     * Merge the results of every shard by score, best first.
+     */
+    public List<SearchResult> findPages(final QueryItem[] query) throws ProviderException {
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        for (Collection<SearchResult> shardResults : scatter(new Task<Collection<SearchResult>>() {
+            @SuppressWarnings("unchecked")
+            public Collection<SearchResult> run(JDBCPageProvider shard) {
+                return shard.findPages(query);
+            }
+        })) {
+            results.addAll(shardResults);
+        }
+        Collections.sort(results, BY_SCORE);
+        return (results.size() > maxResults) ? new ArrayList<SearchResult>(results.subList(0, maxResults)) : results;
+    }
+
+    public int getPageCount() throws ProviderException {
+        int count = 0;
+        for (Integer shardCount : scatter(new Task<Integer>() {
+            public Integer run(JDBCPageProvider shard) throws ProviderException {
+                return shard.getPageCount();
+            }
+        })) {
+            count += shardCount;
+        }
+        return count;
+    }
+
+    private List<WikiPage> mergePages(List<Collection<WikiPage>> shardPages) {
+        List<WikiPage> pages = new ArrayList<WikiPage>();
+        for (Collection<WikiPage> collection : shardPages) {
+            pages.addAll(collection);
+        }
+        Collections.sort(pages, BY_NAME);
+        return (pages.size() > maxResults) ? new ArrayList<WikiPage>(pages.subList(0, maxResults)) : pages;
+    }
+
+    /**
+     * Move a page, within its shard or, when the new name hashes to another shard, by copying every
+     * version to that shard in one transaction and then deleting the page from its old shard.
+     */
+    public void movePage(String from, String to) throws ProviderException {
+        JDBCPageProvider source = getShard(from);
+        JDBCPageProvider target = getShard(to);
+        if (source == target) {
+            source.movePage(from, to);
+            return;
+        }
+        if (target.pageExists(to)) {
+            throw new ProviderException("The destination page "+to+" already exists");
+        }
+        List<WikiPage> versions = source.getVersionHistory(from, JDBCPageProvider.LATEST_VERSION, 0);
+        if (versions.isEmpty()) {
+            throw new ProviderException("The page "+from+" does not exist");
+        }
+        // oldest first
+        Collections.reverse(versions);
+        List<String> texts = new ArrayList<String>();
+        for (WikiPage version : versions) {
+            texts.add(source.getPageText(from, version.getVersion()));
+        }
+        target.copyPage(from, to, versions, texts);
+        try {
+            source.deletePage(from);
+        } catch (ProviderException e) {
+            log.error("movePage() copied "+from+" to "+to+" but could not delete it. "+e.getMessage(), e);
+            throw e;
+        }
+        log.info("movePage() moved "+versions.size()+" versions of "+from+" to "+to+" on another shard");
+    }
+}
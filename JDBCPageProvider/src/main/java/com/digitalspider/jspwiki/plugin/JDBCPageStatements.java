@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import static com.digitalspider.jspwiki.plugin.JDBCPageChangeLog.COLUMN_SEQ;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_AUTHOR;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_CHANGENOTE;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_ID;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_LASTMODIFIED;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_PAGENAME;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_STATUS;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXT;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTDATA;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTHASH;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_TEXTSIZE;
+import static com.digitalspider.jspwiki.plugin.JDBCPageProvider.COLUMN_VERSION;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.SQLType;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The SQL of every operation of the {@link JDBCPageProvider}, built once for a dialect and table.
+ * Every value is a ? placeholder so that the same statement text is reused, and can be cached by
+ * the connection pool or the database, for every call. The page status is always the first
+ * parameter of the queries.
+ * <p>
+ * With metadata columns the size and hash of the text are stored next to it, the metadata queries
+ * read them instead of the text, and the writes take them as their first two parameters.
+ * <p>
+ * With compression the text queries also read the textdata column, and the writes take the
+ * compressed text as their first parameter, ahead of the metadata columns.
+ */
+public class JDBCPageStatements {
+
+    final String validationQuery;
+    final String selectLatestPages;
+    final String selectLatestPagesSince;
+    final String selectLatestPagesAfter;
+    final String selectLatestInfo;
+    final String selectVersionInfo;
+    final String selectVersionHistory;
+    final String selectLatestText;
+    final String selectVersionText;
+    final String selectLatestStoredText;
+    final String selectVersionStoredText;
+    final String selectLatestStoredVersion;
+    final String selectPageCount;
+    final String insertPage;
+    final String insertVersion;
+    final String insertActiveVersion;
+    final String upsertPage;
+    final String updatePage;
+    final String updateActivePage;
+    final String deleteVersion;
+    final String deletePage;
+    final String movePage;
+    final String purgeDeletedPage;
+    final String importPage;
+    final String exportPages;
+    final String selectMissingMetadata;
+    final String updateMetadata;
+    final String selectUncompressed;
+    final String updateCompressed;
+    final String restoreText;
+    final String selectJournalSeq;
+    final String updateJournalSeq;
+
+    /**
+     * @param textData write and read the compressed text in the textdata column
+     */
+    public JDBCPageStatements(SQLType sqlType, String tableName, boolean metadataColumns, boolean textData) {
+        String infoColumns = COLUMN_PAGENAME + ", " + COLUMN_VERSION + ", " + COLUMN_AUTHOR + ", " + COLUMN_CHANGENOTE + ", "
+                + COLUMN_LASTMODIFIED + ", " + sizeColumns(sqlType, "", metadataColumns);
+        String metadataInsert = (textData ? COLUMN_TEXTDATA + "," : "") + (metadataColumns ? COLUMN_TEXTSIZE + "," + COLUMN_TEXTHASH + "," : "");
+        String metadataValues = (textData ? "?," : "") + (metadataColumns ? "?,?," : "");
+        String metadataUpdate = (textData ? COLUMN_TEXTDATA + " = ?, " : "") + (metadataColumns ? COLUMN_TEXTSIZE + " = ?, " + COLUMN_TEXTHASH + " = ?, " : "");
+        String textColumns = COLUMN_TEXT + (textData ? ", " + COLUMN_TEXTDATA : "");
+        String versionFilter = " from " + tableName + " where " + COLUMN_STATUS + " != ? and " + COLUMN_PAGENAME + " = ?";
+
+        validationQuery = sqlType.getValidationQuery();
+        selectLatestPages = latestPages(sqlType, tableName, metadataColumns, null);
+        selectLatestPagesSince = latestPages(sqlType, tableName, metadataColumns, "t." + COLUMN_LASTMODIFIED + " >= ?");
+        selectLatestPagesAfter = latestPages(sqlType, tableName, metadataColumns, "t." + COLUMN_PAGENAME + " > ?");
+        selectLatestInfo = "select " + infoColumns + versionFilter + " order by " + COLUMN_VERSION + " desc";
+        selectVersionInfo = "select " + infoColumns + versionFilter + " and " + COLUMN_VERSION + " = ?";
+        selectVersionHistory = "select " + infoColumns + versionFilter + " and " + COLUMN_VERSION + " < ? order by " + COLUMN_VERSION + " desc";
+        selectLatestText = "select " + textColumns + versionFilter + " order by " + COLUMN_VERSION + " desc";
+        selectVersionText = "select " + textColumns + versionFilter + " and " + COLUMN_VERSION + " = ?";
+        selectLatestStoredText = "select " + textColumns + ", " + COLUMN_TEXTHASH + versionFilter + " order by " + COLUMN_VERSION + " desc";
+        selectVersionStoredText = "select " + textColumns + ", " + COLUMN_TEXTHASH + versionFilter + " and " + COLUMN_VERSION + " = ?";
+        selectLatestStoredVersion = "select " + COLUMN_VERSION + ", " + textColumns + ", " + COLUMN_TEXTHASH + versionFilter + " order by " + COLUMN_VERSION + " desc";
+        selectPageCount = "select count(distinct " + COLUMN_PAGENAME + ") from " + tableName + " where " + COLUMN_STATUS + " != ?";
+        insertPage = "insert into " + tableName + " (" + metadataInsert + COLUMN_PAGENAME + "," + COLUMN_VERSION + "," + COLUMN_TEXT + "," + COLUMN_AUTHOR + ","
+                + COLUMN_CHANGENOTE + "," + COLUMN_STATUS + ") values (" + metadataValues + "?,?,?,?,?,?)";
+        insertVersion = "insert into " + tableName + " (" + metadataInsert + COLUMN_PAGENAME + "," + COLUMN_VERSION + "," + COLUMN_TEXT + "," + COLUMN_AUTHOR + ","
+                + COLUMN_CHANGENOTE + "," + COLUMN_STATUS + ") select " + metadataValues + "?, case when max(" + COLUMN_VERSION + ") > 0 then max(" + COLUMN_VERSION + ") else 0 end + 1, ?,?,?,?"
+                + " from " + tableName + " where " + COLUMN_PAGENAME + " = ?";
+        // only insert or update a page that has a version not deleted, the update count tells whether a save creates the page
+        insertActiveVersion = insertVersion + " having max(case when " + COLUMN_STATUS + " != ? then 1 else 0 end) = 1";
+        upsertPage = upsertPage(sqlType, tableName, metadataColumns, textData);
+        updatePage = "update " + tableName + " set " + metadataUpdate + COLUMN_TEXT + " = ?, " + COLUMN_AUTHOR + " = ?, " + COLUMN_CHANGENOTE + " = ?, "
+                + COLUMN_STATUS + " = ?, " + COLUMN_LASTMODIFIED + " = ? where " + COLUMN_PAGENAME + " = ? and " + COLUMN_VERSION + " = ?";
+        updateActivePage = updatePage + " and " + COLUMN_STATUS + " != ?";
+        deleteVersion = "update " + tableName + " set " + COLUMN_STATUS + " = ? where " + COLUMN_PAGENAME + " = ? and " + COLUMN_VERSION + " = ?";
+        deletePage = "update " + tableName + " set " + COLUMN_STATUS + " = ? where " + COLUMN_PAGENAME + " = ? and " + COLUMN_STATUS + " != ?";
+        movePage = "update " + tableName + " set " + COLUMN_PAGENAME + " = ? where " + COLUMN_PAGENAME + " = ?";
+        purgeDeletedPage = "delete from " + tableName + " where " + COLUMN_PAGENAME + " = ? and " + COLUMN_STATUS + " = ?";
+        importPage = "insert into " + tableName + " (" + metadataInsert + COLUMN_PAGENAME + "," + COLUMN_VERSION + "," + COLUMN_TEXT + "," + COLUMN_AUTHOR + ","
+                + COLUMN_CHANGENOTE + "," + COLUMN_LASTMODIFIED + "," + COLUMN_STATUS + ") values (" + metadataValues + "?,?,?,?,?,?,?)";
+        exportPages = "select " + COLUMN_PAGENAME + ", " + COLUMN_VERSION + ", " + textColumns + ", " + (metadataColumns ? COLUMN_TEXTHASH + ", " : "") + COLUMN_AUTHOR + ", " + COLUMN_CHANGENOTE + ", "
+                + COLUMN_LASTMODIFIED + " from " + tableName + " where " + COLUMN_STATUS + " != ? and " + COLUMN_PAGENAME + " > ?"
+                + " order by " + COLUMN_PAGENAME + ", " + COLUMN_VERSION;
+        selectMissingMetadata = "select " + COLUMN_ID + ", " + COLUMN_TEXT + " from " + tableName + " where " + COLUMN_TEXTHASH + " is null"
+                + " and " + COLUMN_ID + " > ? order by " + COLUMN_ID;
+        updateMetadata = "update " + tableName + " set " + COLUMN_TEXTSIZE + " = ?, " + COLUMN_TEXTHASH + " = ? where " + COLUMN_ID + " = ?";
+        selectUncompressed = "select " + COLUMN_ID + ", " + COLUMN_TEXT + ", " + COLUMN_TEXTHASH + " from " + tableName + " where " + COLUMN_ID + " > ? and "
+                + COLUMN_TEXT + " is not null and " + COLUMN_TEXTSIZE + " >= ? order by " + COLUMN_ID;
+        updateCompressed = "update " + tableName + " set " + COLUMN_TEXT + " = null, " + COLUMN_TEXTDATA + " = ? where " + COLUMN_ID + " = ? and "
+                + COLUMN_TEXTHASH + " = ?";
+        restoreText = "update " + tableName + " set " + (textData ? COLUMN_TEXTDATA + " = ?, " : "") + COLUMN_TEXT + " = ? where " + COLUMN_PAGENAME + " = ? and "
+                + COLUMN_VERSION + " = ?";
+        selectJournalSeq = "select " + COLUMN_SEQ + " from " + journalSeqTable(tableName);
+        updateJournalSeq = "update " + journalSeqTable(tableName) + " set " + COLUMN_SEQ + " = ?";
+    }
+
+    /**
+     * The single row table holding the seq of the last write-behind journal entry written to the table.
+     */
+    static String journalSeqTable(String tableName) {
+        return tableName + "_journalseq";
+    }
+
+    /**
+     * The statements creating the journal seq table, see etc/createJournalSeq.sql.
+     */
+    static List<String> createJournalSeq(String tableName) {
+        List<String> ddl = new ArrayList<String>();
+        ddl.add("create table " + journalSeqTable(tableName) + " (" + COLUMN_SEQ + " bigint not null)");
+        ddl.add("insert into " + journalSeqTable(tableName) + " (" + COLUMN_SEQ + ") values (0)");
+        return ddl;
+    }
+
+    /**
+     * Insert or update the single row of a page in one atomic statement, relying on the unique
+     * (name, version) index. The parameters are the compressed text and the metadata columns, then name,
+     * version, text, author, changenote, status and lastmodified.
+     *
+     * @return the statement, or null for the dialects without one, which update and then insert instead
+     */
+    static String upsertPage(SQLType sqlType, String tableName, boolean metadataColumns, boolean textData) {
+        List<String> updated = new ArrayList<String>();
+        if (textData) {
+            updated.add(COLUMN_TEXTDATA);
+        }
+        if (metadataColumns) {
+            updated.addAll(Arrays.asList(COLUMN_TEXTSIZE, COLUMN_TEXTHASH));
+        }
+        updated.addAll(Arrays.asList(COLUMN_TEXT, COLUMN_AUTHOR, COLUMN_CHANGENOTE, COLUMN_STATUS, COLUMN_LASTMODIFIED));
+        List<String> columns = new ArrayList<String>(updated);
+        columns.addAll(updated.indexOf(COLUMN_TEXT), Arrays.asList(COLUMN_PAGENAME, COLUMN_VERSION));
+        String columnList = StringUtils.join(columns, ",");
+        String values = StringUtils.repeat("?", ",", columns.size());
+
+        List<String> assignments = new ArrayList<String>();
+        List<String> selected = new ArrayList<String>();
+        List<String> sourceColumns = new ArrayList<String>();
+        for (String column : updated) {
+            if (sqlType == SQLType.MYSQL) {
+                assignments.add(column + " = values(" + column + ")");
+            } else if (sqlType == SQLType.POSTGRESQL) {
+                assignments.add(column + " = excluded." + column);
+            } else {
+                assignments.add(column + " = s." + column);
+            }
+        }
+        for (String column : columns) {
+            selected.add("? as " + column);
+            sourceColumns.add("s." + column);
+        }
+        String merge = "merge into " + tableName + " t using (select " + StringUtils.join(selected, ", ") + "%s) s"
+                + " on (t." + COLUMN_PAGENAME + " = s." + COLUMN_PAGENAME + " and t." + COLUMN_VERSION + " = s." + COLUMN_VERSION + ")"
+                + " when matched then update set " + StringUtils.join(assignments, ", ")
+                + " when not matched then insert (" + columnList + ") values (" + StringUtils.join(sourceColumns, ", ") + ")";
+        switch (sqlType) {
+            case MYSQL:
+                return "insert into " + tableName + " (" + columnList + ") values (" + values + ") on duplicate key update " + StringUtils.join(assignments, ", ");
+            case POSTGRESQL:
+                return "insert into " + tableName + " (" + columnList + ") values (" + values + ") on conflict (" + COLUMN_PAGENAME + "," + COLUMN_VERSION + ") do update set "
+                        + StringUtils.join(assignments, ", ");
+            case H2:
+                return "merge into " + tableName + " (" + columnList + ") key (" + COLUMN_PAGENAME + "," + COLUMN_VERSION + ") values (" + values + ")";
+            case MSSQL:
+                return String.format(merge, "") + ";";
+            case ORACLE:
+                return String.format(merge, " from dual");
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The size of the text, with its hash, from the stored columns, or else computed by the database
+     * without sending the text.
+     *
+     * @param alias table alias prefix, such as "t." or ""
+     */
+    static String sizeColumns(SQLType sqlType, String alias, boolean metadataColumns) {
+        if (metadataColumns) {
+            return alias + COLUMN_TEXTSIZE + ", " + alias + COLUMN_TEXTHASH;
+        }
+        return sqlType.getLengthFunction() + "(" + alias + COLUMN_TEXT + ") as " + COLUMN_TEXTSIZE;
+    }
+
+    static String latestPages(SQLType sqlType, String tableName, boolean metadataColumns, String filter) {
+        return latestPages(sqlType, tableName, metadataColumns, null, null, filter, "t." + COLUMN_PAGENAME);
+    }
+
+    /**
+     * The metadata of the latest, non deleted, version of every page. Dialects with window functions
+     * rank the versions of each page, the others join against the grouped max(version). Either way
+     * the page text itself is never selected, only its length.
+     *
+     * @param metadataColumns read the stored size and hash rather than the length of the text
+     * @param extraColumn optional column added to the metadata columns
+     * @param join optional join clause against the latest version row, aliased as "t"
+     * @param filter optional predicate on the latest version row, aliased as "t"
+     * @param orderBy the order by clause
+     */
+    static String latestPages(SQLType sqlType, String tableName, boolean metadataColumns, String extraColumn, String join, String filter, String orderBy) {
+        String columns = "t." + COLUMN_PAGENAME + ", t." + COLUMN_VERSION + ", t." + COLUMN_AUTHOR + ", t." + COLUMN_CHANGENOTE + ", t." + COLUMN_LASTMODIFIED + ", "
+                + sizeColumns(sqlType, "t.", metadataColumns);
+        if (extraColumn != null) {
+            columns += ", " + extraColumn;
+        }
+        String sql;
+        if (sqlType.hasWindowFunctions()) {
+            sql = "select " + columns + " from " + tableName + " t join ("
+                    + "select " + COLUMN_PAGENAME + ", " + COLUMN_VERSION + ", row_number() over (partition by " + COLUMN_PAGENAME + " order by " + COLUMN_VERSION + " desc) as rn"
+                    + " from " + tableName + " where " + COLUMN_STATUS + " != ?"
+                    + ") latest on t." + COLUMN_PAGENAME + " = latest." + COLUMN_PAGENAME + " and t." + COLUMN_VERSION + " = latest." + COLUMN_VERSION
+                    + (join != null ? join : "")
+                    + " where latest.rn = 1";
+        } else {
+            sql = "select " + columns + " from " + tableName + " t join ("
+                    + "select " + COLUMN_PAGENAME + ", max(" + COLUMN_VERSION + ") as " + COLUMN_VERSION
+                    + " from " + tableName + " where " + COLUMN_STATUS + " != ? group by " + COLUMN_PAGENAME
+                    + ") latest on t." + COLUMN_PAGENAME + " = latest." + COLUMN_PAGENAME + " and t." + COLUMN_VERSION + " = latest." + COLUMN_VERSION
+                    + (join != null ? join : "")
+                    + " where 1 = 1";
+        }
+        if (filter != null) {
+            sql += " and " + filter;
+        }
+        return sql + " order by " + orderBy;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class JDBCPageBlobsTest extends TestCase {
+
+    private String url;
+
+    @Override
+    protected void setUp() throws Exception {
+        url = JDBCPageProviderTest.createDatabase();
+    }
+
+    private JDBCPageProvider createProvider(int deltaMinSize, int maxDeltas) throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.dedup", "true");
+        properties.setProperty("jdbc.dedup.deltaminsize", String.valueOf(deltaMinSize));
+        properties.setProperty("jdbc.dedup.maxdeltas", String.valueOf(maxDeltas));
+        properties.setProperty("jdbc.cache", "false");
+        return JDBCPageProviderTest.createProvider(properties);
+    }
+
+    public void testDeltaRoundTrips() {
+        String[][] cases = {
+                { "hello world", "hello brave world" },
+                { "abc", "abc" },
+                { "", "new" },
+                { "old", "" },
+                { "aaaa", "aa" },
+                { "line1\nline2\nline3", "line0\nline1\nline2\nline3\nline4" },
+        };
+        for (String[] texts : cases) {
+            assertEquals(texts[1], JDBCPageBlobs.apply(texts[0], JDBCPageBlobs.delta(texts[0], texts[1])));
+        }
+        assertEquals("6:5:brave ", JDBCPageBlobs.delta("hello world", "hello brave world"));
+    }
+
+    public void testIdenticalTextsAreStoredOnce() throws Exception {
+        JDBCPageProvider provider = createProvider(0, 0);
+        JDBCPageProviderTest.save(provider, "Main", "one");
+        JDBCPageProviderTest.save(provider, "Main", "two");
+        JDBCPageProviderTest.save(provider, "Main", "one");
+        JDBCPageProviderTest.save(provider, "Other", "two");
+        assertEquals(2, JDBCPageProviderTest.count(url, "select count(*) from jspwiki_blobs"));
+        // only the latest version of each page keeps its text inline
+        assertEquals(2, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where text is not null"));
+
+        assertEquals("one", provider.getPageText("Main", 1));
+        assertEquals("two", provider.getPageText("Main", 2));
+        assertEquals("one", provider.getPageText("Main", 3));
+        assertEquals("one", provider.getPageText("Main", -1));
+        assertEquals(3, provider.getPageInfo("Main", 2).getSize());
+        assertEquals(3, provider.getVersionHistory("Main").size());
+    }
+
+    public void testDeletingTheLatestVersionRestoresTheInlineText() throws Exception {
+        JDBCPageProvider provider = createProvider(0, 0);
+        JDBCPageProviderTest.save(provider, "Main", "one");
+        JDBCPageProviderTest.save(provider, "Main", "two");
+        JDBCPageProviderTest.save(provider, "Main", "three");
+        provider.deleteVersion("Main", 3);
+        // the searches read the inline text of the latest version
+        assertEquals(1, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where name = 'Main' and version = 2 and text = 'two'"));
+        assertEquals("two", provider.getPageText("Main", -1));
+
+        // deleting an older version leaves the latest alone
+        provider.deleteVersion("Main", 1);
+        assertEquals(1, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where text is not null and status = 'AC'"));
+        assertEquals("two", provider.getPageText("Main", -1));
+    }
+
+    public void testLargeTextsAreStoredAsBoundedDeltas() throws Exception {
+        JDBCPageProvider provider = createProvider(100, 3);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        String[] versions = new String[10];
+        for (int v = 0; v < versions.length; v++) {
+            text.append("edit ").append(v).append('\n');
+            versions[v] = text.toString();
+            JDBCPageProviderTest.save(provider, "Main", versions[v]);
+        }
+        assertEquals(10, JDBCPageProviderTest.count(url, "select count(*) from jspwiki_blobs"));
+        assertEquals(3, JDBCPageProviderTest.count(url, "select max(depth) from jspwiki_blobs"));
+        // a full snapshot every maxDeltas + 1 versions
+        assertEquals(3, JDBCPageProviderTest.count(url, "select count(*) from jspwiki_blobs where basehash is null"));
+        for (int v = 0; v < versions.length; v++) {
+            assertEquals(versions[v], provider.getPageText("Main", v + 1));
+        }
+    }
+
+    public void testMigrateBlobs() throws Exception {
+        JDBCPageProvider legacy = JDBCPageProviderTest.createProvider(url, true);
+        JDBCPageProviderTest.save(legacy, "Main", "one");
+        JDBCPageProviderTest.save(legacy, "Main", "two");
+        JDBCPageProviderTest.save(legacy, "Main", "one");
+        JDBCPageProviderTest.save(legacy, "Other", "two");
+        new JDBCPageMigrator(legacy).migrateMetadataColumns();
+
+        JDBCPageProvider provider = createProvider(0, 0);
+        JDBCPageMigrator.Result result = new JDBCPageMigrator(provider).migrateBlobs();
+        assertEquals(2, result.getVersions());
+        assertEquals(2, JDBCPageProviderTest.count(url, "select count(*) from jspwiki_blobs"));
+        assertEquals(2, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where text is not null"));
+        assertEquals("one", provider.getPageText("Main", 1));
+        assertEquals("two", provider.getPageText("Main", 2));
+
+        JDBCPageProviderTest.save(provider, "Main", "three");
+        assertEquals(1, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where name = 'Main' and text is not null"));
+        assertEquals("one", provider.getPageText("Main", 3));
+        assertEquals("three", provider.getPageText("Main", -1));
+    }
+}
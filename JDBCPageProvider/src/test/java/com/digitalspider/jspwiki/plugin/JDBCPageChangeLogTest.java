@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageChangeLog.Change;
+import com.digitalspider.jspwiki.plugin.JDBCPageChangeLog.ChangeType;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class JDBCPageChangeLogTest extends TestCase {
+
+    private JDBCPageProvider provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(JDBCPageProviderTest.createDatabase(), true);
+        properties.setProperty("jdbc.changelog", "true");
+        provider = JDBCPageProviderTest.createProvider(properties);
+    }
+
+    private void save(String name, String text) throws ProviderException {
+        WikiPage page = new WikiPage(provider.getWikiEngine(), name);
+        page.setAuthor("david");
+        provider.putPageText(page, text);
+    }
+
+    public void testEveryWriteIsRecorded() throws Exception {
+        save("Main", "one");
+        save("Main", "two");
+        provider.deleteVersion("Main", 1);
+        provider.movePage("Main", "Home");
+        provider.deletePage("Home");
+
+        List<Change> changes = provider.getChangesSince(0, 0);
+        assertEquals(5, changes.size());
+        assertEquals(ChangeType.SAVE, changes.get(0).getType());
+        assertEquals(Integer.valueOf(1), changes.get(0).getVersion());
+        assertEquals("david", changes.get(0).getAuthor());
+        assertEquals(Integer.valueOf(2), changes.get(1).getVersion());
+        assertEquals(ChangeType.DELETE_VERSION, changes.get(2).getType());
+        assertEquals(Integer.valueOf(1), changes.get(2).getVersion());
+        assertEquals(ChangeType.MOVE, changes.get(3).getType());
+        assertEquals("Home", changes.get(3).getName());
+        assertEquals("Main", changes.get(3).getOldName());
+        assertEquals(ChangeType.DELETE_PAGE, changes.get(4).getType());
+        assertNotNull(changes.get(4).getTime());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(i + 1, changes.get(i).getSeq());
+        }
+    }
+
+    public void testPollingResumesAfterTheLastChangeRead() throws Exception {
+        for (int i = 0; i < 7; i++) {
+            save("Page" + i, "text " + i);
+        }
+        List<String> names = new ArrayList<String>();
+        long seq = 0;
+        List<Change> changes;
+        while (!(changes = provider.getChangesSince(seq, 3)).isEmpty()) {
+            assertTrue(changes.size() <= 3);
+            for (Change change : changes) {
+                names.add(change.getName());
+                seq = change.getSeq();
+            }
+        }
+        assertEquals(7, names.size());
+        assertEquals("Page0", names.get(0));
+        assertEquals("Page6", names.get(6));
+
+        save("Page7", "text 7");
+        changes = provider.getChangesSince(seq, 3);
+        assertEquals(1, changes.size());
+        assertEquals("Page7", changes.get(0).getName());
+    }
+
+    public void testConcurrentWritesGetContiguousSequenceNumbers() throws Exception {
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            final int editor = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int s = 0; s < 5; s++) {
+                            save("Busy" + (editor % 3), "save " + s + " by " + editor);
+                        }
+                    } catch (ProviderException e) {
+                        fail(e.getMessage());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<Change> changes = provider.getChangesSince(0, 0);
+        assertEquals(50, changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(i + 1, changes.get(i).getSeq());
+        }
+    }
+
+    public void testDisabledChangeLog() throws Exception {
+        JDBCPageProvider plain = JDBCPageProviderTest.createProvider(JDBCPageProviderTest.createDatabase(), true);
+        try {
+            plain.getChangesSince(0, 10);
+            fail("the change log is not enabled");
+        } catch (ProviderException e) {
+            assertTrue(e.getMessage().contains("jdbc.changelog"));
+        }
+    }
+}
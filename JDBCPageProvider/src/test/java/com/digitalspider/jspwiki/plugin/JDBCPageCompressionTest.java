@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+public class JDBCPageCompressionTest extends TestCase {
+
+    private String url;
+
+    @Override
+    protected void setUp() throws Exception {
+        url = JDBCPageProviderTest.createDatabase();
+    }
+
+    private JDBCPageProvider createProvider(boolean versioned, boolean compressed) throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, versioned);
+        properties.setProperty("jdbc.compression", String.valueOf(compressed));
+        properties.setProperty("jdbc.compression.minsize", "100");
+        properties.setProperty("jdbc.metadatacolumns", "true");
+        properties.setProperty("jdbc.cache", "false");
+        return JDBCPageProviderTest.createProvider(properties);
+    }
+
+    private static String largeText(String word) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append(word).append(' ').append(i % 10).append('\n');
+        }
+        return text.toString();
+    }
+
+    public void testRoundTrips() throws Exception {
+        JDBCPageCompression compression = new JDBCPageCompression(10);
+        String text = largeText("gr\u00fc\u00dfe \u4e16\u754c");
+        byte[] data = compression.compress(text);
+        assertEquals(JDBCPageCompression.FORMAT_DEFLATE, data[0]);
+        assertTrue(data.length < text.length());
+        assertEquals(text, compression.decompress(data));
+        // the buffers of the thread are reused for a shorter text
+        assertEquals("short text, twice, short text, twice", compression.decompress(compression.compress("short text, twice, short text, twice")));
+
+        assertNull(compression.compress("too short"));
+        assertNull(compression.compress(null));
+        assertNull(compression.decompress((byte[]) null));
+
+        byte[] plain = "\u0000plain".getBytes(StandardCharsets.UTF_8);
+        assertEquals("plain", compression.decompress(plain));
+    }
+
+    public void testIncompressibleAndCorruptTexts() throws Exception {
+        JDBCPageCompression compression = new JDBCPageCompression(10);
+        StringBuilder random = new StringBuilder();
+        Random generator = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            random.append((char) ('!' + generator.nextInt(90)));
+        }
+        assertNull(compression.compress(random.toString()));
+
+        byte[] data = compression.compress(largeText("hello"));
+        try {
+            compression.decompress(Arrays.copyOf(data, data.length / 2));
+            fail("The text is truncated");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            compression.decompress(new byte[] { 9, 1, 2 });
+            fail("Unknown format");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testProviderStoresLargeTextsCompressed() throws Exception {
+        JDBCPageProvider provider = createProvider(true, true);
+        String large = largeText("hello");
+        JDBCPageProviderTest.save(provider, "Large", large);
+        JDBCPageProviderTest.save(provider, "Large", large + "more");
+        JDBCPageProviderTest.save(provider, "Small", "small");
+        assertEquals(2, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where textdata is not null and text is null"));
+        assertEquals(1, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where textdata is null and text = 'small'"));
+
+        assertEquals(large, provider.getPageText("Large", 1));
+        assertEquals(large + "more", provider.getPageText("Large", -1));
+        assertEquals("small", provider.getPageText("Small", -1));
+        assertEquals(large.length(), provider.getPageInfo("Large", 1).getSize());
+    }
+
+    public void testUnversionedSavesReplaceTheCompressedText() throws Exception {
+        JDBCPageProvider provider = createProvider(false, true);
+        JDBCPageProviderTest.save(provider, "Main", largeText("hello"));
+        JDBCPageProviderTest.save(provider, "Main", "now short");
+        assertEquals("now short", provider.getPageText("Main", -1));
+        assertEquals(0, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where textdata is not null"));
+    }
+
+    public void testLegacyRowsAreReadAndRecompressed() throws Exception {
+        JDBCPageProvider legacy = createProvider(true, false);
+        String large = largeText("legacy");
+        JDBCPageProviderTest.save(legacy, "Main", large);
+        JDBCPageProviderTest.save(legacy, "Main", "short");
+        JDBCPageProviderTest.save(legacy, "Other", largeText("other"));
+
+        JDBCPageProvider provider = createProvider(true, true);
+        assertEquals(large, provider.getPageText("Main", 1));
+        JDBCPageMigrator migrator = new JDBCPageMigrator(provider);
+        migrator.setBatchSize(1);
+        assertEquals(2, migrator.compressTexts().getVersions());
+        assertEquals(2, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where textdata is not null and text is null"));
+        assertEquals(0, migrator.compressTexts().getVersions());
+
+        assertEquals(large, provider.getPageText("Main", 1));
+        assertEquals("short", provider.getPageText("Main", 2));
+        assertEquals(largeText("other"), provider.getPageText("Other", -1));
+    }
+
+    public void testCompressionWithDeduplication() throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.compression", "true");
+        properties.setProperty("jdbc.compression.minsize", "100");
+        properties.setProperty("jdbc.dedup", "true");
+        properties.setProperty("jdbc.cache", "false");
+        JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        JDBCPageProviderTest.save(provider, "Main", largeText("one"));
+        JDBCPageProviderTest.save(provider, "Main", largeText("two"));
+        // only the latest version keeps its compressed text inline
+        assertEquals(1, JDBCPageProviderTest.count(url, "select count(*) from jspwiki where textdata is not null"));
+        assertEquals(largeText("one"), provider.getPageText("Main", 1));
+        assertEquals(largeText("two"), provider.getPageText("Main", 2));
+    }
+}
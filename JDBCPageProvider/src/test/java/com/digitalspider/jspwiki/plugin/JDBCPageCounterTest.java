@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JDBCPageCounterTest extends TestCase {
+
+    private String url;
+    private JDBCPageProviderTest.CountingDataSource dataSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        url = JDBCPageProviderTest.createDatabase();
+        dataSource = new JDBCPageProviderTest.CountingDataSource(url);
+    }
+
+    private JDBCPageProvider createProvider(String reconcile) throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.pagecount.reconcile", reconcile);
+        JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        provider.setDataSource(dataSource);
+        return provider;
+    }
+
+    private void insertBehindTheProvider(String name) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            conn.createStatement().execute("insert into jspwiki (name, version, text, author, status) values ('" + name + "', 1, 'text', 'david', 'AC')");
+        }
+    }
+
+    public void testCountIsMaintained() throws Exception {
+        JDBCPageProvider provider = createProvider("0");
+        assertEquals(0, provider.getPageCount());
+        JDBCPageProviderTest.save(provider, "One", "text of One");
+        JDBCPageProviderTest.save(provider, "Two", "text of Two");
+        JDBCPageProviderTest.save(provider, "Two", "text of Two");
+        JDBCPageProviderTest.save(provider, "Three", "text of Three");
+
+        dataSource.statements.set(0);
+        assertEquals(3, provider.getPageCount());
+        assertEquals(0, dataSource.statements.get());
+
+        provider.deletePage("One");
+        provider.deletePage("One");
+        provider.movePage("Two", "Four");
+        dataSource.statements.set(0);
+        assertEquals(2, provider.getPageCount());
+        assertEquals(0, dataSource.statements.get());
+
+        // deleting the last version of a page counts the pages again
+        provider.deleteVersion("Three", 1);
+        assertEquals(1, provider.getPageCount());
+        assertEquals(2, provider.getPageCounter().getReconciliations());
+    }
+
+    public void testSaveTellsWhetherItCreatesThePage() throws Exception {
+        for (boolean versioned : new boolean[] { true, false }) {
+            String url = JDBCPageProviderTest.createDatabase();
+            JDBCPageProviderTest.CountingDataSource dataSource = new JDBCPageProviderTest.CountingDataSource(url);
+            Properties properties = JDBCPageProviderTest.createProperties(url, versioned);
+            properties.setProperty("jdbc.pagecount.reconcile", "0");
+            properties.setProperty("jdbc.cache", "false");
+            JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+            provider.setDataSource(dataSource);
+            assertEquals(0, provider.getPageCount());
+
+            // nothing is read before a save, an edit is a single statement
+            dataSource.statements.set(0);
+            JDBCPageProviderTest.save(provider, "Main", "one");
+            assertEquals(2, dataSource.statements.get());
+            dataSource.statements.set(0);
+            JDBCPageProviderTest.save(provider, "Main", "two");
+            assertEquals(1, dataSource.statements.get());
+            assertEquals(1, provider.getPageCount());
+
+            provider.deletePage("Main");
+            assertEquals(0, provider.getPageCount());
+            JDBCPageProviderTest.save(provider, "Main", "three");
+            assertEquals(1, provider.getPageCount());
+            assertEquals(1, provider.getPageCounter().getReconciliations());
+            assertEquals("three", provider.getPageText("Main", -1));
+        }
+    }
+
+    public void testJournalledSavesAreCounted() throws Exception {
+        File file = File.createTempFile("jspwiki-journal", ".log");
+        try {
+            Properties properties = JDBCPageProviderTest.createProperties(url, true);
+            properties.setProperty("jdbc.pagecount.reconcile", "0");
+            properties.setProperty("jdbc.writebehind.journal", file.getAbsolutePath());
+            JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+            assertEquals(0, provider.getPageCount());
+            JDBCPageProviderTest.save(provider, "Main", "one");
+            JDBCPageProviderTest.save(provider, "Main", "two");
+            JDBCPageProviderTest.save(provider, "Other", "one");
+            provider.getJournal().flush();
+            assertEquals(2, provider.getPageCount());
+            assertEquals(1, provider.getPageCounter().getReconciliations());
+            provider.getJournal().close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testReconciliationCorrectsDrift() throws Exception {
+        JDBCPageProvider provider = createProvider("50");
+        JDBCPageProviderTest.save(provider, "Main", "text of Main");
+        assertEquals(1, provider.getPageCount());
+        insertBehindTheProvider("Imported");
+        long reconciliations = provider.getPageCounter().getReconciliations();
+        for (int i = 0; i < 100 && provider.getPageCounter().getReconciliations() < reconciliations + 1; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, provider.getPageCount());
+        provider.getPageCounter().stop();
+    }
+
+    public void testAdjustmentsWhileCountingAreKept() throws Exception {
+        final AtomicInteger rows = new AtomicInteger(10);
+        final JDBCPageCounter[] counter = new JDBCPageCounter[1];
+        counter[0] = new JDBCPageCounter(new JDBCPageCounter.Loader() {
+            public int count() {
+                // a page created after the count query has read the table
+                counter[0].adjust(1);
+                return rows.get();
+            }
+        }, 0);
+        assertEquals(11, counter[0].get());
+        counter[0].adjust(-1);
+        assertEquals(10, counter[0].get());
+        rows.set(10);
+        assertEquals(10, counter[0].reconcile());
+        assertEquals(11, counter[0].get());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageJournal.Entry;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiPage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+
+public class JDBCPageJournalTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("jspwiki-journal", ".log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    /**
+     * Collects the saves written, or fails while failing is set.
+     */
+    private static class RecordingWriter implements JDBCPageJournal.Writer {
+        final List<Entry> written = new ArrayList<Entry>();
+        volatile boolean failing;
+        long writtenSeq;
+
+        @Override
+        public synchronized void write(List<Entry> entries) throws SQLException {
+            if (failing) {
+                throw new SQLException("database down");
+            }
+            written.addAll(entries);
+            writtenSeq = entries.get(entries.size() - 1).getSeq();
+        }
+
+        @Override
+        public synchronized long getWrittenSeq() {
+            return writtenSeq;
+        }
+    }
+
+    public void testUnflushedSavesAreReplayedOnStartup() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        writer.failing = true;
+        JDBCPageJournal journal = new JDBCPageJournal(file, 100, 10, writer);
+        journal.open();
+        journal.append("Main", "david", "first", "one");
+        journal.append("Main", "david", "second", "two");
+        journal.append("Other", null, null, "three");
+        assertEquals(3, journal.getPendingCount());
+        assertEquals(2, journal.getPending("Main").size());
+        journal.close();
+
+        // a record torn by a crash is dropped
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        out.close();
+
+        writer = new RecordingWriter();
+        journal = new JDBCPageJournal(file, 100, 10, writer);
+        journal.open();
+        journal.flush();
+        journal.close();
+        assertEquals(3, writer.written.size());
+        assertEquals("two", writer.written.get(1).getText());
+        assertEquals("second", writer.written.get(1).getChangenote());
+        assertNull(writer.written.get(2).getAuthor());
+        assertTrue(writer.written.get(0).isReplayed());
+        assertEquals(0, file.length());
+    }
+
+    public void testFlushedBatchesAreNotReplayed() throws Exception {
+        RecordingWriter writer = new RecordingWriter() {
+            @Override
+            public synchronized void write(List<Entry> entries) throws SQLException {
+                super.write(entries);
+                failing = true;
+            }
+        };
+        JDBCPageJournal journal = new JDBCPageJournal(file, 100, 2, writer);
+        journal.open();
+        Lock lock = journal.getReadLock();
+        lock.lock();
+        for (int i = 0; i < 5; i++) {
+            journal.append("Page" + i, "david", null, "text" + i);
+        }
+        lock.unlock();
+        // the first batch is written, then the database goes down
+        for (int i = 0; i < 100 && journal.getPendingCount() > 3; i++) {
+            Thread.sleep(50);
+        }
+        journal.close();
+        assertEquals(2, writer.written.size());
+
+        writer = new RecordingWriter();
+        journal = new JDBCPageJournal(file, 100, 2, writer);
+        journal.open();
+        journal.flush();
+        journal.close();
+        assertEquals(3, writer.written.size());
+        assertEquals("Page2", writer.written.get(0).getName());
+        assertEquals("Page4", writer.written.get(2).getName());
+    }
+
+    public void testSavesWaitWhileTheJournalIsFull() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        writer.failing = true;
+        final JDBCPageJournal journal = new JDBCPageJournal(file, 2, 10, writer);
+        journal.open();
+        journal.append("Page1", "david", null, "one");
+        journal.append("Page2", "david", null, "two");
+        Thread saver = new Thread() {
+            public void run() {
+                try {
+                    journal.append("Page3", "david", null, "three");
+                } catch (Exception e) {
+                    // the test fails on the pending count
+                }
+            }
+        };
+        saver.start();
+        saver.join(300);
+        assertTrue(saver.isAlive());
+        assertEquals(2, journal.getPendingCount());
+
+        writer.failing = false;
+        journal.flush();
+        saver.join(5000);
+        assertFalse(saver.isAlive());
+        journal.flush();
+        journal.close();
+        assertEquals(3, writer.written.size());
+    }
+
+    public void testReadsSeeSavesNotYetWritten() throws Exception {
+        String url = JDBCPageProviderTest.createDatabase();
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.writebehind.journal", file.getAbsolutePath());
+        JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        WikiPage page = new WikiPage(provider.getWikiEngine(), "Main");
+        page.setAuthor("david");
+        provider.putPageText(page, "saved");
+        provider.getJournal().flush();
+        assertEquals(1, provider.getPageInfo("Main", -1).getVersion());
+
+        // hold back the writer
+        Lock lock = provider.getJournal().getReadLock();
+        lock.lock();
+        try {
+            provider.putPageText(page, "pending one");
+            provider.putPageText(page, "pending two");
+            WikiPage other = new WikiPage(provider.getWikiEngine(), "Other");
+            other.setAuthor("david");
+            provider.putPageText(other, "pending other");
+            assertEquals(3, provider.getJournal().getPendingCount());
+
+            assertEquals("pending two", provider.getPageText("Main", -1));
+            assertEquals("pending one", provider.getPageText("Main", 2));
+            assertEquals("saved", provider.getPageText("Main", 1));
+            assertEquals(3, provider.getPageInfo("Main", -1).getVersion());
+            assertEquals(1, provider.getPageInfo("Other", -1).getVersion());
+            assertTrue(provider.pageExists("Other"));
+
+            List history = provider.getVersionHistory("Main");
+            assertEquals(3, history.size());
+            assertEquals(3, ((WikiPage) history.get(0)).getVersion());
+            assertEquals(1, ((WikiPage) history.get(2)).getVersion());
+            assertEquals(1, provider.getVersionHistory("Main", 3, 1).size());
+            assertEquals(2, provider.getVersionHistory("Main", 3, 1).get(0).getVersion());
+
+            Collection pages = provider.getAllPages();
+            assertEquals(2, pages.size());
+            assertEquals(2, provider.getAllChangedSince(new Date(System.currentTimeMillis() - 60000)).size());
+        } finally {
+            lock.unlock();
+        }
+
+        provider.getJournal().flush();
+        assertEquals(0, provider.getJournal().getPendingCount());
+        assertEquals("pending two", provider.getPageText("Main", -1));
+        assertEquals(3, provider.getPageInfo("Main", -1).getVersion());
+        assertEquals(3, provider.getVersionHistory("Main").size());
+        assertEquals("pending other", provider.getPageText("Other", -1));
+        provider.getJournal().close();
+    }
+
+    public void testSavesWrittenBeforeACrashAreNotReplayed() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        writer.failing = true;
+        JDBCPageJournal journal = new JDBCPageJournal(file, 100, 10, writer);
+        journal.open();
+        journal.append("Main", "david", null, "one");
+        journal.append("Main", "david", null, "two");
+        journal.append("Main", "david", null, "three");
+        journal.close();
+
+        // the first two were committed, but the crash came before they were marked flushed
+        writer = new RecordingWriter();
+        writer.writtenSeq = 2;
+        journal = new JDBCPageJournal(file, 100, 10, writer);
+        journal.open();
+        assertEquals(1, journal.getPendingCount());
+        journal.flush();
+        assertEquals(1, writer.written.size());
+        assertEquals("three", writer.written.get(0).getText());
+        assertEquals(3, writer.written.get(0).getSeq());
+
+        // the emptied journal numbers on from the database
+        assertEquals(4, journal.append("Main", "david", null, "four").getSeq());
+        journal.close();
+    }
+
+    public void testReplayedSavesAreNotWrittenTwice() throws Exception {
+        String url = JDBCPageProviderTest.createDatabase();
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.writebehind.journal", file.getAbsolutePath());
+        JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        List<Entry> entries = new ArrayList<Entry>();
+        entries.add(new Entry(1, "Main", "david", "note", "text1", new Date(), false));
+        entries.add(new Entry(2, "Main", "david", "note", "text2", new Date(), false));
+        provider.writeJournal(entries);
+
+        // replayed after a crash before the batch was marked flushed
+        List<Entry> replayed = new ArrayList<Entry>();
+        replayed.add(new Entry(1, "Main", "david", "note", "text1", new Date(), true));
+        replayed.add(new Entry(2, "Main", "david", "note", "text2", new Date(), true));
+        replayed.add(new Entry(3, "Main", "david", "note", "text2", new Date(), true));
+        provider.writeJournal(replayed);
+
+        // the save of the same text again is a new version
+        List history = provider.getVersionHistory("Main");
+        assertEquals(3, history.size());
+        assertEquals("text1", provider.getPageText("Main", 1));
+        assertEquals("text2", provider.getPageText("Main", 2));
+        assertEquals("text2", provider.getPageText("Main", 3));
+        assertEquals(3, JDBCPageProviderTest.count(url, "select seq from jspwiki_journalseq"));
+        provider.getJournal().close();
+    }
+}
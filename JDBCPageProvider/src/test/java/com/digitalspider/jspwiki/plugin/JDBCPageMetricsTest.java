@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.wiki.WikiPage;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class JDBCPageMetricsTest extends TestCase {
+
+    public void testBucketsCoverEveryValueWithinSixPercent() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int bucket = JDBCPageHistogram.bucket(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(JDBCPageHistogram.upperBound(bucket) >= value);
+            assertTrue(JDBCPageHistogram.upperBound(bucket) - value <= value / 16);
+            previous = bucket;
+        }
+        assertEquals(JDBCPageHistogram.BUCKETS - 1, JDBCPageHistogram.bucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, JDBCPageHistogram.upperBound(JDBCPageHistogram.BUCKETS - 1));
+    }
+
+    public void testPercentiles() {
+        JDBCPageHistogram histogram = new JDBCPageHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMeanMicros());
+        assertEquals(1000, histogram.getMaxMicros());
+        assertTrue(Math.abs(histogram.getP50Micros() - 500) <= 500 / 16);
+        assertTrue(Math.abs(histogram.getP99Micros() - 990) <= 990 / 16);
+        assertEquals(1000, histogram.getP999Micros());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getP50Micros());
+    }
+
+    public void testOperationsAreRecordedAndExposed() throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(JDBCPageProviderTest.createDatabase(), true);
+        properties.setProperty("jdbc.slowquery", "0");
+        JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        WikiPage page = new WikiPage(provider.getWikiEngine(), "Main");
+        page.setAuthor("david");
+        provider.putPageText(page, "text");
+        provider.getPageText("Main", -1);
+        provider.getPageText("Main", -1);
+        provider.getVersionHistory("Main");
+
+        JDBCPageMetrics metrics = provider.getMetrics();
+        assertEquals("h2", metrics.getDialect());
+        assertEquals(1, metrics.getHistogram(JDBCPageMetrics.Operation.PUT_PAGE_TEXT).getCount());
+        assertEquals(2, metrics.getHistogram(JDBCPageMetrics.Operation.GET_PAGE_TEXT).getCount());
+        assertEquals(1, metrics.getHistogram(JDBCPageMetrics.Operation.GET_VERSION_HISTORY).getCount());
+        assertEquals(0, metrics.getHistogram(JDBCPageMetrics.Operation.MOVE_PAGE).getCount());
+        assertTrue(JDBCPageMetrics.getAll().contains(metrics));
+        assertTrue(metrics.dump().contains("getPageText"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.digitalspider.jspwiki:type=JDBCPageProvider,src=default,dialect=h2,operation=getPageText");
+        assertEquals(2L, server.getAttribute(name, "Count"));
+        ObjectName metricsName = new ObjectName("com.digitalspider.jspwiki:type=JDBCPageProvider,src=default,dialect=h2");
+        assertTrue(((String) server.invoke(metricsName, "dump", null, null)).contains("putPageText"));
+
+        // a second provider of the same src replaces the first one
+        JDBCPageProvider second = JDBCPageProviderTest.createProvider(properties);
+        assertFalse(JDBCPageMetrics.getAll().contains(metrics));
+        assertEquals(0L, server.getAttribute(name, "Count"));
+        assertTrue(JDBCPageMetrics.getAll().contains(second.getMetrics()));
+    }
+
+    public void testSlowQueriesAreLogged() {
+        final List<String> logged = new ArrayList<String>();
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                logged.add(event.getRenderedMessage());
+            }
+
+            public void close() {
+            }
+
+            public boolean requiresLayout() {
+                return false;
+            }
+        };
+        Logger logger = Logger.getLogger(JDBCPageProvider.class.getName() + ".slowquery");
+        logger.addAppender(appender);
+        try {
+            JDBCPageMetrics metrics = new JDBCPageMetrics("test", "h2", 100);
+            long now = System.nanoTime();
+            metrics.recordQuery("select fast", 1, 1, now);
+            metrics.recordQuery("select slow", 2, 3, now - 200 * 1000000L);
+            assertEquals(1, metrics.getSlowQueries());
+            assertEquals(1, logged.size());
+            assertTrue(logged.get(0).contains("rows=3 parameters=2 sql=select slow"));
+
+            metrics.setSlowQueryMillis(0);
+            metrics.recordQuery("select slow", 2, 3, now - 200 * 1000000L);
+            assertEquals(1, metrics.getSlowQueries());
+        } finally {
+            logger.removeAppender(appender);
+        }
+    }
+}
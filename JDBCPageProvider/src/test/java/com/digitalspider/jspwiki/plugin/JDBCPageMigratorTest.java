@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.wiki.WikiPage;
+
+import java.io.File;
+import java.util.Properties;
+
+public class JDBCPageMigratorTest extends TestCase {
+
+    private String sourceUrl;
+    private JDBCPageProvider source;
+    private JDBCPageProvider target;
+
+    @Override
+    protected void setUp() throws Exception {
+        sourceUrl = JDBCPageProviderTest.createDatabase();
+        source = JDBCPageProviderTest.createProvider(sourceUrl, true);
+        target = JDBCPageProviderTest.createProvider(JDBCPageProviderTest.createDatabase(), true);
+        for (int i = 0; i < 10; i++) {
+            for (int v = 1; v <= 3; v++) {
+                WikiPage page = new WikiPage(source.getWikiEngine(), "Page" + i);
+                page.setAuthor("author" + v);
+                page.setAttribute(WikiPage.CHANGENOTE, "note" + v);
+                source.putPageText(page, "page " + i + " version " + v);
+            }
+        }
+    }
+
+    public void testImportInBatches() throws Exception {
+        JDBCPageMigrator migrator = new JDBCPageMigrator(target);
+        migrator.setBatchSize(4);
+        JDBCPageMigrator.Result result = migrator.importPages(source);
+        assertEquals(10, result.getPages());
+        assertEquals(30, result.getVersions());
+        assertEquals(10, target.getPageCount());
+        assertEquals("page 7 version 2", target.getPageText("Page7", 2));
+        assertEquals(3, target.getPageInfo("Page7", -1).getVersion());
+        assertEquals("author3", target.getPageInfo("Page7", -1).getAuthor());
+    }
+
+    public void testImportResumesFromCheckpoint() throws Exception {
+        File checkpoint = File.createTempFile("jdbc-import", ".checkpoint");
+        checkpoint.deleteOnExit();
+        FileUtils.writeStringToFile(checkpoint, "Page4", "UTF-8");
+        JDBCPageMigrator migrator = new JDBCPageMigrator(target);
+        migrator.setCheckpointFile(checkpoint);
+        JDBCPageMigrator.Result result = migrator.importPages(source);
+        assertEquals(5, result.getPages());
+        assertFalse(target.pageExists("Page4"));
+        assertTrue(target.pageExists("Page5"));
+        assertEquals("Page9", FileUtils.readFileToString(checkpoint, "UTF-8"));
+    }
+
+    public void testExportStreamsEveryVersion() throws Exception {
+        JDBCPageMigrator migrator = new JDBCPageMigrator(source);
+        migrator.setBatchSize(3);
+        JDBCPageMigrator.Result result = migrator.exportPages(target);
+        assertEquals(10, result.getPages());
+        assertEquals(30, result.getVersions());
+        assertEquals("page 3 version 1", target.getPageText("Page3", 1));
+        assertEquals("page 3 version 3", target.getPageText("Page3", -1));
+        assertEquals("note3", target.getPageInfo("Page3", -1).getAttribute(WikiPage.CHANGENOTE));
+    }
+
+    public void testMigrateMetadataColumns() throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(sourceUrl, true);
+        properties.setProperty("jdbc.metadatacolumns", "true");
+        JDBCPageProvider migrated = JDBCPageProviderTest.createProvider(properties);
+        JDBCPageMigrator migrator = new JDBCPageMigrator(migrated);
+        migrator.setBatchSize(7);
+        assertEquals(30, migrator.migrateMetadataColumns().getVersions());
+        assertEquals(0, migrator.migrateMetadataColumns().getVersions());
+
+        WikiPage page = migrated.getPageInfo("Page3", 2);
+        assertEquals("page 3 version 2".length(), page.getSize());
+        assertEquals(JDBCPageProvider.textHash("page 3 version 2"), page.getAttribute(JDBCPageProvider.ATTR_TEXTHASH));
+    }
+}
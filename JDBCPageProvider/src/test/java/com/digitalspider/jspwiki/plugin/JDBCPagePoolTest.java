@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiPage;
+import org.h2.jdbc.JdbcConnection;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JDBCPagePoolTest extends TestCase {
+
+    private String url;
+    private JDBCPagePool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        url = JDBCPageProviderTest.createDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    private JDBCPagePool createPool(int maxPoolSize, long maxLifetime, long connectionTimeout, long leakDetection) {
+        pool = new JDBCPagePool(url, "", "", "select 1", maxPoolSize, 0, maxLifetime, connectionTimeout, leakDetection);
+        return pool;
+    }
+
+    public void testConnectionsAreReused() throws Exception {
+        createPool(2, 0, 1000, 0);
+        Connection conn = pool.getConnection();
+        JdbcConnection physical = conn.unwrap(JdbcConnection.class);
+        assertEquals(1, pool.getActiveConnections());
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(0, pool.getActiveConnections());
+        assertEquals(1, pool.getIdleConnections());
+
+        conn = pool.getConnection();
+        assertSame(physical, conn.unwrap(JdbcConnection.class));
+        conn.close();
+        assertEquals(1, pool.getTotalConnections());
+    }
+
+    public void testBorrowersWaitAndTimeOut() throws Exception {
+        createPool(1, 0, 200, 0);
+        final Connection conn = pool.getConnection();
+        long start = System.currentTimeMillis();
+        try {
+            pool.getConnection();
+            fail("The pool is full");
+        } catch (SQLTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 200);
+        }
+        assertEquals(1, pool.getTimeouts());
+
+        Thread returner = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    conn.close();
+                } catch (Exception e) {
+                    // the borrow below times out
+                }
+            }
+        };
+        returner.start();
+        Connection handedOver = pool.getConnection();
+        assertEquals(1, pool.getActiveConnections());
+        assertEquals(0, pool.getThreadsAwaitingConnection());
+        handedOver.close();
+    }
+
+    public void testUncommittedWorkIsRolledBackOnReturn() throws Exception {
+        createPool(1, 0, 1000, 0);
+        Connection conn = pool.getConnection();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("insert into jspwiki (name,version,text,author,status) values ('Main',1,'text','david','AC')");
+        }
+        conn.close();
+        conn = pool.getConnection();
+        assertTrue(conn.getAutoCommit());
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("select count(*) from jspwiki")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+        conn.close();
+    }
+
+    public void testBrokenConnectionsAreReplaced() throws Exception {
+        createPool(1, 0, 1000, 0);
+        Connection conn = pool.getConnection();
+        JdbcConnection physical = conn.unwrap(JdbcConnection.class);
+        conn.close();
+        physical.close();
+        Thread.sleep(JDBCPagePool.VALIDATION_BYPASS_MILLIS + 100);
+        conn = pool.getConnection();
+        assertNotSame(physical, conn.unwrap(JdbcConnection.class));
+        assertFalse(conn.isClosed());
+        conn.close();
+        assertEquals(1, pool.getTotalConnections());
+    }
+
+    public void testExpiredConnectionsAreClosed() throws Exception {
+        createPool(1, 100, 1000, 0);
+        Connection conn = pool.getConnection();
+        JdbcConnection physical = conn.unwrap(JdbcConnection.class);
+        Thread.sleep(150);
+        conn.close();
+        assertTrue(physical.isClosed());
+        assertEquals(0, pool.getTotalConnections());
+    }
+
+    public void testLeaksAreDetected() throws Exception {
+        createPool(1, 0, 1000, 100);
+        Connection conn = pool.getConnection();
+        for (int i = 0; i < 40 && pool.getLeaksDetected() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, pool.getLeaksDetected());
+        conn.close();
+    }
+
+    public void testC3p0SizesApplyToJdbcPoolC3p0() throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.pool", "c3p0");
+        properties.setProperty("jdbc.c3p0.minpoolsize", "2");
+        properties.setProperty("jdbc.c3p0.increment", "2");
+        properties.setProperty("jdbc.c3p0.maxpoolsize", "7");
+        JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        ComboPooledDataSource cpds = (ComboPooledDataSource) provider.getConnectionPool();
+        try {
+            assertEquals(2, cpds.getMinPoolSize());
+            assertEquals(2, cpds.getAcquireIncrement());
+            assertEquals(7, cpds.getMaxPoolSize());
+        } finally {
+            cpds.close();
+        }
+    }
+
+    public void testProviderUnderLoad() throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.pool", "lean");
+        properties.setProperty("jdbc.pool.maxpoolsize", "4");
+        properties.setProperty("jdbc.cache", "false");
+        final JDBCPageProvider provider = JDBCPageProviderTest.createProvider(properties);
+        assertTrue(provider.getConnectionPool() instanceof JDBCPagePool);
+        pool = (JDBCPagePool) provider.getConnectionPool();
+        WikiPage page = new WikiPage(provider.getWikiEngine(), "Main");
+        page.setAuthor("david");
+        provider.putPageText(page, "text");
+
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 20; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        try {
+                            if (!"text".equals(provider.getPageText("Main", -1))) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(pool.getTotalConnections() <= 4);
+        assertEquals(0, pool.getActiveConnections());
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.search.QueryItem;
+import org.apache.wiki.search.SearchResult;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+public class JDBCPageProviderTest extends TestCase {
+
+    private static final AtomicInteger DB_COUNTER = new AtomicInteger();
+    private static WikiEngine engine;
+
+    private String dbUrl;
+    private JDBCPageProvider provider;
+    private CountingDataSource dataSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        dbUrl = createDatabase();
+        provider = createProvider(dbUrl, true);
+        dataSource = new CountingDataSource(dbUrl);
+        provider.setDataSource(dataSource);
+    }
+
+    static String createDatabase() throws SQLException {
+        String url = "jdbc:h2:mem:jspwiki" + DB_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        createTable(url);
+        return url;
+    }
+
+    static void createTable(String url) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        conn.createStatement().execute("create table jspwiki (" +
+                " id int auto_increment primary key," +
+                " name varchar(255) not null," +
+                " version int not null default -1," +
+                " text clob null," +
+                " author varchar(255) not null," +
+                " changenote varchar(255) null," +
+                " lastmodified timestamp not null default now()," +
+                " status varchar(10) not null," +
+                " textsize int null," +
+                " texthash varchar(64) null," +
+                " textdata blob null)");
+        conn.createStatement().execute("create unique index jspwiki_name_version on jspwiki (name, version)");
+        for (String ddl : new JDBCPageChangeLog("jspwiki").getCreateStatements()) {
+            conn.createStatement().execute(ddl);
+        }
+        for (String ddl : new JDBCPageBlobs("jspwiki", 0, 0).getCreateStatements()) {
+            conn.createStatement().execute(ddl);
+        }
+        for (String ddl : JDBCPageStatements.createJournalSeq("jspwiki")) {
+            conn.createStatement().execute(ddl);
+        }
+        conn.close();
+    }
+
+    static JDBCPageProvider createProvider(String url, boolean versioned) throws Exception {
+        return createProvider(createProperties(url, versioned));
+    }
+
+    static Properties createProperties(String url, boolean versioned) {
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.driver", "org.h2.Driver");
+        properties.setProperty("jdbc.url", url);
+        properties.setProperty("jdbc.versioning", String.valueOf(versioned));
+        properties.setProperty("jdbc.maxresults", "100000");
+        return properties;
+    }
+
+    static JDBCPageProvider createProvider(Properties properties) throws Exception {
+        JDBCPageProvider provider = new JDBCPageProvider();
+        provider.initialize(createEngine(), properties);
+        return provider;
+    }
+
+    /**
+     * The provider only needs the engine to construct {@link WikiPage}s, so every test shares one engine
+     * keeping its pages in a temporary directory, with security off so that it starts without the
+     * descriptors of a web application.
+     */
+    static synchronized WikiEngine createEngine() throws Exception {
+        if (engine == null) {
+            // the xerces of the JSPWiki dependencies lacks the DOM level 3 support the group database needs
+            System.setProperty("javax.xml.parsers.DocumentBuilderFactory",
+                    "com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl");
+            File workDir = Files.createTempDirectory("jspwiki").toFile();
+            workDir.deleteOnExit();
+            Properties properties = new Properties();
+            properties.setProperty("jspwiki.pageProvider", "FileSystemProvider");
+            properties.setProperty("jspwiki.fileSystemProvider.pageDir", workDir.getAbsolutePath());
+            properties.setProperty("jspwiki.workDir", workDir.getAbsolutePath());
+            properties.setProperty("jspwiki.searchProvider", "BasicSearchProvider");
+            properties.setProperty("jspwiki.security", "off");
+            engine = new WikiEngine(properties);
+        }
+        return engine;
+    }
+
+    static void save(JDBCPageProvider provider, String name, String text) throws ProviderException {
+        WikiPage page = new WikiPage(provider.getWikiEngine(), name);
+        page.setAuthor("david");
+        provider.putPageText(page, text);
+    }
+
+    /**
+     * @return the single number selected by the sql
+     */
+    static int count(String url, String sql) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url); ResultSet rs = conn.createStatement().executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private void insertPages(int pageCount, int versionCount) throws SQLException {
+        insertPages(0, pageCount, versionCount);
+    }
+
+    private void insertPages(int firstPage, int pageCount, int versionCount) throws SQLException {
+        Connection conn = DriverManager.getConnection(dbUrl);
+        PreparedStatement stmt = conn.prepareStatement("insert into jspwiki (name,version,text,author,changenote,status) values (?,?,?,?,?,?)");
+        for (int i = firstPage; i < firstPage + pageCount; i++) {
+            for (int v = 1; v <= versionCount; v++) {
+                stmt.setString(1, "Page" + i);
+                stmt.setInt(2, v);
+                stmt.setString(3, "text of page " + i + " version " + v);
+                stmt.setString(4, "author" + v);
+                stmt.setString(5, "note" + v);
+                stmt.setString(6, "AC");
+                stmt.addBatch();
+            }
+        }
+        stmt.executeBatch();
+        conn.close();
+    }
+
+    public void testGetAllPagesReturnsLatestVersions() throws Exception {
+        insertPages(3, 4);
+        Connection conn = DriverManager.getConnection(dbUrl);
+        conn.createStatement().execute("update jspwiki set status = 'DL' where name = 'Page1' and version = 4");
+        conn.close();
+
+        Collection<WikiPage> pages = provider.getAllPages();
+        assertEquals(3, pages.size());
+        for (WikiPage page : pages) {
+            int expectedVersion = page.getName().equals("Page1") ? 3 : 4;
+            assertEquals(expectedVersion, page.getVersion());
+            assertEquals("author" + expectedVersion, page.getAuthor());
+            assertEquals("note" + expectedVersion, page.getAttribute(WikiPage.CHANGENOTE));
+            assertEquals(("text of page " + page.getName().substring(4) + " version " + expectedVersion).length(), page.getSize());
+            assertNotNull(page.getLastModified());
+        }
+    }
+
+    public void testGetAllPagesRoundTripsAreConstant() throws Exception {
+        insertPages(10, 3);
+        assertEquals(1, countBatches(provider.getAllPages(), 10));
+
+        // one statement per batch of jdbc.fetchsize pages, not one per page or version
+        insertPages(10, 1000, 3);
+        assertEquals((1010 + JDBCPageProvider.DEFAULT_FETCHSIZE - 1) / JDBCPageProvider.DEFAULT_FETCHSIZE, countBatches(provider.getAllPages(), 1010));
+    }
+
+    /**
+     * Iterate the pages, checking there are as many as expected, and return the statements run.
+     */
+    private int countBatches(Collection pages, int expected) {
+        dataSource.statements.set(0);
+        int count = 0;
+        for (Object page : pages) {
+            assertEquals(3, ((WikiPage) page).getVersion());
+            count++;
+        }
+        assertEquals(expected, count);
+        return dataSource.statements.get();
+    }
+
+    public void testGetAllPagesIsNotLimitedByMaxResults() throws Exception {
+        insertPages(7, 2);
+        Properties properties = createProperties(dbUrl, true);
+        properties.setProperty("jdbc.maxresults", "5");
+        properties.setProperty("jdbc.fetchsize", "2");
+        JDBCPageProvider limited = createProvider(properties);
+        limited.setDataSource(dataSource);
+
+        Collection<WikiPage> pages = limited.getAllPages();
+        assertEquals(7, pages.size());
+        dataSource.statements.set(0);
+        int count = 0;
+        String previous = "";
+        for (WikiPage page : pages) {
+            assertTrue(page.getName().compareTo(previous) > 0);
+            assertEquals(2, page.getVersion());
+            previous = page.getName();
+            count++;
+        }
+        assertEquals(7, count);
+        // keyset batches of 2, the last one short
+        assertEquals(4, dataSource.statements.get());
+    }
+
+    public void testIterateAllPagesStreamsOneCursor() throws Exception {
+        insertPages(25, 3);
+        dataSource.statements.set(0);
+        int count = 0;
+        try (JDBCPageCursor cursor = provider.iterateAllPages()) {
+            while (cursor.hasNext()) {
+                assertEquals(3, cursor.next().getVersion());
+                count++;
+            }
+            assertFalse(cursor.hasNext());
+        }
+        assertEquals(25, count);
+        assertEquals(1, dataSource.statements.get());
+
+        JDBCPageCursor abandoned = provider.iterateAllPages();
+        assertTrue(abandoned.hasNext());
+        abandoned.close();
+    }
+
+    public void testWarmReadsDoNotTouchTheDatabase() throws Exception {
+        insertPages(2, 3);
+        // a render asks for existence, metadata and text of the page several times
+        for (int i = 0; i < 3; i++) {
+            assertTrue(provider.pageExists("Page0"));
+            assertEquals(3, provider.getPageInfo("Page0", -1).getVersion());
+            assertEquals("text of page 0 version 3", provider.getPageText("Page0", -1));
+            assertEquals("text of page 0 version 2", provider.getPageText("Page0", 2));
+            assertFalse(provider.pageExists("Missing"));
+        }
+        dataSource.statements.set(0);
+        assertTrue(provider.pageExists("Page0"));
+        assertEquals(3, provider.getPageInfo("Page0", -1).getVersion());
+        assertEquals("text of page 0 version 3", provider.getPageText("Page0", -1));
+        assertFalse(provider.pageExists("Missing"));
+        assertNull(provider.getPageInfo("Missing", -1));
+        assertEquals(0, dataSource.statements.get());
+        assertTrue(provider.getCache().getHits() > 0);
+
+        provider.deletePage("Page0");
+        assertEquals(1, dataSource.statements.get());
+        provider.pageExists("Page0");
+        assertTrue(dataSource.statements.get() > 1);
+    }
+
+    public void testSaveDeleteAndMove() throws Exception {
+        WikiPage page = new WikiPage(createEngine(), "NewPage");
+        page.setAuthor("david");
+        provider.putPageText(page, "first");
+        page.setAttribute(WikiPage.CHANGENOTE, "second save");
+        provider.putPageText(page, "second");
+        assertTrue(provider.pageExists("NewPage"));
+        assertEquals(2, provider.getPageInfo("NewPage", -1).getVersion());
+        assertEquals("second save", provider.getPageInfo("NewPage", -1).getAttribute(WikiPage.CHANGENOTE));
+        assertEquals("first", provider.getPageText("NewPage", 1));
+        assertEquals("second", provider.getPageText("NewPage", -1));
+        assertEquals(1, provider.getPageCount());
+
+        provider.deleteVersion("NewPage", 2);
+        assertEquals("first", provider.getPageText("NewPage", -1));
+
+        provider.movePage("NewPage", "MovedPage");
+        assertFalse(provider.pageExists("NewPage"));
+        assertEquals("first", provider.getPageText("MovedPage", -1));
+
+        provider.deletePage("MovedPage");
+        assertFalse(provider.pageExists("MovedPage"));
+        assertEquals(0, provider.getPageCount());
+    }
+
+    public void testMoveOntoADeletedPage() throws Exception {
+        WikiPage page = new WikiPage(createEngine(), "Old");
+        page.setAuthor("david");
+        provider.putPageText(page, "old one");
+        provider.putPageText(page, "old two");
+        provider.deletePage("Old");
+        page = new WikiPage(createEngine(), "New");
+        page.setAuthor("david");
+        provider.putPageText(page, "new one");
+
+        // the deleted versions of Old hold the version numbers the moved page takes
+        provider.movePage("New", "Old");
+        assertFalse(provider.pageExists("New"));
+        assertEquals("new one", provider.getPageText("Old", -1));
+        assertEquals(1, provider.getVersionHistory("Old").size());
+        assertEquals(1, count(dbUrl, "select count(*) from jspwiki where name = 'Old'"));
+    }
+
+    public void testFailedMoveThrows() throws Exception {
+        WikiPage page = new WikiPage(createEngine(), "Main");
+        page.setAuthor("david");
+        provider.putPageText(page, "text");
+        Connection conn = DriverManager.getConnection(dbUrl);
+        conn.createStatement().execute("alter table jspwiki add constraint jspwiki_short check (length(name) < 10)");
+        conn.close();
+        try {
+            provider.movePage("Main", "AVeryLongName");
+            fail("The rename violates the constraint");
+        } catch (ProviderException e) {
+            // expected
+        }
+        assertTrue(provider.pageExists("Main"));
+    }
+
+    public void testSaveIsOneStatement() throws Exception {
+        WikiPage page = new WikiPage(createEngine(), "OneTrip");
+        page.setAuthor("david");
+        provider.putPageText(page, "first");
+        dataSource.statements.set(0);
+        provider.putPageText(page, "second");
+        assertEquals(1, dataSource.statements.get());
+        assertEquals(2, provider.getPageInfo("OneTrip", -1).getVersion());
+
+        // a deleted version number is never reused
+        provider.deleteVersion("OneTrip", 2);
+        provider.putPageText(page, "third");
+        assertEquals(3, provider.getPageInfo("OneTrip", -1).getVersion());
+
+        JDBCPageProvider unversioned = createProvider(dbUrl, false);
+        unversioned.setDataSource(dataSource);
+        WikiPage single = new WikiPage(createEngine(), "Single");
+        single.setAuthor("david");
+        unversioned.putPageText(single, "first");
+        dataSource.statements.set(0);
+        unversioned.putPageText(single, "second");
+        assertEquals(1, dataSource.statements.get());
+        assertEquals("second", unversioned.getPageText("Single", -1));
+        assertEquals(1, unversioned.getVersionHistory("Single").size());
+    }
+
+    public void testConcurrentSavesNeverDuplicateVersions() throws Exception {
+        final int editors = 50;
+        final int pages = 5;
+        final int saves = 4;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[editors];
+        for (int i = 0; i < editors; i++) {
+            final int editor = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int s = 0; s < saves; s++) {
+                            WikiPage page = new WikiPage(provider.getWikiEngine(), "Busy" + (editor % pages));
+                            page.setAuthor("editor" + editor);
+                            provider.putPageText(page, "save " + s + " by " + editor);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+
+        int versionsPerPage = editors / pages * saves;
+        for (int p = 0; p < pages; p++) {
+            List<WikiPage> history = provider.getVersionHistory("Busy" + p);
+            assertEquals(versionsPerPage, history.size());
+            for (int v = 0; v < versionsPerPage; v++) {
+                assertEquals(versionsPerPage - v, history.get(v).getVersion());
+            }
+        }
+    }
+
+    public void testUpsertStatementsPerDialect() throws Exception {
+        assertTrue(JDBCPageStatements.upsertPage(JDBCPageProvider.SQLType.MYSQL, "jspwiki", false, false).endsWith(
+                "on duplicate key update text = values(text), author = values(author), changenote = values(changenote), status = values(status), lastmodified = values(lastmodified)"));
+        assertTrue(JDBCPageStatements.upsertPage(JDBCPageProvider.SQLType.POSTGRESQL, "jspwiki", false, false).contains("on conflict (name,version) do update set text = excluded.text"));
+        assertTrue(JDBCPageStatements.upsertPage(JDBCPageProvider.SQLType.ORACLE, "jspwiki", true, false).startsWith(
+                "merge into jspwiki t using (select ? as textsize, ? as texthash, ? as name, ? as version, ? as text"));
+        assertTrue(JDBCPageStatements.upsertPage(JDBCPageProvider.SQLType.MSSQL, "jspwiki", false, false).endsWith(";"));
+        assertNull(JDBCPageStatements.upsertPage(JDBCPageProvider.SQLType.DB2, "jspwiki", false, false));
+    }
+
+    public void testStatementsAreBoundNotConcatenated() throws Exception {
+        WikiPage page = new WikiPage(createEngine(), "Quote'Page");
+        page.setAuthor("o'brien");
+        provider.putPageText(page, "it's text with a ' quote");
+        assertEquals("it's text with a ' quote", provider.getPageText("Quote'Page", -1));
+        assertEquals("o'brien", provider.getPageInfo("Quote'Page", -1).getAuthor());
+    }
+
+    public void testMetadataColumnsAreReadInsteadOfTheText() throws Exception {
+        Properties properties = createProperties(dbUrl, true);
+        properties.setProperty("jdbc.metadatacolumns", "true");
+        provider = createProvider(properties);
+        WikiPage page = new WikiPage(createEngine(), "Sized");
+        page.setAuthor("david");
+        provider.putPageText(page, "twelve chars");
+
+        Connection conn = DriverManager.getConnection(dbUrl);
+        ResultSet rs = conn.createStatement().executeQuery("select textsize, texthash from jspwiki where name = 'Sized'");
+        assertTrue(rs.next());
+        assertEquals(12, rs.getInt(1));
+        assertEquals(JDBCPageProvider.textHash("twelve chars"), rs.getString(2));
+        assertEquals(64, rs.getString(2).length());
+        // the size now comes from its column, not from the text
+        conn.createStatement().execute("update jspwiki set text = 'x' where name = 'Sized'");
+        conn.close();
+        provider.getCache().clear();
+
+        WikiPage info = provider.getPageInfo("Sized", -1);
+        assertEquals(12, info.getSize());
+        assertEquals(JDBCPageProvider.textHash("twelve chars"), info.getAttribute(JDBCPageProvider.ATTR_TEXTHASH));
+        assertEquals(12, ((WikiPage) provider.getAllPages().iterator().next()).getSize());
+        assertEquals("x", provider.getPageText("Sized", -1));
+    }
+
+    public void testVersionHistoryIsOneQueryWithKeysetPaging() throws Exception {
+        insertPages(2, 50);
+        dataSource.statements.set(0);
+        List<WikiPage> history = provider.getVersionHistory("Page1");
+        assertEquals(1, dataSource.statements.get());
+        assertEquals(50, history.size());
+        assertEquals(50, history.get(0).getVersion());
+        assertEquals(1, history.get(49).getVersion());
+        assertEquals("text of page 1 version 7".length(), history.get(43).getSize());
+
+        List<WikiPage> first = provider.getVersionHistory("Page1", -1, 20);
+        assertEquals(20, first.size());
+        assertEquals(31, first.get(19).getVersion());
+        List<WikiPage> next = provider.getVersionHistory("Page1", 31, 20);
+        assertEquals(30, next.get(0).getVersion());
+        assertEquals(11, next.get(19).getVersion());
+        assertEquals(10, provider.getVersionHistory("Page1", 11, 20).size());
+        assertTrue(provider.getVersionHistory("Missing").isEmpty());
+    }
+
+    private static QueryItem item(String word, int type) {
+        QueryItem item = new QueryItem();
+        item.word = word;
+        item.type = type;
+        return item;
+    }
+
+    public void testFindPagesHonoursEveryQueryItem() throws Exception {
+        WikiEngine engine = createEngine();
+        String[][] pages = {
+                {"Apples", "Apples and pears are fruit"},
+                {"Pears", "Pears are green"},
+                {"Carrots", "Carrots are not fruit"},
+                {"Old", "nothing here"}};
+        for (String[] page : pages) {
+            WikiPage wikiPage = new WikiPage(engine, page[0]);
+            wikiPage.setAuthor("david");
+            provider.putPageText(wikiPage, page[1]);
+        }
+        // only the latest version is searched
+        WikiPage old = new WikiPage(engine, "Old");
+        old.setAuthor("david");
+        provider.putPageText(old, "fruit used to be here");
+        provider.putPageText(old, "gone again");
+
+        Collection<SearchResult> results = provider.findPages(new QueryItem[]{item("FRUIT", QueryItem.REQUIRED)});
+        assertEquals(2, results.size());
+
+        results = provider.findPages(new QueryItem[]{item("fruit", QueryItem.REQUIRED), item("carrots", QueryItem.FORBIDDEN)});
+        assertEquals(1, results.size());
+        assertEquals("Apples", results.iterator().next().getPage().getName());
+
+        results = provider.findPages(new QueryItem[]{item("pears", QueryItem.REQUESTED), item("fruit", QueryItem.REQUESTED)});
+        assertEquals(3, results.size());
+        SearchResult best = results.iterator().next();
+        assertEquals("Apples", best.getPage().getName());
+        assertEquals(2, best.getScore());
+        assertEquals(1, best.getPage().getVersion());
+    }
+
+    public void testNativeSearchQueries() throws Exception {
+        QueryItem[] items = new QueryItem[]{item("wiki", QueryItem.REQUIRED), item("spam", QueryItem.FORBIDDEN), item("page", QueryItem.REQUESTED)};
+
+        JDBCPageSearch.Query query = new JDBCPageSearch(JDBCPageProvider.SQLType.MYSQL, "jspwiki", JDBCPageSearch.Mode.FULLTEXT).buildQuery(items);
+        assertTrue(query.getSql().contains("match(t.text) against (? in boolean mode) as score"));
+        assertEquals("+\"wiki\" -\"spam\" \"page\"", query.getArgs().get(0));
+        assertEquals("DL", query.getArgs().get(1));
+
+        query = new JDBCPageSearch(JDBCPageProvider.SQLType.POSTGRESQL, "jspwiki", JDBCPageSearch.Mode.FULLTEXT).buildQuery(items);
+        assertTrue(query.getSql().contains("to_tsvector('simple', t.text) @@ (plainto_tsquery('simple', ?) && !!plainto_tsquery('simple', ?))"));
+        assertEquals(java.util.Arrays.asList("wiki", "page", "DL", "wiki", "spam"), query.getArgs());
+
+        query = new JDBCPageSearch(JDBCPageProvider.SQLType.MSSQL, "jspwiki", JDBCPageSearch.Mode.FULLTEXT).buildQuery(items);
+        assertTrue(query.getSql().contains("join containstable(jspwiki, text, ?) ft on ft.[KEY] = t.id"));
+        assertEquals(java.util.Arrays.asList("DL", "(\"wiki\") AND NOT \"spam\""), query.getArgs());
+
+        assertFalse(new JDBCPageSearch(JDBCPageProvider.SQLType.ORACLE, "jspwiki", JDBCPageSearch.Mode.FULLTEXT).isNative());
+    }
+
+    public void testCacheIsBoundedByBytes() throws Exception {
+        JDBCPageCache cache = new JDBCPageCache(4096);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append('x');
+        }
+        for (int i = 0; i < 20; i++) {
+            cache.putPageText("Page" + i, 1, text.toString(), cache.getGeneration());
+        }
+        assertTrue(cache.getBytes() <= 4096);
+        assertTrue(cache.getEvictions() > 0);
+        assertNull(cache.getPageText("Page0", 1));
+        assertNotNull(cache.getPageText("Page19", 1));
+
+        long generation = cache.getGeneration();
+        cache.invalidate("Page19");
+        cache.putPageText("Page19", 1, "stale", generation);
+        assertNull(cache.getPageText("Page19", 1));
+    }
+
+    /**
+     * DataSource handing out H2 connections which count every statement prepared or created on them.
+     */
+    static class CountingDataSource implements DataSource {
+        final AtomicInteger statements = new AtomicInteger();
+        private final String url;
+
+        CountingDataSource(String url) {
+            this.url = url;
+        }
+
+        public Connection getConnection() throws SQLException {
+            final Connection conn = DriverManager.getConnection(url);
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("prepareStatement") || method.getName().equals("createStatement")
+                            || method.getName().equals("prepareCall")) {
+                        statements.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            });
+        }
+
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        public void setLoginTimeout(int seconds) {
+        }
+
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiPage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+public class JDBCPageReplicasTest extends TestCase {
+
+    private String primaryUrl;
+    private String replica1Url;
+    private String replica2Url;
+
+    @Override
+    protected void setUp() throws Exception {
+        primaryUrl = JDBCPageProviderTest.createDatabase();
+        replica1Url = JDBCPageProviderTest.createDatabase();
+        replica2Url = JDBCPageProviderTest.createDatabase();
+        insertPage(primaryUrl, "Main", "primary");
+        insertPage(replica1Url, "Main", "replica1");
+        insertPage(replica2Url, "Main", "replica2");
+    }
+
+    private static void insertPage(String url, String name, String text) throws SQLException {
+        Connection conn = DriverManager.getConnection(url);
+        PreparedStatement stmt = conn.prepareStatement("insert into jspwiki (name,version,text,author,status) values (?,1,?,'david','AC')");
+        stmt.setString(1, name);
+        stmt.setString(2, text);
+        stmt.executeUpdate();
+        conn.close();
+    }
+
+    private JDBCPageProvider createProvider(String stickyWindow, String... replicaUrls) throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(primaryUrl, true);
+        properties.setProperty("jdbc.cache", "false");
+        properties.setProperty("jdbc.replica.stickywindow", stickyWindow);
+        for (int i = 0; i < replicaUrls.length; i++) {
+            properties.setProperty("jdbc.url.replica." + (i + 1), replicaUrls[i]);
+        }
+        return JDBCPageProviderTest.createProvider(properties);
+    }
+
+    public void testReadsRoundRobinAcrossReplicas() throws Exception {
+        JDBCPageProvider provider = createProvider("5000", replica1Url, replica2Url);
+        Set<String> texts = new HashSet<String>();
+        for (int i = 0; i < 4; i++) {
+            texts.add(provider.getPageText("Main", -1));
+        }
+        assertEquals(2, texts.size());
+        assertTrue(texts.contains("replica1"));
+        assertTrue(texts.contains("replica2"));
+        assertEquals(2, provider.getReplicas().getReplicas().get(0).getReads());
+        assertEquals(1, provider.getAllPages().size());
+    }
+
+    public void testReadsAfterAWriteStickToThePrimary() throws Exception {
+        JDBCPageProvider provider = createProvider("60000", replica1Url);
+        WikiPage page = new WikiPage(provider.getWikiEngine(), "Main");
+        page.setAuthor("david");
+        provider.putPageText(page, "saved");
+        assertEquals("saved", provider.getPageText("Main", -1));
+        assertEquals(2, provider.getPageInfo("Main", -1).getVersion());
+        // listings see the new page too
+        WikiPage other = new WikiPage(provider.getWikiEngine(), "Other");
+        other.setAuthor("david");
+        provider.putPageText(other, "new");
+        assertEquals(2, provider.getAllPages().size());
+
+        provider = createProvider("0", replica1Url);
+        provider.putPageText(page, "saved again");
+        assertEquals("replica1", provider.getPageText("Main", -1));
+    }
+
+    public void testUnhealthyReplicasAreSkipped() throws Exception {
+        JDBCPageProvider provider = createProvider("5000", "jdbc:h2:tcp://localhost:1/missing", replica1Url);
+        for (int i = 0; i < 4; i++) {
+            assertEquals("replica1", provider.getPageText("Main", -1));
+        }
+        JDBCPageReplicas.Replica down = provider.getReplicas().getReplicas().get(0);
+        assertFalse(down.isHealthy());
+        assertEquals(0, down.getReads());
+
+        provider = createProvider("5000", "jdbc:h2:tcp://localhost:1/missing");
+        assertEquals("primary", provider.getPageText("Main", -1));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import com.digitalspider.jspwiki.plugin.JDBCPageProvider.SQLType;
+
+import org.apache.wiki.WikiPage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JDBCPageSchemaTest extends TestCase {
+
+    private static final AtomicInteger DB_COUNTER = new AtomicInteger();
+
+    private String url;
+
+    @Override
+    protected void setUp() throws Exception {
+        url = "jdbc:h2:mem:jspwikischema" + DB_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+    }
+
+    private JDBCPageProvider createProvider(String schema) throws Exception {
+        Properties properties = JDBCPageProviderTest.createProperties(url, true);
+        properties.setProperty("jdbc.schema", schema);
+        properties.setProperty("jdbc.metadatacolumns", "true");
+        return JDBCPageProviderTest.createProvider(properties);
+    }
+
+    private void execute(String... ddl) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            for (String sql : ddl) {
+                conn.createStatement().execute(sql);
+            }
+        }
+    }
+
+    public void testCreateBootstrapsAnEmptyDatabase() throws Exception {
+        JDBCPageProvider provider = createProvider("create");
+        WikiPage page = new WikiPage(provider.getWikiEngine(), "Main");
+        page.setAuthor("david");
+        provider.putPageText(page, "first");
+        provider.putPageText(page, "second");
+        assertEquals("second", provider.getPageText("Main", -1));
+        assertEquals(2, provider.getVersionHistory("Main").size());
+
+        JDBCPageSchema schema = new JDBCPageSchema(SQLType.H2, "jspwiki", true, false);
+        try (Connection conn = DriverManager.getConnection(url)) {
+            assertTrue(schema.getMissingColumnStatements(conn).isEmpty());
+            assertTrue(schema.getMissingIndexStatements(conn).isEmpty());
+        }
+    }
+
+    public void testValidateOnlyAdvises() throws Exception {
+        execute("create table jspwiki (id int auto_increment primary key, name varchar(255) not null, version int not null," +
+                " text clob null, author varchar(255) not null, changenote varchar(255) null," +
+                " lastmodified timestamp not null default now(), status varchar(10) not null)",
+                "create index jspwiki_name on jspwiki (name)");
+        createProvider("validate");
+
+        JDBCPageSchema schema = new JDBCPageSchema(SQLType.H2, "jspwiki", false, false);
+        try (Connection conn = DriverManager.getConnection(url)) {
+            // an index on name alone is neither unique nor covers the version
+            List<String> missing = schema.getMissingIndexStatements(conn);
+            assertEquals(2, missing.size());
+            assertEquals("create unique index jspwiki_name_version on jspwiki (name, version)", missing.get(0));
+            assertEquals("create index jspwiki_lastmodified on jspwiki (lastmodified)", missing.get(1));
+        }
+    }
+
+    public void testMigrateAddsTheNewColumnsAndIndexes() throws Exception {
+        execute("create table jspwiki (id int auto_increment primary key, name varchar(255) not null, version int not null," +
+                " text clob null, author varchar(255) not null, changenote varchar(255) null)",
+                "insert into jspwiki (name, version, text, author) values ('Old', 1, 'old text', 'david')");
+        JDBCPageProvider provider = createProvider("migrate");
+
+        assertEquals("old text", provider.getPageText("Old", -1));
+        assertEquals(1, provider.getPageCount());
+        JDBCPageSchema schema = new JDBCPageSchema(SQLType.H2, "jspwiki", true, false);
+        try (Connection conn = DriverManager.getConnection(url)) {
+            assertTrue(schema.getMissingColumnStatements(conn).isEmpty());
+            assertTrue(schema.getMissingIndexStatements(conn).isEmpty());
+        }
+    }
+
+    public void testDialectDdl() {
+        JDBCPageSchema oracle = new JDBCPageSchema(SQLType.ORACLE, "jspwiki", true, true);
+        assertEquals("alter table jspwiki add (status varchar2(10) default 'AC' not null)",
+                oracle.getAddColumnStatement("status", oracle.getColumnDefinitions().get("status")));
+        assertTrue(oracle.getCreateStatements().get(0).contains("textdata blob null"));
+
+        JDBCPageSchema mssql = new JDBCPageSchema(SQLType.MSSQL, "jspwiki", false, false);
+        assertTrue(mssql.getCreateStatements().get(0).contains("lastmodified datetime default current_timestamp not null"));
+        assertFalse(mssql.getCreateStatements().get(0).contains("texthash"));
+        assertEquals("alter table jspwiki add status varchar(10) default 'AC' not null",
+                mssql.getAddColumnStatement("status", mssql.getColumnDefinitions().get("status")));
+
+        JDBCPageSchema postgres = new JDBCPageSchema(SQLType.POSTGRESQL, "wiki", true, true);
+        List<String> ddl = postgres.getCreateStatements();
+        assertEquals(3, ddl.size());
+        assertTrue(ddl.get(0).startsWith("create table wiki (id serial primary key, name varchar(255) not null"));
+        assertTrue(ddl.get(0).contains("textdata bytea null"));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.search.QueryItem;
+import org.apache.wiki.search.SearchResult;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+public class JDBCPageShardsTest extends TestCase {
+
+    private JDBCPageProvider provider;
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.shards", "one,two");
+        for (String shard : new String[] { "one", "two" }) {
+            properties.setProperty("jdbc.driver." + shard, "org.h2.Driver");
+            properties.setProperty("jdbc.url." + shard, JDBCPageProviderTest.createDatabase());
+            properties.setProperty("jdbc.versioning." + shard, "true");
+            properties.setProperty("jdbc.maxresults." + shard, "1000");
+        }
+        properties.setProperty("jdbc.maxresults", "1000");
+        provider = JDBCPageProviderTest.createProvider(properties);
+    }
+
+    private void save(String name, String text) throws ProviderException {
+        WikiPage page = new WikiPage(provider.getWikiEngine(), name);
+        page.setAuthor("david");
+        page.setAttribute(WikiPage.CHANGENOTE, "note " + text);
+        provider.putPageText(page, text);
+    }
+
+    /**
+     * @return a page name held by the given shard
+     */
+    private String pageOn(String shard, String prefix) {
+        JDBCPageProvider target = provider.getShards().getShards().get(shard);
+        for (int i = 0; ; i++) {
+            if (provider.getShards().getShard(prefix + i) == target) {
+                return prefix + i;
+            }
+        }
+    }
+
+    public void testPagesAreSpreadOverTheShards() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            save("Page" + i, "text " + i);
+        }
+        int onOne = provider.getShards().getShards().get("one").getPageCount();
+        int onTwo = provider.getShards().getShards().get("two").getPageCount();
+        assertEquals(100, onOne + onTwo);
+        assertTrue(onOne > 20 && onTwo > 20);
+        assertEquals(100, provider.getPageCount());
+
+        Collection allPages = provider.getAllPages();
+        assertEquals(100, allPages.size());
+        Set<String> names = new HashSet<String>();
+        for (Object page : allPages) {
+            names.add(((WikiPage) page).getName());
+        }
+        assertEquals(100, names.size());
+        assertTrue(names.contains("Page99"));
+        assertEquals(100, provider.getAllChangedSince(new Date(System.currentTimeMillis() - 60000)).size());
+
+        assertEquals("text 42", provider.getPageText("Page42", -1));
+        assertTrue(provider.pageExists("Page42"));
+        assertFalse(provider.pageExists("Page100"));
+    }
+
+    public void testRoutingIsConsistent() throws Exception {
+        Map<String, JDBCPageProvider> two = provider.getShards().getShards();
+        Map<String, JDBCPageProvider> three = new LinkedHashMap<String, JDBCPageProvider>(two);
+        three.put("three", new JDBCPageProvider());
+        JDBCPageShards grown = new JDBCPageShards(three, 1000);
+        Map<JDBCPageProvider, Integer> moved = new HashMap<JDBCPageProvider, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            JDBCPageProvider before = provider.getShards().getShard("Page" + i);
+            JDBCPageProvider after = grown.getShard("Page" + i);
+            if (before != after) {
+                // a page only ever moves to the new shard
+                assertSame(three.get("three"), after);
+                moved.put(before, moved.containsKey(before) ? moved.get(before) + 1 : 1);
+            }
+        }
+        assertEquals(2, moved.size());
+    }
+
+    public void testFindPagesMergesTheShards() throws Exception {
+        save(pageOn("one", "Apple"), "fruit apple");
+        save(pageOn("two", "Banana"), "fruit banana");
+        save(pageOn("two", "Carrot"), "vegetable");
+        QueryItem item = new QueryItem();
+        item.word = "fruit";
+        item.type = QueryItem.REQUESTED;
+        Collection results = provider.findPages(new QueryItem[] { item });
+        assertEquals(2, results.size());
+        for (Object result : results) {
+            assertTrue(((SearchResult) result).getPage().getName().matches("(Apple|Banana)\\d+"));
+        }
+    }
+
+    public void testMoveAcrossShards() throws Exception {
+        String from = pageOn("one", "From");
+        String to = pageOn("two", "To");
+        save(from, "first");
+        save(from, "second");
+        provider.movePage(from, to);
+
+        assertFalse(provider.pageExists(from));
+        assertEquals(1, provider.getPageCount());
+        List history = provider.getVersionHistory(to);
+        assertEquals(2, history.size());
+        assertEquals(2, ((WikiPage) history.get(0)).getVersion());
+        assertEquals("note second", ((WikiPage) history.get(0)).getAttribute(WikiPage.CHANGENOTE));
+        assertEquals("first", provider.getPageText(to, 1));
+        assertEquals("second", provider.getPageText(to, -1));
+
+        save(to, "third");
+        assertEquals(3, provider.getPageInfo(to, -1).getVersion());
+
+        // the deleted versions of the destination make way for the moved ones
+        String deleted = pageOn("one", "Deleted");
+        save(deleted, "gone");
+        provider.deletePage(deleted);
+        provider.movePage(to, deleted);
+        assertEquals("third", provider.getPageText(deleted, -1));
+        assertEquals(3, provider.getVersionHistory(deleted).size());
+        provider.movePage(deleted, to);
+
+        String same = pageOn("two", "Same");
+        provider.movePage(to, same);
+        assertEquals("third", provider.getPageText(same, -1));
+        try {
+            provider.movePage(pageOn("one", "Missing"), to);
+            fail("There is no such page");
+        } catch (ProviderException e) {
+            // expected
+        }
+    }
+}
@@ -34,11 +34,8 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Map;
 import java.util.Properties;
 
@@ -86,100 +83,202 @@ public class JDBCPlugin implements WikiPlugin {
     public static final String DEFAULT_SQL = "select 1";
     public static final Boolean DEFAULT_HEADER = true;
     public static final String DEFAULT_SOURCE = null;
+    public static final Integer DEFAULT_CACHE = 0;
+    public static final Long DEFAULT_CACHE_SIZE = 8L * 1024 * 1024;
+    public static final Integer DEFAULT_POOL_MAXPOOLSIZE = 10;
+    public static final Integer DEFAULT_MAXSIZE = 1024 * 1024;
+    public static final Boolean DEFAULT_PARALLEL = false;
+    public static final Integer DEFAULT_PARALLEL_THREADS = 16;
+    public static final Integer DEFAULT_PARALLEL_PERPAGE = 4;
+    public static final Integer DEFAULT_PARALLEL_PERSOURCE = 2;
+    public static final Integer DEFAULT_PAGESIZE = 0;
+    public static final String DEFAULT_KEY = null;
+    public static final Boolean DEFAULT_SORTABLE = true;
+    public static final Long DEFAULT_POOL_CONNECTIONTIMEOUT = 30000L;
 
     private static final String PROP_DRIVER = "jdbc.driver";
     private static final String PROP_URL = "jdbc.url";
     private static final String PROP_USER = "jdbc.user";
     private static final String PROP_PASSWORD = "jdbc.password";
     private static final String PROP_MAXRESULTS = "jdbc.maxresults";
+    private static final String PROP_CACHE_SIZE = "jdbc.cache.size";
+    private static final String PROP_MAXSIZE = "jdbc.maxsize";
+    private static final String PROP_PARALLEL = "jdbc.parallel";
+    private static final String PROP_PARALLEL_THREADS = "jdbc.parallel.threads";
+    private static final String PROP_PARALLEL_PERPAGE = "jdbc.parallel.perpage";
+    private static final String PROP_PARALLEL_PERSOURCE = "jdbc.parallel.persource";
+    private static final String PROP_POOL_MAXPOOLSIZE = "jdbc.pool.maxpoolsize";
+    private static final String PROP_POOL_CONNECTIONTIMEOUT = "jdbc.pool.connectiontimeout";
     private static final String PARAM_CLASS = "class";
     private static final String PARAM_SQL = "sql";
     private static final String PARAM_HEADER = "header";
     private static final String PARAM_SOURCE = "src";
+    private static final String PARAM_CACHE = "cache";
+    private static final String PARAM_PAGESIZE = "pagesize";
+    private static final String PARAM_KEY = "key";
+    private static final String PARAM_SORTABLE = "sortable";
+    private static final String SCRIPT_VARIABLE = JDBCPluginPager.class.getName() + ".script";
+    private static final String SCRIPT = "<script type=\"text/javascript\">\n"
+            + "if (!window.jdbcPluginPager) { window.jdbcPluginPager = true;\n"
+            + "document.addEventListener('click', function(event) {\n"
+            + "  var link = event.target.closest ? event.target.closest('a[data-fragment]') : null;\n"
+            + "  var table = link ? link.closest('.jdbc-paged') : null;\n"
+            + "  if (!table || !window.XMLHttpRequest) { return; }\n"
+            + "  event.preventDefault();\n"
+            + "  var request = new XMLHttpRequest();\n"
+            + "  request.open('GET', link.getAttribute('data-fragment'));\n"
+            + "  request.onload = function() { if (request.status == 200) { table.outerHTML = request.responseText; } else { window.location = link.href; } };\n"
+            + "  request.onerror = function() { window.location = link.href; };\n"
+            + "  request.send();\n"
+            + "}); }\n"
+            + "</script>";
 
-    private SQLType sqlType = DEFAULT_TYPE;
-    private String dbUrl = DEFAULT_URL;
-    private String dbUser = DEFAULT_USER;
-    private String dbPassword = DEFAULT_PASSWORD;
-    private Integer maxResults = DEFAULT_MAXRESULTS;
     private String className = DEFAULT_CLASS;
     private String sql = DEFAULT_SQL;
     private Boolean header = DEFAULT_HEADER;
     private String source = DEFAULT_SOURCE;
-    private DataSource ds = null;
+    private Integer cacheSeconds = DEFAULT_CACHE;
+    private Long cacheSize = DEFAULT_CACHE_SIZE;
+    private Integer maxSize = DEFAULT_MAXSIZE;
+    private Boolean parallel = DEFAULT_PARALLEL;
+    private Integer parallelThreads = DEFAULT_PARALLEL_THREADS;
+    private Integer parallelPerPage = DEFAULT_PARALLEL_PERPAGE;
+    private Integer pageSize = DEFAULT_PAGESIZE;
+    private String keyName = DEFAULT_KEY;
+    private Boolean sortable = DEFAULT_SORTABLE;
+    private JDBCPluginPool pool = null;
+    private JDBCPluginPager pager = null;
 
 	@Override
-	public String execute(WikiContext wikiContext, Map<String, String> params) throws PluginException {
+	public String execute(final WikiContext wikiContext, Map<String, String> params) throws PluginException {
         setLogForDebug(params.get(PluginManager.PARAM_DEBUG));
         log.info("STARTED");
-        String result = "";
-        StringBuffer buffer = new StringBuffer();
         WikiEngine engine = wikiContext.getEngine();
-        Properties props = engine.getWikiProperties();
 
         // Validate all parameters
-        validateParams(props, params);
+        validateParams(engine, params);
+        preparePager(wikiContext, params);
 
-        Connection conn = null;
-        try {
+        String result = null;
+        if (parallel) {
+            // the first tag of the page starts the queries of every tag
+            result = JDBCPluginBatch.getBatch(wikiContext, parallelThreads, parallelPerPage).await(getKey());
+        }
+        if (result == null) {
+            result = produce(wikiContext);
+        }
+        if (pager != null && wikiContext.getVariable(SCRIPT_VARIABLE) == null) {
+            // once per page, loads other pages of the tables without rendering the wiki page again
+            wikiContext.setVariable(SCRIPT_VARIABLE, Boolean.TRUE);
+            result = result + SCRIPT;
+        }
+        return result;
+	}
 
-            if (ds == null) {
-                if (StringUtils.isBlank(dbUser) && StringUtils.isBlank(dbPassword)) {
-                    conn = DriverManager.getConnection(dbUrl);
-                } else {
-                    conn = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
-                }
-                if (conn == null) {
-                    throw new Exception("Could not create connection for url=" + dbUrl + " user=" + dbUser);
-                }
-            } else {
-                conn = ds.getConnection();
-            }
+    /**
+     * Render a page of a paged table for the {@link JDBCPluginServlet}, from the parameters of its tag.
+     */
+    public String renderFragment(WikiContext wikiContext, Map<String, String> params) throws PluginException {
+        validateParams(wikiContext.getEngine(), params);
+        preparePager(wikiContext, params);
+        if (pager == null) {
+            throw new PluginException("The table is not paged");
+        }
+        return produce(wikiContext);
+    }
 
-            sql = addLimits(sqlType,sql,maxResults);
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
+    /**
+     * Set up the pager of a tag with a pagesize, reading the page to show from the request.
+     */
+    protected void preparePager(WikiContext wikiContext, Map<String, String> params) throws PluginException {
+        if (pageSize > 0) {
+            pager = new JDBCPluginPager(wikiContext, params, getQueryKey(), Math.min(pageSize, pool.getMaxResults()), keyName, sortable);
+        }
+    }
 
-            ResultSetMetaData md = rs.getMetaData();
-            if (header) {
-                for (int i = 0; i < md.getColumnCount(); i++) {
-                    String header = md.getColumnLabel(i + 1);
-                    buffer.append("|| " + header);
-                }
-                buffer.append("\n");
-            }
+    private String getQueryKey() {
+        return JDBCPluginCache.key(source, sql, pool.getMaxResults(), header, className, maxSize, pageSize, keyName, sortable);
+    }
 
-            while (rs.next()) {
-                for (int i=0; i<md.getColumnCount(); i++) {
-                    String value = rs.getString(i+1);
-                    buffer.append("| "+value);
-                }
-                buffer.append("\n");
-            }
+    /**
+     * @return the key of the query and the way it is rendered, shared by the cache and the parallel batch
+     */
+    protected String getKey() {
+        return (pager != null) ? getQueryKey() + " " + pager.getState() : getQueryKey();
+    }
 
-            log.info("result="+buffer.toString());
-            result = engine.textToHTML(wikiContext,buffer.toString());
+    protected JDBCPluginPool getPool() {
+        return pool;
+    }
 
-            result = "<div class='"+className+"'>"+result+"</div>";
+    /**
+     * @return the table from the cache, when cached, otherwise rendered now
+     */
+    protected String produce(final WikiContext wikiContext) throws PluginException {
+        if (cacheSeconds <= 0) {
+            return render(wikiContext);
+        }
+        try {
+            return JDBCPluginCache.getCache(wikiContext.getEngine(), cacheSize).get(getKey(), cacheSeconds * 1000L, new JDBCPluginCache.Loader() {
+                @Override
+                public String load() throws Exception {
+                    // a refresh runs after the request, on a copy of its context
+                    return render((WikiContext) wikiContext.clone());
+                }
+            });
+        } catch (PluginException e) {
+            throw e;
         } catch (Exception e) {
             log.error("ERROR. "+e.getMessage()+". sql="+sql,e);
             throw new PluginException(e.getMessage());
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    // ignore
+        }
+    }
+
+    /**
+     * Run the query and write its rows as an HTML table.
+     */
+    protected String render(WikiContext wikiContext) throws PluginException {
+        String result = "";
+        String limitedSql;
+        if (pager != null) {
+            limitedSql = pager.getSql(pool.getSqlType(), sql);
+        } else {
+            limitedSql = addLimits(pool.getSqlType(),sql,pool.getMaxResults());
+        }
+        log.info("sql="+limitedSql);
+        try (Connection conn = pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(limitedSql)) {
+            if (pager != null) {
+                pager.setParameters(stmt);
+            }
+            StringBuilder buffer = new StringBuilder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                buffer.append("<div class='");
+                JDBCPluginTable.escape(buffer, className);
+                if (pager != null) {
+                    buffer.append(" jdbc-paged' id='jdbc-").append(pager.getId());
                 }
+                buffer.append("'>");
+                buffer.append(new JDBCPluginTable(header, maxSize, pager).write(rs));
+            }
+            if (pager != null) {
+                buffer.append(pager.getNavigation());
             }
+            buffer.append("</div>");
+            result = buffer.toString();
+        } catch (Exception e) {
+            log.error("ERROR. "+e.getMessage()+". sql="+sql,e);
+            throw new PluginException(e.getMessage());
         }
+        log.info(pool);
 
-		return result;
-	}
+        return result;
+    }
 
-    protected void validateParams(Properties props, Map<String, String> params) throws PluginException {
+    protected void validateParams(WikiEngine engine, Map<String, String> params) throws PluginException {
         String paramName;
         String param;
+        final Properties props = engine.getWikiProperties();
 
         log.info("validateParams() START");
         paramName = PARAM_SOURCE;
@@ -191,6 +290,142 @@ public class JDBCPlugin implements WikiPlugin {
             }
             source = param;
         }
+        pool = JDBCPluginPool.getPool(engine, source, new JDBCPluginPool.Factory() {
+            @Override
+            public JDBCPluginPool create() throws PluginException {
+                return createPool(props, source);
+            }
+        });
+        paramName = PARAM_CLASS;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isAsciiPrintable(param)) {
+                throw new PluginException(paramName + " parameter is not a valid value");
+            }
+            className = param;
+        }
+        paramName = PARAM_SQL;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isAsciiPrintable(param)) {
+                throw new PluginException(paramName + " parameter is not a valid value");
+            }
+            if (!param.trim().toLowerCase().startsWith("select")) {
+                throw new PluginException(paramName + " parameter needs to start with 'SELECT'.");
+            }
+            sql = param;
+        }
+        paramName = PARAM_HEADER;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!param.equalsIgnoreCase("true") && !param.equalsIgnoreCase("false")
+                    && !param.equals("0") && !param.equals("1")) {
+                throw new PluginException(paramName + " parameter is not a valid boolean");
+            }
+            header = Boolean.parseBoolean(param);
+        }
+        paramName = PARAM_CACHE;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " parameter is not a valid number of seconds");
+            }
+            cacheSeconds = Integer.parseInt(param);
+        }
+        paramName = PARAM_PAGESIZE;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " parameter is not a valid number of rows");
+            }
+            pageSize = Integer.parseInt(param);
+        }
+        paramName = PARAM_KEY;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            // used as is in the sql, so only a plain column name
+            if (!param.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                throw new PluginException(paramName + " parameter is not a valid column name");
+            }
+            keyName = param;
+        }
+        paramName = PARAM_SORTABLE;
+        param = params.get(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!param.equalsIgnoreCase("true") && !param.equalsIgnoreCase("false")
+                    && !param.equals("0") && !param.equals("1")) {
+                throw new PluginException(paramName + " parameter is not a valid boolean");
+            }
+            sortable = Boolean.parseBoolean(param) || param.equals("1");
+        }
+        paramName = PROP_CACHE_SIZE;
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
+            }
+            cacheSize = Long.parseLong(param);
+        }
+        paramName = PROP_MAXSIZE;
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
+            }
+            maxSize = Integer.parseInt(param);
+        }
+        paramName = PROP_PARALLEL;
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            parallel = Boolean.parseBoolean(param.trim()) || param.trim().equals("1");
+        }
+        paramName = PROP_PARALLEL_THREADS;
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
+            }
+            parallelThreads = Integer.parseInt(param);
+        }
+        paramName = PROP_PARALLEL_PERPAGE;
+        param = props.getProperty(paramName);
+        if (StringUtils.isNotBlank(param)) {
+            log.info(paramName + "=" + param);
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
+            }
+            parallelPerPage = Integer.parseInt(param);
+        }
+    }
+
+    /**
+     * Parse the properties of the src and load its driver, once for the lifetime of the engine.
+     */
+    protected JDBCPluginPool createPool(Properties props, String source) throws PluginException {
+        String paramName;
+        String param;
+        SQLType sqlType = DEFAULT_TYPE;
+        String dbUrl = DEFAULT_URL;
+        String dbUser = DEFAULT_USER;
+        String dbPassword = DEFAULT_PASSWORD;
+        Integer maxResults = DEFAULT_MAXRESULTS;
+        Integer poolMaxPoolSize = DEFAULT_POOL_MAXPOOLSIZE;
+        Long poolConnectionTimeout = DEFAULT_POOL_CONNECTIONTIMEOUT;
+        Integer parallelPerSource = DEFAULT_PARALLEL_PERSOURCE;
+        DataSource ds = null;
+
+        log.info("createPool() START src=" + source);
         paramName = getPropKey(PROP_DRIVER, source);
         param = props.getProperty(paramName);
         if (StringUtils.isNotBlank(param)) {
@@ -270,37 +505,35 @@ public class JDBCPlugin implements WikiPlugin {
             }
             maxResults = Integer.parseInt(param);
         }
-        paramName = PARAM_CLASS;
-        param = params.get(paramName);
+        paramName = getPropKey(PROP_POOL_MAXPOOLSIZE,source);
+        param = props.getProperty(paramName);
         if (StringUtils.isNotBlank(param)) {
             log.info(paramName + "=" + param);
-            if (!StringUtils.isAsciiPrintable(param)) {
-                throw new PluginException(paramName + " parameter is not a valid value");
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
             }
-            className = param;
+            poolMaxPoolSize = Integer.parseInt(param);
         }
-        paramName = PARAM_SQL;
-        param = params.get(paramName);
+        paramName = getPropKey(PROP_POOL_CONNECTIONTIMEOUT,source);
+        param = props.getProperty(paramName);
         if (StringUtils.isNotBlank(param)) {
             log.info(paramName + "=" + param);
-            if (!StringUtils.isAsciiPrintable(param)) {
-                throw new PluginException(paramName + " parameter is not a valid value");
-            }
-            if (!sql.toLowerCase().startsWith("select")) {
-                throw new PluginException(paramName + " parameter needs to start with 'SELECT'.");
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
             }
-            sql = param;
+            poolConnectionTimeout = Long.parseLong(param);
         }
-        paramName = PARAM_HEADER;
-        param = params.get(paramName);
+        paramName = getPropKey(PROP_PARALLEL_PERSOURCE,source);
+        param = props.getProperty(paramName);
         if (StringUtils.isNotBlank(param)) {
             log.info(paramName + "=" + param);
-            if (!param.equalsIgnoreCase("true") && !param.equalsIgnoreCase("false")
-                    && !param.equals("0") && !param.equals("1")) {
-                throw new PluginException(paramName + " parameter is not a valid boolean");
+            if (!StringUtils.isNumeric(param)) {
+                throw new PluginException(paramName + " property is not a valid value");
             }
-            header = Boolean.parseBoolean(param);
+            parallelPerSource = Integer.parseInt(param);
         }
+        return new JDBCPluginPool(source, sqlType, maxResults, dbUrl, dbUser, dbPassword, ds, poolMaxPoolSize,
+                poolConnectionTimeout, parallelPerSource);
     }
 
     private String addLimits(SQLType sqlType, String sql, Integer maxResults) {
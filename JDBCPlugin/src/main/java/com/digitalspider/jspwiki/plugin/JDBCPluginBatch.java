@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.engine.PluginManager;
+import org.apache.wiki.api.exceptions.PluginException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The queries of every {@link JDBCPlugin} tag of a page, started together when the first tag is
+ * rendered, so that the page waits for its slowest query rather than for the sum of them. Used when
+ * jdbc.parallel is true.
+ * <p>
+ * The first tag reads the saved text of the page, and queues the query of every JDBCPlugin tag it finds.
+ * At most maxPerPage queries of the page run at once on an executor shared by every page of the engine,
+ * and at most jdbc.parallel.persource queries of one src run at once across every page. A tag whose
+ * query has not started yet when its turn comes runs it itself, so the page never waits on a busy
+ * executor, and fails when its src stays busy for the connection timeout of the src. A tag not found in
+ * the saved text, e.g. in a preview, simply runs its own query. The executor is shut down with the engine.
+ */
+public class JDBCPluginBatch {
+
+    private static final Logger log = Logger.getLogger(JDBCPluginBatch.class);
+
+    private static final String CONTEXT_VARIABLE = JDBCPluginBatch.class.getName();
+    private static final Pattern TAG = Pattern.compile(
+            "\\[\\{(?:INSERT\\s+)?(?:com\\.digitalspider\\.jspwiki\\.plugin\\.)?JDBCPlugin(?:\\s+WHERE)?(\\s.*?)?\\}\\]",
+            Pattern.DOTALL);
+    // tags shown as text rather than run: in a {{{ }}} block, unclosed running to the end, or escaped as [[{
+    private static final Pattern PREFORMATTED = Pattern.compile("\\{\\{\\{.*?(?:\\}\\}\\}|\\z)", Pattern.DOTALL);
+    private static final int QUEUE_SIZE = 1000;
+
+    private static final JDBCPluginEngineScope<ThreadPoolExecutor> executors = new JDBCPluginEngineScope<ThreadPoolExecutor>() {
+        @Override
+        protected void dispose(ThreadPoolExecutor executor) {
+            executor.shutdownNow();
+        }
+    };
+
+    /**
+     * The query of a tag, rendered by its own plugin instance on its own copy of the context.
+     */
+    private static class Query {
+        final FutureTask<String> task;
+        final Semaphore sourcePermits;
+        final long timeoutMillis;
+        final String source;
+
+        Query(final JDBCPlugin plugin, final WikiContext context) {
+            this.sourcePermits = plugin.getPool().getQueryPermits();
+            this.timeoutMillis = plugin.getPool().getConnectionTimeoutMillis();
+            this.source = plugin.getPool().getSource();
+            this.task = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return plugin.produce(context);
+                }
+            });
+        }
+    }
+
+    private final Map<String, Query> queries = new LinkedHashMap<String, Query>();
+    private final LinkedList<Query> pending = new LinkedList<Query>();
+    private final int maxPerPage;
+    private int running = 0;
+
+    private JDBCPluginBatch(int maxPerPage) {
+        this.maxPerPage = Math.max(maxPerPage, 1);
+    }
+
+    /**
+     * @return the batch of the page being rendered, started by the first call
+     */
+    public static JDBCPluginBatch getBatch(WikiContext wikiContext, int threads, int maxPerPage) throws PluginException {
+        Object batch = wikiContext.getVariable(CONTEXT_VARIABLE);
+        if (batch instanceof JDBCPluginBatch) {
+            return (JDBCPluginBatch) batch;
+        }
+        JDBCPluginBatch result = new JDBCPluginBatch(maxPerPage);
+        wikiContext.setVariable(CONTEXT_VARIABLE, result);
+        result.prepare(wikiContext);
+        result.schedule(getExecutor(wikiContext.getEngine(), threads));
+        return result;
+    }
+
+    /**
+     * @return the executor of the engine, created with the given number of threads on first use
+     */
+    static ThreadPoolExecutor getExecutor(WikiEngine engine, final int threads) throws PluginException {
+        return executors.get(engine, new JDBCPluginEngineScope.Factory<ThreadPoolExecutor>() {
+            @Override
+            public ThreadPoolExecutor create() {
+                final AtomicInteger counter = new AtomicInteger();
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "JDBCPluginBatch-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                executor.allowCoreThreadTimeOut(true);
+                return executor;
+            }
+        });
+    }
+
+    /**
+     * Queue the query of every JDBCPlugin tag of the saved page, leaving out the tags in preformatted
+     * blocks and the escaped ones. Tags with invalid parameters are left to report their error when rendered.
+     */
+    private void prepare(WikiContext wikiContext) {
+        WikiEngine engine = wikiContext.getEngine();
+        PluginManager pluginManager = engine.getPluginManager();
+        String text = engine.getPureText(wikiContext.getPage());
+        if (text == null) {
+            return;
+        }
+        text = PREFORMATTED.matcher(text).replaceAll(" ");
+        Matcher matcher = TAG.matcher(text);
+        while (matcher.find()) {
+            if (isEscaped(text, matcher.start())) {
+                continue;
+            }
+            try {
+                Map<String, String> params = pluginManager.parseArgs((matcher.group(1) != null) ? matcher.group(1) : "");
+                JDBCPlugin plugin = new JDBCPlugin();
+                plugin.validateParams(engine, params);
+                plugin.preparePager(wikiContext, params);
+                String key = plugin.getKey();
+                if (!queries.containsKey(key)) {
+                    Query query = new Query(plugin, (WikiContext) wikiContext.clone());
+                    queries.put(key, query);
+                    pending.add(query);
+                }
+            } catch (Exception e) {
+                log.debug("Not running " + matcher.group() + " in parallel. " + e.getMessage());
+            }
+        }
+        log.info("Queued " + queries.size() + " queries of " + wikiContext.getPage().getName());
+    }
+
+    /**
+     * @return whether the tag starting at start follows an odd number of [, each [[ being a literal [
+     */
+    static boolean isEscaped(String text, int start) {
+        int brackets = 0;
+        for (int i = start - 1; i >= 0 && text.charAt(i) == '['; i--) {
+            brackets++;
+        }
+        return brackets % 2 == 1;
+    }
+
+    /**
+     * Start pending queries, up to maxPerPage of the page and the limit of each src.
+     */
+    private void schedule(final ThreadPoolExecutor executor) {
+        List<Query> starting = new ArrayList<Query>();
+        synchronized (this) {
+            Iterator<Query> iterator = pending.iterator();
+            while (running < maxPerPage && iterator.hasNext()) {
+                Query query = iterator.next();
+                if (query.sourcePermits.tryAcquire()) {
+                    iterator.remove();
+                    running++;
+                    starting.add(query);
+                }
+            }
+        }
+        for (final Query query : starting) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            query.task.run();
+                        } finally {
+                            query.sourcePermits.release();
+                            synchronized (JDBCPluginBatch.this) {
+                                running--;
+                            }
+                            schedule(executor);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // left for its tag to run
+                query.sourcePermits.release();
+                synchronized (this) {
+                    running--;
+                    pending.addFirst(query);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the table of a tag, running its query now when it has not started yet. A query not started
+     * fails when its src has no free slot within the connection timeout of the src.
+     *
+     * @return the HTML of the tag, or null when the tag is not part of the batch
+     */
+    public String await(String key) throws PluginException {
+        Query query;
+        boolean notStarted;
+        synchronized (this) {
+            query = queries.get(key);
+            if (query == null) {
+                return null;
+            }
+            notStarted = pending.remove(query);
+        }
+        try {
+            if (notStarted) {
+                if (!query.sourcePermits.tryAcquire(query.timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    // fails any other tag waiting on the same query too
+                    query.task.cancel(false);
+                    throw new PluginException("No query of src " + query.source + " could start within "
+                            + query.timeoutMillis + "ms");
+                }
+                try {
+                    query.task.run();
+                } finally {
+                    query.sourcePermits.release();
+                }
+            }
+            return query.task.get();
+        } catch (CancellationException e) {
+            throw new PluginException("The query of src " + query.source + " did not start");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PluginException("Interrupted waiting for the query");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PluginException) {
+                throw (PluginException) e.getCause();
+            }
+            throw new PluginException(e.getCause().getMessage());
+        }
+    }
+}
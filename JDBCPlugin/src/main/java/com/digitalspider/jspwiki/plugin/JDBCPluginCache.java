@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.exceptions.PluginException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the HTML rendered by {@link JDBCPlugin}, shared by every invocation on every page of a wiki
+ * engine, so that a cache hit neither queries the database nor runs the wiki renderer.
+ * <p>
+ * Each entry lives for the ttl given by its invocation. An entry past its ttl, but younger than twice
+ * its ttl, is still returned while a background thread renders it again, so only the first view after a
+ * long quiet spell waits for the query. The least recently used entries are evicted once the cached
+ * HTML is over the configured number of bytes.
+ * <p>
+ * Each engine has its own cache, sized by its jdbc.cache.size, which is closed when the engine shuts down.
+ */
+public class JDBCPluginCache {
+
+    private static final Logger log = Logger.getLogger(JDBCPluginCache.class);
+
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final int REFRESH_THREADS = 2;
+
+    private static final JDBCPluginEngineScope<JDBCPluginCache> caches = new JDBCPluginEngineScope<JDBCPluginCache>() {
+        @Override
+        protected void dispose(JDBCPluginCache cache) {
+            cache.close();
+        }
+    };
+
+    /**
+     * Renders the HTML of a cache entry.
+     */
+    public interface Loader {
+        String load() throws Exception;
+    }
+
+    private static class Entry {
+        final String html;
+        final long created;
+        final long bytes;
+        boolean refreshing = false;
+
+        Entry(String key, String html) {
+            this.html = html;
+            this.created = System.currentTimeMillis();
+            this.bytes = ENTRY_OVERHEAD + 2L * (key.length() + html.length());
+        }
+
+        long age() {
+            return System.currentTimeMillis() - created;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long bytes = 0;
+    private final ExecutorService refresher;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public JDBCPluginCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        final AtomicInteger threads = new AtomicInteger();
+        // a bounded queue, a refresh which does not fit is rejected and tried again on a later view
+        refresher = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(100), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "JDBCPluginCache-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the cache of the engine, created with maxBytes by its first cached invocation
+     */
+    public static JDBCPluginCache getCache(WikiEngine engine, final long maxBytes) throws PluginException {
+        return caches.get(engine, new JDBCPluginEngineScope.Factory<JDBCPluginCache>() {
+            @Override
+            public JDBCPluginCache create() {
+                log.info("Created cache of " + maxBytes + " bytes");
+                return new JDBCPluginCache(maxBytes);
+            }
+        });
+    }
+
+    /**
+     * The key of a rendering: the data source, the SQL with its whitespace outside quotes and trailing
+     * semicolon normalised, and every parameter changing the HTML.
+     */
+    public static String key(String source, String sql, Object... params) {
+        StringBuilder key = new StringBuilder();
+        key.append(source).append('\n');
+        String normalised = normaliseWhitespace(sql.trim());
+        if (normalised.endsWith(";")) {
+            normalised = normalised.substring(0, normalised.length() - 1).trim();
+        }
+        key.append(normalised);
+        for (Object param : params) {
+            key.append('\n').append(param);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Collapse every run of whitespace to a single space, except inside quoted literals and identifiers,
+     * where it is part of the value. A doubled quote escaping a quote closes and reopens the literal.
+     */
+    static String normaliseWhitespace(String sql) {
+        StringBuilder result = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                result.append(' ');
+                space = false;
+            }
+            if (quote == 0 && (c == '\'' || c == '"' || c == '`')) {
+                quote = c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the cached HTML, when it is younger than ttlMillis, or younger than twice that while
+     * it is rendered again in the background. Otherwise the HTML rendered by the loader, now cached.
+     */
+    public String get(final String key, final long ttlMillis, final Loader loader) throws Exception {
+        Entry entry;
+        boolean refresh = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.age() >= ttlMillis && entry.age() < 2 * ttlMillis && !entry.refreshing) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+        if (entry != null && entry.age() < ttlMillis) {
+            hits.incrementAndGet();
+            return entry.html;
+        }
+        if (entry != null && entry.age() < 2 * ttlMillis) {
+            staleHits.incrementAndGet();
+            if (refresh) {
+                final Entry stale = entry;
+                try {
+                    refresher.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                put(key, loader.load());
+                            } catch (Exception e) {
+                                log.warn("Could not refresh the cached result. " + e.getMessage());
+                            } finally {
+                                synchronized (JDBCPluginCache.this) {
+                                    stale.refreshing = false;
+                                }
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the queue is full or the cache closed, so a later view tries again
+                    synchronized (this) {
+                        stale.refreshing = false;
+                    }
+                }
+            }
+            return entry.html;
+        }
+        misses.incrementAndGet();
+        String html = loader.load();
+        put(key, html);
+        return html;
+    }
+
+    public synchronized void put(String key, String html) {
+        Entry entry = new Entry(key, html);
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            bytes -= eldest.getValue().bytes;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Stop the refresh threads and drop every entry.
+     */
+    public void close() {
+        refresher.shutdownNow();
+        clear();
+    }
+
+    /**
+     * @return whether a background refresh of the key is under way
+     */
+    synchronized boolean isRefreshing(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.refreshing;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "JDBCPluginCache[entries=" + entries.size() + ", bytes=" + getBytes() + "/" + maxBytes + ", hits=" + getHits()
+                + ", stalehits=" + getStaleHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.exceptions.PluginException;
+import org.apache.wiki.event.WikiEngineEvent;
+import org.apache.wiki.event.WikiEvent;
+import org.apache.wiki.event.WikiEventListener;
+import org.apache.wiki.event.WikiEventManager;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A value kept for each wiki engine, such as the cache of the {@link JDBCPlugin}, created on first use
+ * and closed when the engine shuts down.
+ * <p>
+ * The engine is only weakly referenced, so an engine which failed to start, or was dropped without
+ * shutting down, does not keep its value. The value of such an engine is closed by the next lookup
+ * after the engine has been garbage collected.
+ */
+public abstract class JDBCPluginEngineScope<T> {
+
+    /**
+     * Creates the value of an engine, the first time it is used.
+     */
+    public interface Factory<T> {
+        T create() throws PluginException;
+    }
+
+    private static class Holder<T> extends WeakReference<WikiEngine> {
+        final T value;
+
+        Holder(WikiEngine engine, T value, ReferenceQueue<WikiEngine> queue) {
+            super(engine, queue);
+            this.value = value;
+        }
+    }
+
+    private final List<Holder<T>> holders = new ArrayList<Holder<T>>();
+    private final ReferenceQueue<WikiEngine> collected = new ReferenceQueue<WikiEngine>();
+
+    /**
+     * Closes the value of an engine when it shuts down. Held here, as the event manager only keeps a
+     * weak reference to its listeners.
+     */
+    private final WikiEventListener shutdownListener = new WikiEventListener() {
+        @Override
+        public void actionPerformed(WikiEvent event) {
+            if (event instanceof WikiEngineEvent && event.getType() == WikiEngineEvent.SHUTDOWN) {
+                close((WikiEngine) event.getSource());
+            }
+        }
+    };
+
+    /**
+     * Release what the value holds, once its engine is gone.
+     */
+    protected abstract void dispose(T value);
+
+    /**
+     * @return the value of the engine, created by the factory on first use
+     */
+    public T get(WikiEngine engine, Factory<T> factory) throws PluginException {
+        List<T> orphans = new ArrayList<T>();
+        try {
+            synchronized (holders) {
+                expunge(orphans);
+                for (Holder<T> holder : holders) {
+                    if (holder.get() == engine) {
+                        return holder.value;
+                    }
+                }
+                T value = factory.create();
+                holders.add(new Holder<T>(engine, value, collected));
+                WikiEventManager.addWikiEventListener(engine, shutdownListener);
+                return value;
+            }
+        } finally {
+            closeAll(orphans);
+        }
+    }
+
+    /**
+     * @return the value of the engine, or null when it has none yet
+     */
+    public T find(WikiEngine engine) {
+        List<T> orphans = new ArrayList<T>();
+        try {
+            synchronized (holders) {
+                expunge(orphans);
+                for (Holder<T> holder : holders) {
+                    if (holder.get() == engine) {
+                        return holder.value;
+                    }
+                }
+                return null;
+            }
+        } finally {
+            closeAll(orphans);
+        }
+    }
+
+    /**
+     * Close the value of the engine, the next lookup creating a new one.
+     */
+    public void close(WikiEngine engine) {
+        List<T> closing = new ArrayList<T>();
+        synchronized (holders) {
+            for (Iterator<Holder<T>> iterator = holders.iterator(); iterator.hasNext();) {
+                Holder<T> holder = iterator.next();
+                if (holder.get() == engine) {
+                    iterator.remove();
+                    closing.add(holder.value);
+                }
+            }
+            expunge(closing);
+        }
+        // the listener stays, removing it while the engine fires its shutdown would skip the listeners after it
+        closeAll(closing);
+    }
+
+    /**
+     * @return the values of every engine still running
+     */
+    public List<T> getAll() {
+        List<T> result = new ArrayList<T>();
+        List<T> orphans = new ArrayList<T>();
+        synchronized (holders) {
+            expunge(orphans);
+            for (Holder<T> holder : holders) {
+                result.add(holder.value);
+            }
+        }
+        closeAll(orphans);
+        return result;
+    }
+
+    /**
+     * Move the values of the engines which have been garbage collected to the orphans.
+     */
+    @SuppressWarnings("unchecked")
+    private void expunge(List<T> orphans) {
+        Reference<? extends WikiEngine> reference;
+        while ((reference = collected.poll()) != null) {
+            if (holders.remove(reference)) {
+                orphans.add(((Holder<T>) reference).value);
+            }
+        }
+    }
+
+    private void closeAll(List<T> values) {
+        for (T value : values) {
+            dispose(value);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.exceptions.PluginException;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * One page of the result of a {@link JDBCPlugin} query, used when the tag has a pagesize. The sql of the
+ * tag is wrapped in the paging syntax of its {@link JDBCPlugin.SQLType}, and one row more than the page
+ * size is read to know whether there is a next page.
+ * <p>
+ * Pages are found by offset, unless the tag names a unique key column and the table is sorted by it. The
+ * next page then starts after the key of the last row shown, so every page costs the same however far
+ * into the result it is. The column to sort by is passed as its position, so no name from the request
+ * ever reaches the sql.
+ * <p>
+ * Every paged table is registered with the engine of its page, under an id made from its page and query,
+ * so that {@link JDBCPluginServlet} can render another page of it without rendering the wiki page again.
+ * The registrations of an engine are dropped when it shuts down.
+ */
+public class JDBCPluginPager {
+
+    public static final String PARAM_ID = "jdbcid";
+    public static final String PARAM_PAGE = "jdbcpage";
+    public static final String PARAM_SORT = "jdbcsort";
+    public static final String PARAM_AFTER = "jdbcafter";
+    public static final String FRAGMENT_PATH = "jdbcplugin";
+    public static final String ROWNUM_COLUMN = "jdbc_rownum";
+    private static final int MAX_REGISTERED = 1000;
+    private static final Pattern ORDER_BY = Pattern.compile("\\border\\s+by\\b");
+    private static final Pattern OFFSET = Pattern.compile("\\boffset\\b");
+    private static final Pattern TOP = Pattern.compile("^\\s*select\\s+(distinct\\s+)?top\\b");
+
+    /**
+     * A paged tag as written on its wiki page, and what its first render learnt about the key column.
+     */
+    public static class Registration {
+        private final String pageName;
+        private final Map<String, String> params;
+        private volatile int keyColumn = 0;
+        private volatile int keyType = Types.VARCHAR;
+
+        Registration(String pageName, Map<String, String> params) {
+            this.pageName = pageName;
+            this.params = Collections.unmodifiableMap(new HashMap<String, String>(params));
+        }
+
+        public String getPageName() {
+            return pageName;
+        }
+
+        public Map<String, String> getParams() {
+            return params;
+        }
+    }
+
+    private static final JDBCPluginEngineScope<Map<String, Registration>> registrations = new JDBCPluginEngineScope<Map<String, Registration>>() {
+        @Override
+        protected void dispose(Map<String, Registration> engineRegistrations) {
+            synchronized (engineRegistrations) {
+                engineRegistrations.clear();
+            }
+        }
+    };
+
+    private static final JDBCPluginEngineScope.Factory<Map<String, Registration>> newRegistrations = new JDBCPluginEngineScope.Factory<Map<String, Registration>>() {
+        @Override
+        public Map<String, Registration> create() {
+            return new LinkedHashMap<String, Registration>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Registration> eldest) {
+                    return size() > MAX_REGISTERED;
+                }
+            };
+        }
+    };
+
+    private final String id;
+    private final Registration registration;
+    private final int pageSize;
+    private final String keyName;
+    private final boolean sortable;
+    private final String viewHref;
+    private final String fragmentHref;
+    private int page = 1;
+    private int sort = 0;
+    private String after = null;
+    private Object afterValue = null;
+    private int hiddenColumns = 0;
+    private int skipRows = 0;
+    private boolean hasNext = false;
+    private String lastKey = null;
+
+    /**
+     * Register the tag and read its page, sort and key from the request, when the request is for this table.
+     *
+     * @param queryKey the key of the query and its rendering, from {@link JDBCPlugin#getKey()}
+     * @param keyName a unique column of the result for keyset paging, or null to page by offset
+     */
+    public JDBCPluginPager(WikiContext wikiContext, Map<String, String> params, String queryKey, int pageSize,
+                           String keyName, boolean sortable) throws PluginException {
+        String pageName = wikiContext.getPage().getName();
+        this.id = createId(pageName, queryKey);
+        this.pageSize = pageSize;
+        this.keyName = keyName;
+        this.sortable = sortable;
+        this.registration = register(wikiContext.getEngine(), id, pageName, params);
+        this.viewHref = wikiContext.getURL(WikiContext.VIEW, pageName);
+        String base = (wikiContext.getHttpRequest() != null) ? wikiContext.getHttpRequest().getContextPath() + "/"
+                : wikiContext.getEngine().getBaseURL();
+        this.fragmentHref = StringUtils.defaultString(base) + FRAGMENT_PATH;
+        if (id.equals(wikiContext.getHttpParameter(PARAM_ID))) {
+            String param = wikiContext.getHttpParameter(PARAM_PAGE);
+            if (StringUtils.isNotBlank(param) && param.matches("\\d{1,9}")) {
+                // past the last page with all its rows numbered within an int there are no rows anyway
+                page = Math.min(Math.max(Integer.parseInt(param), 1), (Integer.MAX_VALUE - 1) / Math.max(pageSize, 1));
+            }
+            param = wikiContext.getHttpParameter(PARAM_SORT);
+            if (StringUtils.isNotBlank(param) && param.matches("-?\\d{1,4}")) {
+                sort = Integer.parseInt(param);
+            }
+            param = wikiContext.getHttpParameter(PARAM_AFTER);
+            if (param != null && page > 1 && isKeyset()) {
+                after = param;
+            }
+        }
+    }
+
+    static String createId(String pageName, String queryKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((pageName + "\n" + queryKey).getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                result.append(String.format("%02x", digest[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Registration register(WikiEngine engine, String id, String pageName, Map<String, String> params)
+            throws PluginException {
+        Map<String, Registration> engineRegistrations = registrations.get(engine, newRegistrations);
+        synchronized (engineRegistrations) {
+            Registration registration = engineRegistrations.get(id);
+            if (registration == null) {
+                registration = new Registration(pageName, params);
+                engineRegistrations.put(id, registration);
+            }
+            return registration;
+        }
+    }
+
+    /**
+     * @return the tag of the engine registered under the id, or null when it has not been rendered since
+     * the engine started
+     */
+    public static Registration getRegistration(WikiEngine engine, String id) {
+        Map<String, Registration> engineRegistrations = registrations.find(engine);
+        if (engineRegistrations == null) {
+            return null;
+        }
+        synchronized (engineRegistrations) {
+            return engineRegistrations.get(id);
+        }
+    }
+
+    /**
+     * @return whether pages follow the key column, which needs a key column found by an earlier render
+     */
+    private boolean isKeyset() {
+        return keyName != null && registration.keyColumn > 0 && (sort == 0 || Math.abs(sort) == registration.keyColumn);
+    }
+
+    /**
+     * @return the sql of the tag wrapped to select the rows of this page, and the extra row telling whether
+     * there is a next one
+     */
+    public String getSql(JDBCPlugin.SQLType sqlType, String sql) {
+        String inner = sql.trim();
+        while (inner.endsWith(";")) {
+            inner = inner.substring(0, inner.length() - 1).trim();
+        }
+        String where = "";
+        long offset = (long) (page - 1) * pageSize;
+        if (after != null) {
+            afterValue = toKeyValue(after);
+            where = " where " + keyName + (sort < 0 ? " < ?" : " > ?");
+            offset = 0;
+        }
+        String orderBy = "";
+        if (sort != 0) {
+            orderBy = " order by " + Math.abs(sort) + (sort < 0 ? " desc" : "");
+        } else if (keyName != null) {
+            orderBy = " order by " + keyName;
+        }
+        int rows = pageSize + 1;
+        hiddenColumns = 0;
+        skipRows = 0;
+        switch (sqlType) {
+            case MSSQL:
+                if (needsOffset(inner)) {
+                    if (where.isEmpty() && orderBy.isEmpty()) {
+                        // paged in the order of the tag sql itself
+                        return inner + " offset " + offset + " rows fetch next " + rows + " rows only";
+                    }
+                    // SQL Server only takes an order by in a derived table together with an offset or top
+                    inner = inner + " offset 0 rows";
+                }
+                return "select * from (" + inner + ") jdbc_page" + where
+                        + (orderBy.isEmpty() ? " order by (select null)" : orderBy)
+                        + " offset " + offset + " rows fetch next " + rows + " rows only";
+            case ORACLE:
+                hiddenColumns = 1;
+                return "select * from (select jdbc_page.*, ROWNUM " + ROWNUM_COLUMN + " from (select * from (" + inner
+                        + ") jdbc_inner" + where + orderBy + ") jdbc_page where ROWNUM <= " + (offset + rows) + ") where "
+                        + ROWNUM_COLUMN + " > " + offset;
+            case DB2:
+                hiddenColumns = 1;
+                return "select * from (select jdbc_inner.*, ROW_NUMBER() OVER (" + orderBy.trim() + ") " + ROWNUM_COLUMN
+                        + " from (" + inner + ") jdbc_inner" + where + ") jdbc_page where " + ROWNUM_COLUMN + " > " + offset
+                        + " and " + ROWNUM_COLUMN + " <= " + (offset + rows) + " order by " + ROWNUM_COLUMN;
+            case SYBASE:
+                // no offset in Sybase ASE, the rows of the earlier pages are skipped as they are read
+                skipRows = (int) offset;
+                return "select top " + (offset + rows) + " * from (" + inner + ") jdbc_page" + where + orderBy;
+            case MYSQL:
+            case POSTGRESQL:
+            default:
+                return "select * from (" + inner + ") jdbc_page" + where + orderBy + " limit " + rows + " offset " + offset;
+        }
+    }
+
+    /**
+     * @return whether the sql has an order by of its own, outside any parentheses or quotes, without the
+     * offset or top that lets SQL Server accept it in a derived table
+     */
+    static boolean needsOffset(String sql) {
+        StringBuilder outer = new StringBuilder(sql.length());
+        int depth = 0;
+        boolean quoted = false;
+        for (char c : sql.toLowerCase().toCharArray()) {
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0) {
+                outer.append(c);
+                continue;
+            }
+            outer.append(' ');
+        }
+        String topLevel = outer.toString();
+        return ORDER_BY.matcher(topLevel).find() && !OFFSET.matcher(topLevel).find() && !TOP.matcher(topLevel).find();
+    }
+
+    /**
+     * Bind the key the page starts after, if any.
+     */
+    public void setParameters(PreparedStatement stmt) throws SQLException {
+        if (afterValue != null) {
+            stmt.setObject(1, afterValue);
+        }
+    }
+
+    private Object toKeyValue(String value) {
+        try {
+            switch (registration.keyType) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    return new BigDecimal(value);
+                case Types.DATE:
+                    return Date.valueOf(value);
+                case Types.TIMESTAMP:
+                    return Timestamp.valueOf(value);
+                default:
+                    return value;
+            }
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    /**
+     * Called by {@link JDBCPluginTable} with the column of the key, so later pages can follow it.
+     */
+    void setKeyColumn(int column, int type) {
+        registration.keyColumn = column;
+        registration.keyType = type;
+    }
+
+    void setLastKey(String lastKey) {
+        this.lastKey = lastKey;
+    }
+
+    void setHasNext(boolean hasNext) {
+        this.hasNext = hasNext;
+    }
+
+    /**
+     * @return the links to the previous and next pages
+     */
+    public String getNavigation() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("<div class=\"jdbc-pager\">");
+        if (page > 1) {
+            appendLink(buffer, "&laquo; Previous", "jdbc-previous", page - 1, sort, null);
+            buffer.append(' ');
+        }
+        buffer.append("<span class=\"jdbc-pagenumber\">Page ").append(page).append("</span>");
+        if (hasNext) {
+            buffer.append(' ');
+            appendLink(buffer, "Next &raquo;", "jdbc-next", page + 1, sort, isKeyset() ? lastKey : null);
+        }
+        buffer.append("</div>");
+        return buffer.toString();
+    }
+
+    /**
+     * @return the header label as a link sorting the table by the column, descending when already ascending
+     */
+    public String getSortLink(int column, String label) {
+        if (!sortable) {
+            return label;
+        }
+        StringBuilder buffer = new StringBuilder();
+        String className = "jdbc-sort" + ((sort == column) ? " jdbc-ascending" : (sort == -column) ? " jdbc-descending" : "");
+        appendLink(buffer, label, className, 1, (sort == column) ? -column : column, null);
+        return buffer.toString();
+    }
+
+    private void appendLink(StringBuilder buffer, String text, String className, int toPage, int toSort, String toAfter) {
+        String query = PARAM_ID + "=" + id + "&" + PARAM_PAGE + "=" + toPage
+                + ((toSort != 0) ? "&" + PARAM_SORT + "=" + toSort : "")
+                + ((toAfter != null) ? "&" + PARAM_AFTER + "=" + encode(toAfter) : "");
+        buffer.append("<a class=\"").append(className).append("\" href=\"");
+        JDBCPluginTable.escape(buffer, viewHref + (viewHref.contains("?") ? "&" : "?") + query);
+        buffer.append("\" data-fragment=\"");
+        JDBCPluginTable.escape(buffer, fragmentHref + "?" + query);
+        buffer.append("\">").append(text).append("</a>");
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public String getKeyName() {
+        return keyName;
+    }
+
+    public int getHiddenColumns() {
+        return hiddenColumns;
+    }
+
+    public int getSkipRows() {
+        return skipRows;
+    }
+
+    /**
+     * @return the state of the page, added to the cache key of the tag
+     */
+    public String getState() {
+        return page + ":" + sort + ":" + StringUtils.defaultString(after);
+    }
+}
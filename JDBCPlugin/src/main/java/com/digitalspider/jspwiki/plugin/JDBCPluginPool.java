@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.exceptions.PluginException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * The connections of one src of the {@link JDBCPlugin} and the CSVPlugin, created on first use and kept
+ * until the wiki engine shuts down. The src properties are parsed and the driver loaded once, when the
+ * pool is created, and both plugins share the pool of a src.
+ * <p>
+ * Connections opened through the DriverManager are kept open between renders. A borrower takes the most
+ * recently returned connection, validating it first when it has been idle for more than
+ * {@link #VALIDATION_BYPASS_MILLIS}, and waits up to the connection timeout when all maxPoolSize
+ * connections are in use. A JNDI DataSource is pooled by the container, so its connections are only
+ * counted. The time spent waiting for every connection is recorded.
+ */
+public class JDBCPluginPool {
+
+    private static final Logger log = Logger.getLogger(JDBCPluginPool.class);
+
+    public static final long VALIDATION_BYPASS_MILLIS = 500;
+    public static final long IDLE_TIMEOUT_MILLIS = 10L * 60 * 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private static final JDBCPluginEngineScope<Map<String, JDBCPluginPool>> pools = new JDBCPluginEngineScope<Map<String, JDBCPluginPool>>() {
+        @Override
+        protected void dispose(Map<String, JDBCPluginPool> enginePools) {
+            List<JDBCPluginPool> closing;
+            synchronized (enginePools) {
+                closing = new ArrayList<JDBCPluginPool>(enginePools.values());
+                enginePools.clear();
+            }
+            for (JDBCPluginPool pool : closing) {
+                pool.close();
+                log.info("Closed " + pool);
+            }
+        }
+    };
+
+    private static final JDBCPluginEngineScope.Factory<Map<String, JDBCPluginPool>> newPools = new JDBCPluginEngineScope.Factory<Map<String, JDBCPluginPool>>() {
+        @Override
+        public Map<String, JDBCPluginPool> create() {
+            return new HashMap<String, JDBCPluginPool>();
+        }
+    };
+
+    /**
+     * Creates the pool of a src, the first time it is used.
+     */
+    public interface Factory {
+        JDBCPluginPool create() throws PluginException;
+    }
+
+    private static class Idle {
+        final Connection connection;
+        final long lastUsedAt;
+
+        Idle(Connection connection) {
+            this.connection = connection;
+            this.lastUsedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final String source;
+    private final JDBCPlugin.SQLType sqlType;
+    private final int maxResults;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final DataSource ds;
+    private final int maxPoolSize;
+    private final long connectionTimeoutMillis;
+    private final Semaphore queryPermits;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<Idle>();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param ds the JNDI DataSource of the src, or null to connect to the url through the DriverManager
+     * @param connectionTimeoutMillis how long a borrower waits for a connection before failing
+     * @param maxParallelQueries the most queries of the src run at once by a {@link JDBCPluginBatch}
+     */
+    public JDBCPluginPool(String source, JDBCPlugin.SQLType sqlType, int maxResults, String url, String user, String password,
+                          DataSource ds, int maxPoolSize, long connectionTimeoutMillis, int maxParallelQueries) {
+        this.source = source;
+        this.sqlType = sqlType;
+        this.maxResults = maxResults;
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.ds = ds;
+        this.maxPoolSize = Math.max(maxPoolSize, 1);
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.permits = new Semaphore(this.maxPoolSize, true);
+        this.queryPermits = new Semaphore(Math.max(maxParallelQueries, 1));
+    }
+
+    /**
+     * @return the pool of the src for this engine, created by the factory on first use
+     */
+    public static JDBCPluginPool getPool(WikiEngine engine, String source, Factory factory) throws PluginException {
+        String key = StringUtils.defaultString(source);
+        Map<String, JDBCPluginPool> enginePools = pools.get(engine, newPools);
+        synchronized (enginePools) {
+            JDBCPluginPool pool = enginePools.get(key);
+            if (pool == null) {
+                pool = factory.create();
+                enginePools.put(key, pool);
+                log.info("Created " + pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Close every pool of the engine.
+     */
+    public static void closePools(WikiEngine engine) {
+        pools.close(engine);
+    }
+
+    /**
+     * @return every open pool of every engine
+     */
+    public static List<JDBCPluginPool> getPools() {
+        List<JDBCPluginPool> result = new ArrayList<JDBCPluginPool>();
+        for (Map<String, JDBCPluginPool> enginePools : pools.getAll()) {
+            synchronized (enginePools) {
+                result.addAll(enginePools.values());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Borrow a connection, waiting up to connectionTimeoutMillis when every connection is in use.
+     * Closing the connection returns it to the pool.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool for " + getName() + " is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("No connection available for " + getName() + " within "
+                        + connectionTimeoutMillis + "ms, " + getActiveConnections() + " in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection to " + getName());
+        } finally {
+            recordWait(System.nanoTime() - start);
+        }
+        try {
+            return lend(borrow());
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private void recordWait(long nanos) {
+        borrows.incrementAndGet();
+        waitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * @return the most recently returned usable connection, or a new one
+     */
+    private Connection borrow() throws SQLException {
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - entry.lastUsedAt < VALIDATION_BYPASS_MILLIS || isValid(entry.connection)) {
+                return entry.connection;
+            }
+            discard(entry.connection);
+        }
+        Connection conn;
+        if (ds != null) {
+            conn = ds.getConnection();
+        } else if (StringUtils.isBlank(user) && StringUtils.isBlank(password)) {
+            conn = DriverManager.getConnection(url);
+        } else {
+            conn = DriverManager.getConnection(url, user, password);
+        }
+        if (conn == null) {
+            throw new SQLException("Could not create connection for url=" + url + " user=" + user);
+        }
+        created.incrementAndGet();
+        return conn;
+    }
+
+    private boolean isValid(Connection conn) {
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            log.warn("Closing broken connection to " + getName() + ". " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void discard(Connection conn) {
+        discarded.incrementAndGet();
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            log.debug("Error closing connection to " + getName() + ". " + e.getMessage());
+        }
+    }
+
+    private Connection lend(Connection conn) {
+        return (Connection) Proxy.newProxyInstance(JDBCPluginPool.class.getClassLoader(), new Class<?>[] { Connection.class },
+                new PooledConnection(conn));
+    }
+
+    /**
+     * The connection handed to the borrower. Closing it returns the physical connection to the pool,
+     * after which every other call fails.
+     */
+    private class PooledConnection implements InvocationHandler {
+        private final Connection connection;
+        private boolean returned = false;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!returned) {
+                    returned = true;
+                    release(connection);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return returned || connection.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "JDBCPluginPool connection to " + getName() + (returned ? " (returned)" : "");
+            }
+            if (returned) {
+                throw new SQLException("Connection has been returned to the pool");
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Return a connection, rolling back anything left uncommitted, and close connections idle for
+     * longer than {@link #IDLE_TIMEOUT_MILLIS}. A DataSource connection goes back to the container.
+     */
+    private void release(Connection conn) {
+        try {
+            if (ds != null || closed) {
+                conn.close();
+                return;
+            }
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                idle.offerFirst(new Idle(conn));
+            } catch (SQLException e) {
+                log.warn("Closing connection to " + getName() + " which could not be reset. " + e.getMessage());
+                discard(conn);
+            }
+            Idle oldest;
+            while ((oldest = idle.peekLast()) != null && System.currentTimeMillis() - oldest.lastUsedAt > IDLE_TIMEOUT_MILLIS) {
+                if (idle.removeLastOccurrence(oldest)) {
+                    discard(oldest.connection);
+                }
+            }
+        } catch (SQLException e) {
+            log.debug("Error closing connection to " + getName() + ". " + e.getMessage());
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close the idle connections, and the connections in use as they are returned.
+     */
+    public void close() {
+        closed = true;
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            discard(entry.connection);
+        }
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public JDBCPlugin.SQLType getSqlType() {
+        return sqlType;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public long getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    /**
+     * @return the permits of the queries of this src run by a {@link JDBCPluginBatch}
+     */
+    public Semaphore getQueryPermits() {
+        return queryPermits;
+    }
+
+    public int getActiveConnections() {
+        return maxPoolSize - permits.availablePermits();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the mean time a borrower waited for a free slot in the pool
+     */
+    public double getMeanWaitMillis() {
+        long count = borrows.get();
+        return (count == 0) ? 0 : waitNanos.get() / 1000000.0 / count;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    private String getName() {
+        return (ds != null) ? "jdbc/" + source : url;
+    }
+
+    @Override
+    public String toString() {
+        return "JDBCPluginPool[src=" + source + " " + getName() + " active=" + getActiveConnections() + " idle="
+                + getIdleConnections() + " borrows=" + getBorrows() + " created=" + getCreated() + " discarded="
+                + getDiscarded() + " timeouts=" + getTimeouts() + " meanWaitMs=" + String.format("%.3f", getMeanWaitMillis())
+                + " maxWaitMs=" + String.format("%.3f", getMaxWaitMillis()) + "]";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.PluginException;
+import org.apache.wiki.auth.permissions.PermissionFactory;
+
+/**
+ * Renders one page of a paged {@link JDBCPlugin} table, so the next page or another sort order can be
+ * loaded without rendering the whole wiki page again. The table is found by the jdbcid parameter its
+ * links carry, and the reader needs view permission on the wiki page the table is on.
+ * <p>
+ * Map it to /jdbcplugin in the web.xml of the wiki.
+ */
+public class JDBCPluginServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = Logger.getLogger(JDBCPluginServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        WikiEngine engine = WikiEngine.getInstance(getServletConfig());
+        JDBCPluginPager.Registration registration = JDBCPluginPager.getRegistration(engine,
+                request.getParameter(JDBCPluginPager.PARAM_ID));
+        if (registration == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such table");
+            return;
+        }
+        WikiPage page = engine.getPage(registration.getPageName());
+        if (page == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such page");
+            return;
+        }
+        WikiContext wikiContext = new WikiContext(engine, request, page);
+        if (!engine.getAuthorizationManager().checkPermission(wikiContext.getWikiSession(),
+                PermissionFactory.getPagePermission(page, "view"))) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        String result;
+        try {
+            result = new JDBCPlugin().renderFragment(wikiContext, registration.getParams());
+        } catch (PluginException e) {
+            log.error(e.getMessage(), e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        response.setContentType("text/html; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(result);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+
+/**
+ * Writes a ResultSet straight to an HTML table, with the same markup and CSS classes JSPWiki renders
+ * for a wiki table, instead of building wiki markup and parsing it again. Cell values are escaped, so a
+ * value containing | or [ stays in its cell and is never turned into a link or plugin.
+ * <p>
+ * Values are formatted by their column type: numbers get the "number" class and are written in plain
+ * notation, timestamps to the second, binary values as their size, and NULL as an empty cell of the
+ * "null" class. Once the table is longer than maxChars the remaining rows are dropped and a last row
+ * says how many rows were shown.
+ * <p>
+ * With a {@link JDBCPluginPager}, only the rows of its page are written, the header labels link to the
+ * sorted table, and the pager learns whether there is a next page and the key of the last row.
+ */
+public class JDBCPluginTable {
+
+    public static final String TABLE_START = "<table class=\"wikitable\" border=\"1\">";
+    public static final String TABLE_END = "</table>";
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private final boolean header;
+    private final int maxChars;
+    private final JDBCPluginPager pager;
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * @param header whether to write the column labels as the first row
+     * @param maxChars the most characters of HTML written before the remaining rows are dropped
+     */
+    public JDBCPluginTable(boolean header, int maxChars) {
+        this(header, maxChars, null);
+    }
+
+    /**
+     * @param pager the page of the result to write, or null for every row
+     */
+    public JDBCPluginTable(boolean header, int maxChars, JDBCPluginPager pager) {
+        this.header = header;
+        this.maxChars = maxChars;
+        this.pager = pager;
+    }
+
+    /**
+     * Write every remaining row of the result set.
+     */
+    public String write(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        int columns = md.getColumnCount() - ((pager != null) ? pager.getHiddenColumns() : 0);
+        int[] types = new int[columns];
+        int keyColumn = 0;
+        for (int i = 0; i < columns; i++) {
+            types[i] = md.getColumnType(i + 1);
+            if (pager != null && md.getColumnLabel(i + 1).equalsIgnoreCase(pager.getKeyName())) {
+                keyColumn = i + 1;
+                pager.setKeyColumn(keyColumn, types[i]);
+            }
+        }
+        int maxRows = Integer.MAX_VALUE;
+        if (pager != null) {
+            maxRows = pager.getPageSize();
+            for (int i = 0; i < pager.getSkipRows() && rs.next(); i++) {
+                // an earlier page
+            }
+        }
+        StringBuilder buffer = new StringBuilder(Math.min(Math.max(maxChars, 0) + 256, INITIAL_CAPACITY));
+        buffer.append(TABLE_START);
+        int row = 0;
+        if (header) {
+            startRow(buffer, ++row);
+            for (int i = 0; i < columns; i++) {
+                buffer.append("<th>");
+                StringBuilder label = new StringBuilder();
+                escape(label, md.getColumnLabel(i + 1));
+                buffer.append((pager != null) ? pager.getSortLink(i + 1, label.toString()) : label);
+                buffer.append("</th>");
+            }
+            buffer.append("</tr>\n");
+        }
+        int rows = 0;
+        while (rs.next()) {
+            if (rows == maxRows) {
+                pager.setHasNext(true);
+                break;
+            }
+            int rowStart = buffer.length();
+            startRow(buffer, ++row);
+            for (int i = 0; i < columns; i++) {
+                writeCell(buffer, rs, i + 1, types[i]);
+            }
+            buffer.append("</tr>\n");
+            if (buffer.length() > maxChars) {
+                buffer.setLength(rowStart);
+                startRow(buffer, row);
+                buffer.append("<td class=\"truncated\" colspan=\"").append(columns).append("\">Showing the first ")
+                        .append(rows).append(" rows</td></tr>\n");
+                break;
+            }
+            rows++;
+            if (keyColumn > 0) {
+                pager.setLastKey(rs.getString(keyColumn));
+            }
+        }
+        buffer.append(TABLE_END);
+        return buffer.toString();
+    }
+
+    private void startRow(StringBuilder buffer, int row) {
+        buffer.append(row % 2 == 1 ? "<tr class=\"odd\">" : "<tr>");
+    }
+
+    private void writeCell(StringBuilder buffer, ResultSet rs, int column, int type) throws SQLException {
+        String value;
+        boolean number = false;
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                long longValue = rs.getLong(column);
+                value = rs.wasNull() ? null : String.valueOf(longValue);
+                number = true;
+                break;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                BigDecimal decimal = rs.getBigDecimal(column);
+                value = (decimal == null) ? null : decimal.toPlainString();
+                number = true;
+                break;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                double doubleValue = rs.getDouble(column);
+                value = rs.wasNull() ? null : String.valueOf(doubleValue);
+                number = true;
+                break;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                boolean booleanValue = rs.getBoolean(column);
+                value = rs.wasNull() ? null : String.valueOf(booleanValue);
+                break;
+            case Types.TIMESTAMP:
+                Timestamp timestamp = rs.getTimestamp(column);
+                value = (timestamp == null) ? null : timestampFormat.format(timestamp);
+                break;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                byte[] bytes = rs.getBytes(column);
+                value = (bytes == null) ? null : bytes.length + " bytes";
+                break;
+            case Types.BLOB:
+                Blob blob = rs.getBlob(column);
+                value = (blob == null) ? null : blob.length() + " bytes";
+                break;
+            default:
+                // DATE and TIME print as yyyy-mm-dd and hh:mm:ss
+                value = rs.getString(column);
+        }
+        if (value == null) {
+            buffer.append("<td class=\"null\"></td>");
+            return;
+        }
+        buffer.append(number ? "<td class=\"number\">" : "<td>");
+        escape(buffer, value);
+        buffer.append("</td>");
+    }
+
+    static void escape(StringBuilder buffer, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    buffer.append("&amp;");
+                    break;
+                case '<':
+                    buffer.append("&lt;");
+                    break;
+                case '>':
+                    buffer.append("&gt;");
+                    break;
+                case '"':
+                    buffer.append("&quot;");
+                    break;
+                case '\'':
+                    buffer.append("&#39;");
+                    break;
+                default:
+                    buffer.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.api.exceptions.PluginException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JDBCPluginBatchTest extends TestCase {
+
+    private static final int QUERY_MILLIS = 300;
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicInteger maxRunning = new AtomicInteger();
+    private static final AtomicInteger calls = new AtomicInteger();
+
+    private WikiEngine engine;
+
+    /**
+     * Called by the queries as track(id), counting the queries running at once.
+     */
+    public static int track(int id) throws InterruptedException {
+        calls.incrementAndGet();
+        int now = running.incrementAndGet();
+        int max = maxRunning.get();
+        while (now > max && !maxRunning.compareAndSet(max, now)) {
+            max = maxRunning.get();
+        }
+        try {
+            Thread.sleep(QUERY_MILLIS);
+            return id;
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.parallel", "true");
+        properties.setProperty("jdbc.parallel.perpage", "4");
+        engine = JDBCPluginTest.createEngine(properties);
+        running.set(0);
+        maxRunning.set(0);
+        calls.set(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        JDBCPluginTest.shutdown(engine);
+    }
+
+    /**
+     * @return a src whose pool runs at most maxParallelQueries queries of a batch at once
+     */
+    private String createSource(final int maxParallelQueries, final long connectionTimeoutMillis) throws Exception {
+        final String src = JDBCPluginTest.createDatabase(1);
+        JDBCPluginTest.execute(src, "create alias track for \"" + JDBCPluginBatchTest.class.getName() + ".track\"");
+        JDBCPluginPool.getPool(engine, src, new JDBCPluginPool.Factory() {
+            @Override
+            public JDBCPluginPool create() {
+                return new JDBCPluginPool(src, JDBCPlugin.SQLType.MYSQL, 50, JDBCPluginTest.getUrl(src), "", "", null,
+                        10, connectionTimeoutMillis, maxParallelQueries);
+            }
+        });
+        return src;
+    }
+
+    /**
+     * Save a page with a tag for each src, numbered in page order, and render every tag of it.
+     *
+     * @return the HTML of every tag
+     */
+    private List<String> renderPage(String... sources) throws Exception {
+        String pageName = "Batch" + System.nanoTime();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < sources.length; i++) {
+            text.append("[{JDBCPlugin src='").append(sources[i]).append("' sql='select track(").append(i).append(")'}]\n");
+        }
+        engine.saveText(JDBCPluginTest.createContext(engine, pageName), text.toString());
+        // viewed in a request of its own, as saving renders the page too
+        WikiContext context = JDBCPluginTest.createContext(engine, pageName);
+        maxRunning.set(0);
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < sources.length; i++) {
+            Map<String, String> params = JDBCPluginTest.params("src", sources[i], "sql", "select track(" + i + ")");
+            result.add(new JDBCPluginTest.H2Plugin().execute(context, params));
+        }
+        return result;
+    }
+
+    public void testQueriesOfAPageRunTogether() throws Exception {
+        String src = createSource(10, 1000);
+        long start = System.currentTimeMillis();
+        List<String> tables = renderPage(src, src, src, src);
+
+        assertEquals(4, maxRunning.get());
+        assertTrue(System.currentTimeMillis() - start < 4 * QUERY_MILLIS);
+        for (int i = 0; i < tables.size(); i++) {
+            assertTrue(tables.get(i), tables.get(i).contains("<td class=\"number\">" + i + "</td>"));
+        }
+    }
+
+    public void testTagsShownAsTextAreNotRun() throws Exception {
+        String src = createSource(10, 1000);
+        String pageName = "Examples" + System.nanoTime();
+        String tag = "[{JDBCPlugin src='" + src + "' sql='select track(%d)'}]";
+        String text = String.format(tag, 0) + "\n{{{\n" + String.format(tag, 1) + "\n}}}\n[" + String.format(tag, 2)
+                + "\n[[" + String.format(tag, 3) + "\n{{{" + String.format(tag, 4);
+        engine.saveText(JDBCPluginTest.createContext(engine, pageName), text);
+        Thread.sleep(2 * QUERY_MILLIS);
+        calls.set(0);
+
+        String table = new JDBCPluginTest.H2Plugin().execute(JDBCPluginTest.createContext(engine, pageName),
+                JDBCPluginTest.params("src", src, "sql", "select track(0)"));
+        assertTrue(table, table.contains("<td class=\"number\">0</td>"));
+        Thread.sleep(2 * QUERY_MILLIS);
+        // only the tag itself, and the one after the [[ escaping a [, ran
+        assertEquals(2, calls.get());
+
+        assertTrue(JDBCPluginBatch.isEscaped("a [[{JDBCPlugin}]", 3));
+        assertFalse(JDBCPluginBatch.isEscaped("a [[[{JDBCPlugin}]", 4));
+        assertFalse(JDBCPluginBatch.isEscaped("[{JDBCPlugin}]", 0));
+    }
+
+    public void testQueriesOfAPageAreLimitedPerPage() throws Exception {
+        String first = createSource(10, 1000);
+        String second = createSource(10, 1000);
+        renderPage(first, second, first, second, first, second, first, second);
+
+        assertEquals(4, maxRunning.get());
+    }
+
+    public void testQueriesOfASrcAreLimitedPerSrc() throws Exception {
+        String src = createSource(2, 5000);
+        renderPage(src, src, src, src, src, src);
+
+        assertEquals(2, maxRunning.get());
+    }
+
+    public void testTagFailsWhenItsSrcStaysBusy() throws Exception {
+        String src = createSource(1, 100);
+        Semaphore permits = JDBCPluginPool.getPool(engine, src, null).getQueryPermits();
+        permits.acquire();
+        try {
+            renderPage(src);
+            fail("The src has no free query slot");
+        } catch (PluginException e) {
+            assertEquals("No query of src " + src + " could start within 100ms", e.getMessage());
+        } finally {
+            permits.release();
+        }
+        assertEquals(1, permits.availablePermits());
+    }
+
+    public void testExecutorIsShutDownWithTheEngine() throws Exception {
+        String src = createSource(10, 1000);
+        renderPage(src);
+        ThreadPoolExecutor executor = JDBCPluginBatch.getExecutor(engine, 1);
+
+        JDBCPluginTest.shutdown(engine);
+        assertTrue(executor.isShutdown());
+        assertNotSame(executor, JDBCPluginBatch.getExecutor(engine, 1));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JDBCPluginCacheTest extends TestCase {
+
+    private static final long TTL = 500;
+
+    /**
+     * Counts its loads, returning the load number in the HTML.
+     */
+    private static class CountingLoader implements JDBCPluginCache.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loaded = new CountDownLatch(2);
+
+        @Override
+        public String load() {
+            try {
+                return "html" + loads.incrementAndGet();
+            } finally {
+                loaded.countDown();
+            }
+        }
+    }
+
+    public void testHit() throws Exception {
+        JDBCPluginCache cache = new JDBCPluginCache(1024 * 1024);
+        CountingLoader loader = new CountingLoader();
+        assertEquals("html1", cache.get("key", TTL, loader));
+        assertEquals("html1", cache.get("key", TTL, loader));
+        assertEquals(1, loader.loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testKeyNormalisesWhitespaceOutsideQuotes() {
+        assertEquals(JDBCPluginCache.key("src", "select *\n  from people;"), JDBCPluginCache.key("src", " select * from people "));
+        assertFalse(JDBCPluginCache.key("src", "select * from people where name = 'a  b'")
+                .equals(JDBCPluginCache.key("src", "select * from people where name = 'a b'")));
+        assertEquals(JDBCPluginCache.key("src", "select 'it''s  here',  \"a  b\" from t"),
+                JDBCPluginCache.key("src", "select  'it''s  here', \"a  b\"\tfrom t"));
+        assertFalse(JDBCPluginCache.key("src", "select 1").equals(JDBCPluginCache.key("other", "select 1")));
+    }
+
+    public void testStaleIsServedWhileRefreshed() throws Exception {
+        JDBCPluginCache cache = new JDBCPluginCache(1024 * 1024);
+        CountingLoader loader = new CountingLoader();
+        cache.get("key", TTL, loader);
+        Thread.sleep(TTL + 100);
+
+        assertEquals("html1", cache.get("key", TTL, loader));
+        assertEquals(1, cache.getStaleHits());
+        assertTrue(loader.loaded.await(5, TimeUnit.SECONDS));
+        waitForRefresh(cache, "key");
+        assertEquals("html2", cache.get("key", TTL, loader));
+        assertEquals(2, loader.loads.get());
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testExpiresAtTwiceTheTtl() throws Exception {
+        JDBCPluginCache cache = new JDBCPluginCache(1024 * 1024);
+        CountingLoader loader = new CountingLoader();
+        cache.get("key", TTL, loader);
+        Thread.sleep(2 * TTL + 100);
+
+        assertEquals("html2", cache.get("key", TTL, loader));
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getStaleHits());
+    }
+
+    public void testRejectedRefreshIsTriedAgain() throws Exception {
+        JDBCPluginCache cache = new JDBCPluginCache(1024 * 1024);
+        CountingLoader loader = new CountingLoader();
+        cache.get("key", TTL, loader);
+        cache.close();
+        cache.put("key", "html1");
+        Thread.sleep(TTL + 100);
+
+        // the closed cache rejects the refresh, which must not leave the entry marked as refreshing
+        assertEquals("html1", cache.get("key", TTL, loader));
+        assertFalse(cache.isRefreshing("key"));
+        assertEquals(1, loader.loads.get());
+    }
+
+    public void testLeastRecentlyUsedAreEvictedOverMaxBytes() throws Exception {
+        String html = new String(new char[100]).replace('\0', 'x');
+        JDBCPluginCache probe = new JDBCPluginCache(1024 * 1024);
+        probe.put("a", html);
+        long entryBytes = probe.getBytes();
+
+        JDBCPluginCache cache = new JDBCPluginCache(3 * entryBytes);
+        cache.put("a", html);
+        cache.put("b", html);
+        cache.put("c", html);
+        assertEquals(3 * entryBytes, cache.getBytes());
+        CountingLoader loader = new CountingLoader();
+        cache.get("a", TTL, loader);
+        cache.put("d", html);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3 * entryBytes, cache.getBytes());
+        assertEquals(html, cache.get("a", TTL, loader));
+        assertEquals(html, cache.get("d", TTL, loader));
+        assertEquals("html1", cache.get("b", TTL, loader));
+    }
+
+    public void testEntryLargerThanTheCacheIsNotKept() {
+        JDBCPluginCache cache = new JDBCPluginCache(64);
+        cache.put("key", "a table far larger than the whole cache");
+        assertEquals(0, cache.getBytes());
+    }
+
+    private void waitForRefresh(JDBCPluginCache cache, String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.isRefreshing(key) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(cache.isRefreshing(key));
+    }
+}
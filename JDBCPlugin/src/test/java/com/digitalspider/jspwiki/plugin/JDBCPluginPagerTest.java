@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+
+import java.sql.Types;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class JDBCPluginPagerTest extends TestCase {
+
+    private static final String SQL = "select id, name from people";
+    private static final Pattern ID = Pattern.compile("id='jdbc-([0-9a-f]+)'");
+
+    private WikiEngine engine;
+    private String src;
+
+    @Override
+    protected void setUp() throws Exception {
+        engine = JDBCPluginTest.createEngine(new Properties());
+        src = JDBCPluginTest.createDatabase(25);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        JDBCPluginTest.shutdown(engine);
+    }
+
+    /**
+     * @return a pager of ten rows, for the request with the given page, sort and key to start after
+     */
+    private JDBCPluginPager createPager(String keyName, String page, String sort, String after) throws Exception {
+        String id = JDBCPluginPager.createId("Main", "query");
+        Map<String, String> httpParams = JDBCPluginTest.params(JDBCPluginPager.PARAM_ID, id, JDBCPluginPager.PARAM_PAGE, page);
+        if (sort != null) {
+            httpParams.put(JDBCPluginPager.PARAM_SORT, sort);
+        }
+        if (after != null) {
+            httpParams.put(JDBCPluginPager.PARAM_AFTER, after);
+        }
+        WikiContext context = JDBCPluginTest.createContext(engine, "Main", httpParams);
+        return new JDBCPluginPager(context, JDBCPluginTest.params("sql", SQL), "query", 10, keyName, true);
+    }
+
+    public void testSqlOfEachType() throws Exception {
+        JDBCPluginPager pager = createPager(null, "2", null, null);
+        assertEquals("select * from (" + SQL + ") jdbc_page limit 11 offset 10", pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL + ";"));
+        assertEquals("select * from (" + SQL + ") jdbc_page limit 11 offset 10", pager.getSql(JDBCPlugin.SQLType.POSTGRESQL, SQL));
+        assertEquals("select * from (" + SQL + ") jdbc_page order by (select null) offset 10 rows fetch next 11 rows only",
+                pager.getSql(JDBCPlugin.SQLType.MSSQL, SQL));
+        assertEquals("select * from (select jdbc_page.*, ROWNUM jdbc_rownum from (select * from (" + SQL
+                + ") jdbc_inner) jdbc_page where ROWNUM <= 21) where jdbc_rownum > 10", pager.getSql(JDBCPlugin.SQLType.ORACLE, SQL));
+        assertEquals(1, pager.getHiddenColumns());
+        assertEquals("select * from (select jdbc_inner.*, ROW_NUMBER() OVER () jdbc_rownum from (" + SQL
+                + ") jdbc_inner) jdbc_page where jdbc_rownum > 10 and jdbc_rownum <= 21 order by jdbc_rownum",
+                pager.getSql(JDBCPlugin.SQLType.DB2, SQL));
+        assertEquals(1, pager.getHiddenColumns());
+        assertEquals("select top 21 * from (" + SQL + ") jdbc_page", pager.getSql(JDBCPlugin.SQLType.SYBASE, SQL));
+        assertEquals(0, pager.getHiddenColumns());
+        assertEquals(10, pager.getSkipRows());
+    }
+
+    public void testPageOutOfRange() throws Exception {
+        assertEquals("select * from (" + SQL + ") jdbc_page limit 11 offset 0",
+                createPager(null, "99999999999", null, null).getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+        assertEquals("select * from (" + SQL + ") jdbc_page limit 11 offset 0",
+                createPager(null, "-3", null, null).getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+        // the offset and the rows read up to the end of the page stay positive
+        JDBCPluginPager pager = createPager(null, "999999999", null, null);
+        assertEquals("select * from (" + SQL + ") jdbc_page limit 11 offset 2147483630",
+                pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+        assertEquals("select top 2147483641 * from (" + SQL + ") jdbc_page", pager.getSql(JDBCPlugin.SQLType.SYBASE, SQL));
+        assertEquals(2147483630, pager.getSkipRows());
+    }
+
+    public void testSqlOfASortedPage() throws Exception {
+        JDBCPluginPager pager = createPager(null, "3", "-2", null);
+        assertEquals("select * from (" + SQL + ") jdbc_page order by 2 desc limit 11 offset 20", pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+        assertEquals("select * from (" + SQL + ") jdbc_page order by 2 desc offset 20 rows fetch next 11 rows only",
+                pager.getSql(JDBCPlugin.SQLType.MSSQL, SQL));
+    }
+
+    public void testMssqlKeepsTheOrderByOfTheTagSql() throws Exception {
+        JDBCPluginPager pager = createPager(null, "2", null, null);
+        assertEquals(SQL + " order by name offset 10 rows fetch next 11 rows only",
+                pager.getSql(JDBCPlugin.SQLType.MSSQL, SQL + " order by name;"));
+        pager = createPager(null, "2", "1", null);
+        assertEquals("select * from (" + SQL + " order by name offset 0 rows) jdbc_page order by 1 offset 10 rows fetch next 11 rows only",
+                pager.getSql(JDBCPlugin.SQLType.MSSQL, SQL + " order by name"));
+        assertEquals("select * from (" + SQL + " order by name) jdbc_page order by 1 limit 11 offset 10",
+                pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL + " order by name"));
+
+        assertTrue(JDBCPluginPager.needsOffset("select a from t ORDER\n BY a"));
+        assertFalse(JDBCPluginPager.needsOffset("select a from t"));
+        assertFalse(JDBCPluginPager.needsOffset("select top 10 a from t order by a"));
+        assertFalse(JDBCPluginPager.needsOffset("select a from t order by a offset 5 rows"));
+        assertFalse(JDBCPluginPager.needsOffset("select a, (select top 1 b from u order by b) from t"));
+        assertFalse(JDBCPluginPager.needsOffset("select a from t where b = 'order by'"));
+    }
+
+    public void testKeysetSql() throws Exception {
+        JDBCPluginPager pager = createPager("id", "2", null, "10");
+        // until a render has found the key column, pages are found by offset in the order of the key
+        assertEquals("select * from (" + SQL + ") jdbc_page order by id limit 11 offset 10",
+                pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+
+        pager.setKeyColumn(1, Types.INTEGER);
+        pager = createPager("id", "2", null, "10");
+        assertEquals("select * from (" + SQL + ") jdbc_page where id > ? order by id limit 11 offset 0",
+                pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+        pager = createPager("id", "2", "-1", "16");
+        assertEquals("select * from (" + SQL + ") jdbc_page where id < ? order by 1 desc limit 11 offset 0",
+                pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+        // sorted by another column, pages are found by offset again
+        pager = createPager("id", "2", "2", "10");
+        assertEquals("select * from (" + SQL + ") jdbc_page order by 2 limit 11 offset 10",
+                pager.getSql(JDBCPlugin.SQLType.MYSQL, SQL));
+    }
+
+    private String render(JDBCPlugin plugin, String sql, String keyName, String page, String after, String id) throws Exception {
+        Map<String, String> httpParams = JDBCPluginTest.params(JDBCPluginPager.PARAM_PAGE, page);
+        if (id != null) {
+            httpParams.put(JDBCPluginPager.PARAM_ID, id);
+        }
+        if (after != null) {
+            httpParams.put(JDBCPluginPager.PARAM_AFTER, after);
+        }
+        Map<String, String> params = JDBCPluginTest.params("src", src, "sql", sql, "pagesize", "10");
+        if (keyName != null) {
+            params.put("key", keyName);
+        }
+        return plugin.renderFragment(JDBCPluginTest.createContext(engine, "Main", httpParams), params);
+    }
+
+    private static String getId(String html) {
+        Matcher matcher = ID.matcher(html);
+        assertTrue(html, matcher.find());
+        return matcher.group(1);
+    }
+
+    private static void assertRows(String html, int first, int last) {
+        for (int i = 1; i <= 25; i++) {
+            boolean shown = html.contains("<td>name" + i + "</td>");
+            assertEquals("row " + i + " in " + html, i >= first && i <= last, shown);
+        }
+    }
+
+    public void testOffsetPagingOfEachType() throws Exception {
+        for (JDBCPlugin.SQLType sqlType : JDBCPlugin.SQLType.values()) {
+            JDBCPluginPool.closePools(engine);
+            JDBCPluginTest.H2Plugin plugin = new JDBCPluginTest.H2Plugin(sqlType);
+            String html = render(plugin, SQL + " order by id", null, "1", null, null);
+            assertRows(html, 1, 10);
+            assertTrue(html, html.contains("jdbc-next"));
+            String id = getId(html);
+
+            html = render(new JDBCPluginTest.H2Plugin(sqlType), SQL + " order by id", null, "2", null, id);
+            assertRows(html, 11, 20);
+            assertTrue(html, html.contains("jdbc-previous"));
+            assertFalse(html, html.contains("jdbc_rownum") || html.contains("JDBC_ROWNUM"));
+
+            html = render(new JDBCPluginTest.H2Plugin(sqlType), SQL + " order by id", null, "3", null, id);
+            assertRows(html, 21, 25);
+            assertFalse(sqlType + " " + html, html.contains("jdbc-next"));
+        }
+    }
+
+    public void testKeysetPaging() throws Exception {
+        String html = render(new JDBCPluginTest.H2Plugin(), SQL, "id", "1", null, null);
+        assertRows(html, 1, 10);
+        assertTrue(html, html.contains(JDBCPluginPager.PARAM_AFTER + "=10"));
+        String id = getId(html);
+
+        JDBCPluginTest.execute(src, "delete from people where id <= 5");
+        html = render(new JDBCPluginTest.H2Plugin(), SQL, "id", "2", "10", id);
+        // the page starts after the last key shown, however many rows before it have gone
+        assertRows(html, 11, 20);
+        assertTrue(html, html.contains(JDBCPluginPager.PARAM_AFTER + "=20"));
+
+        html = render(new JDBCPluginTest.H2Plugin(), SQL, "id", "3", "20", id);
+        assertRows(html, 21, 25);
+        assertFalse(html, html.contains("jdbc-next"));
+    }
+
+    public void testRegistrationsArePerEngine() throws Exception {
+        String id = getId(render(new JDBCPluginTest.H2Plugin(), SQL, null, "1", null, null));
+        assertEquals("Main", JDBCPluginPager.getRegistration(engine, id).getPageName());
+        assertEquals(SQL, JDBCPluginPager.getRegistration(engine, id).getParams().get("sql"));
+
+        WikiEngine other = JDBCPluginTest.createEngine(new Properties());
+        try {
+            assertNull(JDBCPluginPager.getRegistration(other, id));
+        } finally {
+            JDBCPluginTest.shutdown(other);
+        }
+        JDBCPluginTest.shutdown(engine);
+        assertNull(JDBCPluginPager.getRegistration(engine, id));
+    }
+}
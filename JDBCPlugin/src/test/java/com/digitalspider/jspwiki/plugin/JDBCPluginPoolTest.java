@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+
+public class JDBCPluginPoolTest extends TestCase {
+
+    private WikiEngine engine;
+    private String src;
+
+    @Override
+    protected void setUp() throws Exception {
+        engine = JDBCPluginTest.createEngine(new Properties());
+        src = JDBCPluginTest.createDatabase(3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        JDBCPluginTest.shutdown(engine);
+    }
+
+    private String render(WikiEngine engine, String src) throws Exception {
+        WikiContext context = JDBCPluginTest.createContext(engine, "Main");
+        return new JDBCPluginTest.H2Plugin().execute(context, JDBCPluginTest.params("src", src, "sql", "select name from people"));
+    }
+
+    public void testPoolIsReusedPerSrc() throws Exception {
+        render(engine, src);
+        JDBCPluginPool pool = JDBCPluginPool.getPool(engine, src, null);
+        render(engine, src);
+        render(engine, src);
+
+        assertSame(pool, JDBCPluginPool.getPool(engine, src, null));
+        assertEquals(3, pool.getBorrows());
+        assertEquals(1, pool.getCreated());
+        assertEquals(1, pool.getIdleConnections());
+        assertEquals(0, pool.getActiveConnections());
+
+        String other = JDBCPluginTest.createDatabase(1);
+        render(engine, other);
+        assertNotSame(pool, JDBCPluginPool.getPool(engine, other, null));
+        assertTrue(JDBCPluginPool.getPools().contains(pool));
+    }
+
+    public void testEachEngineHasItsOwnPools() throws Exception {
+        render(engine, src);
+        WikiEngine other = JDBCPluginTest.createEngine(new Properties());
+        try {
+            render(other, src);
+            assertNotSame(JDBCPluginPool.getPool(engine, src, null), JDBCPluginPool.getPool(other, src, null));
+        } finally {
+            JDBCPluginTest.shutdown(other);
+        }
+    }
+
+    public void testPoolsAreClosedOnShutdown() throws Exception {
+        render(engine, src);
+        JDBCPluginPool pool = JDBCPluginPool.getPool(engine, src, null);
+        Connection held = pool.getConnection();
+        render(engine, src);
+        assertEquals(1, pool.getIdleConnections());
+
+        JDBCPluginTest.shutdown(engine);
+        assertFalse(JDBCPluginPool.getPools().contains(pool));
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(1, pool.getDiscarded());
+        try {
+            pool.getConnection();
+            fail("A closed pool must not lend connections");
+        } catch (SQLException e) {
+            // expected
+        }
+        held.close();
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(0, pool.getActiveConnections());
+        assertNotSame(pool, JDBCPluginPool.getPool(engine, src, new JDBCPluginPool.Factory() {
+            @Override
+            public JDBCPluginPool create() {
+                return new JDBCPluginTest.H2Plugin().createPool(null, src);
+            }
+        }));
+    }
+
+    public void testBorrowerWaitsForTheConnectionTimeout() throws Exception {
+        JDBCPluginPool pool = new JDBCPluginPool(src, JDBCPlugin.SQLType.MYSQL, 50, JDBCPluginTest.getUrl(src), "", "",
+                null, 1, 100, 1);
+        Connection held = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("The pool has a single connection");
+        } catch (SQLTimeoutException e) {
+            assertEquals(1, pool.getTimeouts());
+        } finally {
+            held.close();
+            pool.close();
+        }
+    }
+
+    public void testReturnedConnectionCannotBeUsed() throws Exception {
+        JDBCPluginPool pool = new JDBCPluginPool(src, JDBCPlugin.SQLType.MYSQL, 50, JDBCPluginTest.getUrl(src), "", "",
+                null, 1, 100, 1);
+        Connection conn = pool.getConnection();
+        conn.close();
+        assertTrue(conn.isClosed());
+        try {
+            conn.createStatement();
+            fail("A returned connection must not be usable");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(1, pool.getIdleConnections());
+        pool.close();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+public class JDBCPluginTableTest extends TestCase {
+
+    private String src;
+
+    @Override
+    protected void setUp() throws Exception {
+        src = JDBCPluginTest.createDatabase(5);
+        JDBCPluginTest.execute(src, "create table cells (id int primary key, text varchar(50), amount decimal(10,2), ratio double, note varchar(50))");
+        JDBCPluginTest.execute(src, "insert into cells values (1, '<b>Tom & Jerry</b>', 1234567.50, 0.5, null)");
+        JDBCPluginTest.execute(src, "insert into cells values (2, '[{Plugin}] | x', null, null, '''quoted''')");
+    }
+
+    private String write(boolean header, int maxChars, String sql) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(JDBCPluginTest.getUrl(src));
+             ResultSet rs = conn.createStatement().executeQuery(sql)) {
+            return new JDBCPluginTable(header, maxChars).write(rs);
+        }
+    }
+
+    public void testValuesAreEscaped() throws Exception {
+        String html = write(false, 100000, "select text, note from cells order by id");
+        assertEquals(JDBCPluginTable.TABLE_START
+                + "<tr class=\"odd\"><td>&lt;b&gt;Tom &amp; Jerry&lt;/b&gt;</td><td class=\"null\"></td></tr>\n"
+                + "<tr><td>[{Plugin}] | x</td><td>&#39;quoted&#39;</td></tr>\n"
+                + JDBCPluginTable.TABLE_END, html);
+    }
+
+    public void testHeaderLabelsAreEscaped() throws Exception {
+        String html = write(true, 100000, "select text as \"a<b|c\" from cells where id = 1");
+        assertTrue(html, html.startsWith(JDBCPluginTable.TABLE_START + "<tr class=\"odd\"><th>a&lt;b|c</th></tr>\n"));
+    }
+
+    public void testNullAndNumberCells() throws Exception {
+        String html = write(false, 100000, "select id, amount, ratio from cells order by id");
+        assertEquals(JDBCPluginTable.TABLE_START
+                + "<tr class=\"odd\"><td class=\"number\">1</td><td class=\"number\">1234567.50</td><td class=\"number\">0.5</td></tr>\n"
+                + "<tr><td class=\"number\">2</td><td class=\"null\"></td><td class=\"null\"></td></tr>\n"
+                + JDBCPluginTable.TABLE_END, html);
+    }
+
+    public void testRowsOverMaxCharsAreDropped() throws Exception {
+        String all = write(false, 100000, "select id, name from people order by id");
+        int rowLength = "<tr><td class=\"number\">1</td><td>name1</td></tr>\n".length();
+        int maxChars = JDBCPluginTable.TABLE_START.length() + 2 * rowLength + rowLength / 2;
+
+        String html = write(false, maxChars, "select id, name from people order by id");
+        assertEquals(JDBCPluginTable.TABLE_START
+                + "<tr class=\"odd\"><td class=\"number\">1</td><td>name1</td></tr>\n"
+                + "<tr><td class=\"number\">2</td><td>name2</td></tr>\n"
+                + "<tr class=\"odd\"><td class=\"truncated\" colspan=\"2\">Showing the first 2 rows</td></tr>\n"
+                + JDBCPluginTable.TABLE_END, html);
+        assertTrue(all.contains("name5"));
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import junit.framework.TestCase;
+
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.PluginException;
+import org.apache.wiki.event.WikiEngineEvent;
+import org.apache.wiki.event.WikiEventManager;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+public class JDBCPluginTest extends TestCase {
+
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private WikiEngine engine;
+    private String src;
+
+    /**
+     * Connects every src to the H2 database of the same name, in the given SQLType, as the drivers the
+     * plugin knows are not on the test classpath.
+     */
+    static class H2Plugin extends JDBCPlugin {
+        private final SQLType sqlType;
+
+        H2Plugin() {
+            this(SQLType.MYSQL);
+        }
+
+        H2Plugin(SQLType sqlType) {
+            this.sqlType = sqlType;
+        }
+
+        @Override
+        protected JDBCPluginPool createPool(Properties props, String source) {
+            return new JDBCPluginPool(source, sqlType, 50, getUrl(source), "", "", null, 2, 1000, 2);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        engine = createEngine(new Properties());
+        src = createDatabase(10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        shutdown(engine);
+    }
+
+    /**
+     * Every test gets an engine of its own, so that it starts without the pools and cache of another.
+     * Security is off so that it starts without the descriptors of a web application.
+     */
+    static WikiEngine createEngine(Properties properties) throws Exception {
+        // the xerces of the JSPWiki dependencies lacks the DOM level 3 support the group database needs
+        System.setProperty("javax.xml.parsers.DocumentBuilderFactory",
+                "com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl");
+        File workDir = Files.createTempDirectory("jspwiki").toFile();
+        workDir.deleteOnExit();
+        properties.setProperty("jspwiki.pageProvider", "FileSystemProvider");
+        properties.setProperty("jspwiki.fileSystemProvider.pageDir", workDir.getAbsolutePath());
+        properties.setProperty("jspwiki.workDir", workDir.getAbsolutePath());
+        properties.setProperty("jspwiki.searchProvider", "BasicSearchProvider");
+        properties.setProperty("jspwiki.security", "off");
+        properties.setProperty("jspwiki.baseURL", "http://localhost/");
+        return new WikiEngine(properties);
+    }
+
+    static void shutdown(WikiEngine engine) {
+        WikiEventManager.fireEvent(engine, new WikiEngineEvent(engine, WikiEngineEvent.SHUTDOWN));
+    }
+
+    /**
+     * @return the src of a new database with a table of people, numbered from 1 to rows
+     */
+    static String createDatabase(int rows) throws SQLException {
+        String src = "test" + databases.incrementAndGet();
+        try (Connection conn = DriverManager.getConnection(getUrl(src))) {
+            conn.createStatement().execute("create table people (id int primary key, name varchar(50), age int)");
+            PreparedStatement stmt = conn.prepareStatement("insert into people (id, name, age) values (?,?,?)");
+            for (int i = 1; i <= rows; i++) {
+                stmt.setInt(1, i);
+                stmt.setString(2, "name" + i);
+                stmt.setInt(3, 20 + i);
+                stmt.executeUpdate();
+            }
+        }
+        return src;
+    }
+
+    static String getUrl(String src) {
+        return "jdbc:h2:mem:" + src + ";DB_CLOSE_DELAY=-1";
+    }
+
+    static void execute(String src, String sql) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(getUrl(src))) {
+            conn.createStatement().execute(sql);
+        }
+    }
+
+    static int count(String src, String sql) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(getUrl(src)); ResultSet rs = conn.createStatement().executeQuery(sql)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    static Map<String, String> params(String... namesAndValues) {
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    static WikiContext createContext(WikiEngine engine, String pageName) {
+        return new WikiContext(engine, new WikiPage(engine, pageName));
+    }
+
+    /**
+     * @return the context of a request with the given parameters
+     */
+    static WikiContext createContext(WikiEngine engine, String pageName, final Map<String, String> httpParams) {
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(JDBCPluginTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getParameter".equals(name)) {
+                    return httpParams.get(args[0]);
+                }
+                if ("getParameterMap".equals(name)) {
+                    return new HashMap<String, String[]>();
+                }
+                if ("getContextPath".equals(name)) {
+                    return "/wiki";
+                }
+                if ("getServletPath".equals(name)) {
+                    return "/Wiki.jsp";
+                }
+                if (method.getReturnType() == boolean.class) {
+                    return false;
+                }
+                if (method.getReturnType() == int.class) {
+                    return 0;
+                }
+                return null;
+            }
+        });
+        return new WikiContext(engine, request, new WikiPage(engine, pageName));
+    }
+
+    public void testRendersTheQuery() throws Exception {
+        String html = new H2Plugin().execute(createContext(engine, "Main"), params("src", src, "class", "people",
+                "sql", "select id, name from people where id <= 2 order by id"));
+        assertEquals("<div class='people'>" + JDBCPluginTable.TABLE_START
+                + "<tr class=\"odd\"><th>ID</th><th>NAME</th></tr>\n"
+                + "<tr><td class=\"number\">1</td><td>name1</td></tr>\n"
+                + "<tr class=\"odd\"><td class=\"number\">2</td><td>name2</td></tr>\n"
+                + JDBCPluginTable.TABLE_END + "</div>", html);
+    }
+
+    public void testOnlySelectIsRun() throws Exception {
+        try {
+            new H2Plugin().execute(createContext(engine, "Main"), params("src", src, "sql", "delete from people"));
+            fail("Only a select may be run");
+        } catch (PluginException e) {
+            assertEquals("sql parameter needs to start with 'SELECT'.", e.getMessage());
+        }
+        assertEquals(10, count(src, "select count(*) from people"));
+        String html = new H2Plugin().execute(createContext(engine, "Main"), params("src", src, "sql", " SELECT count(*) from people"));
+        assertTrue(html, html.contains(">10<"));
+    }
+
+    public void testCachedTableIsNotQueriedAgain() throws Exception {
+        WikiContext context = createContext(engine, "Main");
+        Map<String, String> params = params("src", src, "cache", "60", "sql", "select name from people where id = 1");
+        String first = new H2Plugin().execute(context, params);
+        assertTrue(first, first.contains("name1"));
+        execute(src, "update people set name = 'renamed' where id = 1");
+
+        assertEquals(first, new H2Plugin().execute(context, params));
+        assertEquals(1, JDBCPluginPool.getPool(engine, src, null).getBorrows());
+        assertEquals(1, JDBCPluginCache.getCache(engine, 0).getHits());
+    }
+
+    public void testEachEngineHasItsOwnCache() throws Exception {
+        Map<String, String> params = params("src", src, "cache", "60", "sql", "select name from people where id = 1");
+        new H2Plugin().execute(createContext(engine, "Main"), params);
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.cache.size", "4096");
+        WikiEngine other = createEngine(properties);
+        try {
+            execute(src, "update people set name = 'renamed' where id = 1");
+            String html = new H2Plugin().execute(createContext(other, "Main"), params);
+            assertTrue(html, html.contains("renamed"));
+            assertEquals(4096, JDBCPluginCache.getCache(other, 0).getMaxBytes());
+            assertEquals(JDBCPlugin.DEFAULT_CACHE_SIZE.longValue(), JDBCPluginCache.getCache(engine, 0).getMaxBytes());
+        } finally {
+            shutdown(other);
+        }
+    }
+
+    public void testCacheIsClosedOnShutdown() throws Exception {
+        Map<String, String> params = params("src", src, "cache", "60", "sql", "select name from people where id = 1");
+        new H2Plugin().execute(createContext(engine, "Main"), params);
+        JDBCPluginCache cache = JDBCPluginCache.getCache(engine, 0);
+        assertTrue(cache.getBytes() > 0);
+
+        shutdown(engine);
+        assertEquals(0, cache.getBytes());
+        assertNotSame(cache, JDBCPluginCache.getCache(engine, 0));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.wiki.WikiEngine;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An embedded H2 database seeded with a generated wiki, for the benchmarks. The corpus is the same for
+ * the same parameters, so results can be compared between runs and commits.
+ * <p>
+ * Every tenth page contains the word {@link #SEARCH_WORD}, all other words are drawn from a fixed
+ * vocabulary.
+ */
+public class BenchmarkCorpus {
+
+    public static final String SEARCH_WORD = "jspwiki";
+    public static final String STORAGE_MEMORY = "mem";
+    public static final String STORAGE_FILE = "file";
+
+    private static final AtomicInteger DB_COUNTER = new AtomicInteger();
+    private static final int COMMIT_ROWS = 10000;
+    private static final int VOCABULARY = 5000;
+    private static WikiEngine engine;
+
+    private final String url;
+    private final File file;
+    private final int pages;
+    private final int versions;
+    private final int textSize;
+    private final String[] names;
+
+    /**
+     * @param storage "mem" for an in memory database, "file" for a database in java.io.tmpdir, for corpora larger than the heap
+     */
+    public BenchmarkCorpus(String storage, int pages, int versions, int textSize) {
+        String name = "jspwiki-bench" + DB_COUNTER.incrementAndGet() + "-" + System.nanoTime();
+        if (STORAGE_FILE.equals(storage)) {
+            file = new File(System.getProperty("java.io.tmpdir"), name);
+            url = "jdbc:h2:file:" + file.getAbsolutePath();
+        } else {
+            file = null;
+            url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        }
+        this.pages = pages;
+        this.versions = versions;
+        this.textSize = textSize;
+        names = new String[pages];
+        for (int i = 0; i < pages; i++) {
+            names[i] = "Page" + i;
+        }
+    }
+
+    /**
+     * Create the table, as in etc/createDB.sql, and fill it.
+     *
+     * @param versioned write versions 1 to versions of every page, or else the single unversioned row
+     */
+    public void create(boolean versioned) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("create table jspwiki (" +
+                        " id int auto_increment primary key," +
+                        " name varchar(255) not null," +
+                        " version int not null default -1," +
+                        " text clob null," +
+                        " author varchar(255) not null," +
+                        " changenote varchar(255) null," +
+                        " lastmodified timestamp not null default now()," +
+                        " status varchar(10) not null," +
+                        " textsize int null," +
+                        " texthash varchar(64) null)");
+                stmt.execute("create unique index jspwiki_name_version on jspwiki (name, version)");
+            }
+            conn.setAutoCommit(false);
+            Random random = new Random(pages * 31L + versions);
+            try (PreparedStatement stmt = conn.prepareStatement("insert into jspwiki (name,version,text,author,changenote,status) values (?,?,?,?,?,?)")) {
+                int rows = 0;
+                for (int i = 0; i < pages; i++) {
+                    int first = versioned ? 1 : versions;
+                    for (int v = first; v <= versions; v++) {
+                        stmt.setString(1, names[i]);
+                        stmt.setInt(2, versioned ? v : JDBCPageProvider.LATEST_VERSION);
+                        stmt.setString(3, text(random, i));
+                        stmt.setString(4, "author" + (v % 10));
+                        stmt.setString(5, "version " + v);
+                        stmt.setString(6, JDBCPageProvider.PageStatus.ACTIVE.getDbValue());
+                        stmt.addBatch();
+                        if (++rows % COMMIT_ROWS == 0) {
+                            stmt.executeBatch();
+                            conn.commit();
+                        }
+                    }
+                }
+                stmt.executeBatch();
+                conn.commit();
+            }
+        }
+    }
+
+    /**
+     * Random words of the vocabulary, up to textSize characters.
+     */
+    public String text(Random random, int page) {
+        StringBuilder text = new StringBuilder(textSize + 16);
+        if (page % 10 == 0) {
+            text.append(SEARCH_WORD).append(' ');
+        }
+        while (text.length() < textSize) {
+            text.append("word").append(random.nextInt(VOCABULARY)).append(' ');
+        }
+        text.setLength(textSize);
+        return text.toString();
+    }
+
+    public JDBCPageProvider createProvider(boolean versioned, boolean cache) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("jdbc.driver", "org.h2.Driver");
+        properties.setProperty("jdbc.url", url);
+        properties.setProperty("jdbc.versioning", String.valueOf(versioned));
+        properties.setProperty("jdbc.maxresults", String.valueOf(Math.max(pages, 1)));
+        properties.setProperty("jdbc.cache", String.valueOf(cache));
+        // room for the metadata and text of every page, so a warmed cache answers every read
+        properties.setProperty("jdbc.cache.size", String.valueOf(pages * (4L * textSize + 2048)));
+        JDBCPageProvider provider = new JDBCPageProvider();
+        provider.initialize(createEngine(), properties);
+        return provider;
+    }
+
+    /**
+     * The provider only needs the engine to construct WikiPages, so every corpus of a benchmark run
+     * shares one engine, keeping its pages in a temporary directory.
+     */
+    public static synchronized WikiEngine createEngine() throws Exception {
+        if (engine == null) {
+            File workDir = Files.createTempDirectory("jspwiki").toFile();
+            workDir.deleteOnExit();
+            engine = createEngine(workDir);
+        }
+        return engine;
+    }
+
+    /**
+     * A wiki engine rendering pages from the given directory, with security off so that it starts
+     * without the descriptors of a web application.
+     */
+    public static WikiEngine createEngine(File workDir) throws Exception {
+        // the xerces of the JSPWiki dependencies lacks the DOM level 3 support the group database needs
+        System.setProperty("javax.xml.parsers.DocumentBuilderFactory",
+                "com.sun.org.apache.xerces.internal.jaxp.DocumentBuilderFactoryImpl");
+        Properties properties = new Properties();
+        properties.setProperty("jspwiki.pageProvider", "FileSystemProvider");
+        properties.setProperty("jspwiki.fileSystemProvider.pageDir", workDir.getAbsolutePath());
+        properties.setProperty("jspwiki.workDir", workDir.getAbsolutePath());
+        properties.setProperty("jspwiki.searchProvider", "BasicSearchProvider");
+        properties.setProperty("jspwiki.baseURL", "http://localhost/");
+        properties.setProperty("jspwiki.security", "off");
+        return new WikiEngine(properties);
+    }
+
+    /**
+     * Drop the database, deleting its file if it has one.
+     */
+    public void close() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("drop all objects delete files");
+        }
+        if (file != null) {
+            new File(file.getAbsolutePath() + ".mv.db").delete();
+            new File(file.getAbsolutePath() + ".trace.db").delete();
+        }
+    }
+
+    public String getPageName(int page) {
+        return names[page];
+    }
+
+    public int getPages() {
+        return pages;
+    }
+
+    public int getVersions() {
+        return versions;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.search.QueryItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of a versioned {@link JDBCPageProvider}. "Hot" reads go through a provider whose cache holds
+ * the whole corpus, "cold" reads through a provider without cache, so every call goes to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JDBCPageProviderReadBenchmark {
+
+    @Param({"1000"})
+    public int pages;
+
+    @Param({"5"})
+    public int versions;
+
+    @Param({"2000"})
+    public int textSize;
+
+    @Param({BenchmarkCorpus.STORAGE_MEMORY})
+    public String storage;
+
+    private BenchmarkCorpus corpus;
+    private JDBCPageProvider hot;
+    private JDBCPageProvider cold;
+    private QueryItem[] query;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        corpus = new BenchmarkCorpus(storage, pages, versions, textSize);
+        corpus.create(true);
+        hot = corpus.createProvider(true, true);
+        cold = corpus.createProvider(true, false);
+        for (int i = 0; i < pages; i++) {
+            hot.getPageInfo(corpus.getPageName(i), JDBCPageProvider.LATEST_VERSION);
+            hot.getPageText(corpus.getPageName(i), JDBCPageProvider.LATEST_VERSION);
+        }
+        QueryItem item = new QueryItem();
+        item.word = BenchmarkCorpus.SEARCH_WORD;
+        item.type = QueryItem.REQUIRED;
+        query = new QueryItem[]{item};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.close();
+    }
+
+    private String randomPage() {
+        return corpus.getPageName(ThreadLocalRandom.current().nextInt(pages));
+    }
+
+    @Benchmark
+    public String getPageTextHot() throws Exception {
+        return hot.getPageText(randomPage(), JDBCPageProvider.LATEST_VERSION);
+    }
+
+    @Benchmark
+    public String getPageTextCold() throws Exception {
+        return cold.getPageText(randomPage(), JDBCPageProvider.LATEST_VERSION);
+    }
+
+    @Benchmark
+    public WikiPage getPageInfoCold() throws Exception {
+        return cold.getPageInfo(randomPage(), JDBCPageProvider.LATEST_VERSION);
+    }
+
+    @Benchmark
+    public void getAllPages(Blackhole blackhole) throws Exception {
+        // the view is lazy, the pages are only read while iterating it
+        for (Object page : cold.getAllPages()) {
+            blackhole.consume(page);
+        }
+    }
+
+    @Benchmark
+    public List getVersionHistory() throws Exception {
+        return cold.getVersionHistory(randomPage());
+    }
+
+    @Benchmark
+    public Collection findPages() throws Exception {
+        return cold.findPages(query);
+    }
+}
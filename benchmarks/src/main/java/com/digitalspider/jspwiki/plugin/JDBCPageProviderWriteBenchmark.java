@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves of random pages of the corpus, with and without versioning. A versioned save adds a version,
+ * so the corpus grows during the run, an unversioned save replaces the page row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JDBCPageProviderWriteBenchmark {
+
+    @Param({"1000"})
+    public int pages;
+
+    @Param({"5"})
+    public int versions;
+
+    @Param({"2000"})
+    public int textSize;
+
+    @Param({"true", "false"})
+    public boolean versioned;
+
+    @Param({BenchmarkCorpus.STORAGE_MEMORY})
+    public String storage;
+
+    private BenchmarkCorpus corpus;
+    private JDBCPageProvider provider;
+    private WikiEngine engine;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        corpus = new BenchmarkCorpus(storage, pages, versions, textSize);
+        corpus.create(versioned);
+        provider = corpus.createProvider(versioned, true);
+        engine = BenchmarkCorpus.createEngine();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        corpus.close();
+    }
+
+    @Benchmark
+    public WikiPage putPageText() throws Exception {
+        Random random = ThreadLocalRandom.current();
+        int page = random.nextInt(pages);
+        WikiPage wikiPage = new WikiPage(engine, corpus.getPageName(page));
+        wikiPage.setAuthor("benchmark");
+        provider.putPageText(wikiPage, corpus.text(random, page));
+        return wikiPage;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 David Vittor http://digitalspider.com.au
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.digitalspider.jspwiki.plugin;
+
+import org.apache.wiki.WikiContext;
+import org.apache.wiki.WikiEngine;
+import org.apache.wiki.WikiPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a query result by {@link JDBCPlugin}: "wikiMarkup" builds wiki table markup and renders it
+ * with the wiki engine, as the plugin used to, "direct" writes the HTML table with {@link JDBCPluginTable}.
+ * Both run the same query against an embedded H2 table, so the difference is the rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JDBCPluginRenderBenchmark {
+
+    @Param({"50", "500", "5000"})
+    public int rows;
+
+    private static final String SQL = "select id, name, amount, created, note from orders order by id";
+
+    private File workDir;
+    private WikiEngine engine;
+    private WikiContext context;
+    private Connection conn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        conn = DriverManager.getConnection("jdbc:h2:mem:render" + System.nanoTime());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("create table orders (id int primary key, name varchar(100), amount decimal(12,2), "
+                    + "created timestamp, note varchar(200))");
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("insert into orders values (?,?,?,?,?)")) {
+            for (int i = 0; i < rows; i++) {
+                stmt.setInt(1, i);
+                stmt.setString(2, "Customer " + i);
+                stmt.setBigDecimal(3, BigDecimal.valueOf(i * 1234L, 2));
+                stmt.setTimestamp(4, new Timestamp(1400000000000L + i * 60000L));
+                stmt.setString(5, (i % 10 == 0) ? null : "Delivery to Level " + (i % 30) + " & reception");
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        workDir = Files.createTempDirectory("jspwiki").toFile();
+        engine = BenchmarkCorpus.createEngine(workDir);
+        context = new WikiContext(engine, new WikiPage(engine, "Orders"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        conn.close();
+        File[] files = workDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        workDir.delete();
+    }
+
+    @Benchmark
+    public String wikiMarkup() throws Exception {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(SQL)) {
+            StringBuffer buffer = new StringBuffer();
+            ResultSetMetaData md = rs.getMetaData();
+            for (int i = 0; i < md.getColumnCount(); i++) {
+                buffer.append("|| " + md.getColumnLabel(i + 1));
+            }
+            buffer.append("\n");
+            while (rs.next()) {
+                for (int i = 0; i < md.getColumnCount(); i++) {
+                    buffer.append("| " + rs.getString(i + 1));
+                }
+                buffer.append("\n");
+            }
+            return "<div class='sql-table'>" + engine.textToHTML(context, buffer.toString()) + "</div>";
+        }
+    }
+
+    @Benchmark
+    public String direct() throws Exception {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(SQL)) {
+            return "<div class='sql-table'>" + new JDBCPluginTable(true, JDBCPlugin.DEFAULT_MAXSIZE).write(rs) + "</div>";
+        }
+    }
+}